@@ -0,0 +1,42 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.common.stats;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void percentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        Assert.assertEquals(0, histogram.snapshot(false).getPercentile(50), 0);
+
+        for (int i = 0; i < 99; i++) {
+            histogram.record(1000000); // 1ms
+        }
+        histogram.record(100000000); // 100ms
+
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot(true);
+        Assert.assertEquals(100, snapshot.getCount());
+        Assert.assertEquals(1.024, snapshot.getPercentile(50), 0.001);
+        Assert.assertEquals(1.024, snapshot.getPercentile(99), 0.001);
+        Assert.assertEquals(131.072, snapshot.getPercentile(100), 0.001);
+
+        Assert.assertEquals(0, histogram.snapshot(false).getCount());
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.common.util.memcached;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.stats.Counter;
+
+/**
+ * Unit test for {@link MemcachedNearCache}.
+ */
+public final class MemcachedNearCacheTest {
+
+    private static final class CountingLoader implements MemcachedNearCache.Loader {
+        final Map<String, Object> backend = new HashMap<String, Object>();
+        final AtomicInteger loads = new AtomicInteger();
+        final AtomicInteger keysLoaded = new AtomicInteger();
+
+        @Override
+        public Map<String, Object> load(Collection<String> keys) {
+            loads.incrementAndGet();
+            keysLoaded.addAndGet(keys.size());
+            Map<String, Object> result = new HashMap<String, Object>();
+            for (String key : keys) {
+                result.put(key, backend.get(key));
+            }
+            return result;
+        }
+    }
+
+    @Test
+    public void readThrough() throws Exception {
+        Counter l1 = new Counter();
+        Counter l2 = new Counter();
+        MemcachedNearCache cache = new MemcachedNearCache(1024 * 1024, 60000, l1, l2);
+        CountingLoader loader = new CountingLoader();
+        loader.backend.put("a", "1");
+        loader.backend.put("b", "2");
+
+        Map<String, Object> values = cache.getMulti(Arrays.asList("a", "b", "c"), loader, 1000);
+        Assert.assertEquals("1", values.get("a"));
+        Assert.assertEquals("2", values.get("b"));
+        Assert.assertTrue(values.containsKey("c"));
+        Assert.assertNull(values.get("c"));
+        Assert.assertEquals(1, loader.loads.get());
+
+        // hits are served locally, only the miss goes to memcached
+        values = cache.getMulti(Arrays.asList("a", "b", "c"), loader, 1000);
+        Assert.assertEquals("1", values.get("a"));
+        Assert.assertEquals(2, loader.loads.get());
+        Assert.assertEquals(4, loader.keysLoaded.get());
+        Assert.assertEquals(6, l1.getCount());
+        Assert.assertEquals(200, l1.getTotal());
+        Assert.assertEquals(4, l2.getCount());
+        Assert.assertEquals(200, l2.getTotal());
+
+        loader.backend.put("a", "3");
+        Assert.assertEquals("1", cache.get("a", loader, 1000));
+        cache.invalidateLocal(Collections.singleton("a"));
+        Assert.assertEquals("3", cache.get("a", loader, 1000));
+    }
+
+    @Test
+    public void invalidateBroadcast() throws Exception {
+        MemcachedNearCache cache = new MemcachedNearCache(1024 * 1024, 60000, new Counter(), new Counter());
+        final Map<String, Integer> sent = new HashMap<String, Integer>();
+        cache.setInvalidator(new MemcachedNearCache.Invalidator() {
+            @Override
+            public void invalidate(Collection<String> keys) {
+                for (String key : keys) {
+                    sent.put(key, sent.containsKey(key) ? sent.get(key) + 1 : 1);
+                }
+            }
+        });
+        cache.invalidate(Arrays.asList("a", "b"));
+        cache.invalidateLocal(Arrays.asList("a"));
+        Assert.assertEquals(Integer.valueOf(1), sent.get("a"));
+        Assert.assertEquals(Integer.valueOf(1), sent.get("b"));
+    }
+
+    /**
+     * Loader that blocks until released, and returns the value of {@code k} at that time.
+     */
+    private static final class SlowLoader implements MemcachedNearCache.Loader {
+        final CountDownLatch loading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger loads = new AtomicInteger();
+        volatile Object value = "v";
+
+        @Override
+        public Map<String, Object> load(Collection<String> keys) throws ServiceException {
+            loads.incrementAndGet();
+            loading.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw ServiceException.INTERRUPTED("load");
+            }
+            return Collections.singletonMap("k", value);
+        }
+    }
+
+    /**
+     * Looks up {@code k} in another thread, keeping the result or the failure for the test to check.
+     */
+    private static final class Lookup extends Thread {
+        private final MemcachedNearCache cache;
+        private final MemcachedNearCache.Loader loader;
+        private final AtomicReference<Object> result = new AtomicReference<Object>();
+        private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+        Lookup(MemcachedNearCache cache, MemcachedNearCache.Loader loader) {
+            this.cache = cache;
+            this.loader = loader;
+            start();
+        }
+
+        @Override
+        public void run() {
+            try {
+                result.set(cache.get("k", loader, 10000));
+            } catch (Throwable t) {
+                failure.set(t);
+            }
+        }
+
+        Object getResult() throws Exception {
+            join(10000);
+            Assert.assertFalse(isAlive());
+            if (failure.get() != null) {
+                throw new AssertionError(failure.get());
+            }
+            return result.get();
+        }
+    }
+
+    @Test
+    public void coalesce() throws Exception {
+        MemcachedNearCache cache = new MemcachedNearCache(1024 * 1024, 60000, new Counter(), new Counter());
+        SlowLoader slow = new SlowLoader();
+        Lookup first = new Lookup(cache, slow);
+        slow.loading.await();
+
+        // a second lookup while the first is in flight waits for it rather than loading again
+        Lookup waiter = new Lookup(cache, slow);
+        Thread.sleep(100);
+        slow.release.countDown();
+        Assert.assertEquals("v", first.getResult());
+        Assert.assertEquals("v", waiter.getResult());
+        Assert.assertEquals(1, slow.loads.get());
+    }
+
+    @Test
+    public void invalidateWhileLoading() throws Exception {
+        MemcachedNearCache cache = new MemcachedNearCache(1024 * 1024, 60000, new Counter(), new Counter());
+        SlowLoader slow = new SlowLoader();
+        Lookup lookup = new Lookup(cache, slow);
+        slow.loading.await();
+
+        // the key changes while its old value is being loaded, so the old value isn't kept
+        cache.invalidateLocal(Collections.singleton("k"));
+        slow.release.countDown();
+        Assert.assertEquals("v", lookup.getResult());
+        Assert.assertEquals(0, cache.size());
+
+        CountingLoader loader = new CountingLoader();
+        loader.backend.put("k", "w");
+        Assert.assertEquals("w", cache.get("k", loader, 1000));
+        Assert.assertEquals(1, loader.loads.get());
+    }
+
+    @Test
+    public void invalidateOtherKeyWhileLoading() throws Exception {
+        MemcachedNearCache cache = new MemcachedNearCache(1024 * 1024, 60000, new Counter(), new Counter());
+        SlowLoader slow = new SlowLoader();
+        Lookup lookup = new Lookup(cache, slow);
+        slow.loading.await();
+
+        // invalidating another key doesn't keep the loaded value out of the cache
+        cache.invalidateLocal(Collections.singleton("other"));
+        slow.release.countDown();
+        Assert.assertEquals("v", lookup.getResult());
+        Assert.assertEquals(1, cache.size());
+
+        CountingLoader loader = new CountingLoader();
+        Assert.assertEquals("v", cache.get("k", loader, 1000));
+        Assert.assertEquals(0, loader.loads.get());
+    }
+}
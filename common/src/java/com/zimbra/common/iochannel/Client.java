@@ -24,11 +24,14 @@ import java.nio.channels.NotYetConnectedException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.zimbra.common.iochannel.Config.ServerConfig;
 import com.zimbra.common.util.Log;
@@ -60,9 +63,26 @@ public class Client implements Runnable {
             hostname = host;
             port = p;
             backlog = new ConcurrentLinkedQueue<Packet>();
+            backlogSize = new AtomicInteger();
+            messagesSent = new AtomicLong();
+            bytesSent = new AtomicLong();
             connect();
         }
 
+        /**
+         * Creates a peer that is never connected, for subclasses that
+         * stand in for a peer server.
+         */
+        protected PeerServer(String id) {
+            this.id = id;
+            hostname = null;
+            port = 0;
+            backlog = new ConcurrentLinkedQueue<Packet>();
+            backlogSize = new AtomicInteger();
+            messagesSent = new AtomicLong();
+            bytesSent = new AtomicLong();
+        }
+
         /**
          * Requests iochannel to send a message to this peer server.
          */
@@ -82,6 +102,7 @@ public class Client implements Runnable {
          */
         public void sendMessage(ByteBuffer msg) {
             backlog.add(Packet.create(clientId, this, msg));
+            backlogSize.incrementAndGet();
             setActive();
         }
 
@@ -89,8 +110,22 @@ public class Client implements Runnable {
          * Returns the backlog, or how many messages are queued
          * for this peer server.
          */
-        public synchronized int getBacklog() {
-            return backlog.size();
+        public int getBacklog() {
+            return backlogSize.get();
+        }
+
+        /**
+         * Returns the number of messages written to this peer server.
+         */
+        public long getMessagesSent() {
+            return messagesSent.get();
+        }
+
+        /**
+         * Returns the number of bytes written to this peer server.
+         */
+        public long getBytesSent() {
+            return bytesSent.get();
         }
 
         /*
@@ -110,7 +145,9 @@ public class Client implements Runnable {
         }
 
         /*
-         * Called by Client when this peer is ready for writing.
+         * Called by Client when this peer is ready for writing.  The packets
+         * queued so far are framed back to back and sent in one gathering
+         * write, up to maxWriteSize bytes.
          */
         private long write() throws IOException {
             long bytesWritten = 0;
@@ -119,18 +156,20 @@ public class Client implements Runnable {
                     return bytesWritten;
                 } else {
                     if (current == null) {
-                        current = backlog.poll();
+                        nextBatch();
                     }
                 }
             }
             try {
                 log.debug("client:writing to %s", channel);
-                bytesWritten = channel.write(current.getPayload());
+                bytesWritten = channel.write(current);
+                bytesSent.addAndGet(bytesWritten);
             } catch (NotYetConnectedException e) {
-                log.warn("channel %s:%d is down", current.getDestination().hostname, current.getDestination().port);
+                log.warn("channel %s:%d is down", hostname, port);
             }
             synchronized (this) {
-                if (!current.hasRemaining()) {
+                if (!hasRemaining(current)) {
+                    messagesSent.addAndGet(currentPackets);
                     current = null;
                 }
             }
@@ -138,6 +177,31 @@ public class Client implements Runnable {
             return bytesWritten;
         }
 
+        private void nextBatch() {
+            ArrayList<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+            long size = 0;
+            currentPackets = 0;
+            for (Packet p = backlog.peek(); p != null && (buffers.isEmpty() || size < maxWriteSize); p = backlog.peek()) {
+                backlog.poll();
+                backlogSize.decrementAndGet();
+                currentPackets++;
+                for (ByteBuffer b : p.getPayload()) {
+                    buffers.add(b);
+                    size += b.remaining();
+                }
+            }
+            current = buffers.toArray(new ByteBuffer[buffers.size()]);
+        }
+
+        private boolean hasRemaining(ByteBuffer[] buffers) {
+            for (ByteBuffer b : buffers) {
+                if (b.hasRemaining()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
         private synchronized boolean isBacklogEmpty() {
             return current == null && backlog.isEmpty();
         }
@@ -194,12 +258,16 @@ public class Client implements Runnable {
         }
 
         private boolean connected;
-        private Packet current;
+        private ByteBuffer[] current;
+        private int currentPackets;  // number of packets whose buffers are in current
         private final String id;
         private final String hostname;
         private final int port;
         private SocketChannel channel;
         private final ConcurrentLinkedQueue<Packet> backlog;
+        private final AtomicInteger backlogSize;
+        private final AtomicLong messagesSent;
+        private final AtomicLong bytesSent;
 
     }
 
@@ -267,6 +335,7 @@ public class Client implements Runnable {
     private final HashSet<PeerServer> activeSet;
 
     private static int waitInterval = 10000;  // 10s
+    private static final int maxWriteSize = 64 * 1024;
 
     void setWaitInterval(int interval) {
         waitInterval = interval;
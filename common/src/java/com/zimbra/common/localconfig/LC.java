@@ -91,6 +91,12 @@ public final class LC {
     @Supported
     public static final KnownKey zimbra_db_directory = KnownKey.newKey("${zimbra_home}/db");
 
+    // file ephemeral backend: log directory when the URL has no path, how often the log is synced to disk (0 syncs
+    // every write) and the log size below which it is never compacted
+    public static final KnownKey ephemeral_log_directory = KnownKey.newKey("${zimbra_home}/data/ephemeral");
+    public static final KnownKey ephemeral_log_sync_interval_ms = KnownKey.newKey(100);
+    public static final KnownKey ephemeral_log_compact_min_bytes = KnownKey.newKey(8 * 1024 * 1024);
+
     @Supported
     public static final KnownKey zimbra_tmp_directory = KnownKey.newKey("${zimbra_home}/data/tmp");
 
@@ -100,6 +106,9 @@ public final class LC {
     @Supported
     public static final KnownKey zimbra_extension_common_directory = KnownKey.newKey("${zimbra_home}/lib/ext-common");
 
+    // prepared statements for generated search SQL kept open per database connection; 0 disables the cache
+    public static final KnownKey zimbra_db_statement_cache_size = KnownKey.newKey(32);
+
     @Supported
     public static final KnownKey zimbra_mysql_user = KnownKey.newKey("zimbra");
 
@@ -179,6 +188,8 @@ public final class LC {
     public static final KnownKey zimbra_store_copy_buffer_size_kb = KnownKey.newKey(16); // KB
     public static final KnownKey zimbra_nio_file_copy_chunk_size_kb = KnownKey.newKey(512); // KB
     public static final KnownKey zimbra_blob_input_stream_buffer_size_kb = KnownKey.newKey(1); // KB
+    // send uncompressed blobs to HTTP and IMAP clients straight from the file instead of through heap buffers
+    public static final KnownKey zimbra_blob_zero_copy = KnownKey.newKey(true);
 
     @Supported
     public static final KnownKey zimbra_mailbox_manager_hardref_cache = KnownKey.newKey(2500);
@@ -203,6 +214,13 @@ public final class LC {
 
     public static final KnownKey zimbra_mailbox_lock_readwrite = KnownKey.newKey(true);
 
+    // threads used to replay redo logs in crash recovery; 0 means one per processor
+    public static final KnownKey redolog_replay_threads = KnownKey.newKey(0);
+    // maximum number of ops read ahead of parallel redo log replay
+    public static final KnownKey redolog_replay_queue_capacity = KnownKey.newKey(1000);
+    // compress archived redo logs after rollover
+    public static final KnownKey redolog_archive_compress = KnownKey.newKey(true);
+
     @Supported
     public static final KnownKey zimbra_index_threads = KnownKey.newKey(10);
 
@@ -312,6 +330,11 @@ public final class LC {
     @Supported
     public static final KnownKey zimbra_converter_depth_max = KnownKey.newKey(100);
 
+    public static final KnownKey zimbra_converter_tnef_cache_directory = KnownKey.newKey("${zimbra_tmp_directory}/tnef");
+    public static final KnownKey zimbra_converter_tnef_cache_max_bytes = KnownKey.newKey(256 * 1024 * 1024);
+    public static final KnownKey zimbra_converter_tnef_threads = KnownKey.newKey(4);
+    public static final KnownKey zimbra_converter_tnef_view_timeout = KnownKey.newKey(2000);
+
     @Supported
     public static final KnownKey zimbra_ssl_enabled  = KnownKey.newKey(true);
 
@@ -525,6 +548,13 @@ public final class LC {
     @Supported
     public static final KnownKey gal_group_cache_maxage = KnownKey.newKey(10080);  // 7 days
 
+    public static final KnownKey gal_memory_index_enabled = KnownKey.newKey(true);
+    public static final KnownKey gal_memory_index_max_entries = KnownKey.newKey(250000);
+
+    // in-process cache in front of memcached: bytes it may hold (0 disables it) and how long an entry is served
+    public static final KnownKey memcached_near_cache_max_bytes = KnownKey.newKey(0);
+    public static final KnownKey memcached_near_cache_ttl_ms = KnownKey.newKey(5000);
+
     public static final KnownKey calendar_resource_ldap_search_maxsize = KnownKey.newKey(1000);
 
     // This value is stored here for use by zmmycnf program. Changing this
@@ -580,9 +610,15 @@ public final class LC {
 
     public static final KnownKey sqlite_shared_cache_enabled = KnownKey.newKey(false);
     public static final KnownKey sqlite_cache_size = KnownKey.newKey(500);
+    // mailbox transactions write both zimbra.db and the attached group database, and only a rollback journal
+    // commits atomically across attached databases, so WAL is not the default
     public static final KnownKey sqlite_journal_mode = KnownKey.newKey("PERSIST");
     public static final KnownKey sqlite_page_size = KnownKey.newKey(4096);
     public static final KnownKey sqlite_sync_mode = KnownKey.newKey("NORMAL");
+    // bytes of each database file that sqlite may memory-map; 0 disables memory-mapped I/O
+    public static final KnownKey sqlite_mmap_size = KnownKey.newKey(268435456);
+    // how long a statement waits on a database file locked by another connection before failing with SQLITE_BUSY
+    public static final KnownKey sqlite_busy_timeout_ms = KnownKey.newKey(30000);
 
     @Supported
     public static final KnownKey mailboxd_directory = KnownKey.newKey("${zimbra_home}/mailboxd");
@@ -692,8 +728,26 @@ public final class LC {
     @Supported
     public static final KnownKey calendar_cache_range_months = KnownKey.newKey(3);
     public static final KnownKey calendar_cache_max_stale_items = KnownKey.newKey(10);
+    // iochannel batching: how long messages to a peer wait to be merged and sent together (0 sends each one right
+    // away), the batch size that is sent without waiting, the peer backlog past which batches are held back and the
+    // number of waiting messages past which the oldest are dropped
+    public static final KnownKey iochannel_batch_window_ms = KnownKey.newKey(0);
+    public static final KnownKey iochannel_batch_max_messages = KnownKey.newKey(500);
+    public static final KnownKey iochannel_max_backlog = KnownKey.newKey(5000);
+    public static final KnownKey iochannel_max_pending = KnownKey.newKey(100000);
+    // in always-on clusters each mailbox server publishes its load to ZooKeeper this often (0 disables it), with this
+    // many of its busiest mailboxes; the placement advisor suggests moves while the busiest server is more than the
+    // given percent over the average, at most the given number of moves each time it runs
+    public static final KnownKey zookeeper_load_report_interval_ms = KnownKey.newKey(30000);
+    public static final KnownKey zookeeper_load_hot_mailboxes = KnownKey.newKey(10);
+    public static final KnownKey zookeeper_placement_imbalance_percent = KnownKey.newKey(25);
+    public static final KnownKey zookeeper_placement_max_moves = KnownKey.newKey(5);
     public static final KnownKey calendar_exchange_form_auth_url = KnownKey.newKey("/exchweb/bin/auth/owaauth.dll");
     public static final KnownKey calendar_item_get_max_retries = KnownKey.newKey(100);
+    // number of instances a recurrence rule keeps from earlier expansions; 0 disables the cache
+    public static final KnownKey calendar_recurrence_expansion_cache_size = KnownKey.newKey(2000);
+    // number of CalDAV/CardDAV collections whose member hrefs are remembered for sync-collection reports
+    public static final KnownKey dav_sync_collection_cache_size = KnownKey.newKey(1000);
 
     public static final KnownKey spnego_java_options =  KnownKey.newKey(
             "-Djava.security.krb5.conf=${mailboxd_directory}/etc/krb5.ini " +
@@ -727,6 +781,8 @@ public final class LC {
     public static final KnownKey imap_throttle_command_limit = KnownKey.newKey(25);
     public static final KnownKey imap_throttle_fetch = KnownKey.newKey(true);
     public static final KnownKey data_source_imap_reuse_connections = KnownKey.newKey(false);
+    public static final KnownKey data_source_imap_fetch_connections = KnownKey.newKey(3);
+    public static final KnownKey data_source_imap_fetch_pipeline_depth = KnownKey.newKey(20);
 
     public static final KnownKey pop3_write_timeout = KnownKey.newKey(10);
     public static final KnownKey pop3_thread_keep_alive_time = KnownKey.newKey(60);
@@ -754,6 +810,9 @@ public final class LC {
     public static final KnownKey milter_write_timeout = KnownKey.newKey(10);
     public static final KnownKey milter_write_chunk_size = KnownKey.newKey(1024);
     public static final KnownKey milter_thread_keep_alive_time = KnownKey.newKey(60);
+    public static final KnownKey milter_verdict_cache_maxsize = KnownKey.newKey(10000);
+    public static final KnownKey milter_verdict_cache_maxage = KnownKey.newKey(60);
+    public static final KnownKey milter_stats_interval = KnownKey.newKey(300);
 
     @Supported
     public static final KnownKey krb5_keytab = KnownKey.newKey("${zimbra_home}/conf/krb5.keytab");
@@ -821,7 +880,16 @@ public final class LC {
 
     public static final KnownKey search_disable_database_hints = KnownKey.newKey(false);
     public static final KnownKey search_dbfirst_term_percentage_cutoff = KnownKey.newKey(0.8F);
+    // pick DB-first or Lucene-first from folder/tag counts and index term frequencies; false uses the fixed cutoffs
+    public static final KnownKey search_cost_based_plan = KnownKey.newKey(true);
     public static final KnownKey search_tagged_item_count_join_query_cutoff = KnownKey.newKey(1000); //beyond this limit server will not use join in the query while fetching unread items
+    // resolve tag and flag search constraints from in-memory per-mailbox bitmaps; matches of up to
+    // search_tag_bitmap_max_ids items are passed to the database as item ids instead of TAGGED_ITEM lookups
+    public static final KnownKey search_tag_bitmap_index = KnownKey.newKey(true);
+    public static final KnownKey search_tag_bitmap_max_ids = KnownKey.newKey(500);
+    // number of database-only search results remembered per mailbox, and the number of hits kept for each of them
+    public static final KnownKey search_result_cache_size = KnownKey.newKey(8);
+    public static final KnownKey search_result_cache_max_hits = KnownKey.newKey(1000);
 
     public static final KnownKey zmstat_interval = KnownKey.newKey(30);
     public static final KnownKey zmstat_disk_interval = KnownKey.newKey(600);
@@ -849,6 +917,15 @@ public final class LC {
     public static final KnownKey zimbra_archive_formatter_disable_timeout = KnownKey.newKey(true);
     public static final KnownKey zimbra_csv_formatter_disable_timeout = KnownKey.newKey(true);
     public static final KnownKey zimbra_archive_formatter_search_chunk_size = KnownKey.newKey(4096);
+    // threads reading blobs ahead of export and staging message blobs during import; 0 disables the pipeline
+    public static final KnownKey zimbra_archive_formatter_threads = KnownKey.newKey(4);
+    // number of items, and total bytes of blob content, read ahead of the archive writer
+    public static final KnownKey zimbra_archive_formatter_window = KnownKey.newKey(64);
+    public static final KnownKey zimbra_archive_formatter_window_bytes = KnownKey.newKey(32 * 1024 * 1024); // 32MB
+    // larger blobs are streamed by the request thread instead of being buffered
+    public static final KnownKey zimbra_archive_formatter_max_buffered_blob = KnownKey.newKey(4 * 1024 * 1024); // 4MB
+    // 64KB chunks buffered between the archive writer and the compression/network stage
+    public static final KnownKey zimbra_archive_formatter_pipe_chunks = KnownKey.newKey(16);
     public static final KnownKey zimbra_gal_sync_disable_timeout = KnownKey.newKey(true);
     // for bug 79865
     /**
@@ -919,8 +996,14 @@ public final class LC {
     public static final KnownKey yauth_baseuri = KnownKey.newKey("https://login.yahoo.com/WSLogin/V1");
 
     public static final KnownKey purge_initial_sleep_ms = KnownKey.newKey(30 * Constants.MILLIS_PER_MINUTE);
+    // number of mailboxes purged concurrently
+    public static final KnownKey purge_threads = KnownKey.newKey(2);
+    // percentage of each purge thread's time spent purging; the rest is spent sleeping
+    public static final KnownKey purge_duty_cycle_percent = KnownKey.newKey(50);
 
     public static final KnownKey conversation_max_age_ms = KnownKey.newKey(31 * Constants.MILLIS_PER_DAY);
+    // threading hashes per mailbox whose conversation is remembered, so that delivery skips the open_conversation lookup
+    public static final KnownKey conversation_hash_cache_size = KnownKey.newKey(500);
     public static final KnownKey tombstone_max_age_ms = KnownKey.newKey(3 * Constants.MILLIS_PER_MONTH);
 
     public static final KnownKey autoprov_initial_sleep_ms = KnownKey.newKey(5 * Constants.MILLIS_PER_MINUTE);
@@ -1079,6 +1162,12 @@ public final class LC {
     public static final KnownKey zimbra_lmtp_max_line_length = KnownKey.newKey(10240);
 
     public static final KnownKey data_source_scheduling_enabled = KnownKey.newKey(true);
+    public static final KnownKey data_source_poll_scheduler_enabled = KnownKey.newKey(true);
+    public static final KnownKey data_source_poll_threads = KnownKey.newKey(10);
+    public static final KnownKey data_source_poll_max_per_host = KnownKey.newKey(4);
+    public static final KnownKey data_source_poll_max_backoff = KnownKey.newKey(4);
+    public static final KnownKey data_source_poll_jitter_percent = KnownKey.newKey(10);
+    public static final KnownKey data_source_poll_load_batch_size = KnownKey.newKey(500);
     public static final KnownKey data_source_eas_sync_email = KnownKey.newKey(true);
     public static final KnownKey data_source_eas_sync_contacts = KnownKey.newKey(true);
     public static final KnownKey data_source_eas_sync_calendar = KnownKey.newKey(true);
@@ -1244,6 +1333,20 @@ public final class LC {
     @Supported
     public static final KnownKey external_store_delete_max_ioexceptions = KnownKey.newKey(25);
 
+    // in-memory tier in front of the external store local cache; 0 disables it
+    public static final KnownKey external_store_memory_cache_max_bytes = KnownKey.newKey(64 * 1024 * 1024); // 64MB
+    public static final KnownKey external_store_memory_cache_max_blob_size = KnownKey.newKey(256 * 1024); // 256KB
+    // threads fetching blobs ahead of reads, e.g. when a conversation is opened; 0 disables read-ahead
+    public static final KnownKey external_store_prefetch_threads = KnownKey.newKey(4);
+    public static final KnownKey external_store_prefetch_queue_size = KnownKey.newKey(1000);
+    // seconds between external store cache hit ratio log entries; 0 disables them
+    public static final KnownKey external_store_cache_stats_interval = KnownKey.newKey(300);
+    // ChunkedStoreManager: where chunks and revision manifests are kept, and the bounds of content-defined chunks
+    public static final KnownKey chunk_store_directory = KnownKey.newKey("${zimbra_store_directory}/chunks");
+    public static final KnownKey chunk_store_min_chunk_size = KnownKey.newKey(4 * 1024);
+    public static final KnownKey chunk_store_avg_chunk_size = KnownKey.newKey(16 * 1024);
+    public static final KnownKey chunk_store_max_chunk_size = KnownKey.newKey(64 * 1024);
+
     public enum PUBLIC_SHARE_VISIBILITY { samePrimaryDomain, all, none };
 
     /**
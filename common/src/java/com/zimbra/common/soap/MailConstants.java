@@ -838,6 +838,7 @@ public final class MailConstants {
     public static final String A_IN_DUMPSTER = "inDumpster";
     public static final String A_WARMUP = "warmup";
     public static final String A_QUICK = "quick";
+    public static final String A_EXPLAIN = "explain";
     public static final String A_SCORE = "score";
 
     // search-result paging
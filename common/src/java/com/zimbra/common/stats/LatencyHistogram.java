@@ -0,0 +1,103 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.common.stats;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of latencies, used to report percentiles.
+ * <p>
+ * Latencies are recorded in microseconds into buckets whose upper bounds are
+ * powers of two, so reported percentiles are accurate to within a factor of
+ * two. The histogram can be cleared each time it is read, so that each
+ * {@link Snapshot} covers one reporting interval.
+ */
+public class LatencyHistogram {
+
+    private static final int NUM_BUCKETS = 40;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(NUM_BUCKETS);
+
+    /**
+     * Records a latency.
+     *
+     * @param nanos elapsed time in nanoseconds
+     */
+    public void record(long nanos) {
+        long micros = Math.max(nanos / 1000, 1);
+        int bucket = Math.min(64 - Long.numberOfLeadingZeros(micros - 1), NUM_BUCKETS - 1);
+        buckets.incrementAndGet(bucket);
+    }
+
+    /**
+     * Returns the latencies recorded so far.
+     *
+     * @param reset whether to clear the histogram
+     */
+    public Snapshot snapshot(boolean reset) {
+        long[] counts = new long[NUM_BUCKETS];
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            counts[i] = reset ? buckets.getAndSet(i, 0) : buckets.get(i);
+        }
+        return new Snapshot(counts);
+    }
+
+    public static final class Snapshot {
+        private final long[] counts;
+        private final long total;
+
+        Snapshot(long[] counts) {
+            this.counts = counts;
+            long sum = 0;
+            for (long count : counts) {
+                sum += count;
+            }
+            total = sum;
+        }
+
+        public long getCount() {
+            return total;
+        }
+
+        /**
+         * Returns the upper bound of the given percentile in milliseconds,
+         * or <tt>0</tt> if nothing was recorded.
+         *
+         * @param percentile between 0 and 100
+         */
+        public double getPercentile(double percentile) {
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(total * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank && counts[i] > 0) {
+                    return (1L << i) / 1000.0;
+                }
+            }
+            return (1L << (counts.length - 1)) / 1000.0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("count=%d p50=%.3fms p90=%.3fms p99=%.3fms p999=%.3fms", total,
+                    getPercentile(50), getPercentile(90), getPercentile(99), getPercentile(99.9));
+        }
+    }
+}
@@ -17,7 +17,12 @@
 
 package com.zimbra.common.util.memcached;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import com.zimbra.common.service.ServiceException;
 
@@ -58,6 +63,16 @@ public class BigByteArrayMemcachedMap<K extends MemcachedKey, V> {
     private ZimbraMemcachedClient mClient;
     private ByteArraySerializer<V> mSerializer;
     private boolean mAckWrites;
+    private final MemcachedNearCache.Loader mLoader = new MemcachedNearCache.Loader() {
+        @Override
+        public Map<String, Object> load(Collection<String> keys) throws ServiceException {
+            Map<String, Object> values = new HashMap<String, Object>(keys.size());
+            for (String key : keys) {
+                values.put(key, mClient.getBigByteArray(key));
+            }
+            return values;
+        }
+    };
 
     /**
      * Creates a map using a memcached client and serializer.
@@ -85,7 +100,9 @@ public class BigByteArrayMemcachedMap<K extends MemcachedKey, V> {
     public V get(K key) throws ServiceException {
         String prefix = key.getKeyPrefix();
         String kval = prefix != null ? prefix + key.getKeyValue() : key.getKeyValue();
-        byte[] data = mClient.getBigByteArray(kval);
+        MemcachedNearCache nearCache = mClient.getNearCache();
+        byte[] data = nearCache != null ?
+                (byte[]) nearCache.get(kval, mLoader, mClient.getDefaultTimeoutMillis()) : mClient.getBigByteArray(kval);
         V value = null;
         if (data != null)
             value = mSerializer.deserialize(data);
@@ -103,6 +120,7 @@ public class BigByteArrayMemcachedMap<K extends MemcachedKey, V> {
         String kval = prefix != null ? prefix + key.getKeyValue() : key.getKeyValue();
         byte[] data = mSerializer.serialize(value);
         mClient.putBigByteArray(kval, data, mAckWrites);
+        invalidate(Collections.singleton(kval));
     }
 
     /**
@@ -114,6 +132,7 @@ public class BigByteArrayMemcachedMap<K extends MemcachedKey, V> {
         String prefix = key.getKeyPrefix();
         String kval = prefix != null ? prefix + key.getKeyValue() : key.getKeyValue();
         mClient.remove(kval, mAckWrites);
+        invalidate(Collections.singleton(kval));
     }
 
     /**
@@ -122,10 +141,20 @@ public class BigByteArrayMemcachedMap<K extends MemcachedKey, V> {
      * @throws ServiceException
      */
     public void removeMulti(Collection<K> keys) throws ServiceException {
+        List<String> kvals = new ArrayList<String>(keys.size());
         for (K key : keys) {
             String prefix = key.getKeyPrefix();
             String kval = prefix != null ? prefix + key.getKeyValue() : key.getKeyValue();
             mClient.remove(kval, mAckWrites);
+            kvals.add(kval);
+        }
+        invalidate(kvals);
+    }
+
+    private void invalidate(Collection<String> kvals) {
+        MemcachedNearCache nearCache = mClient.getNearCache();
+        if (nearCache != null) {
+            nearCache.invalidate(kvals);
         }
     }
 }
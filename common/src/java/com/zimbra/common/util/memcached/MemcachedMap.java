@@ -17,8 +17,11 @@
 
 package com.zimbra.common.util.memcached;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import com.zimbra.common.service.ServiceException;
@@ -68,6 +71,12 @@ public class MemcachedMap<K extends MemcachedKey, V> {
     private ZimbraMemcachedClient mClient;
     private MemcachedSerializer<V> mSerializer;
     private boolean mAckWrites;
+    private final MemcachedNearCache.Loader mLoader = new MemcachedNearCache.Loader() {
+        @Override
+        public Map<String, Object> load(Collection<String> keys) {
+            return mClient.getMulti(keys);
+        }
+    };
 
     /**
      * Creates a map using a memcached client and serializer.
@@ -95,7 +104,9 @@ public class MemcachedMap<K extends MemcachedKey, V> {
     public V get(K key) throws ServiceException {
         String prefix = key.getKeyPrefix();
         String kval = prefix != null ? prefix + key.getKeyValue() : key.getKeyValue();
-        Object valobj = mClient.get(kval);
+        MemcachedNearCache nearCache = mClient.getNearCache();
+        Object valobj = nearCache != null ?
+                nearCache.get(kval, mLoader, mClient.getDefaultTimeoutMillis()) : mClient.get(kval);
         V value = null;
         if (valobj != null)
             value = mSerializer.deserialize(valobj);
@@ -106,7 +117,8 @@ public class MemcachedMap<K extends MemcachedKey, V> {
      * Returns values for given keys.  The returned java.util.Map is never null and has an
      * entry for every key.  Entry value will be null if key was not found in memcached.
      * This operation is batched and parallelized in the memcached client layer.  Use this
-     * method rather than calling get() in a loop.
+     * method rather than calling get() in a loop.  With a near cache, only the keys it doesn't
+     * have go to memcached, in one batch.
      * @param keys
      * @return
      * @throws ServiceException
@@ -118,7 +130,10 @@ public class MemcachedMap<K extends MemcachedKey, V> {
             String kval = prefix != null ? prefix + key.getKeyValue() : key.getKeyValue();
             keyMap.put(kval, key);
         }
-        Map<String, Object> valueMap = mClient.getMulti(keyMap.keySet());
+        MemcachedNearCache nearCache = mClient.getNearCache();
+        Map<String, Object> valueMap = nearCache != null ?
+                nearCache.getMulti(keyMap.keySet(), mLoader, mClient.getDefaultTimeoutMillis()) :
+                mClient.getMulti(keyMap.keySet());
         Map<K, V> result = new HashMap<K, V>(keys.size());
         // Put the values in a map keyed by the K objects.
         for (Map.Entry<String, Object> entry : valueMap.entrySet()) {
@@ -145,6 +160,7 @@ public class MemcachedMap<K extends MemcachedKey, V> {
         String kval = prefix != null ? prefix + key.getKeyValue() : key.getKeyValue();
         Object valobj = mSerializer.serialize(value);
         mClient.put(kval, valobj, mAckWrites);
+        invalidate(Collections.singleton(kval));
     }
 
     /**
@@ -153,9 +169,16 @@ public class MemcachedMap<K extends MemcachedKey, V> {
      * @throws ServiceException
      */
     public void putMulti(Map<K, V> map) throws ServiceException {
+        List<String> kvals = new ArrayList<String>(map.size());
         for (Map.Entry<K, V> entry : map.entrySet()) {
-            put(entry.getKey(), entry.getValue());
+            K key = entry.getKey();
+            String prefix = key.getKeyPrefix();
+            String kval = prefix != null ? prefix + key.getKeyValue() : key.getKeyValue();
+            Object valobj = mSerializer.serialize(entry.getValue());
+            mClient.put(kval, valobj, mAckWrites);
+            kvals.add(kval);
         }
+        invalidate(kvals);
     }
 
     /**
@@ -167,6 +190,7 @@ public class MemcachedMap<K extends MemcachedKey, V> {
         String prefix = key.getKeyPrefix();
         String kval = prefix != null ? prefix + key.getKeyValue() : key.getKeyValue();
         mClient.remove(kval, mAckWrites);
+        invalidate(Collections.singleton(kval));
     }
 
     /**
@@ -175,10 +199,20 @@ public class MemcachedMap<K extends MemcachedKey, V> {
      * @throws ServiceException
      */
     public void removeMulti(Collection<K> keys) throws ServiceException {
+        List<String> kvals = new ArrayList<String>(keys.size());
         for (K key : keys) {
             String prefix = key.getKeyPrefix();
             String kval = prefix != null ? prefix + key.getKeyValue() : key.getKeyValue();
             mClient.remove(kval, mAckWrites);
+            kvals.add(kval);
+        }
+        invalidate(kvals);
+    }
+
+    private void invalidate(Collection<String> kvals) {
+        MemcachedNearCache nearCache = mClient.getNearCache();
+        if (nearCache != null) {
+            nearCache.invalidate(kvals);
         }
     }
 }
@@ -0,0 +1,228 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.common.util.memcached;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.google.common.util.concurrent.SettableFuture;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.stats.Counter;
+import com.zimbra.common.util.ZimbraLog;
+
+/**
+ * In-process first level cache in front of memcached, shared by every {@link MemcachedMap} and
+ * {@link BigByteArrayMemcachedMap} of a {@link ZimbraMemcachedClient}. Values are kept in the serialized form they
+ * come off the wire in, so a hit saves the round trip to memcached but still hands every caller a freshly
+ * deserialized object. The cache is bounded by the total size of its entries in bytes, and each entry expires a fixed
+ * time after it was loaded, which caps how long a value changed elsewhere without notice can be served.
+ * <p>
+ * Puts and removes through the maps drop the local entry and pass the key to the {@link Invalidator}, which tells the
+ * other servers to drop theirs.
+ * <p>
+ * Concurrent lookups of the same missing key are coalesced: the first caller goes to memcached and the others wait
+ * for its result. The misses of one multi-get are fetched in a single bulk request.
+ * <p>
+ * An invalidation also drops the pending load of each key, which is what a load checks before it keeps its value, so
+ * a load that races with an invalidation of the same key doesn't leave a stale value behind. Loads of other keys are
+ * not affected.
+ */
+public final class MemcachedNearCache {
+
+    /**
+     * Propagates invalidations to the near caches of other servers.
+     */
+    public interface Invalidator {
+        void invalidate(Collection<String> keys);
+    }
+
+    /**
+     * Fetches values from memcached. The returned map has an entry for every key, null if not found.
+     */
+    interface Loader {
+        Map<String, Object> load(Collection<String> keys) throws ServiceException;
+    }
+
+    private final Cache<String, Object> cache;
+    /** pending load of each key, removed by an invalidation of the key */
+    private final ConcurrentMap<String, SettableFuture<Object>> loading =
+        new ConcurrentHashMap<String, SettableFuture<Object>>();
+    private final Counter l1HitRate;
+    private final Counter l2HitRate;
+    private volatile Invalidator invalidator;
+
+    /**
+     * @param maxBytes upper bound of the total size of keys and values
+     * @param ttlMillis time after which an entry is reloaded from memcached
+     * @param l1HitRate incremented by 100 for a hit and 0 for a miss on every lookup
+     * @param l2HitRate incremented by 100 for a hit and 0 for a miss on every lookup that went to memcached
+     */
+    public MemcachedNearCache(long maxBytes, long ttlMillis, Counter l1HitRate, Counter l2HitRate) {
+        cache = CacheBuilder.newBuilder()
+            .maximumWeight(maxBytes)
+            .weigher(new Weigher<String, Object>() {
+                @Override
+                public int weigh(String key, Object value) {
+                    return key.length() * 2 + sizeOf(value);
+                }
+            })
+            .expireAfterWrite(ttlMillis, TimeUnit.MILLISECONDS)
+            .build();
+        this.l1HitRate = l1HitRate;
+        this.l2HitRate = l2HitRate;
+    }
+
+    private static int sizeOf(Object value) {
+        if (value instanceof byte[]) {
+            return ((byte[]) value).length;
+        } else if (value instanceof String) {
+            return ((String) value).length() * 2;
+        } else {
+            return 16;
+        }
+    }
+
+    public void setInvalidator(Invalidator value) {
+        invalidator = value;
+    }
+
+    Object get(String key, Loader loader, long timeoutMillis) throws ServiceException {
+        return getMulti(Collections.singleton(key), loader, timeoutMillis).get(key);
+    }
+
+    /**
+     * Returns the values of the given keys from this cache, loading the ones it doesn't have.
+     *
+     * @return map with an entry for every key, null if the key is not in memcached either
+     */
+    Map<String, Object> getMulti(Collection<String> keys, Loader loader, long timeoutMillis)
+            throws ServiceException {
+        Map<String, Object> result = new HashMap<String, Object>(keys.size());
+        Map<String, SettableFuture<Object>> mine = null;
+        Map<String, SettableFuture<Object>> others = null;
+        for (String key : keys) {
+            Object value = cache.getIfPresent(key);
+            if (value != null) {
+                l1HitRate.increment(100);
+                result.put(key, value);
+                continue;
+            }
+            l1HitRate.increment(0);
+            SettableFuture<Object> future = SettableFuture.create();
+            SettableFuture<Object> pending = loading.putIfAbsent(key, future);
+            if (pending == null) {
+                if (mine == null) {
+                    mine = new HashMap<String, SettableFuture<Object>>();
+                }
+                mine.put(key, future);
+            } else {
+                if (others == null) {
+                    others = new HashMap<String, SettableFuture<Object>>();
+                }
+                others.put(key, pending);
+            }
+        }
+
+        if (mine != null) {
+            Map<String, Object> loaded = null;
+            try {
+                loaded = loader.load(mine.keySet());
+            } finally {
+                // always release the waiters, they get null if the load failed
+                for (Map.Entry<String, SettableFuture<Object>> entry : mine.entrySet()) {
+                    String key = entry.getKey();
+                    Object value = loaded != null ? loaded.get(key) : null;
+                    if (value != null) {
+                        l2HitRate.increment(100);
+                        // Put the value first, then check that the load is still pending. An invalidation removes
+                        // the pending load before it drops the cached value, so either it drops this value too or
+                        // the check fails and the value is taken back out here.
+                        cache.put(key, value);
+                        if (!loading.remove(key, entry.getValue())) {
+                            cache.asMap().remove(key, value);
+                        }
+                    } else {
+                        l2HitRate.increment(0);
+                        loading.remove(key, entry.getValue());
+                    }
+                    entry.getValue().set(value);
+                    result.put(key, value);
+                }
+            }
+        }
+
+        if (others != null) {
+            for (Map.Entry<String, SettableFuture<Object>> entry : others.entrySet()) {
+                result.put(entry.getKey(), await(entry.getKey(), entry.getValue(), timeoutMillis));
+            }
+        }
+        return result;
+    }
+
+    private Object await(String key, SettableFuture<Object> future, long timeoutMillis) {
+        try {
+            return future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            ZimbraLog.misc.warn("timed out after %dms waiting for concurrent memcached get of %s", timeoutMillis, key);
+        } catch (InterruptedException e) {
+            ZimbraLog.misc.warn("interrupted waiting for concurrent memcached get of %s", key);
+        } catch (ExecutionException e) {
+            ZimbraLog.misc.warn("concurrent memcached get of %s failed", key, e);
+        }
+        return null;
+    }
+
+    /**
+     * Drops the keys from this cache and from the near caches of the other servers.
+     */
+    public void invalidate(Collection<String> keys) {
+        invalidateLocal(keys);
+        Invalidator inv = invalidator;
+        if (inv != null) {
+            inv.invalidate(keys);
+        }
+    }
+
+    /**
+     * Drops the keys from this cache only, e.g. on an invalidation received from another server.
+     */
+    public void invalidateLocal(Collection<String> keys) {
+        for (String key : keys) {
+            loading.remove(key);
+        }
+        cache.invalidateAll(keys);
+    }
+
+    public void clear() {
+        loading.clear();
+        cache.invalidateAll();
+    }
+
+    public long size() {
+        return cache.size();
+    }
+}
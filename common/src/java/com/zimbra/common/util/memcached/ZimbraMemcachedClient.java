@@ -83,6 +83,7 @@ public class ZimbraMemcachedClient {
     private String mServerList;  // used for config reporting only
     private String mHashAlgorithm;
     private boolean mBinaryProtocolEnabled;
+    private volatile MemcachedNearCache mNearCache;
 
     /**
      * Constructs a memcached client.  Call connect() before using this.
@@ -93,6 +94,17 @@ public class ZimbraMemcachedClient {
         mDefaultTimeout = 10000;
     }
 
+    /**
+     * Returns the in-process cache the maps built on this client read through, or null if there is none.
+     */
+    public MemcachedNearCache getNearCache() {
+        return mNearCache;
+    }
+
+    public void setNearCache(MemcachedNearCache nearCache) {
+        mNearCache = nearCache;
+    }
+
     public boolean isConnected() {
         synchronized (this) {
             return mMCDClient != null;
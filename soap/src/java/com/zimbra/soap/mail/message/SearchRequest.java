@@ -50,6 +50,17 @@ public final class SearchRequest extends MailSearchParams {
     @XmlAttribute(name=MailConstants.A_WARMUP /* warmup */, required=false)
     private ZmBoolean warmup;
 
+    /**
+     * @zm-api-field-description Explain: if set, the response carries an <b>&lt;info></b> element describing the
+     * execution plan the server chose (DB-first or Lucene-first, the cardinality estimates behind it and the chunk
+     * size) and the time spent in the DB and text index stages. Explained searches are never served from the search
+     * result cache.
+     */
+    @XmlAttribute(name=MailConstants.A_EXPLAIN /* explain */, required=false)
+    private ZmBoolean explain;
+
     public void setWarmup(Boolean warmup) { this.warmup = ZmBoolean.fromBool(warmup); }
     public Boolean getWarmup() { return ZmBoolean.toBool(warmup); }
+    public void setExplain(Boolean explain) { this.explain = ZmBoolean.fromBool(explain); }
+    public Boolean getExplain() { return ZmBoolean.toBool(explain); }
 }
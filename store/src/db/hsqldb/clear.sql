@@ -41,5 +41,6 @@ DELETE FROM ZIMBRA.service_status;
 DELETE FROM ZIMBRA.scheduled_task;
 DELETE FROM ZIMBRA.mobile_devices;
 DELETE FROM ZIMBRA.pending_acl_push;
+DELETE FROM ZIMBRA.blob_chunk;
 
 INSERT INTO current_volumes (message_volume_id, index_volume_id, next_mailbox_id) VALUES (1, 2, 1);
@@ -71,6 +71,12 @@ create table volume_blobs (
   -- CONSTRAINT fk_volume_blobs_mailbox_id FOREIGN KEY (mailbox_id) REFERENCES mailbox(id)
 );
 
+CREATE TABLE blob_chunk (
+  digest     CHAR(64) NOT NULL PRIMARY KEY,
+  size       INTEGER NOT NULL,
+  ref_count  INTEGER NOT NULL
+);
+
 
 CREATE TABLE mailbox (
    id                  INTEGER NOT NULL PRIMARY KEY,
@@ -0,0 +1,98 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.datasource;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.util.Constants;
+import com.zimbra.cs.datasource.DataSourcePollScheduler.ImportListener;
+import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.mailbox.MailboxListener.ChangeNotification;
+import com.zimbra.cs.session.PendingModifications;
+
+public class DataSourcePollSchedulerTest {
+
+    private static final long INTERVAL = 10 * Constants.MILLIS_PER_MINUTE;
+
+    @Test
+    public void backoff() throws Exception {
+        int maxBackoff = Math.max(LC.data_source_poll_max_backoff.intValue(), 1);
+        // the interval grows by one step for every four idle polls, up to the maximum
+        for (int idlePolls = 0; idlePolls < 40; idlePolls++) {
+            checkDelay(Math.min(1 + idlePolls / 4, maxBackoff), DataSourcePollScheduler.getPollDelay(INTERVAL, idlePolls));
+        }
+        checkDelay(maxBackoff, DataSourcePollScheduler.getPollDelay(INTERVAL, Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void reset() throws Exception {
+        int idlePolls = 0;
+        for (int i = 0; i < 10; i++) {
+            idlePolls = DataSourcePollScheduler.getIdlePolls(idlePolls, 0);
+        }
+        Assert.assertEquals(10, idlePolls);
+        int factor = Math.min(3, LC.data_source_poll_max_backoff.intValue());
+        checkDelay(factor, DataSourcePollScheduler.getPollDelay(INTERVAL, idlePolls));
+
+        // a poll that imported something goes back to the configured interval
+        idlePolls = DataSourcePollScheduler.getIdlePolls(idlePolls, 1);
+        Assert.assertEquals(0, idlePolls);
+        checkDelay(1, DataSourcePollScheduler.getPollDelay(INTERVAL, idlePolls));
+    }
+
+    @Test
+    public void importChanges() throws Exception {
+        final ImportListener listener = new ImportListener();
+        Assert.assertEquals(0, ImportListener.end());
+
+        // changes committed outside of a poll are not counted
+        listener.notify(newNotification(1));
+        ImportListener.begin();
+        Assert.assertEquals(0, ImportListener.end());
+
+        ImportListener.begin();
+        listener.notify(newNotification(2));
+        listener.notify(newNotification(3));
+        // ...nor are changes committed by other threads while the poll runs
+        Thread other = new Thread() {
+            @Override
+            public void run() {
+                listener.notify(newNotification(5));
+            }
+        };
+        other.start();
+        other.join();
+        Assert.assertEquals(5, ImportListener.end());
+        Assert.assertEquals(0, ImportListener.end());
+    }
+
+    private static ChangeNotification newNotification(int deletes) {
+        PendingModifications mods = new PendingModifications();
+        for (int i = 0; i < deletes; i++) {
+            mods.recordDeleted("account", 1000 + i, MailItem.Type.MESSAGE);
+        }
+        return new ChangeNotification(null, mods, null, 1, null, System.currentTimeMillis());
+    }
+
+    private static void checkDelay(int factor, long delay) {
+        long expected = INTERVAL * factor;
+        long range = expected * LC.data_source_poll_jitter_percent.intValue() / 100;
+        Assert.assertTrue(delay + " for " + factor, delay >= expected - range && delay <= expected + range);
+    }
+}
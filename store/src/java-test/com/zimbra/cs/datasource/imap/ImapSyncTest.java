@@ -0,0 +1,344 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.datasource.imap;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.cs.account.DataSource;
+import com.zimbra.cs.account.MockProvisioning;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailclient.imap.Flags;
+import com.zimbra.cs.mailclient.imap.ImapConfig;
+import com.zimbra.cs.mailclient.imap.ImapConnection;
+import com.zimbra.cs.mailclient.imap.MessageData;
+import com.zimbra.soap.admin.type.DataSourceType;
+
+public class ImapSyncTest {
+
+    @BeforeClass
+    public static void init() throws Exception {
+        Provisioning.setInstance(new MockProvisioning());
+    }
+
+    @Test
+    public void appendAfterParallelFetch() throws Exception {
+        ImapConnection main = new ImapConnection(new ImapConfig());
+        final ImapConnection worker = new ImapConnection(new ImapConfig());
+        final TestImapSync sync = new TestImapSync(main);
+        TestFolderSync folder1 = new TestFolderSync(sync);
+        TestFolderSync folder2 = new TestFolderSync(sync);
+        Assert.assertSame(main, folder1.current);
+
+        // a worker fetches new messages for both folders on its own connection
+        final Queue<ImapFolderSync> pending =
+            new ConcurrentLinkedQueue<ImapFolderSync>(Arrays.asList(folder1, folder2));
+        final AtomicReference<ServiceException> failure = new AtomicReference<ServiceException>();
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                sync.fetchMessages(pending, worker, failure);
+            }
+        };
+        thread.start();
+        thread.join();
+        Assert.assertNull(failure.get());
+        Assert.assertTrue(pending.isEmpty());
+
+        // and once the worker connection is gone, local messages are appended
+        // over the main connection
+        for (TestFolderSync folder : Arrays.asList(folder1, folder2)) {
+            Assert.assertSame(worker, folder.fetchedWith);
+            folder.finishSync();
+            Assert.assertSame(main, folder.appendedWith);
+        }
+    }
+
+    @Test
+    public void pipelinedFetch() throws Exception {
+        ScriptedServer server = new ScriptedServer();
+        ImapConfig config = new ImapConfig();
+        config.setHost("localhost");
+        config.setPort(server.getPort());
+        ImapConnection ic = new ImapConnection(config);
+        try {
+            ic.connect();
+            final CountDownLatch release = new CountDownLatch(1);
+            final List<String> delivered = Collections.synchronizedList(new ArrayList<String>());
+            final DeliveringFolderSync folder = new DeliveringFolderSync(new TestImapSync(ic), release, delivered);
+            final List<Long> uids = new ArrayList<Long>();
+            for (long uid = 1; uid <= 10; uid++) {
+                uids.add(uid);
+            }
+            final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        folder.fetchMessagesPipelined(uids);
+                    } catch (Exception e) {
+                        failure.set(e);
+                    }
+                }
+            };
+            thread.start();
+
+            // the second batch is fetched while the first message of the first batch is still being delivered
+            server.awaitCommands(4, 10000);
+            Assert.assertTrue(delivered.isEmpty());
+            List<String> commands = server.getCommands();
+            checkFetch(commands.get(0), "(FLAGS INTERNALDATE)", 1, 5);
+            checkFetch(commands.get(1), "BODY.PEEK[]", 1, 5);
+            checkFetch(commands.get(2), "(FLAGS INTERNALDATE)", 6, 10);
+            checkFetch(commands.get(3), "BODY.PEEK[]", 6, 10);
+
+            release.countDown();
+            thread.join(10000);
+            Assert.assertFalse(thread.isAlive());
+            Assert.assertNull(failure.get());
+            // messages are delivered in the order their responses were read, each with its own flags
+            Assert.assertEquals(Arrays.asList("5:seen:5", "4:flagged:4", "3:seen:3", "2:flagged:2", "1:seen:1",
+                "10:flagged:10", "9:seen:9", "8:flagged:8", "7:seen:7", "6:flagged:6"), delivered);
+        } finally {
+            ic.close();
+            server.close();
+        }
+    }
+
+    private static void checkFetch(String command, String items, long first, long last) {
+        String[] parts = command.split(" ", 5);
+        Assert.assertEquals(command, "UID FETCH", parts[1] + " " + parts[2]);
+        Assert.assertEquals(command, items, parts[4]);
+        List<Long> uids = ScriptedServer.parseSequence(parts[3]);
+        Collections.sort(uids);
+        List<Long> expected = new ArrayList<Long>();
+        for (long uid = first; uid <= last; uid++) {
+            expected.add(uid);
+        }
+        Assert.assertEquals(command, expected, uids);
+    }
+
+    private static DataSource newDataSource() {
+        Map<String, Object> attrs = new HashMap<String, Object>();
+        attrs.put(Provisioning.A_zimbraDataSourceHost, "localhost");
+        attrs.put(Provisioning.A_zimbraDataSourcePort, "143");
+        attrs.put(Provisioning.A_zimbraDataSourceConnectionType, "cleartext");
+        attrs.put(Provisioning.A_zimbraDataSourceUsername, "test");
+        return new DataSource(null, DataSourceType.imap, "test", "test-id", attrs, Provisioning.getInstance()) {
+            @Override
+            public Mailbox getMailbox() throws ServiceException {
+                throw ServiceException.FAILURE("no mailbox", null);
+            }
+        };
+    }
+
+    private static final class TestImapSync extends ImapSync {
+        private final ImapConnection connection;
+
+        TestImapSync(ImapConnection connection) throws ServiceException {
+            super(newDataSource(), true);
+            this.connection = connection;
+        }
+
+        @Override
+        public ImapConnection getConnection() {
+            return connection;
+        }
+
+        @Override
+        public void checkIsEnabled() {
+        }
+    }
+
+    /*
+     * Records which connection the folder was using when its messages were
+     * fetched and when local messages would have been appended.
+     */
+    private static final class TestFolderSync extends ImapFolderSync {
+        ImapConnection current;
+        ImapConnection fetchedWith;
+        ImapConnection appendedWith;
+
+        TestFolderSync(ImapSync imapSync) throws ServiceException {
+            super(imapSync);
+            current = imapSync.getConnection();
+        }
+
+        @Override
+        void useConnection(ImapConnection ic) {
+            current = ic;
+        }
+
+        @Override
+        void completeMessageSync() {
+            fetchedWith = current;
+        }
+
+        @Override
+        public void finishSync() {
+            appendedWith = current;
+        }
+    }
+
+    /*
+     * Records each message as uid:flag:body instead of adding it to the
+     * mailbox, once the test releases it.
+     */
+    private static final class DeliveringFolderSync extends ImapFolderSync {
+        private final CountDownLatch release;
+        private final List<String> delivered;
+
+        DeliveringFolderSync(ImapSync imapSync, CountDownLatch release, List<String> delivered)
+            throws ServiceException {
+            super(imapSync);
+            this.release = release;
+            this.delivered = delivered;
+        }
+
+        @Override
+        void deliverMessage(MessageData md, MessageData flagsData) throws ServiceException {
+            try {
+                release.await();
+                Assert.assertEquals(md.getUid(), flagsData.getUid());
+                Flags flags = flagsData.getFlags();
+                String flag = flags.isSeen() ? "seen" : flags.isFlagged() ? "flagged" : "";
+                String body = new String(md.getBodySections()[0].getImapData().getBytes(), "US-ASCII");
+                delivered.add(md.getUid() + ":" + flag + ":" + body.substring(body.indexOf("\r\n\r\n") + 4).trim());
+            } catch (Exception e) {
+                throw ServiceException.FAILURE("delivery failed", e);
+            }
+        }
+    }
+
+    /*
+     * IMAP server that answers UID FETCH commands from a script. Each message
+     * has the flag \Seen if its uid is odd and \Flagged otherwise, and its uid
+     * as its body. Responses are sent in reverse uid order.
+     */
+    private static final class ScriptedServer implements Runnable {
+        private final ServerSocket serverSocket = new ServerSocket(0);
+        private final List<String> commands = new ArrayList<String>();
+        private final Thread thread = new Thread(this);
+
+        ScriptedServer() throws IOException {
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        int getPort() {
+            return serverSocket.getLocalPort();
+        }
+
+        synchronized List<String> getCommands() {
+            return new ArrayList<String>(commands);
+        }
+
+        synchronized void awaitCommands(int count, long timeout) throws InterruptedException {
+            long end = System.currentTimeMillis() + timeout;
+            while (commands.size() < count && System.currentTimeMillis() < end) {
+                wait(end - System.currentTimeMillis());
+            }
+            Assert.assertTrue("commands received: " + commands, commands.size() >= count);
+        }
+
+        private synchronized void received(String command) {
+            commands.add(command);
+            notifyAll();
+        }
+
+        void close() throws IOException {
+            serverSocket.close();
+        }
+
+        @Override
+        public void run() {
+            try {
+                Socket socket = serverSocket.accept();
+                try {
+                    BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+                    OutputStream out = socket.getOutputStream();
+                    write(out, "* OK [CAPABILITY IMAP4rev1 UIDPLUS] ready\r\n");
+                    for (String line = in.readLine(); line != null; line = in.readLine()) {
+                        received(line);
+                        String[] parts = line.split(" ");
+                        String tag = parts[0];
+                        if (parts.length > 3 && parts[1].equals("UID") && parts[2].equals("FETCH")) {
+                            List<Long> uids = parseSequence(parts[3]);
+                            Collections.sort(uids, Collections.reverseOrder());
+                            boolean body = line.endsWith("BODY.PEEK[]");
+                            for (long uid : uids) {
+                                if (body) {
+                                    String message = "Subject: " + uid + "\r\n\r\n" + uid + "\r\n";
+                                    write(out, "* " + uid + " FETCH (UID " + uid + " BODY[] {" + message.length() +
+                                        "}\r\n" + message + ")\r\n");
+                                } else {
+                                    write(out, "* " + uid + " FETCH (UID " + uid + " FLAGS (" +
+                                        (uid % 2 == 1 ? "\\Seen" : "\\Flagged") +
+                                        ") INTERNALDATE \"01-Jan-2016 00:00:00 +0000\")\r\n");
+                                }
+                            }
+                        }
+                        write(out, tag + " OK done\r\n");
+                    }
+                } finally {
+                    socket.close();
+                }
+            } catch (IOException e) {
+                // closed by the test
+            }
+        }
+
+        private static List<Long> parseSequence(String seq) {
+            List<Long> uids = new ArrayList<Long>();
+            for (String range : seq.split(",")) {
+                int colon = range.indexOf(':');
+                long first = Long.parseLong(colon < 0 ? range : range.substring(0, colon));
+                long last = colon < 0 ? first : Long.parseLong(range.substring(colon + 1));
+                for (long uid = first; uid <= last; uid++) {
+                    uids.add(uid);
+                }
+            }
+            return uids;
+        }
+
+        private static void write(OutputStream out, String s) throws IOException {
+            out.write(s.getBytes("US-ASCII"));
+            out.flush();
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.dav.service.method;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.zimbra.cs.dav.service.method.SyncCollection.MemberHrefs;
+
+public class SyncCollectionTest {
+
+    @Test
+    public void token() {
+        Assert.assertEquals(0, SyncCollection.parseToken(SyncCollection.makeToken(0)));
+        Assert.assertEquals(12345, SyncCollection.parseToken(SyncCollection.makeToken(12345)));
+        Assert.assertEquals(Integer.MAX_VALUE, SyncCollection.parseToken(SyncCollection.makeToken(Integer.MAX_VALUE)));
+
+        // tokens not issued by this server
+        Assert.assertEquals(-1, SyncCollection.parseToken(null));
+        Assert.assertEquals(-1, SyncCollection.parseToken(""));
+        Assert.assertEquals(-1, SyncCollection.parseToken("12345"));
+        Assert.assertEquals(-1, SyncCollection.parseToken("http://example.com/ns/sync/12345"));
+        Assert.assertEquals(-1, SyncCollection.parseToken(SyncCollection.makeToken(12345) + "x"));
+        Assert.assertEquals(-1, SyncCollection.parseToken(SyncCollection.makeToken(0) + "99999999999"));
+    }
+
+    @Test
+    public void issuedTokens() {
+        MemberHrefs members = new MemberHrefs();
+        Assert.assertFalse(members.isIssued(10));
+        members.issue(10);
+        members.issue(20);
+        Assert.assertTrue(members.isIssued(10));
+        Assert.assertTrue(members.isIssued(20));
+        // a token between two responses, e.g. from a PROPFIND, may hide a member that was added and removed
+        Assert.assertFalse(members.isIssued(15));
+        Assert.assertFalse(members.isIssued(21));
+
+        // only the latest tokens are kept
+        for (int token = 21; token < 21 + MemberHrefs.MAX_TOKENS; token++) {
+            members.issue(token);
+        }
+        Assert.assertFalse(members.isIssued(10));
+        Assert.assertFalse(members.isIssued(20));
+        Assert.assertTrue(members.isIssued(21));
+        Assert.assertTrue(members.isIssued(20 + MemberHrefs.MAX_TOKENS));
+    }
+
+    @Test
+    public void removed() {
+        MemberHrefs members = new MemberHrefs();
+        members.remember(257, "/dav/user/Calendar/a.ics");
+        members.remember(258, "/dav/user/Calendar/b.ics");
+        members.issue(10);
+
+        // a member that no response returned is not reported
+        Assert.assertEquals(Arrays.asList("/dav/user/Calendar/a.ics"), members.getRemoved(Arrays.asList(257, 300)));
+        Assert.assertEquals(Collections.emptyList(), members.getRemoved(Collections.<Integer>emptyList()));
+
+        // ...and one that was is reported to every client that asks, not just the first
+        Assert.assertEquals(Arrays.asList("/dav/user/Calendar/a.ics"), members.getRemoved(Arrays.asList(257)));
+
+        // a member that was renamed is reported under the href it was last returned with
+        members.remember(258, "/dav/user/Calendar/c.ics");
+        Assert.assertEquals(Arrays.asList("/dav/user/Calendar/c.ics"), members.getRemoved(Arrays.asList(258)));
+    }
+}
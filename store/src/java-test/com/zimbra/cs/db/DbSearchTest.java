@@ -16,6 +16,8 @@
  */
 package com.zimbra.cs.db;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 
@@ -25,6 +27,7 @@ import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import com.zimbra.common.localconfig.LC;
 import com.zimbra.cs.account.MockProvisioning;
 import com.zimbra.cs.account.Provisioning;
 import com.zimbra.cs.db.DbPool.DbConnection;
@@ -34,7 +37,9 @@ import com.zimbra.cs.mailbox.Flag;
 import com.zimbra.cs.mailbox.MailItem;
 import com.zimbra.cs.mailbox.Mailbox;
 import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.mailbox.MailboxTest;
 import com.zimbra.cs.mailbox.MailboxTestUtil;
+import com.zimbra.cs.mailbox.Tag;
 
 /**
  * Unit test for {@link DbSearch}.
@@ -303,6 +308,96 @@ public final class DbSearchTest {
         Assert.assertEquals(101, result.get(0).getId());
     }
 
+    @Test
+    public void tagBitmapIndex() throws Exception {
+        boolean enabled = LC.search_tag_bitmap_index.booleanValue();
+        try {
+            Tag foo = mbox.createTag(null, "foo", (byte) 0);
+            Tag bar = mbox.createTag(null, "bar", (byte) 0);
+            int[] ids = new int[4];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = mbox.addMessage(null, MailboxTestUtil.generateMessage("test " + i),
+                        MailboxTest.STANDARD_DELIVERY_OPTIONS, null).getId();
+            }
+            // loaded once here, then kept up to date by the changes below
+            compareTagSearches(foo, bar);
+
+            mbox.alterTag(null, ids[0], MailItem.Type.MESSAGE, "foo", true, null);
+            mbox.alterTag(null, ids[1], MailItem.Type.MESSAGE, "foo", true, null);
+            mbox.alterTag(null, ids[1], MailItem.Type.MESSAGE, "bar", true, null);
+            mbox.alterTag(null, ids[2], MailItem.Type.MESSAGE, "bar", true, null);
+            compareTagSearches(foo, bar);
+
+            mbox.alterTag(null, ids[0], MailItem.Type.MESSAGE, "foo", false, null);
+            compareTagSearches(foo, bar);
+
+            mbox.alterTag(null, ids[1], MailItem.Type.MESSAGE, Flag.FlagInfo.UNREAD, false, null);
+            mbox.alterTag(null, ids[3], MailItem.Type.MESSAGE, Flag.FlagInfo.UNREAD, false, null);
+            compareTagSearches(foo, bar);
+            mbox.alterTag(null, ids[3], MailItem.Type.MESSAGE, Flag.FlagInfo.UNREAD, true, null);
+            compareTagSearches(foo, bar);
+
+            mbox.delete(null, ids[1], MailItem.Type.MESSAGE);
+            compareTagSearches(foo, bar);
+
+            mbox.delete(null, bar.getId(), MailItem.Type.TAG);
+            compareTagSearches(foo, bar);
+        } finally {
+            LC.search_tag_bitmap_index.setDefault(Boolean.toString(enabled));
+        }
+    }
+
+    /*
+     * Runs the same tag and flag searches with the tag bitmap index on and off and checks that they agree.
+     */
+    private void compareTagSearches(Tag... tags) throws Exception {
+        Tag unread = mbox.getFlagById(Flag.ID_UNREAD);
+        List<DbSearchConstraints.Leaf> queries = new ArrayList<DbSearchConstraints.Leaf>();
+        for (Tag tag : tags) {
+            for (int i = 0; i < 3; i++) {
+                DbSearchConstraints.Leaf constraints = new DbSearchConstraints.Leaf();
+                constraints.addTag(tag, true);
+                if (i > 0) {
+                    constraints.addTag(unread, i == 1);
+                }
+                queries.add(constraints);
+            }
+        }
+        DbSearchConstraints.Leaf both = new DbSearchConstraints.Leaf();
+        for (Tag tag : tags) {
+            both.addTag(tag, true);
+        }
+        queries.add(both);
+
+        mbox.lock.lock();
+        try {
+            for (DbSearchConstraints.Leaf constraints : queries) {
+                LC.search_tag_bitmap_index.setDefault("false");
+                Assert.assertNull(mbox.getTagBitmapIndex(conn));
+                List<Integer> expected = search(constraints);
+                int expectedCount = new DbSearch(mbox).countResults(conn, constraints);
+
+                LC.search_tag_bitmap_index.setDefault("true");
+                Assert.assertNotNull(mbox.getTagBitmapIndex(conn));
+                Assert.assertEquals(constraints.toString(), expected, search(constraints));
+                Assert.assertEquals(constraints.toString(), expectedCount,
+                        new DbSearch(mbox).countResults(conn, constraints));
+            }
+        } finally {
+            mbox.lock.release();
+        }
+    }
+
+    private List<Integer> search(DbSearchConstraints constraints) throws Exception {
+        List<Integer> ids = new ArrayList<Integer>();
+        for (DbSearch.Result result : new DbSearch(mbox).search(conn, constraints, SortBy.NONE, 0, 100,
+                DbSearch.FetchMode.ID)) {
+            ids.add(result.getId());
+        }
+        Collections.sort(ids);
+        return ids;
+    }
+
     @Test
     public void tagInDumpster() throws Exception {
         DbUtil.executeUpdate(conn, "INSERT INTO mboxgroup1.mail_item_dumpster " +
@@ -393,4 +488,14 @@ public final class DbSearchTest {
         Assert.assertEquals(103, result.get(1).getId());
         Assert.assertEquals(102, result.get(2).getId());
     }
+
+    @Test
+    public void inListBucket() {
+        Assert.assertEquals(1, DbSearch.inListBucket(1));
+        Assert.assertEquals(3, DbSearch.inListBucket(3));
+        Assert.assertEquals(4, DbSearch.inListBucket(4));
+        Assert.assertEquals(8, DbSearch.inListBucket(5));
+        Assert.assertEquals(1024, DbSearch.inListBucket(1000));
+        Assert.assertEquals(2048, DbSearch.inListBucket(1025));
+    }
 }
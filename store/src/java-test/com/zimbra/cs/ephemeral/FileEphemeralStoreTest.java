@@ -0,0 +1,236 @@
+package com.zimbra.cs.ephemeral;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.FileUtil;
+import com.zimbra.cs.account.MockProvisioning;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.ephemeral.EphemeralInput.AbsoluteExpiration;
+import com.zimbra.cs.ephemeral.EphemeralStoreTest.TestLocation;
+
+public class FileEphemeralStoreTest {
+
+    /** so that only the tests that call for it compact the log */
+    private static final long NO_COMPACTION = Long.MAX_VALUE;
+
+    private File dir;
+    private FileEphemeralStore store;
+
+    @BeforeClass
+    public static void init() throws Exception {
+        Provisioning.setInstance(new MockProvisioning());
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDir();
+        store = new FileEphemeralStore(dir, 0, NO_COMPACTION);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        store.close();
+        new FileEphemeralStore.Factory().shutdown();
+        Provisioning.getInstance().getConfig().unsetEphemeralBackendURL();
+        FileUtil.deleteDir(dir);
+    }
+
+    private FileEphemeralStore reopen() throws Exception {
+        store.close();
+        store = new FileEphemeralStore(dir, 0, NO_COMPACTION);
+        return store;
+    }
+
+    @Test
+    public void setUpdateDelete() throws Exception {
+        EphemeralKey key = new EphemeralKey("foo");
+        EphemeralLocation target = new TestLocation();
+        store.set(new EphemeralInput(key, "bar"), target);
+        store.set(new EphemeralInput(key, "baz"), target);
+        assertEquals("baz", store.get(key, target).getValue());
+
+        store.update(new EphemeralInput(key, "qux"), target);
+        assertEquals(2, store.get(key, target).getValues().length);
+
+        store.delete(key, "baz", target);
+        assertEquals("qux", store.get(key, target).getValue());
+        store.delete(key, "qux", target);
+        assertFalse(store.has(key, target));
+    }
+
+    @Test
+    public void replay() throws Exception {
+        EphemeralKey key = new EphemeralKey("foo");
+        EphemeralKey dynamicKey = new EphemeralKey("foo", "1");
+        EphemeralLocation target = new TestLocation();
+        store.update(new EphemeralInput(key, "bar"), target);
+        store.update(new EphemeralInput(key, "baz"), target);
+        store.update(new EphemeralInput(dynamicKey, "dynamic"), target);
+        store.delete(key, "bar", target);
+
+        reopen();
+        String[] values = store.get(key, target).getValues();
+        assertEquals(1, values.length);
+        assertEquals("baz", values[0]);
+        assertEquals("dynamic", store.get(dynamicKey, target).getValue());
+    }
+
+    @Test
+    public void truncatedRecord() throws Exception {
+        EphemeralKey key = new EphemeralKey("foo");
+        EphemeralLocation target = new TestLocation();
+        store.set(new EphemeralInput(key, "bar"), target);
+        store.set(new EphemeralInput(key, "baz"), target);
+        store.close();
+
+        File log = new File(dir, "ephemeral.log");
+        RandomAccessFile raf = new RandomAccessFile(log, "rw");
+        try {
+            raf.setLength(raf.length() - 3);
+        } finally {
+            raf.close();
+        }
+        store = new FileEphemeralStore(dir, 0, NO_COMPACTION);
+        assertEquals("bar", store.get(key, target).getValue());
+
+        // the log was cut back to the last complete record, so new writes replay after it
+        store.set(new EphemeralInput(key, "qux"), target);
+        assertEquals("qux", reopen().get(key, target).getValue());
+    }
+
+    @Test
+    public void compact() throws Exception {
+        EphemeralKey key = new EphemeralKey("foo");
+        EphemeralKey expiring = new EphemeralKey("expiring");
+        EphemeralLocation target = new TestLocation();
+        for (int i = 0; i < 100; i++) {
+            store.set(new EphemeralInput(key, "value" + i), target);
+        }
+        EphemeralInput input = new EphemeralInput(expiring, "gone");
+        input.setExpiration(new AbsoluteExpiration(System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(1)));
+        store.set(input, target);
+
+        File log = new File(dir, "ephemeral.log");
+        long before = log.length();
+        store.compact();
+        assertTrue(log.length() < before / 10);
+        assertEquals("value99", store.get(key, target).getValue());
+
+        reopen();
+        assertEquals("value99", store.get(key, target).getValue());
+        assertFalse(store.has(expiring, target));
+    }
+
+    @Test
+    public void backgroundCompaction() throws Exception {
+        // without a sync interval there is no syncer, so compaction is started by the writes
+        reopenWithCompactMinBytes(4096);
+        EphemeralKey key = new EphemeralKey("foo");
+        EphemeralLocation target = new TestLocation();
+        File log = new File(dir, "ephemeral.log");
+        for (int i = 0; i < 1000; i++) {
+            store.set(new EphemeralInput(key, "value" + i), target);
+        }
+        for (long deadline = System.currentTimeMillis() + 10000; log.length() > 4096;) {
+            assertTrue("log was not compacted", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+        assertEquals("value999", store.get(key, target).getValue());
+        assertEquals("value999", reopen().get(key, target).getValue());
+    }
+
+    @Test
+    public void multiByteValues() throws Exception {
+        // live values are measured in bytes, like the log, so a log that holds no garbage is not compacted
+        EphemeralLocation target = new TestLocation();
+        char[] chars = new char[100];
+        Arrays.fill(chars, '\u20ac');
+        String value = new String(chars);
+        for (int i = 10; i < 60; i++) {
+            store.set(new EphemeralInput(new EphemeralKey("key" + i), value), target);
+        }
+        File log = new File(dir, "ephemeral.log");
+        long live = store.getLiveBytes();
+        assertEquals(log.length(), live);
+
+        // replacing a value leaves its old record behind as garbage
+        store.set(new EphemeralInput(new EphemeralKey("key10"), "x"), target);
+        assertEquals(live / 50, log.length() - store.getLiveBytes());
+        assertEquals(value, reopen().get(new EphemeralKey("key59"), target).getValue());
+    }
+
+    private void reopenWithCompactMinBytes(long compactMinBytes) throws Exception {
+        store.close();
+        store = new FileEphemeralStore(dir, 0, compactMinBytes);
+    }
+
+    @Test
+    public void directory() throws Exception {
+        assertEquals(new File("/opt/zimbra/data/eph"), FileEphemeralStore.getDirectory("file:/opt/zimbra/data/eph"));
+        assertEquals(new File("/opt/zimbra/data/eph"), FileEphemeralStore.getDirectory("file:///opt/zimbra/data/eph"));
+        assertEquals(new File("data/eph"), FileEphemeralStore.getDirectory("file:data/eph"));
+        assertEquals(new File(LC.ephemeral_log_directory.value()), FileEphemeralStore.getDirectory("file:"));
+        assertEquals(new File(LC.ephemeral_log_directory.value()), FileEphemeralStore.getDirectory("file://"));
+        assertEquals(new File(LC.ephemeral_log_directory.value()), FileEphemeralStore.getDirectory(null));
+    }
+
+    @Test
+    public void factory() throws Exception {
+        EphemeralKey key = new EphemeralKey("foo");
+        EphemeralLocation target = new TestLocation();
+        store.set(new EphemeralInput(key, "bar"), target);
+        store.close();
+
+        Provisioning.getInstance().getConfig().setEphemeralBackendURL("file:" + dir.getPath());
+        FileEphemeralStore.Factory factory = new FileEphemeralStore.Factory();
+        factory.test("file:" + dir.getPath());
+        EphemeralStore fromFactory = factory.getStore();
+        assertSame(fromFactory, factory.getStore());
+        assertEquals("bar", fromFactory.get(key, target).getValue());
+        fromFactory.set(new EphemeralInput(key, "baz"), target);
+
+        // the store is reopened after a shutdown
+        factory.shutdown();
+        assertEquals("baz", factory.getStore().get(key, target).getValue());
+        factory.shutdown();
+        store = new FileEphemeralStore(dir, 0, NO_COMPACTION);
+    }
+
+    @Test
+    public void factoryFailure() throws Exception {
+        File notDir = new File(dir, "file");
+        Files.write("not a directory", notDir, Charsets.UTF_8);
+        Provisioning.getInstance().getConfig().setEphemeralBackendURL("file:" + notDir.getPath());
+        FileEphemeralStore.Factory factory = new FileEphemeralStore.Factory();
+        try {
+            factory.test("file:" + notDir.getPath());
+            fail("test should reject a path that is not a directory");
+        } catch (ServiceException expected) {
+        }
+        try {
+            factory.getStore();
+            fail("an ephemeral log that can't be opened should be reported");
+        } catch (IllegalStateException expected) {
+        }
+        // ...and is handled like any other factory failure rather than failing on a null store
+        EphemeralStore.setFactory(FileEphemeralStore.Factory.class, EphemeralStore.FailureMode.safe);
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2015, 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.gal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableSet;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.util.Constants;
+import com.zimbra.cs.account.Account;
+import com.zimbra.cs.account.gal.GalOp;
+import com.zimbra.soap.type.GalSearchType;
+
+public class GalMemoryIndexTest {
+
+    @Test
+    public void tokenize() {
+        List<String> tokens = GalMemoryIndex.tokenize("John Doe <jdoe@example.com>", false);
+        Assert.assertTrue(tokens.containsAll(Arrays.asList("john", "doe")));
+        Assert.assertEquals(Arrays.asList("jo", "do"), GalMemoryIndex.tokenize("Jo Do*", true));
+    }
+
+    @Test
+    public void matchesPhrase() {
+        GalMemoryIndex.Entry entry = new GalMemoryIndex.Entry(1, 2, GalMemoryIndex.Kind.ACCOUNT, "DOE",
+                new String[] {"john", "q", "doe"});
+        Assert.assertTrue(entry.matchesPhrase(Arrays.asList("jo")));
+        Assert.assertTrue(entry.matchesPhrase(Arrays.asList("q", "do")));
+        Assert.assertFalse(entry.matchesPhrase(Arrays.asList("jo", "do")));
+        Assert.assertFalse(entry.matchesPhrase(Arrays.asList("doe", "john")));
+    }
+
+    @Test
+    public void kind() {
+        Assert.assertTrue(GalMemoryIndex.Kind.GROUP.matches(GalSearchType.account));
+        Assert.assertFalse(GalMemoryIndex.Kind.RESOURCE.matches(GalSearchType.account));
+        Assert.assertTrue(GalMemoryIndex.Kind.RESOURCE.matches(GalSearchType.resource));
+        Assert.assertFalse(GalMemoryIndex.Kind.ACCOUNT.matches(GalSearchType.group));
+        Assert.assertTrue(GalMemoryIndex.Kind.ACCOUNT.matches(GalSearchType.all));
+    }
+
+    @Test
+    public void encodeDecode() {
+        Random random = new Random(42);
+        List<Integer> positions = new ArrayList<Integer>();
+        BitSet expected = new BitSet();
+        // deltas of one, two and three bytes
+        for (int position : new int[] {0, 1, 127, 128, 300, 16511, 16512, 20000}) {
+            positions.add(position);
+            expected.set(position);
+        }
+        for (int i = 0, position = 20000; i < 1000; i++) {
+            position += 1 + random.nextInt(1 << (1 + random.nextInt(20)));
+            positions.add(position);
+            expected.set(position);
+        }
+        BitSet actual = new BitSet();
+        GalMemoryIndex.decode(GalMemoryIndex.encode(positions), actual);
+        Assert.assertEquals(expected, actual);
+
+        actual = new BitSet();
+        GalMemoryIndex.decode(GalMemoryIndex.encode(Collections.<Integer>emptyList()), actual);
+        Assert.assertTrue(actual.isEmpty());
+    }
+
+    @Test
+    public void prefixMatch() {
+        GalMemoryIndex.Snapshot snap = newSnapshot();
+        // entries are sorted by name: Ann Smith, Bob Smithers, Carol Jones, Conference Room
+        Assert.assertEquals(bits(0, 1), snap.prefixMatch("smith"));
+        Assert.assertEquals(bits(1), snap.prefixMatch("smithe"));
+        Assert.assertEquals(bits(2, 3), snap.prefixMatch("c"));
+        Assert.assertEquals(bits(0, 1, 2, 3), snap.prefixMatch(""));
+        Assert.assertEquals(bits(), snap.prefixMatch("zz"));
+        Assert.assertEquals(bits(), snap.prefixMatch("smithersx"));
+    }
+
+    @Test
+    public void search() {
+        GalMemoryIndex.Snapshot snap = newSnapshot();
+        Set<Integer> folders = ImmutableSet.of(10, 20);
+        Assert.assertEquals(Arrays.asList(1, 2), ids(GalMemoryIndex.search(snap, "smi", folders, GalSearchType.all, 0)));
+        Assert.assertEquals(Arrays.asList(2), ids(GalMemoryIndex.search(snap, "bob smi", folders, GalSearchType.all, 0)));
+        Assert.assertEquals(Arrays.asList(), ids(GalMemoryIndex.search(snap, "smi bob", folders, GalSearchType.all, 0)));
+        Assert.assertEquals(Arrays.asList(4), ids(GalMemoryIndex.search(snap, "c", folders, GalSearchType.resource, 0)));
+        Assert.assertEquals(Arrays.asList(3), ids(GalMemoryIndex.search(snap, "c", folders, GalSearchType.account, 0)));
+        // Carol is in another folder
+        Assert.assertEquals(Arrays.asList(4),
+                ids(GalMemoryIndex.search(snap, "c", ImmutableSet.of(10), GalSearchType.all, 0)));
+
+        GalMemoryIndex.Result result = GalMemoryIndex.search(snap, "smi", folders, GalSearchType.all, 1);
+        Assert.assertEquals(Arrays.asList(1), ids(result));
+        Assert.assertTrue(result.hasMore);
+        result = GalMemoryIndex.search(snap, "smi", folders, GalSearchType.all, 2);
+        Assert.assertFalse(result.hasMore);
+    }
+
+    @Test
+    public void memoryIndexSearch() throws Exception {
+        Assert.assertTrue(newControl("sm", GalOp.autocomplete, GalSearchType.account).isMemoryIndexSearch());
+        Assert.assertTrue(newControl("sm", GalOp.autocomplete, GalSearchType.all).isMemoryIndexSearch());
+        // the index doesn't hold group members
+        Assert.assertFalse(newControl("sm", GalOp.autocomplete, GalSearchType.group).isMemoryIndexSearch());
+        Assert.assertFalse(newControl("sm", GalOp.search, GalSearchType.account).isMemoryIndexSearch());
+        Assert.assertFalse(newControl("", GalOp.autocomplete, GalSearchType.account).isMemoryIndexSearch());
+    }
+
+    private static GalSearchControl newControl(String query, GalOp op, GalSearchType type) throws Exception {
+        GalSearchParams params = new GalSearchParams((Account) null);
+        params.setQuery(query);
+        params.setOp(op);
+        params.setType(type);
+        params.createSearchParams(query);
+        return new GalSearchControl(params);
+    }
+
+    @Test
+    public void tooLarge() {
+        String max = LC.gal_memory_index_max_entries.value();
+        try {
+            LC.gal_memory_index_max_entries.setDefault("2");
+            GalMemoryIndex index = new GalMemoryIndex("test");
+            long now = System.currentTimeMillis();
+            Assert.assertTrue(index.isRefreshAllowed(now));
+            Assert.assertTrue(index.checkSize(2, now));
+            Assert.assertTrue(index.isRefreshAllowed(now));
+
+            Assert.assertFalse(index.checkSize(3, now));
+            Assert.assertFalse(index.isRefreshAllowed(now));
+            Assert.assertFalse(index.isRefreshAllowed(now + Constants.MILLIS_PER_MINUTE));
+            Assert.assertTrue(index.isRefreshAllowed(now + Constants.MILLIS_PER_HOUR));
+            Assert.assertEquals(0, index.getSize());
+            Assert.assertEquals(-1, index.getStaleness());
+        } finally {
+            LC.gal_memory_index_max_entries.setDefault(max);
+        }
+    }
+
+    private static GalMemoryIndex.Snapshot newSnapshot() {
+        List<GalMemoryIndex.Entry> entries = new ArrayList<GalMemoryIndex.Entry>();
+        entries.add(newEntry(3, 20, GalMemoryIndex.Kind.ACCOUNT, "Carol Jones"));
+        entries.add(newEntry(1, 10, GalMemoryIndex.Kind.ACCOUNT, "Ann Smith"));
+        entries.add(newEntry(4, 10, GalMemoryIndex.Kind.RESOURCE, "Conference Room"));
+        entries.add(newEntry(2, 10, GalMemoryIndex.Kind.GROUP, "Bob Smithers"));
+        return new GalMemoryIndex.Snapshot(1, 1, entries);
+    }
+
+    private static GalMemoryIndex.Entry newEntry(int id, int folderId, GalMemoryIndex.Kind kind, String text) {
+        List<String> tokens = GalMemoryIndex.tokenize(text, false);
+        return new GalMemoryIndex.Entry(id, folderId, kind, text.toUpperCase(), tokens.toArray(new String[tokens.size()]));
+    }
+
+    private static BitSet bits(int... positions) {
+        BitSet result = new BitSet();
+        for (int position : positions) {
+            result.set(position);
+        }
+        return result;
+    }
+
+    private static List<Integer> ids(GalMemoryIndex.Result result) {
+        List<Integer> ids = new ArrayList<Integer>();
+        for (GalMemoryIndex.Entry entry : result.hits) {
+            ids.add(entry.id);
+        }
+        return ids;
+    }
+}
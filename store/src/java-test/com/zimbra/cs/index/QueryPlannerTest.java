@@ -0,0 +1,48 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.index;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit test for {@link QueryPlanner}.
+ */
+public final class QueryPlannerTest {
+
+    @Test
+    public void smallFolderCommonTerm() {
+        // 50 items in the folder, the term is in 40000 of 50000 documents
+        Assert.assertTrue(QueryPlanner.dbFirstCost(50, 40000, 50000, 26, 2000) <
+                QueryPlanner.luceneFirstCost(50, 40000, 50000, 26, 1000));
+    }
+
+    @Test
+    public void rareTermWholeMailbox() {
+        // no DB constraint beyond the mailbox, the term is in 20 of 50000 documents
+        Assert.assertTrue(QueryPlanner.luceneFirstCost(50000, 20, 50000, 26, 1000) <
+                QueryPlanner.dbFirstCost(50000, 20, 50000, 26, 2000));
+    }
+
+    @Test
+    public void rowsToRead() {
+        Assert.assertEquals(33, QueryPlanner.rowsToRead(50, 40000, 50000, 26));
+        Assert.assertEquals(50, QueryPlanner.rowsToRead(50, 10, 50000, 26));
+        Assert.assertEquals(20, QueryPlanner.rowsToRead(20, 50000, 50000, 26));
+        Assert.assertEquals(50, QueryPlanner.rowsToRead(50, 0, 50000, 26));
+    }
+}
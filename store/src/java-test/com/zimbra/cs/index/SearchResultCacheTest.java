@@ -0,0 +1,136 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.index;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.common.soap.SoapProtocol;
+import com.zimbra.cs.account.MockProvisioning;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.mailbox.DeliveryOptions;
+import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+import com.zimbra.cs.mailbox.Message;
+import com.zimbra.cs.mailbox.OperationContext;
+import com.zimbra.cs.mime.ParsedMessage;
+import com.zimbra.cs.session.PendingModifications;
+
+/**
+ * Unit test for {@link SearchResultCache}.
+ */
+public final class SearchResultCacheTest {
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+        Provisioning.getInstance().createAccount("test@zimbra.com", "secret", new HashMap<String, Object>());
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        MailboxTestUtil.clearData();
+    }
+
+    private static Message addMessage(Mailbox mbox, String subject) throws Exception {
+        DeliveryOptions dopt = new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX);
+        return mbox.addMessage(null, new ParsedMessage(("Subject: " + subject).getBytes(), false), dopt, null);
+    }
+
+    private static ZimbraQueryResults search(SearchResultCache cache, Mailbox mbox) throws Exception {
+        SearchParams params = new SearchParams();
+        params.setQueryString("in:inbox");
+        params.setTypes(EnumSet.of(MailItem.Type.MESSAGE));
+        params.setSortBy(SortBy.DATE_DESC);
+        params.setLimit(10);
+        params.setPrefetch(false);
+        return cache.search(new ZimbraQuery(new OperationContext(mbox), SoapProtocol.Soap12, mbox, params));
+    }
+
+    private static List<Integer> read(ZimbraQueryResults results) throws Exception {
+        List<Integer> ids = new ArrayList<Integer>();
+        try {
+            while (results.hasNext()) {
+                ids.add(results.getNext().getItemId());
+            }
+        } finally {
+            results.close();
+        }
+        return ids;
+    }
+
+    @Test
+    public void replay() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        Message msg1 = addMessage(mbox, "one");
+        Message msg2 = addMessage(mbox, "two");
+        SearchResultCache cache = new SearchResultCache(mbox, 4, 100);
+
+        ZimbraQueryResults results = search(cache, mbox);
+        Assert.assertTrue(results instanceof RecordingQueryResults);
+        List<Integer> expected = read(results);
+        Assert.assertEquals(2, expected.size());
+        Assert.assertTrue(expected.containsAll(Arrays.asList(msg1.getId(), msg2.getId())));
+        Assert.assertEquals(1, cache.size());
+
+        results = search(cache, mbox);
+        Assert.assertTrue(results instanceof CachedQueryResults);
+        Assert.assertEquals(expected, read(results));
+
+        // a new message moves the mailbox past the cached change
+        addMessage(mbox, "three");
+        results = search(cache, mbox);
+        Assert.assertTrue(results instanceof RecordingQueryResults);
+        Assert.assertEquals(3, read(results).size());
+    }
+
+    @Test
+    public void patchDeletes() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        Message msg1 = addMessage(mbox, "one");
+        Message msg2 = addMessage(mbox, "two");
+        SearchResultCache cache = new SearchResultCache(mbox, 4, 100);
+        read(search(cache, mbox));
+
+        int changeId = mbox.getLastChangeID();
+        mbox.delete(null, msg1.getId(), MailItem.Type.MESSAGE);
+        PendingModifications mods = new PendingModifications();
+        mods.recordDeleted(mbox.getAccountId(), msg1.getId(), MailItem.Type.MESSAGE);
+        cache.changeCommitted(changeId, mbox.getLastChangeID(), mods);
+
+        ZimbraQueryResults results = search(cache, mbox);
+        Assert.assertTrue(results instanceof CachedQueryResults);
+        Assert.assertEquals(Arrays.asList(msg2.getId()), read(results));
+
+        // a change to a folder may affect any query
+        changeId = mbox.getLastChangeID();
+        mods = new PendingModifications();
+        mods.recordModified(mbox.getFolderById(null, Mailbox.ID_FOLDER_INBOX), 0);
+        cache.changeCommitted(changeId, changeId + 1, mods);
+        Assert.assertEquals(0, cache.size());
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.iochannel;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MailboxNotificationTest {
+
+    @Test
+    public void single() throws Exception {
+        MailboxNotification ntfn = MailboxNotification.create("acct", 7, new byte[] { 1, 2, 3 });
+        MailboxNotification copy = (MailboxNotification) Message.create(ntfn.serialize());
+        Assert.assertEquals("acct", copy.getRecipientAccountId());
+        Assert.assertEquals(7, copy.getChangeId());
+        Assert.assertArrayEquals(new byte[] { 1, 2, 3 }, copy.getPayload());
+        Assert.assertEquals(1, copy.getNotifications().size());
+    }
+
+    @Test
+    public void merge() throws Exception {
+        MailboxNotification first = MailboxNotification.create("acct", 7, new byte[] { 1 });
+        MailboxNotification second = MailboxNotification.create("acct", 8, new byte[] { 2, 2 });
+        MailboxNotification third = MailboxNotification.create("acct", 9, new byte[] { 3, 3, 3 });
+        Assert.assertEquals(first.getCoalescingKey(), second.getCoalescingKey());
+        Assert.assertFalse(first.getCoalescingKey().equals(
+                MailboxNotification.create("other", 7, new byte[0]).getCoalescingKey()));
+
+        Message merged = first.merge(second).merge(third);
+        ByteBuffer buffer = merged.serialize();
+        List<MailboxNotification> ntfns = ((MailboxNotification) Message.create(buffer)).getNotifications();
+        Assert.assertEquals(3, ntfns.size());
+        for (int i = 0; i < 3; i++) {
+            Assert.assertEquals(7 + i, ntfns.get(i).getChangeId());
+            Assert.assertEquals(i + 1, ntfns.get(i).getPayload().length);
+        }
+    }
+
+    @Test
+    public void mergeLimit() throws Exception {
+        MailboxNotification big = MailboxNotification.create("acct", 1, new byte[600 * 1024]);
+        Assert.assertNull(big.merge(MailboxNotification.create("acct", 2, new byte[600 * 1024])));
+    }
+}
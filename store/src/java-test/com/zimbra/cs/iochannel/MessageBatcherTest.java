@@ -0,0 +1,219 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.iochannel;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.zimbra.common.iochannel.Client;
+import com.zimbra.common.iochannel.Client.PeerServer;
+import com.zimbra.common.iochannel.Config;
+import com.zimbra.cs.stats.ZimbraPerf;
+
+public class MessageBatcherTest {
+
+    private static final long WINDOW = TimeUnit.HOURS.toMillis(1); // so that only the tests flush
+
+    private Client client;
+    private StubPeer peer;
+    private MessageBatcher batcher;
+
+    private static final class EmptyConfig extends Config {
+        @Override
+        public ServerConfig getLocalConfig() {
+            return new ServerConfig("local", "localhost", 0);
+        }
+
+        @Override
+        public Collection<ServerConfig> getPeerServers() {
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * Peer that keeps what it is sent instead of writing it to a socket, with a backlog the test sets.
+     */
+    private static final class StubPeer {
+        final BlockingQueue<ByteBuffer> sent = new LinkedBlockingQueue<ByteBuffer>();
+        volatile int backlog;
+        final PeerServer server;
+
+        StubPeer(Client client) {
+            server = client.new PeerServer("stub") {
+                @Override
+                public void sendMessage(ByteBuffer msg) {
+                    sent.add(msg);
+                }
+
+                @Override
+                public int getBacklog() {
+                    return backlog;
+                }
+            };
+        }
+
+        /** Returns the notifications in each message sent so far, as account:changeId, with a ! for resyncs. */
+        List<List<String>> take() throws Exception {
+            List<List<String>> result = new ArrayList<List<String>>();
+            for (ByteBuffer buffer = sent.poll(); buffer != null; buffer = sent.poll()) {
+                result.add(describe(buffer));
+            }
+            return result;
+        }
+
+        List<String> take(long timeout) throws Exception {
+            ByteBuffer buffer = sent.poll(timeout, TimeUnit.MILLISECONDS);
+            Assert.assertNotNull("nothing sent", buffer);
+            return describe(buffer);
+        }
+
+        private static List<String> describe(ByteBuffer buffer) throws Exception {
+            List<String> result = new ArrayList<String>();
+            for (MailboxNotification ntfn : ((MailboxNotification) Message.create(buffer)).getNotifications()) {
+                result.add(ntfn.getRecipientAccountId() + ":" + ntfn.getChangeId() + (ntfn.isResync() ? "!" : ""));
+            }
+            return result;
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        client = Client.start(new EmptyConfig());
+        peer = new StubPeer(client);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (batcher != null) {
+            batcher.shutdown();
+        }
+        client.shutdown();
+    }
+
+    @Test
+    public void coalesce() throws Exception {
+        batcher = new MessageBatcher(WINDOW, 100, 10, 100);
+        add("a", 1);
+        add("b", 1);
+        add("a", 2);
+        add("c", 1);
+        add("a", 3);
+        add("b", 2);
+        batcher.flushAll();
+
+        // one message per account, in the order each was first queued, with its changes in order
+        List<List<String>> sent = peer.take();
+        Assert.assertEquals(3, sent.size());
+        Assert.assertEquals(list("a:1", "a:2", "a:3"), sent.get(0));
+        Assert.assertEquals(list("b:1", "b:2"), sent.get(1));
+        Assert.assertEquals(list("c:1"), sent.get(2));
+
+        // nothing is left to merge into once the batch is sent
+        add("a", 4);
+        batcher.flushAll();
+        sent = peer.take();
+        Assert.assertEquals(1, sent.size());
+        Assert.assertEquals(list("a:4"), sent.get(0));
+    }
+
+    @Test
+    public void backlog() throws Exception {
+        batcher = new MessageBatcher(WINDOW, 100, 10, 100);
+        peer.backlog = 10;
+        add("a", 1);
+        add("b", 1);
+        batcher.flushAll();
+        Assert.assertTrue(peer.take().isEmpty());
+
+        // held messages keep merging until the backlog drains
+        add("a", 2);
+        peer.backlog = 11;
+        batcher.flushAll();
+        Assert.assertTrue(peer.take().isEmpty());
+
+        peer.backlog = 9;
+        batcher.flushAll();
+        List<List<String>> sent = peer.take();
+        Assert.assertEquals(2, sent.size());
+        Assert.assertEquals(list("a:1", "a:2"), sent.get(0));
+        Assert.assertEquals(list("b:1"), sent.get(1));
+    }
+
+    @Test
+    public void maxPending() throws Exception {
+        batcher = new MessageBatcher(WINDOW, 100, 10, 3);
+        long dropped = ZimbraPerf.COUNTER_IOCHANNEL_DROPPED.getTotal();
+        peer.backlog = 10;
+        add("a", 1);
+        add("b", 1);
+        add("c", 1);
+        add("a", 2); // merged, so nothing is dropped
+        add("d", 1);
+        add("e", 1);
+        // a message with the key of a dropped one starts over
+        add("a", 3);
+        peer.backlog = 0;
+        batcher.flushAll();
+
+        // the dropped messages are replaced by resyncs up to their last change, which go first
+        List<List<String>> sent = peer.take();
+        Assert.assertEquals(6, sent.size());
+        Assert.assertEquals(list("a:2!"), sent.get(0));
+        Assert.assertEquals(list("b:1!"), sent.get(1));
+        Assert.assertEquals(list("c:1!"), sent.get(2));
+        Assert.assertEquals(list("d:1"), sent.get(3));
+        Assert.assertEquals(list("e:1"), sent.get(4));
+        Assert.assertEquals(list("a:3"), sent.get(5));
+        Assert.assertEquals(3, ZimbraPerf.COUNTER_IOCHANNEL_DROPPED.getTotal() - dropped);
+    }
+
+    @Test
+    public void maxBatch() throws Exception {
+        batcher = new MessageBatcher(WINDOW, 3, 10, 100);
+        add("a", 1);
+        add("b", 1);
+        add("a", 2);
+        Assert.assertTrue(peer.take().isEmpty());
+
+        // the batch is sent as soon as it holds maxBatch messages, without waiting for the window
+        add("c", 1);
+        Assert.assertEquals(list("a:1", "a:2"), peer.take(10000));
+        Assert.assertEquals(list("b:1"), peer.take(10000));
+        Assert.assertEquals(list("c:1"), peer.take(10000));
+    }
+
+    private void add(String accountId, int changeId) throws Exception {
+        batcher.add(peer.server, MailboxNotification.create(accountId, changeId, new byte[] { (byte) changeId }));
+    }
+
+    private static List<String> list(String... values) {
+        List<String> result = new ArrayList<String>();
+        Collections.addAll(result, values);
+        return result;
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.cs.mailbox;
+
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class IdBitmapTest {
+
+    @Test
+    public void addRemove() {
+        IdBitmap ids = new IdBitmap();
+        Assert.assertTrue(ids.isEmpty());
+        Assert.assertTrue(ids.add(300));
+        Assert.assertTrue(ids.add(70000));
+        Assert.assertTrue(ids.add(1));
+        Assert.assertFalse(ids.add(300));
+        Assert.assertEquals(3, ids.getCardinality());
+        Assert.assertArrayEquals(new int[] { 1, 300, 70000 }, ids.toArray());
+        Assert.assertTrue(ids.contains(70000));
+        Assert.assertFalse(ids.contains(70001));
+
+        Assert.assertTrue(ids.remove(70000));
+        Assert.assertFalse(ids.remove(70000));
+        Assert.assertFalse(ids.remove(-1));
+        Assert.assertArrayEquals(new int[] { 1, 300 }, ids.toArray());
+    }
+
+    @Test
+    public void dense() {
+        IdBitmap ids = new IdBitmap();
+        // crosses the array/bitmap threshold in both directions
+        for (int i = 0; i < IdBitmap.ARRAY_MAX * 2; i++) {
+            ids.add(i * 2);
+        }
+        Assert.assertEquals(IdBitmap.ARRAY_MAX * 2, ids.getCardinality());
+        Assert.assertTrue(ids.contains(IdBitmap.ARRAY_MAX * 2));
+        Assert.assertFalse(ids.contains(IdBitmap.ARRAY_MAX * 2 + 1));
+        for (int i = 0; i < IdBitmap.ARRAY_MAX * 2; i += 2) {
+            ids.remove(i * 2);
+        }
+        Assert.assertEquals(IdBitmap.ARRAY_MAX, ids.getCardinality());
+        int[] values = ids.toArray();
+        Assert.assertEquals(2, values[0]);
+        Assert.assertEquals(6, values[1]);
+    }
+
+    @Test
+    public void setOperations() {
+        Random random = new Random(42);
+        IdBitmap a = new IdBitmap();
+        IdBitmap b = new IdBitmap();
+        TreeSet<Integer> setA = new TreeSet<Integer>();
+        TreeSet<Integer> setB = new TreeSet<Integer>();
+        for (int i = 0; i < 20000; i++) {
+            int id = random.nextInt(200000);
+            a.add(id);
+            setA.add(id);
+            // b is dense in the first group and sparse elsewhere
+            id = i < 10000 ? random.nextInt(65536) : random.nextInt(1 << 20);
+            b.add(id);
+            setB.add(id);
+        }
+
+        TreeSet<Integer> and = new TreeSet<Integer>(setA);
+        and.retainAll(setB);
+        assertEquals(and, a.and(b));
+        assertEquals(and, b.and(a));
+
+        TreeSet<Integer> andNot = new TreeSet<Integer>(setA);
+        andNot.removeAll(setB);
+        assertEquals(andNot, a.andNot(b));
+
+        IdBitmap copy = a.copy();
+        copy.add(1 << 30);
+        Assert.assertFalse(a.contains(1 << 30));
+        assertEquals(setA, a);
+    }
+
+    @Test
+    public void next() {
+        IdBitmap ids = new IdBitmap();
+        Assert.assertEquals(-1, ids.next(0));
+        // a sparse group, a dense one, and one past an empty group
+        ids.add(5);
+        ids.add(300);
+        for (int i = 0; i <= IdBitmap.ARRAY_MAX; i++) {
+            ids.add(65536 + i * 3);
+        }
+        ids.add(3 << 16);
+        ids.add(Integer.MAX_VALUE);
+        Assert.assertEquals(5, ids.next(0));
+        Assert.assertEquals(5, ids.next(5));
+        Assert.assertEquals(300, ids.next(6));
+        Assert.assertEquals(65536, ids.next(301));
+        Assert.assertEquals(65536 + 3, ids.next(65537));
+        Assert.assertEquals(65536 + 63, ids.next(65536 + 61));
+        Assert.assertEquals(65536 + 66, ids.next(65536 + 64));
+        Assert.assertEquals(3 << 16, ids.next(65536 + IdBitmap.ARRAY_MAX * 3 + 1));
+        Assert.assertEquals(Integer.MAX_VALUE, ids.next((3 << 16) + 1));
+        Assert.assertEquals(-1, ids.next(Integer.MAX_VALUE + 1));
+
+        // walking with next gives the same ids as toArray
+        int[] values = ids.toArray();
+        int n = 0;
+        for (int id = ids.next(0); id >= 0; id = ids.next(id + 1)) {
+            Assert.assertEquals(values[n++], id);
+        }
+        Assert.assertEquals(values.length, n);
+    }
+
+    private static void assertEquals(TreeSet<Integer> expected, IdBitmap actual) {
+        int[] values = actual.toArray();
+        Assert.assertEquals(expected.size(), actual.getCardinality());
+        Assert.assertEquals(expected.size(), values.length);
+        int i = 0;
+        for (int id : expected) {
+            Assert.assertEquals(id, values[i++]);
+        }
+    }
+}
@@ -563,6 +563,28 @@ public final class MailboxTest {
         mbox.getVisibleFolders(new OperationContext(mbox));
     }
 
+    @Test
+    public void getItemsById() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        int msg1 = mbox.addMessage(null, new ParsedMessage("From: test1@zimbra.com".getBytes(), false),
+                STANDARD_DELIVERY_OPTIONS, null).getId();
+        int msg2 = mbox.addMessage(null, new ParsedMessage("From: test2@zimbra.com".getBytes(), false),
+                STANDARD_DELIVERY_OPTIONS, null).getId();
+        mbox.purge(MailItem.Type.MESSAGE);
+
+        Map<Integer, MailItem> items = mbox.getItemsById(null,
+                Sets.newHashSet(msg1, msg2, Mailbox.ID_FOLDER_INBOX, 9999), MailItem.Type.UNKNOWN);
+        Assert.assertEquals(3, items.size());
+        Assert.assertEquals(Mailbox.ID_FOLDER_INBOX, items.get(Mailbox.ID_FOLDER_INBOX).getId());
+
+        // the loaded messages were back-filled into the item cache
+        Map<Integer, MailItem> messages = mbox.getItemsById(null,
+                Sets.newHashSet(msg1, msg2, Mailbox.ID_FOLDER_INBOX), MailItem.Type.MESSAGE);
+        Assert.assertEquals(2, messages.size());
+        Assert.assertSame(items.get(msg1), messages.get(msg1));
+        Assert.assertSame(items.get(msg2), mbox.getItemById(null, msg2, MailItem.Type.MESSAGE));
+    }
+
     /**
      * @throws java.lang.Exception
      */
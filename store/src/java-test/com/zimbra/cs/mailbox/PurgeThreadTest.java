@@ -0,0 +1,55 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.zimbra.common.util.Constants;
+import com.zimbra.cs.db.DbMailbox;
+
+public class PurgeThreadTest {
+
+    private static final long MB = 1024 * 1024;
+
+    @Test
+    public void prioritize() {
+        long now = System.currentTimeMillis();
+        Map<Integer, DbMailbox.PurgeInfo> info = new HashMap<Integer, DbMailbox.PurgeInfo>();
+        info.put(1, new DbMailbox.PurgeInfo(1, now - Constants.MILLIS_PER_HOUR, 10 * MB));
+        info.put(2, new DbMailbox.PurgeInfo(2, now - Constants.MILLIS_PER_DAY, 10 * MB));
+        info.put(3, new DbMailbox.PurgeInfo(3, 0, 0)); // never purged
+        info.put(4, new DbMailbox.PurgeInfo(4, now - Constants.MILLIS_PER_HOUR, 10000 * MB));
+        info.put(5, new DbMailbox.PurgeInfo(5, now - Constants.MILLIS_PER_HOUR, 10 * MB));
+
+        // mailbox 6 has no purge info and goes last; 1 and 5 tie and keep their order
+        List<Integer> ordered = PurgeThread.prioritize(Arrays.asList(5, 6, 1, 2, 3, 4), info, now);
+        Assert.assertEquals(Arrays.asList(3, 2, 4, 5, 1, 6), ordered);
+    }
+
+    @Test
+    public void prioritizeWithoutInfo() {
+        List<Integer> ids = Arrays.asList(3, 1, 2);
+        Assert.assertEquals(ids, PurgeThread.prioritize(ids, Collections.<Integer, DbMailbox.PurgeInfo>emptyMap(), 0));
+    }
+}
@@ -274,6 +274,29 @@ public final class ThreaderTest {
         threadMessage("outlook", MailThreadingAlgorithm.strict, pm, mbox, Collections.<Integer>emptyList());
     }
 
+    @Test
+    public void cachedHashes() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+
+        // a reply to a message we don't have yet
+        MimeMessage mm = getSecondMessage();
+        mm.setHeader("Subject", "Re: " + ROOT_SUBJECT);
+        mm.setHeader("In-Reply-To", ROOT_MESSAGE_ID);
+        mm.setHeader("References", ROOT_MESSAGE_ID);
+        ParsedMessage pm = new ParsedMessage(mm, false);
+        threadMessage("no root", MailThreadingAlgorithm.references, pm, mbox, Collections.<Integer>emptyList());
+
+        // the root arrives after the lookup missed
+        Message msg = mbox.addMessage(null, getRootMessage(), MailboxTest.STANDARD_DELIVERY_OPTIONS, null);
+        List<Integer> match = Arrays.asList(msg.getConversationId());
+        threadMessage("late root", MailThreadingAlgorithm.references, pm, mbox, match);
+        threadMessage("late root [cached]", MailThreadingAlgorithm.references, pm, mbox, match);
+
+        // and is deleted again
+        mbox.delete(null, msg.getId(), MailItem.Type.MESSAGE);
+        threadMessage("deleted root", MailThreadingAlgorithm.references, pm, mbox, Collections.<Integer>emptyList());
+    }
+
     @Test
     public void threadIndex() throws Exception {
         Assert.assertEquals("new thread index length", 32, ThreadIndex.newThreadIndex().length());
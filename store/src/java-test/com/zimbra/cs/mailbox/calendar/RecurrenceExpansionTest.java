@@ -0,0 +1,166 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox.calendar;
+
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.common.calendar.ICalTimeZone;
+import com.zimbra.common.calendar.ParsedDateTime;
+import com.zimbra.common.calendar.ParsedDuration;
+import com.zimbra.common.calendar.TimeZoneMap;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.util.Constants;
+import com.zimbra.cs.account.MockProvisioning;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.mailbox.CalendarItem.Instance;
+import com.zimbra.cs.mailbox.calendar.Recurrence.SimpleRepeatingRule;
+
+/**
+ * Checks that expansions served from a rule's cached {@link RecurrenceExpansion} match expanding the rule from
+ * scratch.
+ */
+public class RecurrenceExpansionTest {
+
+    private static final ICalTimeZone UTC = ICalTimeZone.getUTC();
+    private static final long DAY = Constants.MILLIS_PER_DAY;
+
+    @BeforeClass
+    public static void init() throws Exception {
+        Provisioning.setInstance(new MockProvisioning());
+    }
+
+    @After
+    public void tearDown() {
+        LC.calendar_recurrence_expansion_cache_size.setDefault(2000);
+    }
+
+    @Test
+    public void overlappingRanges() throws Exception {
+        SimpleRepeatingRule rule = newRule("FREQ=DAILY", "PT1H");
+        long dtStart = rule.getStartTime().getUtcTime();
+        // later, earlier, inside, wider on both sides, and starting before DTSTART
+        check(rule, dtStart + 10 * DAY, dtStart + 20 * DAY);
+        check(rule, dtStart + 15 * DAY, dtStart + 25 * DAY);
+        check(rule, dtStart + 5 * DAY, dtStart + 12 * DAY);
+        check(rule, dtStart + 7 * DAY + 30 * Constants.MILLIS_PER_MINUTE, dtStart + 8 * DAY);
+        check(rule, dtStart + 2 * DAY, dtStart + 60 * DAY);
+        check(rule, dtStart - 30 * DAY, dtStart + 61 * DAY);
+        // a range that only partly overlaps an instance
+        check(rule, dtStart + 70 * DAY + 30 * Constants.MILLIS_PER_MINUTE, dtStart + 71 * DAY);
+    }
+
+    @Test
+    public void widening() throws Exception {
+        SimpleRepeatingRule rule = newRule("FREQ=WEEKLY;BYDAY=MO,WE,FR", "PT30M");
+        long dtStart = rule.getStartTime().getUtcTime();
+        for (int days = 7; days <= 365; days += 31) {
+            check(rule, dtStart + 180 * DAY - days * DAY, dtStart + 180 * DAY + days * DAY);
+        }
+        // disjoint from what is cached, on either side
+        check(rule, dtStart + 1000 * DAY, dtStart + 1010 * DAY);
+        check(rule, dtStart, dtStart + 3 * DAY);
+    }
+
+    @Test
+    public void hardLimits() throws Exception {
+        // daily rules are expanded for at most 730 days from the start of the range
+        SimpleRepeatingRule rule = newRule("FREQ=DAILY", "PT1H");
+        long dtStart = rule.getStartTime().getUtcTime();
+        check(rule, dtStart + 100 * DAY, dtStart + 200 * DAY);
+        check(rule, dtStart, dtStart + 800 * DAY);
+        check(rule, dtStart + 700 * DAY, dtStart + 760 * DAY);
+        check(rule, dtStart + 725 * DAY, dtStart + 735 * DAY);
+        check(rule, dtStart - 100 * DAY, dtStart + 1000 * DAY);
+        // past the limit counted from an earlier span
+        check(rule, dtStart + 900 * DAY, dtStart + 1000 * DAY);
+        rule = newRule("FREQ=DAILY", "PT1H");
+        check(rule, dtStart + 100 * DAY, dtStart + 200 * DAY);
+        check(rule, dtStart + 1000 * DAY, dtStart + 1100 * DAY);
+
+        // ...and UNTIL and COUNT end the series earlier than that
+        rule = newRule("FREQ=DAILY;UNTIL=20160301T000000Z", "PT1H");
+        check(rule, dtStart, dtStart + 20 * DAY);
+        check(rule, dtStart + 50 * DAY, dtStart + 70 * DAY);
+        check(rule, dtStart, dtStart + 800 * DAY);
+
+        rule = newRule("FREQ=WEEKLY;COUNT=10", "PT1H");
+        check(rule, dtStart + 14 * DAY, dtStart + 30 * DAY);
+        check(rule, dtStart, dtStart + 400 * DAY);
+    }
+
+    @Test
+    public void sizeLimit() throws Exception {
+        LC.calendar_recurrence_expansion_cache_size.setDefault(50);
+        SimpleRepeatingRule rule = newRule("FREQ=DAILY", "PT1H");
+        long dtStart = rule.getStartTime().getUtcTime();
+        // each range is small enough to cache, but widening past the cap expands the range on its own
+        check(rule, dtStart + 10 * DAY, dtStart + 40 * DAY);
+        check(rule, dtStart + 30 * DAY, dtStart + 70 * DAY);
+        check(rule, dtStart + 35 * DAY, dtStart + 45 * DAY);
+        check(rule, dtStart, dtStart + 200 * DAY);
+        check(rule, dtStart + 190 * DAY, dtStart + 210 * DAY);
+    }
+
+    @Test
+    public void wideExpansionNotRetained() throws Exception {
+        LC.calendar_recurrence_expansion_cache_size.setDefault(50);
+        SimpleRepeatingRule rule = newRule("FREQ=DAILY", "PT1H");
+        long dtStart = rule.getStartTime().getUtcTime();
+        check(rule, dtStart + 10 * DAY, dtStart + 40 * DAY);
+        RecurrenceExpansion cached = rule.getCachedExpansion();
+        Assert.assertNotNull(cached);
+
+        // a span wider than the cap is expanded for the request, but the expansion cached before is kept
+        check(rule, dtStart, dtStart + 200 * DAY);
+        Assert.assertSame(cached, rule.getCachedExpansion());
+        check(rule, dtStart + 1000 * DAY, dtStart + 1200 * DAY);
+        Assert.assertSame(cached, rule.getCachedExpansion());
+
+        // ...and nothing is cached if nothing was before
+        rule = newRule("FREQ=DAILY", "PT1H");
+        check(rule, dtStart, dtStart + 200 * DAY);
+        Assert.assertNull(rule.getCachedExpansion());
+    }
+
+    private static SimpleRepeatingRule newRule(String rrule, String duration) throws Exception {
+        TimeZoneMap tzmap = new TimeZoneMap(UTC);
+        ParsedDateTime dtStart = ParsedDateTime.parse("20160101T100000", tzmap, UTC, UTC);
+        return new SimpleRepeatingRule(dtStart, ParsedDuration.parse(duration), new ZRecur(rrule, tzmap), null);
+    }
+
+    /**
+     * Expands the range with the cached rule and with a copy of it that doesn't cache, and compares the instances.
+     */
+    private static void check(SimpleRepeatingRule rule, long start, long end) throws Exception {
+        List<Instance> cached = rule.expandInstances(1, start, end);
+        int cacheSize = LC.calendar_recurrence_expansion_cache_size.intValue();
+        LC.calendar_recurrence_expansion_cache_size.setDefault(0);
+        List<Instance> uncached;
+        try {
+            uncached = ((SimpleRepeatingRule) rule.clone()).expandInstances(1, start, end);
+        } finally {
+            LC.calendar_recurrence_expansion_cache_size.setDefault(cacheSize);
+        }
+        Assert.assertEquals(uncached.size(), cached.size());
+        Assert.assertEquals(uncached, cached);
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mime;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+import javax.mail.util.SharedByteArrayInputStream;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.util.FileUtil;
+import com.zimbra.cs.account.MockProvisioning;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.util.JMSession;
+
+public class TnefConverterTest {
+
+    private static final File CACHE_DIR = new File("build/test/tnef");
+
+    private String oldCacheDir;
+
+    @BeforeClass
+    public static void init() throws Exception {
+        Provisioning.setInstance(new MockProvisioning());
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        FileUtil.deleteDir(CACHE_DIR);
+        oldCacheDir = LC.zimbra_converter_tnef_cache_directory.value();
+        LC.zimbra_converter_tnef_cache_directory.setDefault(CACHE_DIR.getPath());
+        TnefFileCache.startup();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        try {
+            TnefFileCache.shutdown();
+            FileUtil.deleteDir(CACHE_DIR);
+        } finally {
+            LC.zimbra_converter_tnef_cache_directory.setDefault(oldCacheDir);
+        }
+    }
+
+    @Test
+    public void busy() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        saturate(release);
+        try {
+            // with a timeout, the TNEF part is left as it is rather than converted in this thread
+            MimeMessage mm = newMessage();
+            TnefConverter converter = new TnefConverter();
+            converter.setConversionTimeout(60000);
+            long start = System.currentTimeMillis();
+            converter.accept(mm);
+            Assert.assertTrue(System.currentTimeMillis() - start < 60000);
+            Assert.assertTrue(converter.isIncomplete());
+            MimeMultipart multi = (MimeMultipart) mm.getContent();
+            Assert.assertEquals(2, multi.getCount());
+            Assert.assertTrue(multi.getBodyPart(1).isMimeType("application/ms-tnef"));
+            Assert.assertEquals(0, TnefFileCache.getInstance().getSize());
+
+            // without one, it is converted in this thread
+            converter = new TnefConverter();
+            converter.accept(newMessage());
+            Assert.assertFalse(converter.isIncomplete());
+            Assert.assertEquals(1, TnefFileCache.getInstance().getSize());
+        } finally {
+            release.countDown();
+        }
+    }
+
+    /**
+     * Fills the converter threads and queue with tasks that wait for the latch.
+     */
+    private static void saturate(final CountDownLatch release) {
+        Runnable blocked = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                }
+            }
+        };
+        try {
+            while (true) {
+                TnefConverter.CONVERTER.execute(blocked);
+            }
+        } catch (RejectedExecutionException expected) {
+        }
+    }
+
+    /**
+     * Returns a message with a TNEF attachment that can't be decoded, which is cached as an empty conversion.
+     */
+    private static MimeMessage newMessage() throws Exception {
+        String content =
+            "From: sender@example.com\r\n" +
+            "To: rcpt@example.com\r\n" +
+            "Subject: tnef\r\n" +
+            "Content-Type: multipart/mixed; boundary=\"BOUNDARY\"\r\n\r\n" +
+            "--BOUNDARY\r\n" +
+            "Content-Type: text/plain\r\n\r\n" +
+            "body\r\n" +
+            "--BOUNDARY\r\n" +
+            "Content-Type: application/ms-tnef; name=\"winmail.dat\"\r\n" +
+            "Content-Transfer-Encoding: base64\r\n\r\n" +
+            "bm90IHJlYWxseSB0bmVm\r\n" +
+            "--BOUNDARY--\r\n";
+        return new Mime.FixedMimeMessage(JMSession.getSession(), new SharedByteArrayInputStream(content.getBytes()));
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mime;
+
+import java.io.File;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.util.FileUtil;
+
+public class TnefFileCacheTest {
+
+    private static final File CACHE_DIR = new File("build/test/tnef");
+
+    @Before
+    public void setUp() throws Exception {
+        FileUtil.deleteDir(CACHE_DIR);
+        LC.zimbra_converter_tnef_cache_directory.setDefault(CACHE_DIR.getPath());
+        LC.zimbra_converter_tnef_cache_max_bytes.setDefault(10);
+        TnefFileCache.startup();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        TnefFileCache.shutdown();
+        FileUtil.deleteDir(CACHE_DIR);
+    }
+
+    @Test
+    public void evictLeastRecentlyUsed() throws Exception {
+        TnefFileCache cache = TnefFileCache.getInstance();
+        cache.put("a", new byte[4]);
+        cache.put("b", new byte[4]);
+        Assert.assertNotNull(cache.get("a"));
+
+        // "b" is the least recently used entry
+        cache.put("c", new byte[4]);
+        Assert.assertNull(cache.get("b"));
+        Assert.assertFalse(new File(CACHE_DIR, "b").exists());
+        Assert.assertEquals(4, cache.get("a").length);
+        Assert.assertEquals(4, cache.get("c").length);
+        Assert.assertEquals(8, cache.getTotalBytes());
+
+        // too big to cache
+        cache.put("d", new byte[11]);
+        Assert.assertNull(cache.get("d"));
+    }
+
+    @Test
+    public void reload() throws Exception {
+        TnefFileCache cache = TnefFileCache.getInstance();
+        cache.put("a", new byte[] { 1, 2, 3 });
+        cache.put("b", new byte[0]);
+
+        TnefFileCache.shutdown();
+        TnefFileCache.startup();
+        cache = TnefFileCache.getInstance();
+        Assert.assertEquals(2, cache.getSize());
+        Assert.assertEquals(3, cache.getTotalBytes());
+        Assert.assertArrayEquals(new byte[] { 1, 2, 3 }, cache.get("a"));
+        Assert.assertEquals(0, cache.get("b").length);
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2015, 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.redolog;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+import com.zimbra.cs.redolog.op.DeleteMailbox;
+import com.zimbra.cs.redolog.op.RedoableOp;
+import com.zimbra.cs.redolog.op.SetActiveSyncDisabled;
+
+public class ReplayExecutorTest {
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+    }
+
+    @Test
+    public void orderWithinMailbox() throws Exception {
+        final Map<RedoableOp, Integer> sequence = new HashMap<RedoableOp, Integer>();
+        final Map<Integer, List<Integer>> played = new HashMap<Integer, List<Integer>>();
+        for (int mboxId = 1; mboxId <= 4; mboxId++) {
+            played.put(mboxId, Collections.synchronizedList(new ArrayList<Integer>()));
+        }
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger runningAtBarrier = new AtomicInteger(-1);
+
+        ReplayExecutor executor = new ReplayExecutor(4, 10, false, new ReplayExecutor.Replayer() {
+            @Override
+            public void replay(RedoableOp op) throws Exception {
+                if (op.isCrossMailboxOp()) {
+                    runningAtBarrier.set(running.get());
+                    return;
+                }
+                running.incrementAndGet();
+                Thread.sleep(1);
+                played.get(op.getMailboxId()).add(sequence.get(op));
+                running.decrementAndGet();
+            }
+        });
+        List<RedoableOp> ops = new ArrayList<RedoableOp>();
+        for (int i = 0; i < 200; i++) {
+            RedoableOp op = new SetActiveSyncDisabled(i % 4 + 1, i, true);
+            sequence.put(op, i);
+            ops.add(op);
+        }
+        for (int i = 0; i < 100; i++) {
+            executor.submit(ops.get(i));
+        }
+        executor.submit(new DeleteMailbox(1));
+        Assert.assertEquals(0, runningAtBarrier.get());
+        for (int i = 100; i < 200; i++) {
+            executor.submit(ops.get(i));
+        }
+        executor.finish();
+
+        Assert.assertEquals(201, executor.getReplayedCount());
+        for (List<Integer> list : played.values()) {
+            Assert.assertEquals(50, list.size());
+            for (int i = 1; i < list.size(); i++) {
+                Assert.assertTrue(list.get(i - 1) < list.get(i));
+            }
+        }
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2015, 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.redolog.logger;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+import com.zimbra.cs.redolog.RedoLogProvider;
+import com.zimbra.cs.redolog.op.CommitTxn;
+import com.zimbra.cs.redolog.op.PurgeImapDeleted;
+import com.zimbra.cs.redolog.op.RedoableOp;
+
+public class CompressedLogFileTest {
+
+    private static final int NUM_OPS = 2000;
+
+    private File file;
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        File dir = new File("build/test/redo");
+        dir.mkdirs();
+        file = new File(dir, "redo-compress-test.log");
+        file.delete();
+
+        FileLogWriter writer = new FileLogWriter(RedoLogProvider.getInstance().getRedoLogManager(), file, 0);
+        writer.open();
+        long time = 1000000;
+        for (int i = 0; i < NUM_OPS; i++) {
+            // mailbox 1 only appears at the end of the log
+            int mboxId = i < NUM_OPS - 10 ? i % 3 + 2 : 1;
+            RedoableOp op = new PurgeImapDeleted(mboxId);
+            op.start(time + i);
+            writer.log(op, op.getInputStream(), false);
+            CommitTxn commit = new CommitTxn(op);
+            commit.start(time + i);
+            writer.log(commit, commit.getInputStream(), false);
+        }
+        writer.close();
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void compress() throws Exception {
+        List<String> original = readOps(new FileLogReader(file));
+        long size = file.length();
+
+        Assert.assertTrue(CompressedLogFile.compress(file, 4096));
+        Assert.assertFalse(CompressedLogFile.compress(file, 4096));
+        Assert.assertTrue(file.length() < size);
+
+        FileLogReader reader = new FileLogReader(file);
+        Assert.assertTrue(reader.isCompressed());
+        Assert.assertEquals(original, readOps(reader));
+    }
+
+    @Test
+    public void blockFilter() throws Exception {
+        CompressedLogFile.compress(file, 4096);
+
+        FileLogReader reader = new FileLogReader(file);
+        reader.setBlockFilter(Long.MIN_VALUE, Long.MAX_VALUE, Collections.singleton(1));
+        List<String> ops = readOps(reader);
+        Assert.assertTrue(ops.size() < NUM_OPS);
+        int count = 0;
+        for (String op : ops) {
+            if (op.startsWith("1:")) {
+                count++;
+            }
+        }
+        Assert.assertEquals(20, count);
+
+        reader = new FileLogReader(file);
+        reader.setBlockFilter(1000000 + NUM_OPS, Long.MAX_VALUE, null);
+        Assert.assertTrue(readOps(reader).isEmpty());
+    }
+
+    @Test
+    public void waitForReaders() throws Exception {
+        List<String> original = readOps(new FileLogReader(file));
+        FileLogReader reader = new FileLogReader(file);
+        reader.open();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread compressor = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    CompressedLogFile.compress(file, 4096);
+                } catch (Throwable t) {
+                    failure.set(t);
+                }
+            }
+        };
+        compressor.start();
+        try {
+            // the log isn't replaced while a reader has it open
+            compressor.join(500);
+            Assert.assertTrue(compressor.isAlive());
+            Assert.assertEquals(original.get(0), toString(reader.getNextOp()));
+        } finally {
+            reader.close();
+        }
+        compressor.join(10000);
+        Assert.assertFalse(compressor.isAlive());
+        Assert.assertNull(failure.get());
+
+        reader = new FileLogReader(file);
+        Assert.assertTrue(reader.isCompressed());
+        Assert.assertEquals(original, readOps(reader));
+    }
+
+    private static String toString(RedoableOp op) {
+        return op.getMailboxId() + ":" + op.getTransactionId() + ":" + op.getOperation();
+    }
+
+    private static List<String> readOps(FileLogReader reader) throws Exception {
+        List<String> ops = new ArrayList<String>();
+        reader.open();
+        try {
+            RedoableOp op;
+            while ((op = reader.getNextOp()) != null) {
+                ops.add(toString(op));
+            }
+        } finally {
+            reader.close();
+        }
+        return ops;
+    }
+}
@@ -16,6 +16,8 @@
  */
 package com.zimbra.cs.service.formatter;
 
+import java.util.Arrays;
+
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.BeforeClass;
@@ -23,11 +25,16 @@ import org.junit.Test;
 
 import com.google.common.collect.Maps;
 import com.zimbra.common.account.Key.AccountBy;
+import com.zimbra.common.service.ServiceException;
 import com.zimbra.cs.account.Account;
 import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.mailbox.DeliveryContext;
 import com.zimbra.cs.mailbox.Mailbox;
 import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.mailbox.MailboxTest;
 import com.zimbra.cs.mailbox.MailboxTestUtil;
+import com.zimbra.cs.mailbox.Message;
+import com.zimbra.cs.service.formatter.ArchiveFormatter.ArchiveInputEntry;
 import com.zimbra.cs.service.util.ItemData;
 
 public class ArchiveFormatterTest {
@@ -80,4 +87,76 @@ public class ArchiveFormatterTest {
         Assert.assertEquals("Tags starting with numerics", "1-Tag:2-Tag", id.tags);
         Assert.assertArrayEquals("Tags starting with numerics", tags, ArchiveFormatter.getTagNames(id));
     }
+
+    @Test
+    public void stagedMessages() throws Exception {
+        Account acct = Provisioning.getInstance().get(AccountBy.name, "test@zimbra.com");
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccount(acct);
+        Message src = mbox.addMessage(null, MailboxTestUtil.generateMessage("staged"),
+                MailboxTest.STANDARD_DELIVERY_OPTIONS, null);
+        byte[] content = src.getContent();
+        ItemData id = new ItemData(src);
+
+        // a line longer than zimbra_lmtp_max_line_length fails validation
+        char[] line = new char[20000];
+        Arrays.fill(line, 'x');
+        byte[] invalid = ("Subject: invalid\r\n\r\n" + new String(line) + "\r\n").getBytes();
+
+        ArchivePipeline.MessageStager stager = new ArchivePipeline.MessageStager(false, null);
+        Assert.assertTrue(stager.accepts(id, entry(content.length)));
+        stager.stage(id, entry(content.length), content);
+        stager.stage(id, entry(invalid.length), invalid);
+
+        ArchivePipeline.StagedMessage staged = stager.next();
+        try {
+            Message msg = mbox.addMessage(null, staged.getParsedMessage(), MailboxTest.STANDARD_DELIVERY_OPTIONS,
+                    new DeliveryContext().setIncomingBlob(staged.getBlob()));
+            Assert.assertEquals("staged", msg.getSubject());
+            Assert.assertEquals(src.getDigest(), msg.getDigest());
+            Assert.assertArrayEquals(content, msg.getContent());
+        } finally {
+            staged.discard();
+        }
+
+        staged = stager.next();
+        try {
+            staged.getParsedMessage();
+            Assert.fail("invalid message should not be staged");
+        } catch (ServiceException e) {
+            Assert.assertEquals(ServiceException.INVALID_REQUEST, e.getCode());
+            Assert.assertNull("blob of an invalid message is deleted", staged.getBlob());
+        } finally {
+            staged.discard();
+        }
+        Assert.assertTrue(stager.isEmpty());
+    }
+
+    private static ArchiveInputEntry entry(final long size) {
+        return new ArchiveInputEntry() {
+            @Override
+            public long getModTime() {
+                return 0;
+            }
+
+            @Override
+            public String getName() {
+                return "staged.eml";
+            }
+
+            @Override
+            public long getSize() {
+                return size;
+            }
+
+            @Override
+            public int getType() {
+                return 0;
+            }
+
+            @Override
+            public boolean isUnread() {
+                return false;
+            }
+        };
+    }
 }
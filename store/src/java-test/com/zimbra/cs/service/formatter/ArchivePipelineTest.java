@@ -0,0 +1,116 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2011, 2012, 2013, 2014, 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.service.formatter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.zimbra.common.util.ByteUtil;
+
+public class ArchivePipelineTest {
+
+    private static byte[] data(int size) {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+
+    @Test
+    public void output() throws Exception {
+        byte[] data = data(1024 * 1024 + 17);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ArchiveStats.Phase phase = new ArchiveStats("test").phase("send");
+        OutputStream os = new ArchivePipeline.OutputStage(baos, phase);
+        os.write(data, 0, 10);
+        os.write(data[10]);
+        os.write(data, 11, data.length - 11);
+        os.close();
+        Assert.assertArrayEquals(data, baos.toByteArray());
+        Assert.assertEquals(data.length, phase.getBytes());
+    }
+
+    @Test
+    public void outputFailure() throws Exception {
+        OutputStream os = new ArchivePipeline.OutputStage(new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("broken pipe");
+            }
+        }, null);
+        try {
+            os.write(data(1024 * 1024 * 4));
+            os.close();
+            Assert.fail("write failure should be reported");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void input() throws Exception {
+        byte[] data = data(1024 * 1024 + 17);
+        ArchiveStats.Phase phase = new ArchiveStats("test").phase("receive");
+        InputStream is = new ArchivePipeline.InputStage(new ByteArrayInputStream(data), phase);
+        Assert.assertEquals(data[0] & 0xff, is.read());
+        byte[] rest = ByteUtil.getContent(is, -1);
+        Assert.assertEquals(-1, is.read());
+        is.close();
+        Assert.assertEquals(data.length - 1, rest.length);
+        Assert.assertEquals(data[data.length - 1], rest[rest.length - 1]);
+        Assert.assertEquals(data.length, phase.getBytes());
+    }
+
+    @Test
+    public void inputFailure() throws Exception {
+        InputStream is = new ArchivePipeline.InputStage(new InputStream() {
+            @Override
+            public int read() throws IOException {
+                throw new IOException("connection reset");
+            }
+        }, null);
+        try {
+            ByteUtil.getContent(is, -1);
+            Assert.fail("read failure should be reported");
+        } catch (IOException expected) {
+        } finally {
+            is.close();
+        }
+    }
+
+    @Test
+    public void inputRuntimeFailure() throws Exception {
+        InputStream is = new ArchivePipeline.InputStage(new InputStream() {
+            @Override
+            public int read() {
+                throw new IllegalStateException("decoder failed");
+            }
+        }, null);
+        try {
+            ByteUtil.getContent(is, -1);
+            Assert.fail("read failure should be reported");
+        } catch (IllegalStateException expected) {
+        } finally {
+            is.close();
+        }
+    }
+}
@@ -16,10 +16,12 @@
  */
 package com.zimbra.cs.store;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.Channels;
 
 import org.junit.After;
 import org.junit.Assert;
@@ -90,4 +92,31 @@ public class BlobInputStreamTest {
         Assert.assertFalse("file is gone", file.exists());
         Assert.assertNull("can't create substream after delete", bis.newStream(0, CONTENT.length));
     }
+
+    @Test
+    public void remainingRegion() throws Exception {
+        File file = createTempFile();
+        BlobInputStream bis = new BlobInputStream(file, file.length());
+        Assert.assertEquals("skip 3 bytes", 3, bis.skip(3));
+
+        BlobRegion region = bis.getRemainingRegion();
+        try {
+            Assert.assertNotNull("uncompressed file has a region", region);
+            Assert.assertEquals("region starts at read position", 3, region.getPosition());
+            Assert.assertEquals("region covers unread bytes", 7, region.getCount());
+
+            BlobRegion section = region.subRegion(2, 3);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            section.transferTo(Channels.newChannel(out));
+            Assert.assertEquals("transferred section", "567", out.toString());
+            try {
+                region.subRegion(5, 3);
+                Assert.fail("Shouldn't be able to create a section past the end of the region");
+            } catch (IllegalArgumentException iae) {
+            }
+        } finally {
+            region.close();
+            bis.close();
+        }
+    }
 }
@@ -0,0 +1,166 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.store.chunk;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.util.ByteUtil;
+import com.zimbra.common.util.FileUtil;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.account.MockProvisioning;
+import com.zimbra.cs.db.DbBlobChunk;
+import com.zimbra.cs.db.DbPool;
+import com.zimbra.cs.db.DbPool.DbConnection;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.store.StagedBlob;
+import com.zimbra.cs.store.StoreManager;
+import com.zimbra.cs.store.external.AbstractExternalStoreManagerTest;
+
+public class ChunkedStoreManagerTest extends AbstractExternalStoreManagerTest {
+
+    private static final String DIRECTORY = "build/test/chunks";
+
+    @Override
+    protected StoreManager getStoreManager() {
+        try {
+            FileUtil.deleteDir(new File(DIRECTORY));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        LC.chunk_store_directory.setDefault(DIRECTORY);
+        return new ChunkedStoreManager();
+    }
+
+    private static Set<String> chunks(byte[] data) throws IOException {
+        Set<String> ids = new HashSet<String>();
+        ContentChunker chunker = new ContentChunker(new ByteArrayInputStream(data), 2048, 4096, 16384);
+        for (int len = chunker.next(); len >= 0; len = chunker.next()) {
+            Assert.assertTrue("chunk within bounds", len <= 16384);
+            ids.add(Arrays.hashCode(Arrays.copyOfRange(chunker.getBuffer(), chunker.getOffset(), chunker.getOffset() + len)) + ":" + len);
+        }
+        return ids;
+    }
+
+    @Test
+    public void boundariesFollowContent() throws Exception {
+        byte[] data = new byte[256 * 1024];
+        new Random(1).nextBytes(data);
+        byte[] edited = new byte[data.length + 10];
+        System.arraycopy(data, 0, edited, 0, 1000);
+        System.arraycopy(data, 1000, edited, 1010, data.length - 1000);
+
+        Set<String> before = chunks(data);
+        Set<String> after = chunks(edited);
+        Set<String> changed = new HashSet<String>(after);
+        changed.removeAll(before);
+        Assert.assertTrue("insertion only changes the chunks around it: " + changed.size(), changed.size() <= 3);
+    }
+
+    @Test
+    public void revisions() throws Exception {
+        ChunkedStoreManager sm = (ChunkedStoreManager) StoreManager.getInstance();
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        Random random = new Random(2);
+        byte[] content = new byte[1024 * 1024];
+        random.nextBytes(content);
+
+        List<byte[]> revisions = new ArrayList<byte[]>();
+        List<String> locators = new ArrayList<String>();
+        for (int rev = 0; rev < 20; rev++) {
+            // each revision overwrites a few bytes and inserts a short run somewhere in the document
+            content = content.clone();
+            for (int i = 0; i < 3; i++) {
+                content[random.nextInt(content.length)] ^= 0x5A;
+            }
+            int at = random.nextInt(content.length);
+            byte[] insert = new byte[100];
+            random.nextBytes(insert);
+            byte[] next = new byte[content.length + insert.length];
+            System.arraycopy(content, 0, next, 0, at);
+            System.arraycopy(insert, 0, next, at, insert.length);
+            System.arraycopy(content, at, next, at + insert.length, content.length - at);
+            content = next;
+
+            StagedBlob staged = sm.stage(new ByteArrayInputStream(content), content.length, mbox);
+            Assert.assertEquals("staged size", content.length, staged.getSize());
+            revisions.add(content);
+            locators.add(staged.getLocator());
+        }
+
+        for (int rev = 0; rev < revisions.size(); rev++) {
+            byte[] read = ByteUtil.getContent(sm.readStreamFromStore(locators.get(rev), mbox), -1);
+            Assert.assertTrue("revision " + rev + " content", Arrays.equals(revisions.get(rev), read));
+        }
+        ZimbraLog.test.info("dedup ratio %.2f, write %.1f MB/s, read %.1f MB/s",
+                sm.getDedupRatio(), sm.getWriteThroughput(), sm.getReadThroughput());
+        Assert.assertTrue("revisions share chunks: " + sm.getDedupRatio(), sm.getDedupRatio() > 3);
+        Assert.assertEquals("manifests", locators.size(), sm.getAllBlobPaths(mbox).size());
+
+        for (String locator : locators) {
+            Assert.assertTrue("deleted " + locator, sm.deleteFromStore(locator, mbox));
+        }
+        Assert.assertTrue("no manifests left", sm.getAllBlobPaths(mbox).isEmpty());
+        for (File dir : new File(DIRECTORY, "chunks").listFiles()) {
+            Assert.assertEquals("no chunks left in " + dir, 0, dir.list().length);
+        }
+    }
+
+    @Test
+    public void repeatedChunks() throws Exception {
+        ChunkedStoreManager sm = (ChunkedStoreManager) StoreManager.getInstance();
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        // a blob that repeats the same content references the same chunk many times
+        byte[] run = new byte[LC.chunk_store_max_chunk_size.intValue()];
+        new Random(3).nextBytes(run);
+        byte[] content = new byte[run.length * 8];
+        for (int i = 0; i < 8; i++) {
+            System.arraycopy(run, 0, content, i * run.length, run.length);
+        }
+        String first = sm.stage(new ByteArrayInputStream(content), content.length, mbox).getLocator();
+        String second = sm.stage(new ByteArrayInputStream(content), content.length, mbox).getLocator();
+
+        Assert.assertTrue(sm.deleteFromStore(first, mbox));
+        byte[] read = ByteUtil.getContent(sm.readStreamFromStore(second, mbox), -1);
+        Assert.assertTrue("content after deleting the other blob", Arrays.equals(content, read));
+
+        Assert.assertTrue(sm.deleteFromStore(second, mbox));
+        for (File dir : new File(DIRECTORY, "chunks").listFiles()) {
+            Assert.assertEquals("no chunks left in " + dir, 0, dir.list().length);
+        }
+
+        // removing a reference to a chunk that isn't there doesn't report it as unused
+        DbConnection conn = DbPool.getConnection();
+        try {
+            Assert.assertFalse(DbBlobChunk.removeReference(conn, "missing", 1));
+        } finally {
+            DbPool.quietClose(conn);
+        }
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.store.external;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.util.ByteUtil;
+import com.zimbra.cs.account.MockProvisioning;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.mailbox.MailboxTest;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+import com.zimbra.cs.mailbox.Message;
+import com.zimbra.cs.mime.ParsedMessage;
+import com.zimbra.cs.store.Blob;
+import com.zimbra.cs.store.MailboxBlob;
+import com.zimbra.cs.store.StoreManager;
+
+public class ExternalStoreCacheTest {
+
+    private static StoreManager originalStoreManager;
+    private CountingStoreManager sm;
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+        MailboxTestUtil.initProvisioning();
+        Provisioning.getInstance().createAccount("test@zimbra.com", "secret", new HashMap<String, Object>());
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        originalStoreManager = StoreManager.getInstance();
+        sm = new CountingStoreManager();
+        StoreManager.setInstance(sm);
+        sm.startup();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        sm.shutdown();
+        StoreManager.setInstance(originalStoreManager);
+    }
+
+    /**
+     * SimpleStoreManager which counts remote reads and can hold them until released.
+     */
+    private static class CountingStoreManager extends SimpleStoreManager {
+        final AtomicInteger reads = new AtomicInteger();
+        volatile CountDownLatch release;
+
+        CountingStoreManager() { }
+
+        @Override
+        public InputStream readStreamFromStore(String locator, Mailbox mbox) throws IOException {
+            reads.incrementAndGet();
+            if (release != null) {
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return super.readStreamFromStore(locator, mbox);
+        }
+    }
+
+    private MailboxBlob store(byte[] content) throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        Blob blob = sm.storeIncoming(new ByteArrayInputStream(content));
+        try {
+            return sm.link(sm.stage(blob, mbox), mbox, 0, 0);
+        } finally {
+            sm.quietDelete(blob);
+        }
+    }
+
+    private static byte[] read(InputStream in) throws IOException {
+        return ByteUtil.getContent(in, -1, true);
+    }
+
+    @Test
+    public void memoryTier() throws Exception {
+        byte[] content = "Subject: test\r\n\r\nbody\r\n".getBytes();
+        MailboxBlob mblob = store(content);
+        sm.clearCache();
+
+        Assert.assertArrayEquals(content, read(sm.getContent(mblob)));
+        Assert.assertEquals(1, sm.reads.get());
+        Assert.assertEquals(1, sm.getLocalCacheStats().getMissCount());
+        Assert.assertEquals(1, sm.getMemoryCacheStats().getMissCount());
+
+        Assert.assertArrayEquals(content, read(sm.getContent(mblob)));
+        Assert.assertEquals(1, sm.reads.get());
+        Assert.assertEquals(1, sm.getMemoryCacheStats().getHitCount());
+        Assert.assertEquals(0.5, sm.getMemoryCacheStats().getHitRatio(), 0.001);
+
+        sm.delete(mblob);
+        try {
+            sm.getContent(mblob);
+            Assert.fail("deleted blob was served from cache");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void concurrentReadsShareFetch() throws Exception {
+        final byte[] content = "Subject: shared\r\n\r\nbody\r\n".getBytes();
+        final MailboxBlob mblob = store(content);
+        sm.clearCache();
+        sm.release = new CountDownLatch(1);
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<byte[]>> results = new ArrayList<Future<byte[]>>();
+            for (int i = 0; i < 4; i++) {
+                results.add(executor.submit(new Callable<byte[]>() {
+                    @Override
+                    public byte[] call() throws Exception {
+                        return read(sm.getLocalBlob(mblob.getMailbox(), mblob.getLocator()).getInputStream());
+                    }
+                }));
+            }
+            Thread.sleep(200);
+            sm.release.countDown();
+            for (Future<byte[]> result : results) {
+                Assert.assertArrayEquals(content, result.get(10, TimeUnit.SECONDS));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        Assert.assertEquals(1, sm.reads.get());
+    }
+
+    @Test
+    public void prefetch() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        ParsedMessage pm = MailboxTestUtil.generateMessage("prefetch");
+        Message msg = mbox.addMessage(null, pm, MailboxTest.STANDARD_DELIVERY_OPTIONS, null);
+        sm.clearCache();
+        sm.reads.set(0);
+
+        sm.prefetch(Collections.singletonList(msg));
+        sm.awaitPrefetches(10, TimeUnit.SECONDS);
+        Assert.assertEquals(1, sm.reads.get());
+
+        MailboxBlob mblob = sm.getMailboxBlob(mbox, msg.getId(), msg.getSavedSequence(), msg.getLocator(), false);
+        Assert.assertArrayEquals(pm.getRawData(), read(sm.getContent(mblob)));
+        Assert.assertEquals(1, sm.reads.get());
+        Assert.assertEquals(1, sm.getLocalCacheStats().getHitCount());
+
+        // already cached; nothing to fetch
+        sm.prefetch(Collections.singletonList(msg));
+        sm.awaitPrefetches(10, TimeUnit.SECONDS);
+        Assert.assertEquals(1, sm.reads.get());
+    }
+
+    @Test
+    public void copyFromLocalCache() throws Exception {
+        // too large for the memory tier
+        byte[] content = new byte[LC.external_store_memory_cache_max_blob_size.intValue() + 1];
+        new Random().nextBytes(content);
+        MailboxBlob mblob = store(content);
+        sm.clearCache();
+
+        Assert.assertArrayEquals(content, read(sm.getContent(mblob)));
+        Assert.assertEquals(1, sm.reads.get());
+
+        MailboxBlob copy = sm.copy(mblob, mblob.getMailbox(), 1, 1);
+        Assert.assertArrayEquals(content, read(sm.getContent(copy)));
+        Assert.assertEquals("copy was served without a remote read", 1, sm.reads.get());
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.cs.zookeeper;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.curator.framework.recipes.leader.LeaderLatch;
+import org.apache.curator.test.TestingServer;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.io.Closeables;
+import com.zimbra.cs.zookeeper.ServerLoad.MailboxLoad;
+
+public class CuratorManagerTest {
+
+    private TestingServer server;
+    private CuratorManager curator1;
+    private CuratorManager curator2;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new TestingServer();
+        curator1 = new CuratorManager(server.getConnectString(), "server1");
+        curator1.start();
+        curator2 = new CuratorManager(server.getConnectString(), "server2");
+        curator2.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (curator1 != null) {
+            curator1.stop();
+        }
+        curator2.stop();
+        Closeables.closeQuietly(server);
+    }
+
+    @Test
+    public void publishLoad() throws Exception {
+        Assert.assertTrue(curator1.getServerLoads().isEmpty());
+
+        ServerLoad load = new ServerLoad("server1");
+        load.setSessions(10);
+        load.setTransactionRate(2.5);
+        load.getMailboxes().add(new MailboxLoad("acct1", 2, 3));
+        curator1.publishLoad(load);
+        load.setSessions(20);
+        curator1.publishLoad(load);
+        curator2.publishLoad(new ServerLoad("server2"));
+
+        Map<String, ServerLoad> loads = new HashMap<String, ServerLoad>();
+        for (ServerLoad l : curator2.getServerLoads()) {
+            loads.put(l.getServerId(), l);
+        }
+        Assert.assertEquals(2, loads.size());
+        ServerLoad read = loads.get("server1");
+        Assert.assertEquals(20, read.getSessions());
+        Assert.assertEquals(2.5, read.getTransactionRate(), 0);
+        Assert.assertEquals(1, read.getMailboxes().size());
+        Assert.assertEquals("acct1", read.getMailboxes().get(0).getAccountId());
+        Assert.assertEquals(3, read.getMailboxes().get(0).getSessions());
+
+        // the load goes away with the server's session
+        curator1.stop();
+        curator1 = null;
+        List<ServerLoad> left = curator2.getServerLoads();
+        Assert.assertEquals(1, left.size());
+        Assert.assertEquals("server2", left.get(0).getServerId());
+    }
+
+    @Test
+    public void leaderLatch() throws Exception {
+        LeaderLatch latch1 = curator1.createLeaderLatch("test");
+        LeaderLatch latch2 = curator2.createLeaderLatch("test");
+        try {
+            latch1.start();
+            Assert.assertTrue(latch1.await(10, TimeUnit.SECONDS));
+            latch2.start();
+            Assert.assertFalse(latch2.await(200, TimeUnit.MILLISECONDS));
+            Assert.assertEquals("server1", latch2.getLeader().getId());
+
+            latch1.close();
+            Assert.assertTrue(latch2.await(10, TimeUnit.SECONDS));
+        } finally {
+            Closeables.closeQuietly(latch2);
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.cs.zookeeper;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.zimbra.cs.zookeeper.PlacementAdvisor.Move;
+import com.zimbra.cs.zookeeper.ServerLoad.MailboxLoad;
+
+public class PlacementAdvisorTest {
+
+    private static ServerLoad load(String id, double transactionRate, MailboxLoad... mailboxes) {
+        ServerLoad load = new ServerLoad(id);
+        load.setTransactionRate(transactionRate);
+        load.setMailboxes(Arrays.asList(mailboxes));
+        return load;
+    }
+
+    @Test
+    public void balanced() {
+        PlacementAdvisor advisor = new PlacementAdvisor(25, 5);
+        List<Move> moves = advisor.advise(Arrays.asList(
+                load("s1", 100, new MailboxLoad("a", 50, 0)),
+                load("s2", 90, new MailboxLoad("b", 50, 0))));
+        Assert.assertTrue(moves.isEmpty());
+    }
+
+    @Test
+    public void moveHotMailbox() {
+        PlacementAdvisor advisor = new PlacementAdvisor(30, 5);
+        // s1 scores 1.8 against an average of 1 and s2 0.12; a (1.08) would overshoot, b (0.54) fits and
+        // brings s1 down to 1.26
+        List<Move> moves = advisor.advise(Arrays.asList(
+                load("s1", 300, new MailboxLoad("a", 180, 0), new MailboxLoad("b", 90, 0),
+                        new MailboxLoad("c", 30, 0)),
+                load("s2", 20),
+                load("s3", 180)));
+        Assert.assertEquals(1, moves.size());
+        Move move = moves.get(0);
+        Assert.assertEquals("b", move.getAccountId());
+        Assert.assertEquals("s1", move.getFromServerId());
+        Assert.assertEquals("s2", move.getToServerId());
+    }
+
+    @Test
+    public void maxMoves() {
+        PlacementAdvisor advisor = new PlacementAdvisor(10, 2);
+        MailboxLoad[] mailboxes = new MailboxLoad[10];
+        for (int i = 0; i < mailboxes.length; i++) {
+            mailboxes[i] = new MailboxLoad("m" + i, 10, 1);
+        }
+        List<Move> moves = advisor.advise(Arrays.asList(load("s1", 100, mailboxes), load("s2", 0)));
+        Assert.assertEquals(2, moves.size());
+        Assert.assertFalse(moves.get(0).getAccountId().equals(moves.get(1).getAccountId()));
+    }
+
+    @Test
+    public void singleServer() {
+        PlacementAdvisor advisor = new PlacementAdvisor(25, 5);
+        Assert.assertTrue(advisor.advise(Arrays.asList(load("s1", 100, new MailboxLoad("a", 10, 0)))).isEmpty());
+    }
+}
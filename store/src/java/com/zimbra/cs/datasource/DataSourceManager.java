@@ -440,11 +440,32 @@ public class DataSourceManager {
 
     static void cancelTask(Mailbox mbox, String dsId)
         throws ServiceException {
-        ScheduledTaskManager.cancel(DataSourceTask.class.getName(), dsId, mbox.getId(), false);
+        cancelTask(null, dsId, mbox.getId());
         DbScheduledTask.deleteTask(DataSourceTask.class.getName(), dsId);
     }
 
+    /*
+     * Cancels the in-memory schedule for the data source, and deletes the
+     * persisted task if conn is not null.
+     */
+    private static void cancelTask(DbConnection conn, String dsId, int mboxId)
+        throws ServiceException {
+        if (DataSourcePollScheduler.isEnabled()) {
+            DataSourcePollScheduler.getInstance().cancel(dsId);
+            if (conn != null) {
+                DbScheduledTask.deleteTask(conn, DataSourceTask.class.getName(), dsId);
+            }
+        } else if (conn != null) {
+            ScheduledTaskManager.cancel(conn, DataSourceTask.class.getName(), dsId, mboxId, false);
+        } else {
+            ScheduledTaskManager.cancel(DataSourceTask.class.getName(), dsId, mboxId, false);
+        }
+    }
+
     public static DataSourceTask getTask(Mailbox mbox, String dsId) {
+        if (DataSourcePollScheduler.isEnabled()) {
+            return DataSourcePollScheduler.getInstance().getTask(dsId);
+        }
         return (DataSourceTask) ScheduledTaskManager.getTask(DataSourceTask.class.getName(), dsId, mbox.getId());
     }
 
@@ -498,7 +519,7 @@ public class DataSourceManager {
         if (cancelSchedule) {
             ZimbraLog.datasource.info(
                 "Data source %s was deleted.  Deleting scheduled task.", dsId);
-            ScheduledTaskManager.cancel(DataSourceTask.class.getName(), dsId, mboxId, false);
+            cancelTask(null, dsId, mboxId);
             DbScheduledTask.deleteTask(DataSourceTask.class.getName(), dsId);
             deleteManaged(accountId, dsId);
             return;
@@ -506,7 +527,7 @@ public class DataSourceManager {
         if (!ds.isEnabled()) {
             ZimbraLog.datasource.info(
                 "Data source %s is disabled.  Deleting scheduled task.", dsId);
-            ScheduledTaskManager.cancel(DataSourceTask.class.getName(), dsId, mboxId, false);
+            cancelTask(null, dsId, mboxId);
             DbScheduledTask.deleteTask(DataSourceTask.class.getName(), dsId);
             return;
         }
@@ -515,13 +536,21 @@ public class DataSourceManager {
         DbConnection conn = null;
         try {
             conn = DbPool.getConnection();
-            ScheduledTaskManager.cancel(conn, DataSourceTask.class.getName(), ds.getId(), mboxId, false);
+            cancelTask(conn, ds.getId(), mboxId);
+            DataSourceTask task = null;
             if (ds.isScheduled()) {
-                DataSourceTask task = new DataSourceTask(mboxId, accountId, dsId, ds.getPollingInterval());
+                task = new DataSourceTask(mboxId, accountId, dsId, ds.getPollingInterval());
                 ZimbraLog.datasource.debug("Scheduling %s", task);
-                ScheduledTaskManager.schedule(conn, task);
+                if (DataSourcePollScheduler.isEnabled()) {
+                    DbScheduledTask.createTask(conn, task);
+                } else {
+                    ScheduledTaskManager.schedule(conn, task);
+                }
             }
             conn.commit();
+            if (task != null && DataSourcePollScheduler.isEnabled()) {
+                DataSourcePollScheduler.getInstance().schedule(task);
+            }
         } catch (ServiceException e) {
             ZimbraLog.datasource.warn("Unable to schedule data source %s", ds.getName(), e);
             DbPool.quietRollback(conn);
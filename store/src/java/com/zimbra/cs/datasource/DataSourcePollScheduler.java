@@ -0,0 +1,418 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.datasource;
+
+import static com.zimbra.common.util.TaskUtil.newDaemonThreadFactory;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.Constants;
+import com.zimbra.common.util.Log;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.account.DataSource;
+import com.zimbra.cs.db.DbScheduledTask;
+import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.mailbox.MailboxListener;
+import com.zimbra.cs.mailbox.ScheduledTask;
+import com.zimbra.cs.session.PendingModifications;
+import com.zimbra.cs.session.PendingModifications.Change;
+
+/**
+ * Schedules polling of external data sources.
+ * <p>
+ * Unlike {@link com.zimbra.cs.mailbox.ScheduledTaskManager}, which runs each
+ * recurring task on its own fixed schedule, this spreads polls out with
+ * jitter, limits the number of concurrent polls against each remote host
+ * and polls data sources that rarely have new mail less often. Polls run on
+ * a small fixed pool of threads. Tasks are still persisted in the
+ * <tt>scheduled_task</tt> table, but are loaded in batches in the background
+ * after startup.
+ */
+public final class DataSourcePollScheduler {
+
+    private static final DataSourcePollScheduler INSTANCE = new DataSourcePollScheduler();
+
+    private static final int MAX_PER_HOST = LC.data_source_poll_max_per_host.intValue();
+    private static final int MAX_BACKOFF = Math.max(LC.data_source_poll_max_backoff.intValue(), 1);
+    private static final int JITTER_PERCENT = LC.data_source_poll_jitter_percent.intValue();
+    private static final int LOAD_BATCH_SIZE = Math.max(LC.data_source_poll_load_batch_size.intValue(), 1);
+
+    // Number of consecutive polls without changes before the interval is increased
+    private static final int IDLE_POLLS_PER_STEP = 4;
+
+    // Delay before retrying a poll whose remote host already has too many polls running
+    private static final long HOST_BUSY_DELAY = 10 * Constants.MILLIS_PER_SECOND;
+
+    // Delay before retrying to load tasks after a database error
+    private static final long LOAD_RETRY_DELAY = Constants.MILLIS_PER_MINUTE;
+
+    private static final Log LOG = ZimbraLog.datasource;
+
+    private final ScheduledExecutorService timer =
+        Executors.newSingleThreadScheduledExecutor(newDaemonThreadFactory("DataSourcePollTimer"));
+    private final ExecutorService pollers;
+
+    // Data source id -> poll
+    private final ConcurrentMap<String, Poll> polls = new ConcurrentHashMap<String, Poll>();
+
+    // Remote host -> number of polls currently running against it
+    private final ConcurrentMap<String, AtomicInteger> activeByHost = new ConcurrentHashMap<String, AtomicInteger>();
+
+    private boolean started;
+    private boolean listening;
+
+    public static boolean isEnabled() {
+        return LC.data_source_poll_scheduler_enabled.booleanValue();
+    }
+
+    public static DataSourcePollScheduler getInstance() {
+        return INSTANCE;
+    }
+
+    private DataSourcePollScheduler() {
+        int threads = Math.max(LC.data_source_poll_threads.intValue(), 1);
+        pollers = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), newDaemonThreadFactory("DataSourcePoll"));
+    }
+
+    /**
+     * Starts loading persisted data source tasks in the background.
+     */
+    public synchronized void startup() {
+        if (started) {
+            return;
+        }
+        started = true;
+        listen();
+        timer.execute(new Loader(null, 0));
+    }
+
+    private synchronized void listen() {
+        if (!listening) {
+            listening = true;
+            MailboxListener.register(new ImportListener());
+        }
+    }
+
+    /**
+     * Schedules polling for the data source, replacing any existing schedule.
+     * The first poll runs at a random time within the polling interval.
+     */
+    public void schedule(DataSourceTask task) {
+        listen();
+        Poll poll = new Poll(task);
+        Poll old = polls.put(task.getDataSourceId(), poll);
+        if (old != null) {
+            old.cancel();
+        }
+        poll.schedule(randomDelay(task.getIntervalMillis()));
+    }
+
+    /**
+     * Cancels polling for the data source.
+     *
+     * @return the task, or <tt>null</tt> if the data source was not scheduled
+     */
+    public DataSourceTask cancel(String dataSourceId) {
+        Poll poll = polls.remove(dataSourceId);
+        if (poll == null) {
+            return null;
+        }
+        poll.cancel();
+        return poll.task;
+    }
+
+    public DataSourceTask getTask(String dataSourceId) {
+        Poll poll = polls.get(dataSourceId);
+        return poll != null ? poll.task : null;
+    }
+
+    public int getScheduledCount() {
+        return polls.size();
+    }
+
+    /**
+     * Returns the delay until the next poll of a data source, given its
+     * configured polling interval and the number of consecutive polls that
+     * found no changes.
+     */
+    @VisibleForTesting
+    static long getPollDelay(long intervalMillis, int idlePolls) {
+        long factor = Math.min(1 + idlePolls / IDLE_POLLS_PER_STEP, MAX_BACKOFF);
+        return jitter(intervalMillis * factor);
+    }
+
+    /**
+     * Returns the number of consecutive idle polls after a poll that made
+     * <tt>changes</tt> changes to the mailbox.
+     */
+    @VisibleForTesting
+    static int getIdlePolls(int idlePolls, int changes) {
+        return changes > 0 ? 0 : idlePolls + 1;
+    }
+
+    private static long jitter(long delay) {
+        if (JITTER_PERCENT <= 0 || delay <= 0) {
+            return delay;
+        }
+        long range = delay * JITTER_PERCENT / 100;
+        if (range <= 0) {
+            return delay;
+        }
+        return delay - range + ThreadLocalRandom.current().nextLong(2 * range + 1);
+    }
+
+    private static long randomDelay(long intervalMillis) {
+        return intervalMillis > 0 ? ThreadLocalRandom.current().nextLong(intervalMillis) : 0;
+    }
+
+    private boolean acquireHost(String host) {
+        if (host == null || MAX_PER_HOST <= 0) {
+            return true;
+        }
+        AtomicInteger active = activeByHost.get(host);
+        if (active == null) {
+            active = new AtomicInteger();
+            AtomicInteger existing = activeByHost.putIfAbsent(host, active);
+            if (existing != null) {
+                active = existing;
+            }
+        }
+        for (;;) {
+            int count = active.get();
+            if (count >= MAX_PER_HOST) {
+                return false;
+            }
+            if (active.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
+    }
+
+    private void releaseHost(String host) {
+        if (host != null && MAX_PER_HOST > 0) {
+            AtomicInteger active = activeByHost.get(host);
+            if (active != null) {
+                active.decrementAndGet();
+            }
+        }
+    }
+
+    private boolean isHostBusy(String host) {
+        if (host == null || MAX_PER_HOST <= 0) {
+            return false;
+        }
+        AtomicInteger active = activeByHost.get(host);
+        return active != null && active.get() >= MAX_PER_HOST;
+    }
+
+    private static String getHost(DataSource ds) {
+        String host = ds.getHost();
+        return host != null ? host.toLowerCase() : null;
+    }
+
+    private final class Poll implements Runnable {
+        final DataSourceTask task;
+        private volatile ScheduledFuture<?> future;
+        private volatile boolean cancelled;
+        // Remote host from the previous poll, used to avoid dispatching
+        // polls to a host that is already busy
+        private volatile String host;
+        // Consecutive polls that imported nothing; only accessed by the
+        // thread running the poll, since polls never overlap
+        private int idlePolls;
+
+        Poll(DataSourceTask task) {
+            this.task = task;
+        }
+
+        void schedule(long delay) {
+            if (cancelled) {
+                return;
+            }
+            future = timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    dispatch();
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+
+        void cancel() {
+            cancelled = true;
+            ScheduledFuture<?> f = future;
+            if (f != null) {
+                f.cancel(false);
+            }
+        }
+
+        private void dispatch() {
+            if (cancelled) {
+                return;
+            }
+            if (isHostBusy(host)) {
+                schedule(jitter(HOST_BUSY_DELAY));
+                return;
+            }
+            pollers.execute(this);
+        }
+
+        @Override
+        public void run() {
+            if (cancelled) {
+                return;
+            }
+            DataSource ds = null;
+            try {
+                ds = task.getDataSource();
+            } catch (ServiceException e) {
+                LOG.warn("Unable to look up data source %s", task.getDataSourceId(), e);
+            }
+            host = ds != null ? getHost(ds) : null;
+            if (!acquireHost(host)) {
+                LOG.debug("Too many polls running for host %s, delaying poll of data source %s",
+                    host, task.getDataSourceId());
+                schedule(jitter(HOST_BUSY_DELAY));
+                return;
+            }
+            ImportListener.begin();
+            try {
+                // DataSourceTask cancels itself if the data source was
+                // deleted or disabled
+                task.call();
+            } catch (Throwable t) {
+                LOG.warn("Data source poll failed for %s", task.getDataSourceId(), t);
+            } finally {
+                idlePolls = getIdlePolls(idlePolls, ImportListener.end());
+                releaseHost(host);
+                ZimbraLog.clearContext();
+            }
+            if (polls.get(task.getDataSourceId()) == this) {
+                schedule(getPollDelay(task.getIntervalMillis(), idlePolls));
+            }
+        }
+    }
+
+    /**
+     * Counts the mailbox changes committed by the thread running a poll, so
+     * that only what the data source's own import changed keeps it from
+     * backing off. Mailbox listeners are notified in the thread that
+     * committed the change.
+     */
+    @VisibleForTesting
+    static final class ImportListener extends MailboxListener {
+        private static final ThreadLocal<int[]> CHANGES = new ThreadLocal<int[]>();
+
+        /**
+         * Starts counting the changes committed by the current thread.
+         */
+        static void begin() {
+            CHANGES.set(new int[1]);
+        }
+
+        /**
+         * Stops counting, and returns the number of items created, modified
+         * or deleted by the current thread since {@link #begin()}.
+         */
+        static int end() {
+            int[] changes = CHANGES.get();
+            CHANGES.remove();
+            return changes != null ? changes[0] : 0;
+        }
+
+        @Override
+        public void notify(ChangeNotification notification) {
+            int[] changes = CHANGES.get();
+            if (changes == null) {
+                return;
+            }
+            PendingModifications mods = notification.mods;
+            if (mods.created != null) {
+                changes[0] += mods.created.size();
+            }
+            if (mods.deleted != null) {
+                changes[0] += mods.deleted.size();
+            }
+            if (mods.modified != null) {
+                for (Change change : mods.modified.values()) {
+                    if (change.what instanceof MailItem) {
+                        changes[0]++;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Loads one batch of persisted tasks, then queues loading of the next
+     * batch, so that startup does not wait for every task to be read.
+     */
+    private final class Loader implements Runnable {
+        private final String afterName;
+        private final int loaded;
+
+        Loader(String afterName, int loaded) {
+            this.afterName = afterName;
+            this.loaded = loaded;
+        }
+
+        @Override
+        public void run() {
+            List<ScheduledTask> tasks;
+            try {
+                tasks = DbScheduledTask.getTasks(DataSourceTask.class.getName(), afterName, LOAD_BATCH_SIZE);
+            } catch (ServiceException e) {
+                LOG.warn("Unable to load data source tasks, will retry", e);
+                timer.schedule(this, LOAD_RETRY_DELAY, TimeUnit.MILLISECONDS);
+                return;
+            }
+            String lastName = afterName;
+            for (ScheduledTask t : tasks) {
+                lastName = t.getName();
+                if (!(t instanceof DataSourceTask) || !t.isRecurring()) {
+                    continue;
+                }
+                DataSourceTask task = (DataSourceTask) t;
+                Poll poll = new Poll(task);
+                // Tasks scheduled since startup take precedence over persisted ones
+                if (polls.putIfAbsent(task.getDataSourceId(), poll) == null) {
+                    poll.schedule(randomDelay(task.getIntervalMillis()));
+                }
+            }
+            int total = loaded + tasks.size();
+            if (tasks.size() >= LOAD_BATCH_SIZE) {
+                timer.execute(new Loader(lastName, total));
+            } else {
+                LOG.debug("Loaded %d scheduled data source tasks", total);
+            }
+        }
+    }
+}
@@ -56,6 +56,14 @@ public class DataSourceTask extends ScheduledTask {
     public String getDataSourceId() {
         return getProperty(KEY_DATA_SOURCE_ID);
     }
+
+    /**
+     * Returns the data source for this task, or <tt>null</tt> if it has been deleted.
+     */
+    public DataSource getDataSource() throws ServiceException {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxById(getMailboxId());
+        return Provisioning.getInstance().get(mbox.getAccount(), Key.DataSourceBy.id, getDataSourceId());
+    }
     
     @Override public Void call() {
         ZimbraLog.clearContext();
@@ -21,6 +21,8 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
 
 import javax.security.auth.login.LoginException;
 
@@ -70,6 +72,12 @@ final class ConnectionManager {
     private static final boolean REUSE_CONNECTIONS =
         LC.data_source_imap_reuse_connections.booleanValue();
 
+    // Data source id -> permits for additional connections used to fetch
+    // messages from several folders in parallel
+    private final Map<String, Semaphore> fetchPermits = new ConcurrentHashMap<String, Semaphore>();
+
+    private static final int FETCH_CONNECTIONS = LC.data_source_imap_fetch_connections.intValue();
+
     private static final int IDLE_READ_TIMEOUT = 30 * 60; // 30 minutes
 
     private static final Log LOG = ZimbraLog.datasource;
@@ -147,6 +155,53 @@ final class ConnectionManager {
         }
     }
 
+    /**
+     * Opens an additional connection for fetching messages in parallel with
+     * the main sync connection. The number of such connections open at the
+     * same time is limited per data source, so a large import cannot open
+     * more connections than the remote server is likely to allow.
+     *
+     * @param ds the data source for the connection
+     * @param auth optional authenticator, or null to use LOGIN
+     * @return the new connection, or null if the limit has been reached
+     * @throws ServiceException if an I/O or auth error occurred
+     */
+    public ImapConnection openFetchConnection(DataSource ds, Authenticator auth)
+        throws ServiceException {
+        Semaphore permits = fetchPermits.get(ds.getId());
+        if (permits == null) {
+            permits = new Semaphore(Math.max(FETCH_CONNECTIONS - 1, 0));
+            Semaphore existing = fetchPermits.putIfAbsent(ds.getId(), permits);
+            if (existing != null) {
+                permits = existing;
+            }
+        }
+        if (!permits.tryAcquire()) {
+            return null;
+        }
+        try {
+            return newConnection(ds, auth);
+        } catch (ServiceException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Closes a connection opened by openFetchConnection.
+     *
+     * @param ds the data source for the connection
+     * @param ic the connection to close
+     */
+    public void closeFetchConnection(DataSource ds, ImapConnection ic) {
+        LOG.debug("Closing fetch connection: " + ic);
+        ic.close();
+        Semaphore permits = fetchPermits.get(ds.getId());
+        if (permits != null) {
+            permits.release();
+        }
+    }
+
     private boolean isReuseConnections(DataSource ds) {
         return ds.isOffline() && REUSE_CONNECTIONS;
     }
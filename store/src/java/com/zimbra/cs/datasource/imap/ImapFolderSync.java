@@ -17,6 +17,8 @@
 package com.zimbra.cs.datasource.imap;
 
 import static com.zimbra.common.util.ArrayUtil.toIntArray;
+import static com.zimbra.common.util.TaskUtil.newDaemonThreadFactory;
+import static java.util.concurrent.Executors.newCachedThreadPool;
 
 import java.io.IOException;
 import java.sql.SQLException;
@@ -30,6 +32,12 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.service.RemoteServiceException;
@@ -69,7 +77,7 @@ import com.zimbra.cs.util.Zimbra;
 
 class ImapFolderSync {
     private final ImapSync imapSync;
-    private final ImapConnection connection;
+    private ImapConnection connection;
     private ImapConnection refetchConnection;
     private final DataSource ds;
     private final Mailbox mailbox;
@@ -85,29 +93,38 @@ class ImapFolderSync {
     private List<Long> addedUids;
     private List<Long> deletedUids;
     private long maxUid;
+    private long lastFetchedUid;
     private boolean completed;
-    private int totalErrors;
+    private final AtomicInteger totalErrors = new AtomicInteger();
     private boolean fullSync;
     private boolean localDeleted;
+    private DeliveryPipeline pipeline;
 
     private static final Log LOG = ZimbraLog.datasource;
 
     private static final int FETCH_SIZE = LC.data_source_fetch_size.intValue();
 
+    // Max number of fetched messages waiting to be added to the mailbox
+    private static final int PIPELINE_DEPTH = LC.data_source_imap_fetch_pipeline_depth.intValue();
+
+    private static final ExecutorService DELIVERY_EXECUTOR =
+        newCachedThreadPool(newDaemonThreadFactory("ImapDelivery"));
+
     // Max number of errors before we generate report and skip item
     private static final int MAX_ITEM_ERRORS = 3;
 
     // Max number of total per-item failures before we abort sync
     private static final int MAX_TOTAL_ERRORS = 10;
 
+    // Updated by both the fetch and the delivery thread when pipelined
     private static class Statistics {
-        int flagsUpdatedLocally;
-        int flagsUpdatedRemotely;
-        int msgsAddedLocally;
-        int msgsAddedRemotely;
-        int msgsDeletedLocally;
-        int msgsDeletedRemotely;
-        int msgsCopiedRemotely;
+        final AtomicInteger flagsUpdatedLocally = new AtomicInteger();
+        final AtomicInteger flagsUpdatedRemotely = new AtomicInteger();
+        final AtomicInteger msgsAddedLocally = new AtomicInteger();
+        final AtomicInteger msgsAddedRemotely = new AtomicInteger();
+        final AtomicInteger msgsDeletedLocally = new AtomicInteger();
+        final AtomicInteger msgsDeletedRemotely = new AtomicInteger();
+        final AtomicInteger msgsCopiedRemotely = new AtomicInteger();
     }
 
     public ImapFolderSync(ImapSync imapSync) throws ServiceException {
@@ -268,11 +285,22 @@ class ImapFolderSync {
      * Synchronizes messages between local and remote folder.
      */
     public void syncMessages() throws ServiceException, IOException {
+        if (prepareMessageSync()) {
+            completeMessageSync();
+        }
+    }
+
+    /*
+     * First phase of message sync: reconciles flags and pushes local changes
+     * to the remote folder. Returns true if new messages may need to be
+     * fetched, in which case completeMessageSync() must be called next.
+     */
+    boolean prepareMessageSync() throws ServiceException, IOException {
         localFolder.debug("Syncing messages for folder");
         if (!isSyncEnabled()) {
             localFolder.debug("Synchronization disabled for this folder");
             tracker = null;
-            return;
+            return false;
         }
 
         // Restore previously cached sync state or create new state
@@ -303,7 +331,7 @@ class ImapFolderSync {
             if (!changes.hasChanges() && mailboxInfo.getUidNext() == syncState.getLastUidNext()) {
                 syncState.setLastChangeId(changes.getLastChangeId());
                 imapSync.putSyncState(localFolder.getId(), syncState);
-                return;
+                return false;
             }
         }
 
@@ -313,7 +341,7 @@ class ImapFolderSync {
 
         long uidNext = mailboxInfo.getUidNext();
         syncState.setLastUidNext(uidNext);
-        long lastFetchedUid = syncState.getLastFetchedUid();
+        lastFetchedUid = syncState.getLastFetchedUid();
         if (uidNext > 0 && uidNext <= lastFetchedUid) {
             String msg = String.format(
                 "Inconsistent UIDNEXT value from server (got %d but last fetched uid %d)",
@@ -349,10 +377,22 @@ class ImapFolderSync {
                 syncState.setLastChangeId(changes.getLastChangeId());
             }
         }
+        maxUid = uidNext > 0 ? uidNext - 1 : 0;
+        return true;
+    }
+
+    /*
+     * Second phase of message sync: fetches new remote messages and expunges
+     * messages deleted locally. For ZCS import this may run on a connection
+     * other than the one used by prepareMessageSync(), see useConnection().
+     */
+    void completeMessageSync() throws ServiceException, IOException {
+        if (!remoteFolder.isSelected()) {
+            mailboxInfo = remoteFolder.select();
+        }
 
         // Fetch new messages
         IOExceptionHandler.getInstance().resetSyncCounter(mailbox);
-        maxUid = uidNext > 0 ? uidNext - 1 : 0;
         if (mailboxInfo.getExists() > 0 && (maxUid <= 0 || lastFetchedUid < maxUid)) {
             List<Long> uids = remoteFolder.getUids(lastFetchedUid + 1, maxUid);
             if (uids.size() > 0) {
@@ -411,10 +451,10 @@ class ImapFolderSync {
             if (trackedMsg != null) {
                 localFolder.deleteMessage(id);
                 trackedMsg.delete();
-                stats.msgsDeletedLocally++;
+                stats.msgsDeletedLocally.incrementAndGet();
             } else {
                 newMsgIds.add(id);
-                stats.msgsAddedRemotely++;
+                stats.msgsAddedRemotely.incrementAndGet();
             }
         }
     }
@@ -460,26 +500,26 @@ class ImapFolderSync {
             imapSync.putSyncState(localFolder.getId(), syncState);
         }
         if (LOG.isDebugEnabled()) {
-            if (stats.flagsUpdatedLocally > 0) {
-                localFolder.debug("Updated %d flags", stats.flagsUpdatedLocally);
+            if (stats.flagsUpdatedLocally.get() > 0) {
+                localFolder.debug("Updated %d flags", stats.flagsUpdatedLocally.get());
             }
-            if (stats.flagsUpdatedRemotely > 0) {
-                remoteFolder.debug("Updated %d flags", stats.flagsUpdatedRemotely);
+            if (stats.flagsUpdatedRemotely.get() > 0) {
+                remoteFolder.debug("Updated %d flags", stats.flagsUpdatedRemotely.get());
             }
-            if (stats.msgsAddedLocally > 0) {
-                localFolder.debug("Added %d new messages", stats.msgsAddedLocally);
+            if (stats.msgsAddedLocally.get() > 0) {
+                localFolder.debug("Added %d new messages", stats.msgsAddedLocally.get());
             }
-            if (stats.msgsAddedRemotely > 0) {
-                remoteFolder.debug("Added %d new messages", stats.msgsAddedRemotely);
+            if (stats.msgsAddedRemotely.get() > 0) {
+                remoteFolder.debug("Added %d new messages", stats.msgsAddedRemotely.get());
             }
-            if (stats.msgsDeletedLocally > 0) {
-                localFolder.debug("Deleted %d messages", stats.msgsDeletedLocally);
+            if (stats.msgsDeletedLocally.get() > 0) {
+                localFolder.debug("Deleted %d messages", stats.msgsDeletedLocally.get());
             }
-            if (stats.msgsDeletedRemotely > 0) {
-                remoteFolder.debug("Deleted %d messages", stats.msgsDeletedRemotely);
+            if (stats.msgsDeletedRemotely.get() > 0) {
+                remoteFolder.debug("Deleted %d messages", stats.msgsDeletedRemotely.get());
             }
-            if (stats.msgsCopiedRemotely > 0) {
-                remoteFolder.debug("Copied %d messages", stats.msgsCopiedRemotely);
+            if (stats.msgsCopiedRemotely.get() > 0) {
+                remoteFolder.debug("Copied %d messages", stats.msgsCopiedRemotely.get());
             }
             // localFolder.debug("Synchronization completed");
         }
@@ -489,6 +529,17 @@ class ImapFolderSync {
         return localFolder;
     }
 
+    /*
+     * Switches this folder over to another connection to the same data
+     * source, so that messages can be fetched in parallel with other folders.
+     */
+    void useConnection(ImapConnection ic) {
+        if (ic != connection) {
+            connection = ic;
+            remoteFolder = new RemoteFolder(ic, remoteFolder.getPath());
+        }
+    }
+
     private void checkTrackedFolder(ListData ld) throws ServiceException, IOException {
         // Check if local folder was deleted
         localFolder = LocalFolder.fromId(mailbox, tracker.getItemId());
@@ -742,7 +793,7 @@ class ImapFolderSync {
         }
         if (newLocalFlags != localFlags) {
             localFolder.setMessageFlags(id, newLocalFlags);
-            stats.flagsUpdatedLocally++;
+            stats.flagsUpdatedLocally.incrementAndGet();
         }
         if (newRemoteFlags != remoteFlags) {
             String uids = String.valueOf(msg.getUid());
@@ -755,12 +806,12 @@ class ImapFolderSync {
             if (!toRemove.isEmpty()) {
                 connection.uidStore(uids, "-FLAGS.SILENT", toRemove);
             }
-            stats.flagsUpdatedRemotely++;
+            stats.flagsUpdatedRemotely.incrementAndGet();
         }
         if (newRemoteFlags != trackedFlags) {
             msg.setFlags(newRemoteFlags);
             msg.update();
-            stats.flagsUpdatedLocally++;
+            stats.flagsUpdatedLocally.incrementAndGet();
         }
     }
 
@@ -770,6 +821,10 @@ class ImapFolderSync {
         ImapFolderSync inbox = !localFolder.isInbox() && ds.isOffline() ?
             imapSync.getInboxFolderSync() : null;
         removeSkippedUids(uids);
+        if (isPipelined()) {
+            fetchMessagesPipelined(uids);
+            return;
+        }
         Iterator<Long> it = uids.iterator();
         while (it.hasNext()) {
             imapSync.checkIsEnabled();
@@ -796,6 +851,36 @@ class ImapFolderSync {
         }
     }
 
+    /*
+     * Fetch pipelining is only used for ZCS import. ZD interleaves INBOX
+     * checks and pending message delivery with the fetch loop, which relies
+     * on each message being added before the next FETCH is sent.
+     */
+    private boolean isPipelined() {
+        return PIPELINE_DEPTH > 0 && !ds.isOffline();
+    }
+
+    void fetchMessagesPipelined(List<Long> uids) throws ServiceException, IOException {
+        pipeline = new DeliveryPipeline();
+        boolean success = false;
+        try {
+            Iterator<Long> it = uids.iterator();
+            while (it.hasNext()) {
+                imapSync.checkIsEnabled();
+                fetchMessages(nextFetchSeq(it));
+            }
+            success = true;
+        } finally {
+            DeliveryPipeline p = pipeline;
+            pipeline = null;
+            if (success) {
+                p.finish();
+            } else {
+                p.abort();
+            }
+        }
+    }
+
     private void fetchNewMessages() throws IOException, ServiceException {
         if (!remoteFolder.isSelected()) {
             mailboxInfo = remoteFolder.select();
@@ -852,17 +937,13 @@ class ImapFolderSync {
             @Override
             public void handleFetchResponse(MessageData md) throws Exception {
                 long uid = md.getUid();
-                IOExceptionHandler.getInstance().trackSyncItem(mailbox, uid);
-                try {
-                    handleFetch(md, flagsByUid, true);
-                    clearError(uid);
-                } catch (OutOfMemoryError e) {
-                    Zimbra.halt("Out of memory", e);
-                } catch (Exception e) {
-                    if (!IOExceptionHandler.getInstance().isRecoverable(mailbox, uid, "Exception syncing UID "+uid+" in folder "+remoteFolder.getPath(), e)) {
-                        syncFailed("Fetch failed for uid " + uid, e);
-                        SyncErrorManager.incrementErrorCount(ds, remoteId(uid));
-                    }
+                // The delivery thread is handed this message's own flags,
+                // since flagsByUid keeps changing as responses are read
+                MessageData flagsData = flagsByUid.get(uid);
+                if (pipeline != null) {
+                    pipeline.add(md, flagsData);
+                } else {
+                    deliverMessage(md, flagsData);
                 }
                 uidSet.remove(uid);
             }
@@ -898,6 +979,135 @@ class ImapFolderSync {
         }
     }
 
+    void deliverMessage(MessageData md, MessageData flagsData)
+        throws ServiceException {
+        long uid = md.getUid();
+        IOExceptionHandler.getInstance().trackSyncItem(mailbox, uid);
+        try {
+            handleFetch(md, flagsData, true);
+            clearError(uid);
+        } catch (OutOfMemoryError e) {
+            Zimbra.halt("Out of memory", e);
+        } catch (Exception e) {
+            if (!IOExceptionHandler.getInstance().isRecoverable(mailbox, uid, "Exception syncing UID "+uid+" in folder "+remoteFolder.getPath(), e)) {
+                syncFailed("Fetch failed for uid " + uid, e);
+                SyncErrorManager.incrementErrorCount(ds, remoteId(uid));
+            }
+        }
+    }
+
+    /*
+     * Adds fetched messages to the mailbox on a separate thread, so that the
+     * connection can keep reading FETCH responses and send the next UID FETCH
+     * while earlier messages are still being parsed and delivered. The queue
+     * is bounded, so a slow mailbox blocks the reader rather than buffering
+     * an entire folder in memory.
+     */
+    private final class DeliveryPipeline implements Runnable {
+        private final BlockingQueue<Delivery> queue =
+            new ArrayBlockingQueue<Delivery>(PIPELINE_DEPTH);
+        private final Future<?> future;
+        private volatile ServiceException failure;
+        private volatile boolean aborted;
+
+        DeliveryPipeline() {
+            future = DELIVERY_EXECUTOR.submit(this);
+        }
+
+        void add(MessageData md, MessageData flagsData) throws ServiceException {
+            checkFailure();
+            put(new Delivery(md, flagsData));
+        }
+
+        // Waits for all queued messages to be added to the mailbox
+        void finish() throws ServiceException {
+            put(Delivery.END);
+            await();
+            checkFailure();
+        }
+
+        // Discards queued messages and stops the delivery thread
+        void abort() {
+            aborted = true;
+            try {
+                put(Delivery.END);
+                await();
+            } catch (ServiceException e) {
+                LOG.warn("Unable to stop message delivery", e);
+            }
+        }
+
+        @Override
+        public void run() {
+            ImapSync.addToLogContext(ds);
+            try {
+                for (;;) {
+                    Delivery d = queue.take();
+                    if (d == Delivery.END) {
+                        break;
+                    }
+                    if (failure != null || aborted) {
+                        discard(d);
+                        continue;
+                    }
+                    try {
+                        deliverMessage(d.md, d.flagsData);
+                    } catch (ServiceException e) {
+                        failure = e;
+                    }
+                }
+            } catch (InterruptedException e) {
+                failure = ServiceException.INTERRUPTED("message delivery");
+            } finally {
+                ZimbraLog.clearContext();
+            }
+        }
+
+        private void put(Delivery d) throws ServiceException {
+            try {
+                queue.put(d);
+            } catch (InterruptedException e) {
+                throw ServiceException.INTERRUPTED("message fetch");
+            }
+        }
+
+        private void await() throws ServiceException {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                throw ServiceException.INTERRUPTED("message fetch");
+            } catch (ExecutionException e) {
+                throw ServiceException.FAILURE("Message delivery failed", e.getCause());
+            }
+        }
+
+        private void checkFailure() throws ServiceException {
+            if (failure != null) {
+                throw failure;
+            }
+        }
+
+        private void discard(Delivery d) {
+            try {
+                getContent(d.md).cleanup();
+            } catch (Exception e) {
+                LOG.debug("Unable to clean up content for uid %d", d.md.getUid(), e);
+            }
+        }
+    }
+
+    private static final class Delivery {
+        final MessageData md;
+        final MessageData flagsData;
+
+        static final Delivery END = new Delivery(null, null);
+
+        Delivery(MessageData md, MessageData flagsData) {
+            this.md = md;
+            this.flagsData = flagsData;
+        }
+    }
+
     // Discard messages that have been flagged \Deleted
     private void removeDeleted(Map<Long, MessageData> mds) {
         Iterator<MessageData> it = mds.values().iterator();
@@ -967,7 +1177,7 @@ class ImapFolderSync {
                             long uid = md.getUid();
                             IOExceptionHandler.getInstance().trackSyncItem(mailbox, uid);
                             try {
-                                handleFetch(md, msgFlags, folderId, false, false);
+                                handleFetch(md, msgFlags.get(uid), folderId, false, false);
                                 clearError(uid);
                             } catch (OutOfMemoryError e) {
                                 Zimbra.halt("Out of memory", e);
@@ -986,18 +1196,20 @@ class ImapFolderSync {
         }
     }
 
-    private void handleFetch(MessageData md, Map<Long, MessageData> flagsByUid, boolean restorePurged)
+    private void handleFetch(MessageData md, MessageData flagsData, boolean restorePurged)
         throws ServiceException, IOException {
-        handleFetch(md, flagsByUid, localFolder.getId(), true, restorePurged);
+        handleFetch(md, flagsData, localFolder.getId(), true, restorePurged);
     }
 
-    private void handleFetch(MessageData md, Map<Long, MessageData> flagsByUid, int folderId, boolean storeSync, boolean restorePurged)
+    private void handleFetch(MessageData md, MessageData flagsData, int folderId, boolean storeSync, boolean restorePurged)
         throws ServiceException, IOException {
         long uid = md.getUid();
         if (uid == -1) {
             throw new MailException("Missing UID in FETCH response");
         }
-        MessageData flagsData = flagsByUid.get(uid);
+        if (flagsData == null) {
+            throw new MailException("Missing FLAGS response for uid " + uid);
+        }
         remoteFolder.debug("Found new IMAP message with uid %d", uid);
         // Parse the message data
         Date date = flagsData.getInternalDate();
@@ -1021,12 +1233,13 @@ class ImapFolderSync {
                 }
             }
             msg = imapSync.addMessage(null, pm, mc.getSize(), folderId, zflags, mc.getDeliveryContext());
+            imapSync.recordFetched(mc.getSize());
         } finally {
             mc.cleanup();
         }
         if (msg != null && msg.getFolderId() == folderId) {
             storeImapMessage(uid, msg.getId(), zflags, storeSync);
-            stats.msgsAddedLocally++;
+            stats.msgsAddedLocally.incrementAndGet();
         } else {
             // Message was filtered and discarded or moved to another folder.
             // This can only happen for messages fetched from INBOX which is
@@ -1054,7 +1267,7 @@ class ImapFolderSync {
         }
         try {
             remoteFolder.deleteMessage(uid);
-            stats.msgsDeletedRemotely += 1;
+            stats.msgsDeletedRemotely.incrementAndGet();
             clearError(uid);
         } catch (CommandFailedException e) {
             syncMessageFailed(uid, "Cannot delete message with uid " + uid, e);
@@ -1122,7 +1335,7 @@ class ImapFolderSync {
         if (cr == null) {
             return false; // Message not found
         }
-        stats.msgsCopiedRemotely++;
+        stats.msgsCopiedRemotely.incrementAndGet();
         // If remote folder created on demand, then create folder tracker
         if (folderTracker == null) {
             long uv = cr.getUidValidity();
@@ -1269,8 +1482,7 @@ class ImapFolderSync {
     }
 
     private void incrementTotalErrors() throws ServiceException {
-        totalErrors++;
-        if (totalErrors > MAX_TOTAL_ERRORS) {
+        if (totalErrors.incrementAndGet() > MAX_TOTAL_ERRORS) {
             String error = String.format(
                 "Synchronization of folder '%s' disabled due to maximum number of per-item errors exceeded",
                 localFolder.getPath());
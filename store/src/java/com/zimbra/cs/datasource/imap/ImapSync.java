@@ -17,6 +17,8 @@
 package com.zimbra.cs.datasource.imap;
 
 import static com.zimbra.common.util.SystemUtil.coalesce;
+import static com.zimbra.common.util.TaskUtil.newDaemonThreadFactory;
+import static java.util.concurrent.Executors.newCachedThreadPool;
 
 import java.io.IOException;
 import java.util.ArrayList;
@@ -25,9 +27,16 @@ import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.regex.Pattern;
 
+import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.service.RemoteServiceException;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.Log;
@@ -63,6 +72,11 @@ public class ImapSync extends MailItemImport {
     private static final Pattern ILLEGAL_FOLDER_CHARS = Pattern.compile("[:\\*\\?\"<>\\|]");
     private static final Log LOG = ZimbraLog.datasource;
 
+    private static final int FETCH_CONNECTIONS = LC.data_source_imap_fetch_connections.intValue();
+
+    private static final ExecutorService FETCH_EXECUTOR =
+        newCachedThreadPool(newDaemonThreadFactory("ImapFetch"));
+
     public ImapSync(DataSource ds) throws ServiceException {
         this(ds, false);
     }
@@ -73,7 +87,9 @@ public class ImapSync extends MailItemImport {
         if (ds.getAccount() != null || !test) {
             syncState = SyncStateManager.getInstance().getOrCreateSyncState(ds);
         }
-        syncedFolders = new LinkedHashMap<Integer, ImapFolderSync>();
+        // Looked up by fetch workers during parallel sync, but only added
+        // to and iterated over from the thread running the sync
+        syncedFolders = Collections.synchronizedMap(new LinkedHashMap<Integer, ImapFolderSync>());
         reuseConnections = ds.isOffline();
     }
 
@@ -171,6 +187,9 @@ public class ImapSync extends MailItemImport {
             }
         }
         connect();
+        long startTime = System.currentTimeMillis();
+        long fetched = syncState != null ? syncState.getFetchedMessages() : 0;
+        long fetchedBytes = syncState != null ? syncState.getFetchedBytes() : 0;
         try {
             syncFolders(folderIds);
             if (reuseConnections) {
@@ -181,6 +200,13 @@ public class ImapSync extends MailItemImport {
         } finally {
             purgeIfNecessary(null);
             closeConnection();
+            if (syncState != null) {
+                long time = System.currentTimeMillis() - startTime;
+                syncState.recordFetchTime(time);
+                LOG.debug("Fetched %d message(s) (%d bytes) in %d ms, average rate %.1f msgs/sec",
+                    syncState.getFetchedMessages() - fetched, syncState.getFetchedBytes() - fetchedBytes,
+                    time, syncState.getFetchRate());
+            }
         }
     }
 
@@ -328,6 +354,10 @@ public class ImapSync extends MailItemImport {
     }
 
     private void syncMessages(Set<Integer> folderIds) throws ServiceException {
+        if (!dataSource.isOffline() && FETCH_CONNECTIONS > 1) {
+            syncMessagesParallel(folderIds);
+            return;
+        }
         // If folder ids specified, then only sync messages for specified
         // folders, otherwise sync messages for all folders.
         for (ImapFolderSync ifs : syncedFolders.values()) {
@@ -344,6 +374,124 @@ public class ImapSync extends MailItemImport {
         }
     }
 
+    /*
+     * For ZCS import, INBOX is synchronized first since filter rules may
+     * file messages into other folders. Then local changes are pushed for
+     * the remaining folders one at a time, and finally new messages are
+     * fetched for those folders in parallel, each worker using its own
+     * connection. Pushing all changes before fetching ensures that messages
+     * copied between folders are never fetched again.
+     */
+    private void syncMessagesParallel(Set<Integer> folderIds) throws ServiceException {
+        ImapFolderSync inbox = syncedFolders.get(Mailbox.ID_FOLDER_INBOX);
+        if (inbox != null && (folderIds == null || folderIds.contains(Mailbox.ID_FOLDER_INBOX))) {
+            checkIsEnabled();
+            try {
+                inbox.syncMessages();
+            } catch (Exception e) {
+                syncFailed(inbox.getLocalFolder().getPath(), e);
+            }
+        }
+        final Queue<ImapFolderSync> pending = new ConcurrentLinkedQueue<ImapFolderSync>();
+        for (ImapFolderSync ifs : syncedFolders.values()) {
+            if (ifs == inbox) {
+                continue;
+            }
+            checkIsEnabled();
+            LocalFolder folder = ifs.getLocalFolder();
+            try {
+                if ((folderIds == null || folderIds.contains(folder.getId())) && ifs.prepareMessageSync()) {
+                    pending.add(ifs);
+                }
+            } catch (Exception e) {
+                syncFailed(folder.getPath(), e);
+            }
+        }
+        if (pending.isEmpty()) {
+            return;
+        }
+        final AtomicReference<ServiceException> failure = new AtomicReference<ServiceException>();
+        int workers = Math.min(FETCH_CONNECTIONS, pending.size()) - 1;
+        List<Future<?>> futures = new ArrayList<Future<?>>(workers);
+        for (int i = 0; i < workers; i++) {
+            futures.add(FETCH_EXECUTOR.submit(new Runnable() {
+                @Override
+                public void run() {
+                    addToLogContext(dataSource);
+                    ImapConnection ic = null;
+                    try {
+                        ic = ConnectionManager.getInstance().openFetchConnection(dataSource, authenticator);
+                        if (ic != null) {
+                            fetchMessages(pending, ic, failure);
+                        }
+                    } catch (ServiceException e) {
+                        // Not fatal, remaining workers will pick up the folders
+                        LOG.warn("Unable to open additional connection for fetching messages", e);
+                    } finally {
+                        if (ic != null) {
+                            ConnectionManager.getInstance().closeFetchConnection(dataSource, ic);
+                        }
+                        ZimbraLog.clearContext();
+                    }
+                }
+            }));
+        }
+        // The main connection also fetches messages, so the sync still
+        // progresses if no additional connections could be opened
+        fetchMessages(pending, connection, failure);
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                throw ServiceException.INTERRUPTED("folder sync");
+            } catch (ExecutionException e) {
+                throw ServiceException.FAILURE("Folder sync failed", e.getCause());
+            }
+        }
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+    }
+
+    void fetchMessages(Queue<ImapFolderSync> pending, ImapConnection ic,
+                       AtomicReference<ServiceException> failure) {
+        ImapFolderSync ifs;
+        while (failure.get() == null && (ifs = pending.poll()) != null) {
+            LocalFolder folder = ifs.getLocalFolder();
+            try {
+                checkIsEnabled();
+                ifs.useConnection(ic);
+                ifs.completeMessageSync();
+            } catch (Exception e) {
+                try {
+                    syncFailed(folder.getPath(), e);
+                } catch (ServiceException se) {
+                    failure.compareAndSet(null, se);
+                }
+            } finally {
+                // Worker connections are closed once the fetch phase is
+                // over, but finishSync() still appends to the folder
+                ifs.useConnection(getConnection());
+            }
+        }
+    }
+
+    void recordFetched(long size) {
+        if (syncState != null) {
+            syncState.recordFetched(size);
+        }
+    }
+
+    static void addToLogContext(DataSource ds) {
+        try {
+            ZimbraLog.addMboxToContext(ds.getMailbox().getId());
+            ZimbraLog.addAccountNameToContext(ds.getAccount().getName());
+            ZimbraLog.addDataSourceNameToContext(ds.getName());
+        } catch (ServiceException e) {
+            LOG.debug("Unable to set log context for %s", ds, e);
+        }
+    }
+
     public FolderSyncState getFolderSyncState(int folderId) {
         if (syncState != null) {
             FolderSyncState ss = syncState.getFolderSyncState(folderId);
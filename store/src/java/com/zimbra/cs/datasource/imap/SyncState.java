@@ -29,6 +29,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 final class SyncState {
     private final Mailbox mbox;
@@ -37,6 +38,9 @@ final class SyncState {
     private boolean hasRemoteInboxChanges;
     private int lastChangeId;
     private MessageChanges inboxChanges;
+    private final AtomicLong fetchedMessages = new AtomicLong();
+    private final AtomicLong fetchedBytes = new AtomicLong();
+    private final AtomicLong fetchTime = new AtomicLong();
 
     SyncState(Mailbox mbox) throws ServiceException {
         this.mbox = mbox;
@@ -99,4 +103,30 @@ final class SyncState {
     public MessageChanges getInboxChanges() {
         return inboxChanges;
     }
+
+    public void recordFetched(long size) {
+        fetchedMessages.incrementAndGet();
+        fetchedBytes.addAndGet(size);
+    }
+
+    public void recordFetchTime(long millis) {
+        fetchTime.addAndGet(millis);
+    }
+
+    public long getFetchedMessages() {
+        return fetchedMessages.get();
+    }
+
+    public long getFetchedBytes() {
+        return fetchedBytes.get();
+    }
+
+    /*
+     * Returns the number of messages fetched per second, averaged over all
+     * syncs of this data source since the sync state was created.
+     */
+    public double getFetchRate() {
+        long millis = fetchTime.get();
+        return millis > 0 ? fetchedMessages.get() * 1000.0 / millis : 0;
+    }
 }
@@ -226,6 +226,9 @@ public class DavElements {
     public static final String P_SUPPORTEDLOCK = "supportedlock";
     public static final String P_START = "start";
     public static final String P_STATUS = "status";
+    public static final String P_SYNC_COLLECTION = "sync-collection";
+    public static final String P_SYNC_LEVEL = "sync-level";
+    public static final String P_SYNC_TOKEN = "sync-token";
 
     public static final String P_TEXT_MATCH = "text-match";
     public static final String P_TIME_RANGE = "time-range";
@@ -239,6 +242,7 @@ public class DavElements {
     public static final String P_VALID_ADDRESS_DATA = "valid-address-data";
     public static final String P_VALID_CALENDAR_DATA = "valid-calendar-data";
     public static final String P_VALID_CALENDAR_OBJECT_RESOURCE = "valid-calendar-object-resource";
+    public static final String P_VALID_SYNC_TOKEN = "valid-sync-token";
     public static final String P_VERSION= "version";
 
     public static final String P_WRITE = "write";
@@ -400,6 +404,9 @@ public class DavElements {
     public static final QName E_SUPPORTED_REPORT = QName.get(P_SUPPORTED_REPORT, WEBDAV_NS);
     public static final QName E_SUPPORTED_REPORT_SET = QName.get(P_SUPPORTED_REPORT_SET, WEBDAV_NS);
     public static final QName E_SUPPORTEDLOCK = QName.get(P_SUPPORTEDLOCK, WEBDAV_NS);
+    public static final QName E_SYNC_COLLECTION = QName.get(P_SYNC_COLLECTION, WEBDAV_NS);
+    public static final QName E_SYNC_LEVEL = QName.get(P_SYNC_LEVEL, WEBDAV_NS);
+    public static final QName E_SYNC_TOKEN = QName.get(P_SYNC_TOKEN, WEBDAV_NS);
 
     public static final QName E_TEXT_MATCH = QName.get(P_TEXT_MATCH, CALDAV_NS);
     public static final QName E_TIME_RANGE = QName.get(P_TIME_RANGE, CALDAV_NS);
@@ -421,6 +428,7 @@ public class DavElements {
     public static final QName E_VALID_CALENDAR_DATA = QName.get(P_VALID_CALENDAR_DATA, CALDAV_NS);
     public static final QName E_VALID_CALENDAR_OBJECT_RESOURCE = QName.get(P_VALID_CALENDAR_OBJECT_RESOURCE, CALDAV_NS);
     public static final QName E_NO_UID_CONFLICT = QName.get(P_NO_UID_CONFLICT, CALDAV_NS);
+    public static final QName E_VALID_SYNC_TOKEN = QName.get(P_VALID_SYNC_TOKEN, WEBDAV_NS);
 
     public static class CardDav {
         public static final QName E_ADDRESS_DATA = QName.get(P_ADDRESS_DATA, CARDDAV_NS);
@@ -117,6 +117,17 @@ public class DavException extends Exception {
         }
     }
 
+    /**
+     * http://tools.ietf.org/html/rfc6578 DAV:valid-sync-token precondition.  Clients respond by syncing
+     * again from scratch.
+     */
+    public static class InvalidSyncToken extends DavExceptionWithErrorMessage {
+        public InvalidSyncToken(String msg) {
+            super(msg, HttpServletResponse.SC_FORBIDDEN);
+            setError(DavElements.E_VALID_SYNC_TOKEN);
+        }
+    }
+
     public static class InvalidData extends DavExceptionWithErrorMessage {
         public InvalidData(QName prop, String msg, Throwable cause) {
             super(msg, HttpServletResponse.SC_FORBIDDEN, cause);
@@ -38,6 +38,7 @@ import com.zimbra.cs.dav.DavElements;
 import com.zimbra.cs.dav.DavException;
 import com.zimbra.cs.dav.DavProtocol;
 import com.zimbra.cs.dav.property.ResourceProperty;
+import com.zimbra.cs.dav.service.method.SyncCollection;
 import com.zimbra.cs.mailbox.Folder;
 import com.zimbra.cs.mailbox.MailItem;
 import com.zimbra.cs.mailbox.calendar.cache.CtagInfo;
@@ -75,6 +76,7 @@ public class AddressbookCollection extends Collection {
         }
         mCtag = CtagInfo.makeCtag(f);
         setProperty(DavElements.E_GETCTAG, mCtag);
+        addProperty(SyncCollection.getSyncTokenProperty(f));
     }
 
     private final String mCtag;
@@ -86,7 +88,8 @@ public class AddressbookCollection extends Collection {
             DavElements.E_PRINCIPAL_MATCH,
             DavElements.E_PRINCIPAL_PROPERTY_SEARCH,
             DavElements.E_PRINCIPAL_SEARCH_PROPERTY_SET,
-            DavElements.E_EXPAND_PROPERTY
+            DavElements.E_EXPAND_PROPERTY,
+            DavElements.E_SYNC_COLLECTION
     };
 
     @Override
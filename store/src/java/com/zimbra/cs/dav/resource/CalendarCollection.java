@@ -60,6 +60,7 @@ import com.zimbra.cs.dav.property.CalDavProperty;
 import com.zimbra.cs.dav.property.ResourceProperty;
 import com.zimbra.cs.dav.service.method.Delete;
 import com.zimbra.cs.dav.service.method.Get;
+import com.zimbra.cs.dav.service.method.SyncCollection;
 import com.zimbra.cs.fb.FreeBusy;
 import com.zimbra.cs.fb.FreeBusyQuery;
 import com.zimbra.cs.mailbox.BadOrganizerException;
@@ -115,6 +116,7 @@ public class CalendarCollection extends Collection {
 
         mCtag = CtagInfo.makeCtag(f);
         setProperty(DavElements.E_GETCTAG, mCtag);
+        addProperty(SyncCollection.getSyncTokenProperty(f));
 
         addProperty(getIcalColorProperty());
         setProperty(DavElements.E_ALTERNATE_URI_SET, null, true);
@@ -134,7 +136,8 @@ public class CalendarCollection extends Collection {
             DavElements.E_PRINCIPAL_MATCH,
             DavElements.E_PRINCIPAL_PROPERTY_SEARCH,
             DavElements.E_PRINCIPAL_SEARCH_PROPERTY_SET,
-            DavElements.E_EXPAND_PROPERTY
+            DavElements.E_EXPAND_PROPERTY,
+            DavElements.E_SYNC_COLLECTION
     };
 
     @Override
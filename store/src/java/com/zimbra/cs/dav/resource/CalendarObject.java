@@ -275,6 +275,9 @@ public interface CalendarObject {
             setProperty(DavElements.P_GETETAG, mEtag);
             addProperty(CalDavProperty.getCalendarData(this));
         }
+        public int getId() {
+            return mId;
+        }
         @Override public String getUid() {
             return mUid;
         }
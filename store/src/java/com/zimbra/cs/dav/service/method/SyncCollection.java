@@ -0,0 +1,275 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.dav.service.method;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.dom4j.Element;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.Pair;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.dav.DavContext;
+import com.zimbra.cs.dav.DavContext.RequestProp;
+import com.zimbra.cs.dav.DavElements;
+import com.zimbra.cs.dav.DavException;
+import com.zimbra.cs.dav.property.ResourceProperty;
+import com.zimbra.cs.dav.resource.AddressbookCollection;
+import com.zimbra.cs.dav.resource.CalendarCollection;
+import com.zimbra.cs.dav.resource.CalendarObject;
+import com.zimbra.cs.dav.resource.Collection;
+import com.zimbra.cs.dav.resource.DavResource;
+import com.zimbra.cs.dav.resource.MailItemResource;
+import com.zimbra.cs.dav.resource.ScheduleInbox;
+import com.zimbra.cs.dav.resource.ScheduleOutbox;
+import com.zimbra.cs.dav.resource.UrlNamespace;
+import com.zimbra.cs.dav.service.DavResponse;
+import com.zimbra.cs.mailbox.Folder;
+import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.mailbox.MailServiceException;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.mailbox.util.TypedIdList;
+
+/**
+ * http://tools.ietf.org/html/rfc6578 sync-collection REPORT for calendar and address book collections.
+ * <p>
+ * The sync token is the mailbox change number at the time of the response.  Given a token, only the members
+ * modified since then are returned, found with {@link Mailbox#getModifiedItems}, along with the members that were
+ * moved out of the collection or deleted since then, found from the same call and from the mailbox tombstones.
+ * <p>
+ * Removed members are reported by href, which can no longer be computed once an item is deleted, so the hrefs of
+ * the members returned by each response are remembered per collection, along with the tokens of those responses.
+ * A member that no client was ever told about does not need to be reported as removed.  The remembered hrefs
+ * only account for every member a client may know about at the tokens issued by a response, so any other token is
+ * rejected with DAV:valid-sync-token and the client syncs again from scratch.  That includes the DAV:sync-token
+ * property when the collection has changed since the last response, and every token after a restart or once the
+ * collection is evicted from the cache.
+ */
+public class SyncCollection extends Report {
+
+    private static final String TOKEN_PREFIX = "http://zimbra.com/ns/sync/";
+
+    /** hrefs of the members returned for a collection, and the tokens of the responses that returned them */
+    @VisibleForTesting
+    static final class MemberHrefs {
+        /** most tokens kept per collection; a client holding an older one syncs again from scratch */
+        static final int MAX_TOKENS = 100;
+
+        private final Map<Integer, String> hrefs = new ConcurrentHashMap<Integer, String>();
+        private final NavigableSet<Integer> tokens = new TreeSet<Integer>();
+
+        void remember(int id, String href) {
+            hrefs.put(id, href);
+        }
+
+        /**
+         * @return the hrefs of the members with the given ids that were returned by a response
+         */
+        List<String> getRemoved(Iterable<Integer> ids) {
+            List<String> removed = new ArrayList<String>();
+            for (int id : ids) {
+                String href = hrefs.get(id);
+                if (href != null) {
+                    removed.add(href);
+                }
+            }
+            return removed;
+        }
+
+        /**
+         * Records the token of a response, once the members it returned are remembered.
+         */
+        synchronized void issue(int token) {
+            tokens.add(token);
+            while (tokens.size() > MAX_TOKENS) {
+                tokens.pollFirst();
+            }
+        }
+
+        synchronized boolean isIssued(int token) {
+            return tokens.contains(token);
+        }
+    }
+
+    private static final Cache<String, MemberHrefs> MEMBERS = CacheBuilder.newBuilder()
+            .maximumSize(LC.dav_sync_collection_cache_size.longValue())
+            .expireAfterAccess(7, TimeUnit.DAYS)
+            .build();
+
+    @VisibleForTesting
+    static String makeToken(int changeId) {
+        return TOKEN_PREFIX + changeId;
+    }
+
+    /**
+     * @return the change number in the token, or -1 if the token was not issued by this server
+     */
+    @VisibleForTesting
+    static int parseToken(String token) {
+        if (token == null || !token.startsWith(TOKEN_PREFIX)) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(token.substring(TOKEN_PREFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return the DAV:sync-token property of a collection backed by the folder
+     */
+    public static ResourceProperty getSyncTokenProperty(Folder f) {
+        ResourceProperty prop = new ResourceProperty(DavElements.E_SYNC_TOKEN);
+        prop.setProtected(true);
+        prop.setVisible(false);
+        prop.setStringValue(makeToken(f.getMailbox().getLastChangeID()));
+        return prop;
+    }
+
+    @Override
+    public void handle(DavContext ctxt) throws ServiceException, DavException {
+        long start = System.currentTimeMillis();
+        Element query = ctxt.getRequestMessage().getRootElement();
+        if (!query.getQName().equals(DavElements.E_SYNC_COLLECTION)) {
+            throw new DavException("msg " + query.getName() + " is not sync-collection",
+                    HttpServletResponse.SC_BAD_REQUEST, null);
+        }
+        if (ctxt.getDepth() != DavContext.Depth.zero) {
+            throw new DavException.REPORTwithDisallowedDepthException(query.getName(), ctxt.getDepth());
+        }
+        DavResource reqResource = ctxt.getRequestedResource();
+        if (!(reqResource instanceof CalendarCollection || reqResource instanceof AddressbookCollection) ||
+                reqResource instanceof ScheduleInbox || reqResource instanceof ScheduleOutbox) {
+            throw new DavException.UnsupportedReport(DavElements.E_SYNC_COLLECTION);
+        }
+        // member collections are not reported, so sync-level infinite is the same as 1
+        String level = query.elementTextTrim(DavElements.E_SYNC_LEVEL);
+        if (level != null && !level.equals("1") && !level.equals("infinite")) {
+            throw new DavException("invalid sync-level " + level, HttpServletResponse.SC_BAD_REQUEST, null);
+        }
+
+        Collection collection = (Collection) reqResource;
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(collection.getItemId().getAccountId());
+        MailItem.Type type = collection.getDefaultView();
+        if (type != MailItem.Type.CONTACT && type != MailItem.Type.TASK) {
+            type = MailItem.Type.APPOINTMENT;
+        }
+        String key = mbox.getId() + ":" + collection.getId();
+        String token = query.elementTextTrim(DavElements.E_SYNC_TOKEN);
+
+        DavResponse resp = ctxt.getDavResponse();
+        resp.createResponse(ctxt);
+        RequestProp reqProp = ctxt.getRequestProp();
+        ctxt.setCollectionPath(collection.getUri());
+        int changed = 0;
+        int removed = 0;
+        int newToken;
+        MemberHrefs members;
+        if (token == null || token.isEmpty()) {
+            // initial sync; deletions are only recorded while the mailbox is tracking sync
+            mbox.beginTrackingSync();
+            newToken = mbox.getLastChangeID();
+            members = getMembers(key);
+            for (DavResource child : collection.getChildren(ctxt)) {
+                if (child.isCollection()) {
+                    continue;
+                }
+                remember(members, child);
+                resp.addResourceTo(ctxt, child, reqProp, false);
+                changed++;
+            }
+        } else {
+            int lastSync = parseToken(token);
+            newToken = mbox.getLastChangeID();
+            members = MEMBERS.getIfPresent(key);
+            if (lastSync < 0 || lastSync > newToken || mbox.getSyncCutoff() <= 0 || lastSync < mbox.getSyncCutoff()) {
+                throw new DavException.InvalidSyncToken("invalid sync token " + token);
+            } else if (members == null || !members.isIssued(lastSync)) {
+                // the removed members the client knows about can't be told apart from the others
+                throw new DavException.InvalidSyncToken("sync token " + token + " is not known");
+            }
+
+            Pair<List<Integer>, TypedIdList> modified = mbox.getModifiedItems(ctxt.getOperationContext(), lastSync,
+                    type, Collections.singleton(collection.getId()));
+            if (!modified.getFirst().isEmpty()) {
+                for (MailItem item : mbox.getItemById(ctxt.getOperationContext(), modified.getFirst(), type)) {
+                    DavResource rs = UrlNamespace.getResourceFromMailItem(ctxt, item);
+                    if (rs != null) {
+                        remember(members, rs);
+                        resp.addResourceTo(ctxt, rs, reqProp, false);
+                        changed++;
+                    }
+                }
+            }
+
+            Set<Integer> gone = new HashSet<Integer>(modified.getSecond().getAllIds());
+            try {
+                gone.addAll(mbox.getTombstones(lastSync).getIds(type));
+            } catch (MailServiceException e) {
+                if (MailServiceException.MUST_RESYNC.equals(e.getCode())) {
+                    throw new DavException.InvalidSyncToken("tombstones for sync token " + token + " have expired");
+                }
+                throw e;
+            }
+            for (String href : members.getRemoved(gone)) {
+                resp.addStatus(ctxt, href, HttpServletResponse.SC_NOT_FOUND);
+                removed++;
+            }
+        }
+        members.issue(newToken);
+        resp.getTop(DavElements.E_MULTISTATUS).addElement(DavElements.E_SYNC_TOKEN).setText(makeToken(newToken));
+        ZimbraLog.dav.debug("sync-collection %s from %s: changed=%d removed=%d in %dms", collection.getUri(),
+                token == null || token.isEmpty() ? "scratch" : token, changed, removed,
+                System.currentTimeMillis() - start);
+    }
+
+    private static MemberHrefs getMembers(String key) {
+        // keep an existing map, so that the tokens of other clients of the collection stay valid
+        MemberHrefs members = new MemberHrefs();
+        MemberHrefs existing = MEMBERS.asMap().putIfAbsent(key, members);
+        return existing != null ? existing : members;
+    }
+
+    private static void remember(MemberHrefs members, DavResource rs) {
+        int id = -1;
+        if (rs instanceof MailItemResource) {
+            id = ((MailItemResource) rs).getId();
+        } else if (rs instanceof CalendarObject.LightWeightCalendarObject) {
+            id = ((CalendarObject.LightWeightCalendarObject) rs).getId();
+        }
+        if (id > 0) {
+            members.remember(id, rs.getHref());
+        }
+    }
+}
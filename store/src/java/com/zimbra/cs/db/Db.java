@@ -181,6 +181,20 @@ public abstract class Db {
         // default is to do nothing
     }
 
+    /** Indicates that the connection will be used for a mailbox transaction
+     *  that writes to the database.  Must be called <em>before</em> any SQL
+     *  commands are executed in the transaction. */
+    public static void registerWriteIntent(DbConnection conn) {
+        getInstance().preWrite(conn);
+    }
+
+    /** Callback invoked before a connection is first used to write to a
+     *  mailbox's database in the current transaction. */
+    @SuppressWarnings("unused")
+    void preWrite(DbConnection conn) {
+        // default is to do nothing
+    }
+
     /** Callback invoked immediately before a connection is returned to the
      *  pool by the user.  Note that <tt>COMMIT</tt>/<tt>ROLLBACK</tt> must
      *  already have been called before this method is invoked. */
@@ -349,6 +363,16 @@ public abstract class Db {
         return "";
     }
 
+    /**
+     * Returns a {@code LIMIT} clause like {@link #limit(int, int)}, but with variables
+     * for the offset and the number of rows, in that order, so that the statement text
+     * doesn't change from page to page.  If the database does not support this feature,
+     * returns an empty string.
+     */
+    public String limitWithVariables() {
+        return "";
+    }
+
     protected String escapeSequence() {
         return "\\";
     }
@@ -0,0 +1,126 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.db;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.cs.db.DbPool.DbConnection;
+
+/**
+ * Reference counts of the chunks kept by
+ * {@link com.zimbra.cs.store.chunk.ChunkedStoreManager}. A chunk is
+ * referenced once by each stored blob it is part of, and its file can be
+ * deleted when the last reference goes away.
+ */
+public final class DbBlobChunk {
+
+    private static final String TB_BLOB_CHUNK = "blob_chunk";
+    private static final String CN_DIGEST = "digest";
+    private static final String CN_SIZE = "size";
+    private static final String CN_REF_COUNT = "ref_count";
+
+    private DbBlobChunk() {
+    }
+
+    /**
+     * Adds references to a chunk.
+     *
+     * @param count number of references to add
+     * @return <tt>true</tt> if the chunk was not referenced before
+     */
+    public static boolean addReference(DbConnection conn, String digest, int size, int count) throws ServiceException {
+        PreparedStatement stmt = null;
+        try {
+            stmt = conn.prepareStatement("UPDATE " + TB_BLOB_CHUNK + " SET " + CN_REF_COUNT + " = " + CN_REF_COUNT +
+                    " + ? WHERE " + CN_DIGEST + " = ?");
+            int pos = 1;
+            stmt.setInt(pos++, count);
+            stmt.setString(pos++, digest);
+            if (stmt.executeUpdate() > 0) {
+                return false;
+            }
+            DbPool.closeStatement(stmt);
+
+            stmt = conn.prepareStatement("INSERT INTO " + TB_BLOB_CHUNK + " (" + CN_DIGEST + ", " + CN_SIZE + ", " +
+                    CN_REF_COUNT + ") VALUES (?, ?, ?)");
+            pos = 1;
+            stmt.setString(pos++, digest);
+            stmt.setInt(pos++, size);
+            stmt.setInt(pos++, count);
+            stmt.executeUpdate();
+            return true;
+        } catch (SQLException e) {
+            throw ServiceException.FAILURE("unable to add reference to chunk " + digest, e);
+        } finally {
+            DbPool.closeStatement(stmt);
+        }
+    }
+
+    /**
+     * Removes references to a chunk, and the chunk itself when it is no longer referenced.
+     *
+     * @param count number of references to remove
+     * @return <tt>true</tt> if the chunk is no longer referenced, <tt>false</tt>
+     *         if it still is or if there is no such chunk
+     */
+    public static boolean removeReference(DbConnection conn, String digest, int count) throws ServiceException {
+        PreparedStatement stmt = null;
+        try {
+            stmt = conn.prepareStatement("UPDATE " + TB_BLOB_CHUNK + " SET " + CN_REF_COUNT + " = " + CN_REF_COUNT +
+                    " - ? WHERE " + CN_DIGEST + " = ?");
+            int pos = 1;
+            stmt.setInt(pos++, count);
+            stmt.setString(pos++, digest);
+            if (stmt.executeUpdate() == 0) {
+                return false;
+            }
+            DbPool.closeStatement(stmt);
+
+            stmt = conn.prepareStatement("DELETE FROM " + TB_BLOB_CHUNK + " WHERE " + CN_DIGEST + " = ? AND " +
+                    CN_REF_COUNT + " <= 0");
+            stmt.setString(1, digest);
+            return stmt.executeUpdate() > 0;
+        } catch (SQLException e) {
+            throw ServiceException.FAILURE("unable to remove reference to chunk " + digest, e);
+        } finally {
+            DbPool.closeStatement(stmt);
+        }
+    }
+
+    /**
+     * @return <tt>true</tt> if the chunk has references
+     */
+    public static boolean isReferenced(DbConnection conn, String digest) throws ServiceException {
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        try {
+            stmt = conn.prepareStatement("SELECT " + CN_REF_COUNT + " FROM " + TB_BLOB_CHUNK + " WHERE " +
+                    CN_DIGEST + " = ?");
+            stmt.setString(1, digest);
+            rs = stmt.executeQuery();
+            return rs.next() && rs.getInt(1) > 0;
+        } catch (SQLException e) {
+            throw ServiceException.FAILURE("unable to get references to chunk " + digest, e);
+        } finally {
+            DbPool.closeResults(rs);
+            DbPool.closeStatement(stmt);
+        }
+    }
+}
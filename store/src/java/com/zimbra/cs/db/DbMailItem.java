@@ -2686,6 +2686,14 @@ public class DbMailItem {
     }
 
     public static List<UnderlyingData> getByHashes(Mailbox mbox, List<String> hashes) throws ServiceException {
+        return getByHashes(mbox, hashes, null);
+    }
+
+    /**
+     * @param targets if not {@code null}, receives the id of the item each matching hash refers to
+     */
+    public static List<UnderlyingData> getByHashes(Mailbox mbox, List<String> hashes, Map<String, Integer> targets)
+    throws ServiceException {
         if (ListUtil.isEmpty(hashes)) {
             return null;
         }
@@ -2694,7 +2702,7 @@ public class DbMailItem {
         PreparedStatement stmt = null;
         ResultSet rs = null;
         try {
-            stmt = conn.prepareStatement("SELECT " + DB_FIELDS +
+            stmt = conn.prepareStatement("SELECT " + DB_FIELDS + ", oc.hash" +
                     " FROM " + getMailItemTableName(mbox, "mi") + ", " + getConversationTableName(mbox, "oc") +
                     " WHERE mi.id = oc.conv_id AND " + DbUtil.whereIn("oc.hash", hashes.size()) +
                     (DebugConfig.disableMailboxGroups ? "" : " AND oc.mailbox_id = ? AND mi.mailbox_id = oc.mailbox_id"));
@@ -2709,6 +2717,9 @@ public class DbMailItem {
             Set<Integer> convIds = Sets.newHashSetWithExpectedSize(3);
             while (rs.next()) {
                 int id = rs.getInt(CI_ID);
+                if (targets != null) {
+                    targets.put(rs.getString(CI_UUID + 1), id);
+                }
                 if (convIds.contains(id)) {
                     continue;
                 }
@@ -865,6 +865,54 @@ public final class DbMailbox {
         }
     }
 
+    /**
+     * The purge-related state of a mailbox, as of its last checkpoint.
+     */
+    public static class PurgeInfo {
+        public final int id;
+        /** time of the last completed purge in milliseconds, or 0 if never purged */
+        public final long lastPurgeAt;
+        /** approximate mailbox size in bytes */
+        public final long size;
+
+        public PurgeInfo(int id, long lastPurgeAt, long size) {
+            this.id = id;
+            this.lastPurgeAt = lastPurgeAt;
+            this.size = size;
+        }
+    }
+
+    /**
+     * Returns the last purge time and approximate size of every mailbox.
+     *
+     * @param conn An open database connection.
+     * @return A <code>Map</code> keyed by mailbox ID.
+     * @throws ServiceException
+     */
+    public static Map<Integer, PurgeInfo> listPurgeInfo(DbConnection conn) throws ServiceException {
+        Map<Integer, PurgeInfo> result = new HashMap<Integer, PurgeInfo>();
+        if (DebugConfig.externalMailboxDirectory) {
+            return result;
+        }
+
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        try {
+            stmt = conn.prepareStatement("SELECT id, last_purge_at, size_checkpoint FROM mailbox");
+            rs = stmt.executeQuery();
+            while (rs.next()) {
+                int id = rs.getInt(1);
+                result.put(id, new PurgeInfo(id, rs.getInt(2) * 1000L, rs.getLong(3)));
+            }
+            return result;
+        } catch (SQLException e) {
+            throw ServiceException.FAILURE("fetching mailbox purge info", e);
+        } finally {
+            DbPool.closeResults(rs);
+            DbPool.closeStatement(stmt);
+        }
+    }
+
     public static final int CHANGE_CHECKPOINT_INCREMENT = Zimbra.isAlwaysOn() ? 1 : Math.max(1, LC.zimbra_mailbox_change_checkpoint_frequency.intValue());
     public static final int ITEM_CHECKPOINT_INCREMENT   = Zimbra.isAlwaysOn() ? 1 : 20;
 
@@ -115,6 +115,21 @@ public class DbPool {
             return new StatTrackingPreparedStatement(connection.prepareStatement(sql), sql);
         }
 
+        /**
+         * Like {@link #prepareStatement(String)}, but the statement stays prepared on the underlying connection when
+         * it is closed, and is handed out again the next time the same SQL is prepared on that connection.  Only for
+         * SQL built from a bounded set of shapes.
+         *
+         * @see StatementCache
+         */
+        public PreparedStatement prepareCachedStatement(String sql) throws SQLException {
+            StatementCache cache = StatementCache.get(connection);
+            if (cache == null) {
+                return prepareStatement(sql);
+            }
+            return cache.prepare(sql);
+        }
+
         public PreparedStatement prepareStatement(String sql, int autoGeneratedKeys) throws SQLException {
             return new StatTrackingPreparedStatement(connection.prepareStatement(sql, autoGeneratedKeys), sql);
         }
@@ -283,7 +298,13 @@ public class DbPool {
         ConnectionFactory cfac = ZimbraConnectionFactory.getConnectionFactory(pconfig);
 
         boolean defAutoCommit = false, defReadOnly = false;
-        new PoolableConnectionFactory(cfac, sConnectionPool, null, null, defReadOnly, defAutoCommit);
+        new PoolableConnectionFactory(cfac, sConnectionPool, null, null, defReadOnly, defAutoCommit) {
+            @Override
+            public void destroyObject(Object obj) throws Exception {
+                StatementCache.discard((Connection) obj);
+                super.destroyObject(obj);
+            }
+        };
 
         try {
             Class.forName(pconfig.mDriverClassName).newInstance(); //derby requires the .newInstance() call
@@ -21,6 +21,7 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Types;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -83,6 +84,65 @@ public class DbScheduledTask {
     throws ServiceException {
         ZimbraLog.scheduler.debug("Retrieving tasks for class %s, mailbox %d", className, mailboxId);
 
+        List<String> conditions = new ArrayList<String>();
+        List<Object> params = new ArrayList<Object>();
+        if (className != null) {
+            conditions.add("class_name = ?");
+            params.add(className);
+        }
+        if (mailboxId > 0) {
+            conditions.add("mailbox_id = ?");
+            params.add(mailboxId);
+        }
+        return getTasks(conditions, params, null);
+    }
+
+    /**
+     * Retrieves all scheduled tasks except those of the given class.
+     *
+     * @param excludedClassName the <tt>ScheduledTask</tt> class name to skip
+     */
+    public static List<ScheduledTask> getTasksExcept(String excludedClassName)
+    throws ServiceException {
+        ZimbraLog.scheduler.debug("Retrieving tasks for all classes except %s", excludedClassName);
+
+        List<ScheduledTask> tasks = getTasks(Collections.singletonList("class_name <> ?"),
+            Collections.<Object>singletonList(excludedClassName), null);
+        ZimbraLog.scheduler.info("Loaded %d scheduled tasks", tasks.size());
+        return tasks;
+    }
+
+    /**
+     * Retrieves one page of scheduled tasks of the given class, ordered by name.
+     * Used to load large numbers of tasks incrementally rather than all at once.
+     *
+     * @param className the <tt>ScheduledTask</tt> class name
+     * @param afterName only return tasks whose name sorts after this one, or
+     * <tt>null</tt> to start from the first task
+     * @param limit the maximum number of tasks to return
+     */
+    public static List<ScheduledTask> getTasks(String className, String afterName, int limit)
+    throws ServiceException {
+        ZimbraLog.scheduler.debug("Retrieving up to %d tasks for class %s after %s", limit, className, afterName);
+
+        List<String> conditions = new ArrayList<String>();
+        List<Object> params = new ArrayList<Object>();
+        conditions.add("class_name = ?");
+        params.add(className);
+        if (afterName != null) {
+            conditions.add("name > ?");
+            params.add(afterName);
+        }
+        String orderBy = " ORDER BY name";
+        if (Db.supports(Db.Capability.LIMIT_CLAUSE)) {
+            orderBy += " " + Db.getInstance().limit(limit);
+        }
+        List<ScheduledTask> tasks = getTasks(conditions, params, orderBy);
+        return tasks.size() > limit ? tasks.subList(0, limit) : tasks;
+    }
+
+    private static List<ScheduledTask> getTasks(List<String> conditions, List<Object> params, String orderBy)
+    throws ServiceException {
         List<ScheduledTask> tasks = new ArrayList<ScheduledTask>();
 
         DbConnection conn = null;
@@ -90,77 +150,78 @@ public class DbScheduledTask {
         ResultSet rs = null;
         try {
             conn = DbPool.getConnection();
-            String sql =
+            StringBuilder sql = new StringBuilder(
                 "SELECT class_name, name, mailbox_id, exec_time, interval_millis, metadata " +
-                "FROM " + TABLE_SCHEDULED_TASK;
-            if (className != null) {
-                sql += " WHERE class_name = ?";
+                "FROM " + TABLE_SCHEDULED_TASK);
+            for (int i = 0; i < conditions.size(); i++) {
+                sql.append(i == 0 ? " WHERE " : " AND ").append(conditions.get(i));
             }
-            if (mailboxId > 0) {
-                if (className == null) {
-                    sql += " WHERE mailbox_id = ?";
-                } else {
-                    sql += " AND mailbox_id = ?";
-                }
+            if (orderBy != null) {
+                sql.append(orderBy);
             }
-            stmt = conn.prepareStatement(sql);
+            stmt = conn.prepareStatement(sql.toString());
             int i = 1;
-            if (className != null) {
-                stmt.setString(i++, className);
-            }
-            if (mailboxId > 0) {
-                stmt.setInt(i++, mailboxId);
+            for (Object param : params) {
+                if (param instanceof Integer) {
+                    stmt.setInt(i++, (Integer) param);
+                } else {
+                    stmt.setString(i++, (String) param);
+                }
             }
 
             rs = stmt.executeQuery();
             while (rs.next()) {
-                className = rs.getString("class_name");
-                String name = rs.getString("name");
-                ScheduledTask task = null;
-
-                // Instantiate task
-                try {
-                    Object obj = Class.forName(className).newInstance();
-                    if (obj instanceof ScheduledTask) {
-                        task = (ScheduledTask) obj;
-                    } else {
-                        ZimbraLog.scheduler.warn("Class %s is not an instance of ScheduledTask for task %s",
-                            className, name);
-                        continue;
-                    }
-                } catch (Exception e) {
-                    ZimbraLog.scheduler.warn("Unable to instantiate class %s for task %s.  " +
-                        "Class must be an instance of %s and have a constructor with no arguments.",
-                        className, name, ScheduledTask.class.getSimpleName(), e);
-                    continue;
-                }
-
-                // Set member vars
-                task.setMailboxId(rs.getInt("mailbox_id"));
-                task.setExecTime(DbUtil.timestampToDate(rs.getTimestamp("exec_time")));
-                task.setIntervalMillis(rs.getLong("interval_millis"));
-
-                try {
-                    setProperties(task, rs.getString("metadata"));
-                } catch (ServiceException e) {
-                    ZimbraLog.scheduler.warn("Unable to read metadata for %s.  Not scheduling this task.", task, e);
-                    continue;
+                ScheduledTask task = readTask(rs);
+                if (task != null) {
+                    tasks.add(task);
                 }
-
-                tasks.add(task);
             }
         } catch (SQLException e) {
-            throw ServiceException.FAILURE("Unable to get all DataSourceTasks", e);
+            throw ServiceException.FAILURE("Unable to get scheduled tasks", e);
         } finally {
             DbPool.closeResults(rs);
             DbPool.closeStatement(stmt);
             DbPool.quietClose(conn);
         }
-
-        ZimbraLog.scheduler.info("Loaded %d scheduled data source tasks", tasks.size());
         return tasks;
     }
 
+    private static ScheduledTask readTask(ResultSet rs) throws SQLException {
+        String className = rs.getString("class_name");
+        String name = rs.getString("name");
+        ScheduledTask task = null;
+
+        // Instantiate task
+        try {
+            Object obj = Class.forName(className).newInstance();
+            if (obj instanceof ScheduledTask) {
+                task = (ScheduledTask) obj;
+            } else {
+                ZimbraLog.scheduler.warn("Class %s is not an instance of ScheduledTask for task %s",
+                    className, name);
+                return null;
+            }
+        } catch (Exception e) {
+            ZimbraLog.scheduler.warn("Unable to instantiate class %s for task %s.  " +
+                "Class must be an instance of %s and have a constructor with no arguments.",
+                className, name, ScheduledTask.class.getSimpleName(), e);
+            return null;
+        }
+
+        // Set member vars
+        task.setMailboxId(rs.getInt("mailbox_id"));
+        task.setExecTime(DbUtil.timestampToDate(rs.getTimestamp("exec_time")));
+        task.setIntervalMillis(rs.getLong("interval_millis"));
+
+        try {
+            setProperties(task, rs.getString("metadata"));
+        } catch (ServiceException e) {
+            ZimbraLog.scheduler.warn("Unable to read metadata for %s.  Not scheduling this task.", task, e);
+            return null;
+        }
+        return task;
+    }
+
     public static void updateTask(DbConnection conn, ScheduledTask task)
     throws ServiceException {
         ZimbraLog.scheduler.debug("Updating %s", task);
@@ -28,6 +28,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Objects;
 import com.google.common.base.Strings;
 import com.zimbra.common.localconfig.DebugConfig;
@@ -46,6 +47,7 @@ import com.zimbra.cs.mailbox.Folder;
 import com.zimbra.cs.mailbox.MailItem;
 import com.zimbra.cs.mailbox.Mailbox;
 import com.zimbra.cs.mailbox.Tag;
+import com.zimbra.cs.mailbox.TagBitmapIndex;
 
 /**
  * Search related DAO.
@@ -72,6 +74,7 @@ public final class DbSearch {
     private static final String MI_I_MBOX_INDEX = "i_index_id";
 
     private static final String NO_HINT = "";
+    private static final int MAX_IN_LIST_BUCKET = 1024;
 
     public enum FetchMode { ID, MAIL_ITEM, IMAP_MSG, MODSEQ, PARENT, MODCONTENT };
 
@@ -182,7 +185,7 @@ public final class DbSearch {
     }
 
     public int countResults(DbConnection conn, DbSearchConstraints node, boolean ignoreNoRecipients) throws ServiceException {
-        node = node.optimize();
+        node = resolveTags(conn, node.optimize());
         sql.append("SELECT COUNT(*) FROM ").append(DbMailItem.getMailItemTableName(mailbox, "mi", dumpster));
         sql.append(" WHERE ");
         if (!DebugConfig.disableMailboxGroups) {
@@ -196,7 +199,7 @@ public final class DbSearch {
         PreparedStatement stmt = null;
         ResultSet rs = null;
         try {
-            stmt = conn.prepareStatement(sql.toString());
+            stmt = conn.prepareCachedStatement(sql.toString());
             setParameters(stmt);
             //pos = setSearchVars(stmt, node, pos, null, false, dumpster);
             rs = stmt.executeQuery();
@@ -360,10 +363,11 @@ public final class DbSearch {
                 needAnd = true;
             }
         } else {
-            sql.append(DbUtil.whereIn("mi.type", constraint.types.size()));
+            List<Byte> types = new ArrayList<Byte>(constraint.types.size());
             for (MailItem.Type type : constraint.types) {
-                params.add(type.toByte());
+                types.add(type.toByte());
             }
+            encodeIn("mi.type", true, types);
             needAnd = true;
         }
 
@@ -513,7 +517,7 @@ public final class DbSearch {
             FetchMode fetch, boolean searchDraftsSeparately) throws ServiceException {
         if (!Db.supports(Db.Capability.AVOID_OR_IN_WHERE_CLAUSE) || !(node instanceof DbSearchConstraints.Union)) {
             try {
-                node = node.optimize();
+                node = resolveTags(conn, node.optimize());
                 return searchInternal(conn, node, sort, offset, limit, fetch, searchDraftsSeparately);
             } catch (SQLException e) {
                 if (Db.errorMatches(e, Db.Error.TOO_MANY_SQL_PARAMS)) {
@@ -577,6 +581,67 @@ public final class DbSearch {
         return result;
     }
 
+    /**
+     * Resolves the tag and flag constraints of each leaf against the mailbox's {@link TagBitmapIndex}, so that the
+     * database doesn't have to probe TAGGED_ITEM for them. A leaf whose tags match nothing gets no results, and one
+     * whose tags match only a few items gets them as item ids. Returns the original tree if nothing changed.
+     */
+    private DbSearchConstraints resolveTags(DbConnection conn, DbSearchConstraints node) throws ServiceException {
+        if (dumpster || !hasTags(node)) {
+            return node;
+        }
+        TagBitmapIndex index = mailbox.getTagBitmapIndex(conn);
+        if (index == null) {
+            return node;
+        }
+        node = (DbSearchConstraints) node.clone();
+        resolveTags(index, node, LC.search_tag_bitmap_max_ids.intValue());
+        return node;
+    }
+
+    private static boolean hasTags(DbSearchConstraints node) {
+        if (node instanceof DbSearchConstraints.Leaf) {
+            return !node.toLeaf().tags.isEmpty();
+        }
+        for (DbSearchConstraints child : node.getChildren()) {
+            if (hasTags(child)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void resolveTags(TagBitmapIndex index, DbSearchConstraints node, int maxIds) {
+        if (!(node instanceof DbSearchConstraints.Leaf)) {
+            for (DbSearchConstraints child : node.getChildren()) {
+                resolveTags(index, child, maxIds);
+            }
+            return;
+        }
+        DbSearchConstraints.Leaf leaf = node.toLeaf();
+        if (leaf.noResults || leaf.tags.isEmpty()) {
+            return;
+        }
+        if (!leaf.itemIds.isEmpty()) {
+            index.retainMatching(leaf.itemIds, leaf.tags, leaf.excludeTags);
+        } else {
+            int[] ids = index.match(leaf.tags, leaf.excludeTags, maxIds);
+            if (ids == null) {
+                return;
+            }
+            for (int id : ids) {
+                leaf.itemIds.add(id);
+            }
+        }
+        if (leaf.itemIds.isEmpty()) {
+            // keep the tags so that the leaf doesn't look unconstrained
+            leaf.noResults = true;
+        } else {
+            leaf.tags.clear();
+            leaf.excludeTags.clear();
+        }
+    }
+
     private int countUnread(Folder folder) throws ServiceException {
         int count = folder.getUnreadCount();
         List<Folder> subFolders = folder.getSubfolders(null);
@@ -640,7 +705,9 @@ public final class DbSearch {
                         //let's make an estimate of # of unread items for this mailbox.
                         //It doesn't matter which folder(s) the user is trying to search because
                         //the performance solely depends on the # of unread items
-                        count = countUnread(mailbox.getFolderById(null, Mailbox.ID_FOLDER_USER_ROOT));
+                        TagBitmapIndex index = mailbox.getTagBitmapIndex(null);
+                        count = index != null ? index.getCount(tag) :
+                            countUnread(mailbox.getFolderById(null, Mailbox.ID_FOLDER_USER_ROOT));
                     } else if (tag.getId() > 0) {
                         count = tag.getSize(); //user tag
                     }
@@ -677,7 +744,7 @@ public final class DbSearch {
                 sql.append(orderBy(sort, true));
                 // LIMIT ?, ?
                 if (hasValidLIMIT && Db.supports(Db.Capability.LIMIT_CLAUSE)) {
-                    sql.append(' ').append(Db.getInstance().limit(offset, limit));
+                    encodeLimit(offset, limit);
                 }
             }
         }
@@ -694,7 +761,7 @@ public final class DbSearch {
                 sql.append(orderBy(sort, true));
                 // LIMIT ?, ?
                 if (hasValidLIMIT && Db.supports(Db.Capability.LIMIT_CLAUSE)) {
-                    sql.append(' ').append(Db.getInstance().limit(offset, limit));
+                    encodeLimit(offset, limit);
                 }
                 if (requiresUnion) {
                     sql.append(')');
@@ -707,7 +774,7 @@ public final class DbSearch {
 
         // LIMIT ?, ?
         if (hasValidLIMIT && Db.supports(Db.Capability.LIMIT_CLAUSE)) {
-            sql.append(' ').append(Db.getInstance().limit(offset, limit));
+            encodeLimit(offset, limit);
         }
 
         if (Db.supports(Db.Capability.SQL_PARAM_LIMIT)) {
@@ -717,7 +784,7 @@ public final class DbSearch {
         ResultSet rs = null;
         try {
             // Create the statement and bind all our parameters!
-            stmt = conn.prepareStatement(sql.toString());
+            stmt = conn.prepareCachedStatement(sql.toString());
             setParameters(stmt);
             // Limit query if DB doesn't support LIMIT clause
             if (hasValidLIMIT && !Db.supports(Db.Capability.LIMIT_CLAUSE)) {
@@ -874,10 +941,11 @@ public final class DbSearch {
             return false;
         }
         if (and) { sql.append(" AND ");}
-        sql.append(DbUtil.whereIn("mi.folder_id", bool, folders.size()));
+        List<Integer> ids = new ArrayList<Integer>(folders.size());
         for (Folder folder : folders) {
-            params.add(folder.getId());
+            ids.add(folder.getId());
         }
+        encodeIn("mi.folder_id", bool, ids);
         return true;
     }
 
@@ -889,10 +957,11 @@ public final class DbSearch {
             return false;
         }
         if (and) {sql.append(" AND "); }
-        sql.append(DbUtil.whereIn("type", bool, types.size()));
+        List<Byte> bytes = new ArrayList<Byte>(types.size());
         for (MailItem.Type type : types) {
-            params.add(type.toByte());
+            bytes.add(type.toByte());
         }
+        encodeIn("type", bool, bytes);
         return true;
     }
 
@@ -905,8 +974,7 @@ public final class DbSearch {
             return false;
         }
         if (and) {sql.append(" AND "); }
-        sql.append(DbUtil.whereIn(column, bool, c.size()));
-        params.addAll(c);
+        encodeIn(column, bool, c);
         return true;
     }
 
@@ -1015,10 +1083,13 @@ public final class DbSearch {
             if (!DebugConfig.disableMailboxGroups) {
                 sql.append("mi.mailbox_id = ti.mailbox_id AND ");
             }
-            sql.append("mi.id = ti.item_id AND ").append(DbUtil.whereIn("ti.tag_id", tags.size())).append(')');
+            sql.append("mi.id = ti.item_id AND ");
+            List<Integer> ids = new ArrayList<Integer>(tags.size());
             for (Tag tag : tags) {
-                params.add(tag.getId());
+                ids.add(tag.getId());
             }
+            encodeIn("ti.tag_id", true, ids);
+            sql.append(')');
         }
         return true;
     }
@@ -1138,6 +1209,58 @@ public final class DbSearch {
         return true;
     }
 
+    /**
+     * Appends {@code column [NOT] IN (?, ...)} for the values.  Lists of more than three values are padded with
+     * copies of the last one up to a bucket size, so that searches with about the same number of values share one
+     * statement text, which the database only has to prepare once per connection.
+     */
+    private void encodeIn(String column, boolean bool, Collection<?> values) {
+        int size = values.size();
+        int bucket = inListBucket(size);
+        if (Db.supports(Db.Capability.SQL_PARAM_LIMIT) && bucket > Db.getInstance().getParamLimit() / 2) {
+            bucket = size;
+        }
+        sql.append(DbUtil.whereIn(column, bool, bucket));
+        Object last = null;
+        for (Object value : values) {
+            params.add(value);
+            last = value;
+        }
+        for (int i = size; i < bucket; i++) {
+            params.add(last);
+        }
+    }
+
+    /**
+     * Returns the number of variables for an IN list of {@code size} values: the size itself up to 3, which are
+     * written out as comparisons, the next power of two up to {@link #MAX_IN_LIST_BUCKET}, and the next multiple of
+     * it past that.
+     */
+    @VisibleForTesting
+    static int inListBucket(int size) {
+        if (size <= 3) {
+            return size;
+        } else if (size <= MAX_IN_LIST_BUCKET) {
+            return Integer.highestOneBit(size - 1) << 1;
+        } else {
+            return (size + MAX_IN_LIST_BUCKET - 1) / MAX_IN_LIST_BUCKET * MAX_IN_LIST_BUCKET;
+        }
+    }
+
+    /**
+     * Appends a {@code LIMIT} clause with the offset and the limit as variables.
+     */
+    private void encodeLimit(int offset, int limit) {
+        String clause = Db.getInstance().limitWithVariables();
+        if (clause.isEmpty()) {
+            sql.append(' ').append(Db.getInstance().limit(offset, limit));
+        } else {
+            sql.append(' ').append(clause);
+            params.add(offset);
+            params.add(limit);
+        }
+    }
+
     private void setParameters(PreparedStatement stmt) throws SQLException {
         int pos = 0;
         for (Object param : params) {
@@ -43,6 +43,7 @@ import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.db.DbPool.DbConnection;
 import com.zimbra.cs.mailbox.Flag;
 import com.zimbra.cs.mailbox.Folder;
+import com.zimbra.cs.mailbox.IdBitmap;
 import com.zimbra.cs.mailbox.MailItem;
 import com.zimbra.cs.mailbox.MailItem.PendingDelete;
 import com.zimbra.cs.mailbox.MailItem.UnderlyingData;
@@ -209,6 +210,37 @@ public final class DbTag {
         }
     }
 
+    /**
+     * Returns the ids of the items carrying each tag and reified flag, keyed by tag id.
+     */
+    public static Map<Integer, IdBitmap> getTaggedItems(DbConnection conn, Mailbox mbox) throws ServiceException {
+        Map<Integer, IdBitmap> result = new HashMap<Integer, IdBitmap>();
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        try {
+            stmt = conn.prepareStatement("SELECT tag_id, item_id FROM " + getTaggedItemTableName(mbox) +
+                    (DebugConfig.disableMailboxGroups ? "" : " WHERE mailbox_id = ?"));
+            Db.getInstance().enableStreaming(stmt);
+            DbMailItem.setMailboxId(stmt, mbox, 1);
+
+            rs = stmt.executeQuery();
+            while (rs.next()) {
+                int tagId = rs.getInt(1);
+                IdBitmap ids = result.get(tagId);
+                if (ids == null) {
+                    result.put(tagId, ids = new IdBitmap());
+                }
+                ids.add(rs.getInt(2));
+            }
+            return result;
+        } catch (SQLException e) {
+            throw ServiceException.FAILURE("fetching tagged items for mailbox " + mbox.getId(), e);
+        } finally {
+            DbPool.closeResults(rs);
+            DbPool.closeStatement(stmt);
+        }
+    }
+
     static boolean getAllTags(Mailbox mbox, DbMailItem.FolderTagMap tagData) throws ServiceException {
         DbConnection conn = mbox.getOperationConnection();
         PreparedStatement stmt = null;
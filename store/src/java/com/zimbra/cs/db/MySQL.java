@@ -181,6 +181,10 @@ public class MySQL extends Db {
             props.put("cachePrepStmts", "true");
             // props.put("cacheCallableStmts", "true");
             props.put("prepStmtCacheSize", "25");
+            if (LC.zimbra_db_statement_cache_size.intValue() > 0) {
+                // statements kept in the StatementCache are only worth keeping if the server parsed them once
+                props.put("useServerPrepStmts", "true");
+            }
             // props.put("prepStmtCacheSqlLmiit", "256");
             props.put("autoReconnect", "true");
             props.put("useUnicode", "true");
@@ -315,4 +319,9 @@ public class MySQL extends Db {
     public String limit(int offset, int limit) {
         return "LIMIT " + offset + "," + limit;
     }
+
+    @Override
+    public String limitWithVariables() {
+        return "LIMIT ?,?";
+    }
 }
@@ -59,6 +59,8 @@ public final class SQLite extends Db {
     private String journalMode;
     private String pageSize;
     private String syncMode;
+    private String mmapSize;
+    private String busyTimeout;
 
     SQLite() {
         mErrorCodes = new HashMap<Db.Error, String>(6);
@@ -144,10 +146,13 @@ public final class SQLite extends Db {
         if (pageSize.equals("0"))
             pageSize = null;
         syncMode = LC.sqlite_sync_mode.value();
+        mmapSize = LC.sqlite_mmap_size.value();
+        busyTimeout = LC.sqlite_busy_timeout_ms.value();
         ZimbraLog.dbconn.info("sqlite driver running with " +
             (cacheSize == null ? "default" : cacheSize) + " cache cache, " +
             (pageSize == null ? "default" : pageSize) + " page size, " +
-            journalMode + " journal mode, " + syncMode + " sync mode");
+            journalMode + " journal mode, " + syncMode + " sync mode, " +
+            mmapSize + " mmap size, " + busyTimeout + "ms busy timeout");
         super.startup(pool, poolSize);
     }
 
@@ -179,14 +184,20 @@ public final class SQLite extends Db {
          * pragma(conn, dbname, "auto_vacuum", "2");
          */
         pragma(conn, dbname, "foreign_keys", "ON");
+        // the page size of a new database can't be changed once it is in WAL mode
+        if (pageSize != null)
+            pragma(conn, dbname, "page_size", pageSize);
         if (journalMode != null && !journalMode.equalsIgnoreCase(PRAGMA_JOURNAL_MODE_DEFAULT))
             pragma(conn, dbname, "journal_mode", journalMode);
         if (syncMode != null && !syncMode.equalsIgnoreCase(PRAGMA_SYNCHRONOUS_DEFAULT))
             pragma(conn, dbname, "synchronous", syncMode);
         if (cacheSize != null)
             pragma(conn, dbname, "cache_size", cacheSize);
-        if (pageSize != null)
-            pragma(conn, dbname, "page_size", pageSize);
+        if (mmapSize != null)
+            pragma(conn, dbname, "mmap_size", mmapSize);
+        // the busy timeout belongs to the connection rather than to any one database
+        if (dbname == null && busyTimeout != null)
+            pragma(conn, null, "busy_timeout", busyTimeout);
     }
 
     private static final int DEFAULT_CONNECTION_POOL_SIZE = 6;
@@ -313,6 +324,8 @@ public final class SQLite extends Db {
             if (!autocommit) {
                 conn.getConnection().setAutoCommit(true);
             }
+            // cached statements may refer to the database and would keep it from being detached
+            StatementCache.discard(conn.getConnection());
             (stmt = conn.prepareStatement("DETACH DATABASE " + dbname)).execute();
             return true;
         } catch (SQLException e) {
@@ -349,12 +362,61 @@ public final class SQLite extends Db {
 
     @Override
     void preClose(DbConnection conn) {
+        ReentrantLock writeLock = writeLocks.remove(conn);
+        if (writeLock != null && writeLock.isHeldByCurrentThread()) {
+            writeLock.unlock();
+            ZimbraLog.dbconn.trace("released write lock for mbox %d",conn.mboxId);
+        }
         releaseMboxDbLock(conn.mboxId);
     }
 
 
     private static ConcurrentMap<Integer, ReentrantLock> lockMap = new ConcurrentHashMap<Integer, ReentrantLock>();
 
+    /**
+     * SQLite allows a single writer per database file, and all the mailboxes in a mailbox group share one file, so
+     * write transactions are also serialized per mailbox group. Writers to the same file then queue here instead of
+     * failing with SQLITE_BUSY, while readers only take the lock of their own mailbox and aren't held up by writers
+     * to other mailboxes in the group. Mailbox transactions also update zimbra.mailbox in zimbra.db, so writers to
+     * different groups still take turns at that file's lock inside SQLite.
+     * <p>
+     * A group write lock is taken while the Mailbox lock and the connection lock of the writing mailbox are held, and
+     * is released when that connection is closed. Two writers to mailboxes of the same group can't deadlock on it,
+     * because the holder never waits for a lock of the other mailbox before it lets go: while a connection is open, a
+     * thread doesn't open a connection to another mailbox (checked by {@link #checkLockMap}, so it can't be waiting
+     * on that mailbox's connection lock or on a second group write lock, see {@link #checkWriteLocks}), and a mailbox
+     * transaction never locks another Mailbox, which would already deadlock two transactions on different mailboxes
+     * since Mailbox locks have no order. The group write lock is therefore always the last lock taken.
+     */
+    private static ConcurrentMap<Integer, ReentrantLock> groupWriteLockMap = new ConcurrentHashMap<Integer, ReentrantLock>();
+
+    /** group write locks held by open connections */
+    private static ConcurrentMap<DbConnection, ReentrantLock> writeLocks = new ConcurrentHashMap<DbConnection, ReentrantLock>();
+
+    private static ReentrantLock getLock(ConcurrentMap<Integer, ReentrantLock> locks, int key) {
+        ReentrantLock lock = locks.get(key);
+        if (lock == null) {
+            lock = new ReentrantLock();
+            ReentrantLock added = locks.putIfAbsent(key, lock);
+            if (added != null) {
+                lock = added;
+            }
+        }
+        return lock;
+    }
+
+    //lock with timeout in case external call sites cause a deadlock
+    //(e.g. one site locks some object before opening connection; another incorrectly locks same object after opening connection)
+    //in case of timeout we'll fall through and let sqlite_busy retry handler sort it out
+    private static boolean tryLock(ReentrantLock lock) {
+        long timeoutSecs = 180;
+        try {
+            return lock.tryLock(timeoutSecs, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            return false;
+        }
+    }
+
     private boolean checkLockMap(int mboxId) {
         for (Entry<Integer, ReentrantLock> entry : lockMap.entrySet()) {
             if (entry.getKey().intValue() != mboxId && entry.getValue().isHeldByCurrentThread()) {
@@ -371,27 +433,36 @@ public final class SQLite extends Db {
     void preOpen(Integer mboxId) {
         ZimbraLog.dbconn.trace("trying to lock mbox %d",mboxId);
         assert(checkLockMap(mboxId));
-        ReentrantLock lock = lockMap.get(mboxId);
-        if (lock == null) {
-            lock = new ReentrantLock();
-            ReentrantLock added = lockMap.putIfAbsent(mboxId, lock);
-            if (added != null) {
-                lock = added;
+        if (!tryLock(getLock(lockMap, mboxId))) {
+            ZimbraLog.dbconn.warn("Unable to get db lock for mbox %d",mboxId);
+        } else {
+            ZimbraLog.dbconn.trace("locked mbox %d",mboxId);
+        }
+    }
+
+    private boolean checkWriteLocks(DbConnection conn) {
+        for (Entry<DbConnection, ReentrantLock> entry : writeLocks.entrySet()) {
+            if (entry.getKey() != conn && entry.getValue().isHeldByCurrentThread()) {
+                ZimbraLog.dbconn.debug("already holding write lock for mbox %d", entry.getKey().mboxId);
+                return false;
             }
         }
-        boolean locked = false;
-        long timeoutSecs = 180;
-        //lock with timeout in case external call sites cause a deadlock
-        //(e.g. one site locks some object before opening connection; another incorrectly locks same object after opening connection)
-        //in case of timeout we'll fall through and let sqlite_busy retry handler sort it out
-        try {
-            locked = lock.tryLock(timeoutSecs, TimeUnit.SECONDS);
-        } catch (InterruptedException e) {
+        return true;
+    }
+
+    @Override
+    void preWrite(DbConnection conn) {
+        if (conn.mboxId == null || conn.mboxId <= 0 || writeLocks.containsKey(conn)) {
+            return;
         }
-        if (!locked) {
-            ZimbraLog.dbconn.warn("Unable to get db lock for mbox %d",mboxId);
+        assert(checkWriteLocks(conn));
+        int groupId = DbMailbox.calculateMailboxGroupId(conn.mboxId);
+        ReentrantLock lock = getLock(groupWriteLockMap, groupId);
+        if (!tryLock(lock)) {
+            ZimbraLog.dbconn.warn("Unable to get write lock for mailbox group %d",groupId);
         } else {
-            ZimbraLog.dbconn.trace("locked mbox %d",mboxId);
+            writeLocks.put(conn, lock);
+            ZimbraLog.dbconn.trace("locked mailbox group %d for writing",groupId);
         }
     }
 
@@ -453,6 +524,8 @@ public final class SQLite extends Db {
         ZimbraLog.dbconn.info("deleting database file for DB '" + dbname + "'");
         new File(getDatabaseFilename(dbname)).delete();
         new File(getDatabaseFilename(dbname) + "-journal").delete();
+        new File(getDatabaseFilename(dbname) + "-wal").delete();
+        new File(getDatabaseFilename(dbname) + "-shm").delete();
     }
 
 
@@ -574,4 +647,9 @@ public final class SQLite extends Db {
     public String limit(int offset, int limit) {
         return "LIMIT " + offset + "," + limit;
     }
+
+    @Override
+    public String limitWithVariables() {
+        return "LIMIT ?,?";
+    }
 }
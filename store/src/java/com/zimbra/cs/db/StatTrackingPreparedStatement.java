@@ -57,10 +57,29 @@ public class StatTrackingPreparedStatement implements PreparedStatement {
     private final PreparedStatement stmt;
     private String queryString;
     private ActivityTracker tracker = ZimbraPerf.SQL_TRACKER;
+    /* set for statements from a StatementCache, which get them back on close */
+    private final StatementCache cache;
+    private boolean released;
 
     public StatTrackingPreparedStatement(PreparedStatement stmt) {
         this.stmt = stmt;
+        this.cache = null;
         ZimbraPerf.incrementPrepareCount();
+        ZimbraPerf.COUNTER_SQL_PREPARE.increment();
+    }
+
+    /* Wraps a statement from a connection's StatementCache.  Only statements
+     * the database actually had to prepare count as prepares; reused ones
+     * only count when they are executed.
+     */
+    StatTrackingPreparedStatement(PreparedStatement stmt, String sql, StatementCache cache, boolean reused) {
+        this.stmt = stmt;
+        this.cache = cache;
+        setQueryString(sql);
+        ZimbraPerf.incrementPrepareCount();
+        if (!reused) {
+            ZimbraPerf.COUNTER_SQL_PREPARE.increment();
+        }
     }
 
     public StatTrackingPreparedStatement(PreparedStatement prepareStatement, String sql) {
@@ -106,6 +125,7 @@ public class StatTrackingPreparedStatement implements PreparedStatement {
     }
 
     private void trackQueryStats(String sql, long startTime) {
+        ZimbraPerf.COUNTER_SQL_EXECUTE.increment();
         if (sql != null) {
             tracker.addStat(getQueryType(sql), startTime);
         }
@@ -128,7 +148,14 @@ public class StatTrackingPreparedStatement implements PreparedStatement {
 
     @Override
     public void close() throws SQLException {
-        stmt.close();
+        if (cache != null) {
+            if (!released) {
+                released = true;
+                cache.release(queryString, stmt);
+            }
+        } else {
+            stmt.close();
+        }
     }
 
     @Override
@@ -313,7 +340,7 @@ public class StatTrackingPreparedStatement implements PreparedStatement {
 
     @Override
     public boolean isClosed() throws SQLException {
-        return stmt.isClosed();
+        return released || stmt.isClosed();
     }
 
     @Override
@@ -0,0 +1,161 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.dbcp.DelegatingConnection;
+
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.util.ZimbraLog;
+
+/**
+ * Keeps prepared statements open on a physical database connection, so that a statement prepared again with the
+ * same SQL on the same connection is reused instead of being parsed by the database again. The statements are
+ * prepared on the connection underneath the pool's wrappers, which would otherwise close them when the connection
+ * goes back to the pool, and they are closed when the pool destroys the connection.
+ * <p>
+ * Only meant for SQL built from a bounded set of shapes. Each connection keeps at most
+ * {@code zimbra_db_statement_cache_size} idle statements, least recently used first out.
+ *
+ * @see DbPool.DbConnection#prepareCachedStatement(String)
+ */
+final class StatementCache {
+
+    private static final Map<Connection, StatementCache> caches = new IdentityHashMap<Connection, StatementCache>();
+
+    private final Connection connection;
+    private final Map<String, PreparedStatement> idle;
+
+    private StatementCache(Connection connection, final int size) {
+        this.connection = connection;
+        this.idle = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                if (size() > size) {
+                    closeQuietly(eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Returns the statement cache of the physical connection under {@code conn}, or null if statement caching is
+     * disabled.
+     */
+    static StatementCache get(Connection conn) {
+        int size = LC.zimbra_db_statement_cache_size.intValue();
+        if (size <= 0) {
+            return null;
+        }
+        Connection physical = physicalConnection(conn);
+        synchronized (caches) {
+            StatementCache cache = caches.get(physical);
+            if (cache == null) {
+                cache = new StatementCache(physical, size);
+                caches.put(physical, cache);
+            }
+            return cache;
+        }
+    }
+
+    /**
+     * Closes the cached statements of a connection the pool is about to close.
+     */
+    static void discard(Connection conn) {
+        StatementCache cache;
+        synchronized (caches) {
+            cache = caches.remove(physicalConnection(conn));
+        }
+        if (cache != null) {
+            cache.clear();
+        }
+    }
+
+    private static Connection physicalConnection(Connection conn) {
+        if (conn instanceof DelegatingConnection) {
+            Connection inner = ((DelegatingConnection) conn).getInnermostDelegate();
+            if (inner != null) {
+                return inner;
+            }
+        }
+        return conn;
+    }
+
+    /**
+     * Returns an idle statement for the SQL, or prepares a new one. Closing the returned statement gives it back.
+     */
+    PreparedStatement prepare(String sql) throws SQLException {
+        PreparedStatement stmt;
+        synchronized (this) {
+            stmt = idle.remove(sql);
+        }
+        if (stmt != null) {
+            return new StatTrackingPreparedStatement(stmt, sql, this, true);
+        }
+        return new StatTrackingPreparedStatement(connection.prepareStatement(sql), sql, this, false);
+    }
+
+    /**
+     * Called when a statement from {@link #prepare(String)} is closed. Parameters and the row limit are reset so that
+     * the next user starts from a freshly prepared state.
+     */
+    void release(String sql, PreparedStatement stmt) {
+        try {
+            stmt.clearParameters();
+            if (stmt.getMaxRows() != 0) {
+                stmt.setMaxRows(0);
+            }
+        } catch (SQLException e) {
+            closeQuietly(stmt);
+            return;
+        }
+        PreparedStatement replaced;
+        synchronized (this) {
+            replaced = idle.put(sql, stmt);
+        }
+        if (replaced != null && replaced != stmt) {
+            // the same statement was in use twice at once; keep one of them
+            closeQuietly(replaced);
+        }
+    }
+
+    private synchronized void clear() {
+        for (Iterator<PreparedStatement> i = idle.values().iterator(); i.hasNext();) {
+            closeQuietly(i.next());
+            i.remove();
+        }
+    }
+
+    private static void closeQuietly(PreparedStatement stmt) {
+        try {
+            stmt.close();
+        } catch (SQLException e) {
+            ZimbraLog.sqltrace.debug("error closing cached statement", e);
+        }
+    }
+}
@@ -40,6 +40,7 @@ public abstract class EphemeralStore {
     protected AttributeEncoder encoder;
     static {
         factories.put("ldap", LdapEphemeralStore.Factory.class.getName());
+        factories.put("file", FileEphemeralStore.Factory.class.getName());
     }
 
     /**
@@ -196,6 +197,9 @@ public abstract class EphemeralStore {
             ZimbraLog.ephemeral.debug("using ephemeral store factory %s", factoryClass.getDeclaringClass().getSimpleName());
         } catch (InstantiationException | IllegalAccessException e) {
             handleFailure(onFailure, String.format("unable to initialize EphemeralsStore factory %s", factoryClass.getDeclaringClass().getSimpleName()), e);
+        } catch (IllegalStateException e) {
+            // the factory could not open its store
+            handleFailure(onFailure, String.format("unable to open ephemeral store of factory %s", factoryClass.getDeclaringClass().getSimpleName()), e);
         }
     }
 
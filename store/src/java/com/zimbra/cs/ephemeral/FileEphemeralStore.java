@@ -0,0 +1,659 @@
+package com.zimbra.cs.ephemeral;
+
+import static com.zimbra.common.util.TaskUtil.newDaemonThreadFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.base.Strings;
+import com.google.common.io.Closeables;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.account.Provisioning;
+
+/**
+ * Ephemeral store kept in a local append-only log, selected with a {@code zimbraEphemeralBackendURL} of
+ * {@code file:[path]}. Every change is appended to the log, and all live values are held in an in-memory hash index,
+ * so lookups never touch the disk. The log is replayed into the index on startup.
+ * <p>
+ * Writes are synced to disk in batches every {@code ephemeral_log_sync_interval_ms}, so a crash can lose the changes
+ * of the last interval. When a write finds that the log has grown to more than twice the size of the live values, or
+ * that an hour has passed since it was last compacted, the log is rewritten in the background with only the values
+ * that have not expired.
+ * <p>
+ * The log is local to the server, so this backend is only suitable for a single mailbox server, or for data that
+ * doesn't have to be seen by the other servers.
+ */
+public class FileEphemeralStore extends EphemeralStore {
+
+    private static final String LOG_FILE = "ephemeral.log";
+    private static final byte OP_SET = 1;
+    private static final byte OP_ADD = 2;
+    private static final byte OP_REMOVE = 3;
+    private static final int MAX_RECORD_SIZE = 16 * 1024 * 1024;
+    private static final long COMPACT_INTERVAL_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    private static final class Value {
+        final String encoded;
+        final long expires; // 0 if never
+        final int size; // of the record that added it, in bytes
+
+        Value(String encoded, long expires, int size) {
+            this.encoded = encoded;
+            this.expires = expires;
+            this.size = size;
+        }
+    }
+
+    /** a value and its key, as held in the index when a compaction started */
+    private static final class Snapshot {
+        final String key;
+        final Value value;
+
+        Snapshot(String key, Value value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    private final File dir;
+    private final File logFile;
+    private final long syncIntervalMillis;
+    private final long compactMinBytes;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    /** held for the whole of a compaction, so that only one runs at a time */
+    private final Object compactLock = new Object();
+    /** location and encoded key, joined by a NUL, to the values of the key in the order they were added */
+    private final Map<String, List<Value>> index = new HashMap<String, List<Value>>();
+    private FileOutputStream file;
+    private DataOutputStream out;
+    private long logBytes;
+    private long liveBytes;
+    private long lastCompacted = System.currentTimeMillis();
+    private boolean dirty;
+    private boolean compactPending;
+    private ScheduledExecutorService background;
+
+    @VisibleForTesting
+    FileEphemeralStore(File dir, long syncIntervalMillis, long compactMinBytes) throws IOException {
+        this.dir = dir;
+        this.logFile = new File(dir, LOG_FILE);
+        this.syncIntervalMillis = syncIntervalMillis;
+        this.compactMinBytes = compactMinBytes;
+        setAttributeEncoder(new DynamicExpirationEncoder());
+        open();
+    }
+
+    private void open() throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("unable to create directory " + dir);
+        }
+        replay();
+        file = new FileOutputStream(logFile, true);
+        out = new DataOutputStream(new BufferedOutputStream(file, 64 * 1024));
+        background = Executors.newSingleThreadScheduledExecutor(newDaemonThreadFactory("EphemeralLog"));
+        if (syncIntervalMillis > 0) {
+            background.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        sync();
+                    } catch (IOException e) {
+                        ZimbraLog.ephemeral.error("unable to sync ephemeral log %s", logFile, e);
+                    } catch (RuntimeException e) {
+                        ZimbraLog.ephemeral.error("unexpected error syncing ephemeral log %s", logFile, e);
+                    }
+                }
+            }, syncIntervalMillis, syncIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Rebuilds the index from the log. A record cut short by a crash ends the log; it is truncated there.
+     */
+    private void replay() throws IOException {
+        if (!logFile.exists()) {
+            return;
+        }
+        long valid = 0;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(logFile), 64 * 1024));
+        try {
+            CRC32 crc = new CRC32();
+            while (true) {
+                int len;
+                try {
+                    len = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (len <= 0 || len > MAX_RECORD_SIZE) {
+                    break;
+                }
+                long checksum;
+                byte[] record = new byte[len];
+                try {
+                    checksum = in.readLong();
+                    in.readFully(record);
+                } catch (EOFException e) {
+                    break;
+                }
+                crc.reset();
+                crc.update(record);
+                if (crc.getValue() != checksum) {
+                    break;
+                }
+                apply(record, 12 + len);
+                valid += 12 + len;
+            }
+        } finally {
+            Closeables.closeQuietly(in);
+        }
+        if (valid < logFile.length()) {
+            ZimbraLog.ephemeral.warn("truncating ephemeral log %s from %d to %d bytes after an incomplete record",
+                    logFile, logFile.length(), valid);
+            RandomAccessFile raf = new RandomAccessFile(logFile, "rw");
+            try {
+                raf.setLength(valid);
+            } finally {
+                raf.close();
+            }
+        }
+        logBytes = valid;
+        ZimbraLog.ephemeral.info("loaded %d ephemeral keys from %s", index.size(), logFile);
+    }
+
+    private void apply(byte[] record, int size) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        byte op = in.readByte();
+        String key = readString(in);
+        String value = readString(in);
+        long expires = in.readLong();
+        switch (op) {
+            case OP_SET:
+                removeAll(key);
+                add(key, value, expires, size);
+                break;
+            case OP_ADD:
+                add(key, value, expires, size);
+                break;
+            case OP_REMOVE:
+                remove(key, value);
+                break;
+            default:
+                throw new IOException("unknown ephemeral log record " + op);
+        }
+    }
+
+    private void add(String key, String value, long expires, int size) {
+        List<Value> values = index.get(key);
+        if (values == null) {
+            values = new ArrayList<Value>(1);
+            index.put(key, values);
+        } else {
+            remove(key, value); // like a multi-valued attribute, a value is only held once
+        }
+        values.add(new Value(value, expires, size));
+        liveBytes += size;
+    }
+
+    private void remove(String key, String value) {
+        List<Value> values = index.get(key);
+        if (values == null) {
+            return;
+        }
+        for (Iterator<Value> i = values.iterator(); i.hasNext();) {
+            Value v = i.next();
+            if (v.encoded.equals(value)) {
+                i.remove();
+                liveBytes -= v.size;
+                break;
+            }
+        }
+        if (values.isEmpty()) {
+            index.remove(key);
+        }
+    }
+
+    private void removeAll(String key) {
+        List<Value> values = index.remove(key);
+        if (values != null) {
+            for (Value v : values) {
+                liveBytes -= v.size;
+            }
+        }
+    }
+
+    /**
+     * @return the size of the record written, in bytes
+     */
+    private int append(DataOutputStream dest, byte op, String key, String value, long expires) throws IOException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream(64 + key.length() + value.length());
+        DataOutputStream record = new DataOutputStream(buf);
+        record.writeByte(op);
+        writeString(record, key);
+        writeString(record, value);
+        record.writeLong(expires);
+        byte[] bytes = buf.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        dest.writeInt(bytes.length);
+        dest.writeLong(crc.getValue());
+        dest.write(bytes);
+        return 12 + bytes.length;
+    }
+
+    private static void writeString(DataOutputStream out, String str) throws IOException {
+        byte[] bytes = str.getBytes(Charsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, Charsets.UTF_8);
+    }
+
+    /**
+     * Appends a change to the log and applies it to the index. Must be called with the write lock held.
+     */
+    private void write(byte op, String key, String value, long expires) throws ServiceException {
+        if (out == null) {
+            throw ServiceException.FAILURE("ephemeral log " + logFile + " is closed", null);
+        }
+        int size;
+        try {
+            size = append(out, op, key, value, expires);
+            logBytes += size;
+            if (syncIntervalMillis <= 0) {
+                out.flush();
+                file.getChannel().force(false);
+            } else {
+                dirty = true;
+            }
+        } catch (IOException e) {
+            throw ServiceException.FAILURE("unable to write to ephemeral log " + logFile, e);
+        }
+        switch (op) {
+            case OP_SET:
+                removeAll(key);
+                add(key, value, expires, size);
+                break;
+            case OP_ADD:
+                add(key, value, expires, size);
+                break;
+            case OP_REMOVE:
+                remove(key, value);
+                break;
+        }
+        if (!compactPending && shouldCompact()) {
+            compactPending = true;
+            try {
+                scheduleCompaction();
+            } catch (RejectedExecutionException e) {
+                compactPending = false; // closing
+            }
+        }
+    }
+
+    private void scheduleCompaction() {
+        background.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    compact();
+                } catch (IOException e) {
+                    ZimbraLog.ephemeral.error("unable to compact ephemeral log %s", logFile, e);
+                } catch (RuntimeException e) {
+                    ZimbraLog.ephemeral.error("unexpected error compacting ephemeral log %s", logFile, e);
+                } finally {
+                    lock.writeLock().lock();
+                    try {
+                        compactPending = false;
+                    } finally {
+                        lock.writeLock().unlock();
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Flushes buffered changes and forces them to disk.
+     */
+    @VisibleForTesting
+    void sync() throws IOException {
+        FileChannel channel;
+        lock.writeLock().lock();
+        try {
+            if (!dirty || out == null) {
+                return;
+            }
+            out.flush();
+            dirty = false;
+            channel = file.getChannel();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        try {
+            channel.force(false); // outside the lock, writers only need the flush to be ordered
+        } catch (ClosedChannelException e) {
+            // compacted or closed in the meantime, which synced the data
+        }
+    }
+
+    /**
+     * Must be called with the lock held.
+     */
+    private boolean shouldCompact() {
+        return logBytes > compactMinBytes &&
+                (logBytes > liveBytes * 2 || System.currentTimeMillis() - lastCompacted > COMPACT_INTERVAL_MILLIS);
+    }
+
+    /**
+     * Drops expired values and rewrites the log with what is left. The values are written out without holding the
+     * lock; the changes logged in the meantime are then copied after them under the lock, and the new log replaces
+     * the old one.
+     */
+    @VisibleForTesting
+    void compact() throws IOException {
+        synchronized (compactLock) {
+            long now = System.currentTimeMillis();
+            List<Snapshot> snapshot = new ArrayList<Snapshot>();
+            long before;
+            lock.writeLock().lock();
+            try {
+                if (out == null) {
+                    return;
+                }
+                for (Iterator<Map.Entry<String, List<Value>>> i = index.entrySet().iterator(); i.hasNext();) {
+                    Map.Entry<String, List<Value>> entry = i.next();
+                    for (Iterator<Value> j = entry.getValue().iterator(); j.hasNext();) {
+                        Value v = j.next();
+                        if (v.expires > 0 && v.expires < now) {
+                            j.remove();
+                            liveBytes -= v.size;
+                        } else {
+                            snapshot.add(new Snapshot(entry.getKey(), v));
+                        }
+                    }
+                    if (entry.getValue().isEmpty()) {
+                        i.remove();
+                    }
+                }
+                out.flush();
+                before = logBytes;
+            } finally {
+                lock.writeLock().unlock();
+            }
+
+            File tmp = new File(dir, LOG_FILE + ".compact");
+            FileOutputStream tmpFile = new FileOutputStream(tmp);
+            DataOutputStream tmpOut = new DataOutputStream(new BufferedOutputStream(tmpFile, 64 * 1024));
+            boolean renamed = false;
+            try {
+                long written = 0;
+                for (Snapshot entry : snapshot) {
+                    written += append(tmpOut, OP_ADD, entry.key, entry.value.encoded, entry.value.expires);
+                }
+                tmpOut.flush();
+                tmpFile.getChannel().force(false);
+
+                lock.writeLock().lock();
+                try {
+                    if (out == null) {
+                        return;
+                    }
+                    // the changes logged since the snapshot replay after it
+                    out.flush();
+                    long tail = logBytes - before;
+                    if (tail > 0) {
+                        FileChannel src = new FileInputStream(logFile).getChannel();
+                        try {
+                            for (long pos = before; pos < logBytes;) {
+                                pos += src.transferTo(pos, logBytes - pos, tmpFile.getChannel());
+                            }
+                        } finally {
+                            Closeables.closeQuietly(src);
+                        }
+                        written += tail;
+                        tmpFile.getChannel().force(false);
+                    }
+                    tmpOut.close();
+                    out.close();
+                    out = null;
+                    try {
+                        if (!tmp.renameTo(logFile)) {
+                            throw new IOException("unable to rename " + tmp + " to " + logFile);
+                        }
+                        renamed = true;
+                        logBytes = written;
+                        dirty = false;
+                        lastCompacted = now;
+                    } finally {
+                        // keep accepting writes, after a failed compaction too
+                        file = new FileOutputStream(logFile, true);
+                        out = new DataOutputStream(new BufferedOutputStream(file, 64 * 1024));
+                    }
+                    ZimbraLog.ephemeral.info("compacted ephemeral log %s from %d to %d bytes", logFile,
+                            before + tail, written);
+                } finally {
+                    lock.writeLock().unlock();
+                }
+            } finally {
+                Closeables.closeQuietly(tmpOut);
+                if (!renamed) {
+                    tmp.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the size of the records that hold the live values, in bytes
+     */
+    @VisibleForTesting
+    long getLiveBytes() {
+        lock.readLock().lock();
+        try {
+            return liveBytes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    void close() {
+        background.shutdown();
+        lock.writeLock().lock();
+        try {
+            if (out != null) {
+                out.flush();
+                file.getChannel().force(false);
+                out.close();
+            }
+        } catch (IOException e) {
+            ZimbraLog.ephemeral.error("unable to close ephemeral log %s", logFile, e);
+        } finally {
+            out = null;
+            lock.writeLock().unlock();
+        }
+    }
+
+    private String indexKey(String encodedKey, EphemeralLocation target) {
+        return Joiner.on("|").join(target.getLocation()) + '\0' + encodedKey;
+    }
+
+    private List<String> getValues(String key) {
+        lock.readLock().lock();
+        try {
+            List<Value> values = index.get(key);
+            if (values == null) {
+                return new ArrayList<String>(0);
+            }
+            List<String> result = new ArrayList<String>(values.size());
+            for (Value v : values) {
+                result.add(v.encoded);
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private static long expiration(EphemeralInput input) {
+        Long expires = input.getExpiration();
+        return expires != null && expires > 0 ? expires : 0;
+    }
+
+    @Override
+    public EphemeralResult get(EphemeralKey key, EphemeralLocation target) throws ServiceException {
+        List<String> values = getValues(indexKey(encodeKey(key, target), target));
+        return new DynamicResultsHelper(key, target, encoder, null).get(values);
+    }
+
+    @Override
+    public void set(EphemeralInput input, EphemeralLocation target) throws ServiceException {
+        String key = indexKey(encodeKey(input, target), target);
+        String value = encodeValue(input, target);
+        lock.writeLock().lock();
+        try {
+            write(OP_SET, key, value, expiration(input));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void update(EphemeralInput input, EphemeralLocation target) throws ServiceException {
+        String key = indexKey(encodeKey(input, target), target);
+        String value = encodeValue(input, target);
+        lock.writeLock().lock();
+        try {
+            write(OP_ADD, key, value, expiration(input));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void delete(EphemeralKey key, String valueToDelete, EphemeralLocation target) throws ServiceException {
+        String indexKey = indexKey(encodeKey(key, target), target);
+        List<String> toDelete = new DynamicResultsHelper(key, target, encoder, null).delete(
+                getValues(indexKey), valueToDelete);
+        removeValues(indexKey, toDelete);
+    }
+
+    @Override
+    public void purgeExpired(EphemeralKey key, EphemeralLocation target) throws ServiceException {
+        String indexKey = indexKey(encodeKey(key, target), target);
+        List<String> purged = new DynamicResultsHelper(key, target, encoder, null, true).purge(getValues(indexKey));
+        removeValues(indexKey, purged);
+    }
+
+    private void removeValues(String indexKey, List<String> values) throws ServiceException {
+        if (values.isEmpty()) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            for (String v : values) {
+                write(OP_REMOVE, indexKey, v, 0);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean has(EphemeralKey key, EphemeralLocation target) throws ServiceException {
+        List<String> values = getValues(indexKey(encodeKey(key, target), target));
+        return new DynamicResultsHelper(key, target, encoder, null).has(values);
+    }
+
+    /**
+     * Returns the log directory named by a {@code file:[//]path} URL, or the default one if it has no path.
+     */
+    static File getDirectory(String url) {
+        String path = url == null ? null : url.substring(url.indexOf(':') + 1);
+        if (path != null && path.startsWith("//")) {
+            path = path.substring(2);
+        }
+        return new File(Strings.isNullOrEmpty(path) ? LC.ephemeral_log_directory.value() : path);
+    }
+
+    public static class Factory implements EphemeralStore.Factory {
+
+        private static FileEphemeralStore instance;
+
+        /**
+         * @throws IllegalStateException if the log can't be opened
+         */
+        @Override
+        public EphemeralStore getStore() {
+            synchronized (Factory.class) {
+                if (instance == null) {
+                    File dir = null;
+                    try {
+                        dir = getDirectory(Provisioning.getInstance().getConfig().getEphemeralBackendURL());
+                        instance = new FileEphemeralStore(dir, LC.ephemeral_log_sync_interval_ms.longValue(),
+                                LC.ephemeral_log_compact_min_bytes.longValue());
+                    } catch (ServiceException e) {
+                        throw new IllegalStateException("unable to read ephemeral backend URL", e);
+                    } catch (IOException e) {
+                        throw new IllegalStateException("unable to open ephemeral log in " + dir, e);
+                    }
+                }
+                return instance;
+            }
+        }
+
+        @Override
+        public void startup() {}
+
+        @Override
+        public void shutdown() {
+            synchronized (Factory.class) {
+                if (instance != null) {
+                    instance.close();
+                    instance = null;
+                }
+            }
+        }
+
+        @Override
+        public void test(String url) throws ServiceException {
+            File dir = getDirectory(url);
+            if (!(dir.isDirectory() || dir.mkdirs()) || !dir.canWrite()) {
+                throw ServiceException.FAILURE("ephemeral log directory " + dir + " is not writable", null);
+            }
+        }
+    }
+}
@@ -0,0 +1,582 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.gal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.CharMatcher;
+import com.google.common.collect.Lists;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.stats.RealtimeStatsCallback;
+import com.zimbra.common.util.Constants;
+import com.zimbra.common.util.Pair;
+import com.zimbra.common.util.ThreadPool;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.account.Account;
+import com.zimbra.cs.account.DataSource;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.index.analysis.AddrCharTokenizer;
+import com.zimbra.cs.index.analysis.ContactTokenFilter;
+import com.zimbra.cs.index.analysis.HalfwidthKanaVoicedMappingFilter;
+import com.zimbra.cs.mailbox.Contact;
+import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.mailbox.MailServiceException;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.mailbox.OperationContext;
+import com.zimbra.cs.mailbox.util.TypedIdList;
+import com.zimbra.cs.mime.ParsedContact;
+import com.zimbra.cs.stats.ZimbraPerf;
+import com.zimbra.soap.admin.type.DataSourceType;
+import com.zimbra.soap.type.GalSearchType;
+
+/**
+ * Memory-resident index of the contacts in a GAL sync account, used to answer
+ * GAL autocomplete without a Lucene search.
+ * <p>
+ * Contacts are tokenized the same way as the {@code contact:} index field, and
+ * a query matches the same way as a {@code contact:} search: each query token
+ * is a prefix, and multiple tokens must appear in order. All terms are kept in
+ * one sorted array, so a prefix lookup is a binary search, and each posting
+ * list is a delta-encoded byte array. Entries are ordered by name, so matches
+ * come out sorted.
+ * <p>
+ * The index is built in the background on first use. After that it catches
+ * up with the GAL sync mailbox by applying the items modified since the last
+ * change it saw, the same way a client syncs with a {@link GalSyncToken}.
+ * Searches never wait for a refresh; they use the latest complete snapshot.
+ * <p>
+ * Only GAL sync accounts are indexed. Domains without one still search LDAP
+ * for each request, since their entries have no mailbox to catch up with. The
+ * index does not hold group members either, so group searches go through the
+ * regular search.
+ */
+final class GalMemoryIndex {
+
+    private static final ConcurrentMap<String, GalMemoryIndex> INDEXES = new ConcurrentHashMap<String, GalMemoryIndex>();
+    private static final ThreadPool REFRESH_POOL = new ThreadPool("GalMemoryIndex", 2);
+
+    private static final int LOAD_BATCH_SIZE = 500;
+    // How long to wait before trying again to index a GAL that was too large
+    private static final long TOO_LARGE_RETRY = Constants.MILLIS_PER_HOUR;
+
+    private static final String RESOURCE = "RESOURCE";
+
+    enum Kind {
+        ACCOUNT, RESOURCE, GROUP;
+
+        boolean matches(GalSearchType type) {
+            switch (type) {
+                case resource:
+                    return this == RESOURCE;
+                case group:
+                    return this == GROUP;
+                case account:
+                    return this != RESOURCE;
+                default:
+                    return true;
+            }
+        }
+    }
+
+    static final class Entry {
+        final int id;
+        final int folderId;
+        final Kind kind;
+        final String sortKey;
+        final String[] tokens;
+
+        Entry(int id, int folderId, Kind kind, String sortKey, String[] tokens) {
+            this.id = id;
+            this.folderId = folderId;
+            this.kind = kind;
+            this.sortKey = sortKey;
+            this.tokens = tokens;
+        }
+
+        /**
+         * Returns whether the query tokens are prefixes of consecutive tokens of this entry.
+         */
+        boolean matchesPhrase(List<String> query) {
+            for (int i = 0; i + query.size() <= tokens.length; i++) {
+                int j = 0;
+                while (j < query.size() && tokens[i + j].startsWith(query.get(j))) {
+                    j++;
+                }
+                if (j == query.size()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    static final class Result {
+        final List<Entry> hits;
+        final boolean hasMore;
+
+        Result(List<Entry> hits, boolean hasMore) {
+            this.hits = hits;
+            this.hasMore = hasMore;
+        }
+    }
+
+    private static final Comparator<Entry> SORT_ORDER = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry e1, Entry e2) {
+            int result = e1.sortKey.compareTo(e2.sortKey);
+            return result != 0 ? result : (e1.id < e2.id ? -1 : (e1.id == e2.id ? 0 : 1));
+        }
+    };
+
+    /**
+     * Immutable view of the index that searches run against.
+     */
+    @VisibleForTesting
+    static final class Snapshot {
+        final int mailboxId;
+        final int changeId;
+        final long timestamp;
+        final Entry[] entries;
+        final String[] terms;
+        final byte[][] postings;
+        final long memoryBytes;
+
+        Snapshot(int mailboxId, int changeId, Collection<Entry> all) {
+            this.mailboxId = mailboxId;
+            this.changeId = changeId;
+            this.timestamp = System.currentTimeMillis();
+            entries = all.toArray(new Entry[all.size()]);
+            Arrays.sort(entries, SORT_ORDER);
+
+            Map<String, List<Integer>> index = new HashMap<String, List<Integer>>();
+            long bytes = 0;
+            for (int i = 0; i < entries.length; i++) {
+                Entry entry = entries[i];
+                bytes += 64 + 2L * entry.sortKey.length() + 4L * entry.tokens.length;
+                for (String token : entry.tokens) {
+                    List<Integer> positions = index.get(token);
+                    if (positions == null) {
+                        positions = new ArrayList<Integer>(1);
+                        index.put(token, positions);
+                    }
+                    // entries are visited in order, so positions stay sorted
+                    if (positions.isEmpty() || positions.get(positions.size() - 1) != i) {
+                        positions.add(i);
+                    }
+                }
+            }
+            terms = index.keySet().toArray(new String[index.size()]);
+            Arrays.sort(terms);
+            postings = new byte[terms.length][];
+            for (int t = 0; t < terms.length; t++) {
+                postings[t] = encode(index.get(terms[t]));
+                bytes += 56 + 2L * terms[t].length() + 16 + postings[t].length;
+            }
+            memoryBytes = bytes;
+        }
+
+        /**
+         * Returns the positions of the entries that have a token starting with the prefix.
+         */
+        BitSet prefixMatch(String prefix) {
+            BitSet result = new BitSet(entries.length);
+            int t = Arrays.binarySearch(terms, prefix);
+            if (t < 0) {
+                t = -t - 1;
+            }
+            for (; t < terms.length && terms[t].startsWith(prefix); t++) {
+                decode(postings[t], result);
+            }
+            return result;
+        }
+    }
+
+    private final String accountId;
+    private final AtomicBoolean refreshPending = new AtomicBoolean();
+    private volatile Snapshot snapshot;
+
+    // state used by refresh(), which only runs on one thread at a time
+    private final Map<Integer, Entry> entries = new HashMap<Integer, Entry>();
+    private int mailboxId;
+    private int changeId;
+    // refreshes are held off until then once the GAL was too large to index
+    private volatile long tooLargeUntil;
+
+    static {
+        ZimbraPerf.addStatsCallback(new RealtimeStatsCallback() {
+            @Override
+            public Map<String, Object> getStatData() {
+                return getStats();
+            }
+        });
+    }
+
+    @VisibleForTesting
+    GalMemoryIndex(String accountId) {
+        this.accountId = accountId;
+    }
+
+    static boolean isEnabled() {
+        return LC.gal_memory_index_enabled.booleanValue();
+    }
+
+    static GalMemoryIndex getInstance(Account galAcct) {
+        GalMemoryIndex index = INDEXES.get(galAcct.getId());
+        if (index == null) {
+            index = new GalMemoryIndex(galAcct.getId());
+            GalMemoryIndex existing = INDEXES.putIfAbsent(galAcct.getId(), index);
+            if (existing != null) {
+                index = existing;
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Searches the index, and queues a refresh if the GAL sync mailbox has
+     * changed since the index was last refreshed.
+     *
+     * @param folderIds GAL data source folders to return contacts from
+     * @param limit maximum number of results, or <tt>0</tt> for no limit
+     * @return the matching entries sorted by name, or <tt>null</tt> if the
+     *  index is not available and the caller should fall back to a regular search
+     */
+    Result search(Mailbox mbox, String query, Set<Integer> folderIds, GalSearchType type, int limit) {
+        Snapshot snap = snapshot;
+        if (snap == null || snap.mailboxId != mbox.getId() || snap.changeId != mbox.getLastChangeID()) {
+            scheduleRefresh();
+        }
+        if (snap == null || snap.mailboxId != mbox.getId()) {
+            return null;
+        }
+        return search(snap, query, folderIds, type, limit);
+    }
+
+    @VisibleForTesting
+    static Result search(Snapshot snap, String query, Set<Integer> folderIds, GalSearchType type, int limit) {
+        List<String> tokens = tokenize(query, true);
+        if (tokens.isEmpty()) {
+            return null;
+        }
+        BitSet matches = null;
+        for (String token : tokens) {
+            BitSet bits = snap.prefixMatch(token);
+            if (matches == null) {
+                matches = bits;
+            } else {
+                matches.and(bits);
+            }
+            if (matches.isEmpty()) {
+                break;
+            }
+        }
+        List<Entry> hits = new ArrayList<Entry>();
+        boolean hasMore = false;
+        for (int i = matches.nextSetBit(0); i >= 0; i = matches.nextSetBit(i + 1)) {
+            Entry entry = snap.entries[i];
+            if (!folderIds.contains(entry.folderId) || !entry.kind.matches(type) ||
+                    (tokens.size() > 1 && !entry.matchesPhrase(tokens))) {
+                continue;
+            }
+            if (limit > 0 && hits.size() == limit) {
+                hasMore = true;
+                break;
+            }
+            hits.add(entry);
+        }
+        return new Result(hits, hasMore);
+    }
+
+    int getSize() {
+        Snapshot snap = snapshot;
+        return snap != null ? snap.entries.length : 0;
+    }
+
+    /**
+     * Returns the approximate memory used by the current snapshot, in bytes.
+     */
+    long getMemoryBytes() {
+        Snapshot snap = snapshot;
+        return snap != null ? snap.memoryBytes : 0;
+    }
+
+    /**
+     * Returns the number of milliseconds since the snapshot was last refreshed,
+     * or <tt>-1</tt> if the index has not been built.
+     */
+    long getStaleness() {
+        Snapshot snap = snapshot;
+        return snap != null ? System.currentTimeMillis() - snap.timestamp : -1;
+    }
+
+    /**
+     * Returns the realtime stats of all the GAL memory indexes: their total
+     * number of entries and memory, and the staleness of the least recently
+     * refreshed one.
+     */
+    @VisibleForTesting
+    static Map<String, Object> getStats() {
+        int size = 0;
+        long memoryBytes = 0;
+        long staleness = -1;
+        for (GalMemoryIndex index : INDEXES.values()) {
+            size += index.getSize();
+            memoryBytes += index.getMemoryBytes();
+            staleness = Math.max(staleness, index.getStaleness());
+        }
+        Map<String, Object> data = new HashMap<String, Object>();
+        data.put(ZimbraPerf.RTS_GAL_MEMORY_INDEX_SIZE, size);
+        data.put(ZimbraPerf.RTS_GAL_MEMORY_INDEX_BYTES, memoryBytes);
+        data.put(ZimbraPerf.RTS_GAL_MEMORY_INDEX_STALENESS, staleness);
+        return data;
+    }
+
+    @VisibleForTesting
+    boolean isRefreshAllowed(long now) {
+        return now >= tooLargeUntil;
+    }
+
+    /**
+     * Returns whether a GAL with this many entries can be indexed. If it can't,
+     * refreshes are held off for {@link #TOO_LARGE_RETRY}.
+     */
+    @VisibleForTesting
+    boolean checkSize(int count, long now) {
+        if (count <= LC.gal_memory_index_max_entries.intValue()) {
+            return true;
+        }
+        tooLargeUntil = now + TOO_LARGE_RETRY;
+        snapshot = null;
+        return false;
+    }
+
+    private void scheduleRefresh() {
+        if (!isRefreshAllowed(System.currentTimeMillis()) || !refreshPending.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            REFRESH_POOL.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        refresh();
+                    } catch (Throwable t) {
+                        ZimbraLog.gal.warn("Unable to refresh GAL memory index for %s", accountId, t);
+                    } finally {
+                        refreshPending.set(false);
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            refreshPending.set(false);
+            throw e;
+        }
+    }
+
+    private void refresh() throws ServiceException {
+        Account galAcct = Provisioning.getInstance().getAccountById(accountId);
+        if (galAcct == null) {
+            INDEXES.remove(accountId);
+            return;
+        }
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccount(galAcct);
+        int lastChange = mbox.getLastChangeID();
+        Snapshot snap = snapshot;
+        if (snap != null && snap.mailboxId == mbox.getId() && snap.changeId == lastChange) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        OperationContext octxt = new OperationContext(mbox);
+        Set<Integer> folderIds = getGalFolderIds(galAcct);
+        String[] emailFields = Contact.getEmailFields(galAcct);
+
+        boolean full = snap == null || mailboxId != mbox.getId();
+        if (!full) {
+            try {
+                applyChanges(mbox, octxt, folderIds, emailFields);
+            } catch (ServiceException e) {
+                // e.g. the tombstones have expired
+                ZimbraLog.gal.info("Unable to apply GAL changes for %s to memory index, rebuilding: %s",
+                        accountId, e.getMessage());
+                full = true;
+            }
+        }
+        if (full) {
+            entries.clear();
+            mailboxId = mbox.getId();
+            List<Integer> ids = mbox.getModifiedItems(octxt, 0, 0, MailItem.Type.CONTACT, folderIds, -1, 0).getFirst();
+            if (!checkSize(ids.size(), System.currentTimeMillis())) {
+                ZimbraLog.gal.info("GAL %s has %d entries, more than gal_memory_index_max_entries; not indexing in memory",
+                        accountId, ids.size());
+                return;
+            }
+            load(mbox, octxt, ids, emailFields);
+        }
+        changeId = lastChange;
+        snap = new Snapshot(mailboxId, changeId, entries.values());
+        snapshot = snap;
+        ZimbraLog.gal.info("%s GAL memory index for %s: entries=%d terms=%d memory=%dKB change=%d time=%dms",
+                full ? "Built" : "Refreshed", accountId, snap.entries.length, snap.terms.length,
+                snap.memoryBytes / 1024, changeId, System.currentTimeMillis() - start);
+    }
+
+    private void applyChanges(Mailbox mbox, OperationContext octxt, Set<Integer> folderIds, String[] emailFields)
+            throws ServiceException {
+        Pair<List<Integer>, TypedIdList> changed =
+                mbox.getModifiedItems(octxt, changeId, 0, MailItem.Type.CONTACT, folderIds, -1, 0);
+        // items moved out of the GAL folders
+        for (int id : changed.getSecond().getAllIds()) {
+            entries.remove(id);
+        }
+        for (int id : mbox.getTombstones(changeId).getAllIds()) {
+            entries.remove(id);
+        }
+        load(mbox, octxt, changed.getFirst(), emailFields);
+    }
+
+    private void load(Mailbox mbox, OperationContext octxt, List<Integer> ids, String[] emailFields)
+            throws ServiceException {
+        for (List<Integer> batch : Lists.partition(ids, LOAD_BATCH_SIZE)) {
+            MailItem[] items;
+            try {
+                items = mbox.getItemById(octxt, batch, MailItem.Type.CONTACT);
+            } catch (MailServiceException.NoSuchItemException e) {
+                // deleted while loading; fall back to loading one at a time
+                items = new MailItem[batch.size()];
+                for (int i = 0; i < items.length; i++) {
+                    try {
+                        items[i] = mbox.getItemById(octxt, batch.get(i), MailItem.Type.CONTACT);
+                    } catch (MailServiceException.NoSuchItemException nsie) {
+                        entries.remove(batch.get(i));
+                    }
+                }
+            }
+            for (MailItem item : items) {
+                if (item instanceof Contact) {
+                    Entry entry = toEntry((Contact) item, emailFields);
+                    entries.put(entry.id, entry);
+                }
+            }
+        }
+    }
+
+    private static Entry toEntry(Contact contact, String[] emailFields) {
+        Map<String, String> fields = contact.getAllFields();
+        Kind kind = Kind.ACCOUNT;
+        if (contact.isGroup()) {
+            kind = Kind.GROUP;
+        } else if (RESOURCE.equals(fields.get(Provisioning.A_zimbraAccountCalendarUserType))) {
+            kind = Kind.RESOURCE;
+        }
+        List<String> tokens = tokenize(ParsedContact.getContactSearchText(emailFields, fields), false);
+        return new Entry(contact.getId(), contact.getFolderId(), kind, contact.getSortSender().toUpperCase(),
+                tokens.toArray(new String[tokens.size()]));
+    }
+
+    private static Set<Integer> getGalFolderIds(Account galAcct) throws ServiceException {
+        Set<Integer> folderIds = new HashSet<Integer>();
+        for (DataSource ds : galAcct.getAllDataSources()) {
+            if (ds.getType() == DataSourceType.gal) {
+                folderIds.add(ds.getFolderId());
+            }
+        }
+        return folderIds;
+    }
+
+    /**
+     * Tokenizes text the same way as the {@code contact:} index field.
+     *
+     * @param query whether the text is a search query rather than contact data
+     */
+    @VisibleForTesting
+    static List<String> tokenize(String text, boolean query) {
+        List<String> tokens = new ArrayList<String>();
+        StringReader reader = new StringReader(text);
+        TokenStream stream = new ContactTokenFilter(new AddrCharTokenizer(
+                query ? new HalfwidthKanaVoicedMappingFilter(reader) : reader));
+        CharTermAttribute termAttr = stream.addAttribute(CharTermAttribute.class);
+        try {
+            stream.reset();
+            while (stream.incrementToken()) {
+                String token = query ? CharMatcher.is('*').trimTrailingFrom(termAttr) : termAttr.toString();
+                if (!token.isEmpty()) {
+                    tokens.add(token);
+                }
+            }
+            stream.end();
+            stream.close();
+        } catch (IOException e) { // should never happen
+            ZimbraLog.gal.error("Failed to tokenize text=%s", text);
+        }
+        return tokens;
+    }
+
+    @VisibleForTesting
+    static byte[] encode(List<Integer> positions) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(positions.size() + 4);
+        int last = 0;
+        for (int position : positions) {
+            int delta = position - last;
+            last = position;
+            while ((delta & ~0x7F) != 0) {
+                out.write((delta & 0x7F) | 0x80);
+                delta >>>= 7;
+            }
+            out.write(delta);
+        }
+        return out.toByteArray();
+    }
+
+    @VisibleForTesting
+    static void decode(byte[] data, BitSet result) {
+        int position = 0;
+        int i = 0;
+        while (i < data.length) {
+            int delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = data[i++];
+                delta |= (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            position += delta;
+            result.set(position);
+        }
+    }
+}
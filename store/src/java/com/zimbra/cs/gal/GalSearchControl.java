@@ -25,6 +25,7 @@ import java.util.Set;
 import org.apache.commons.lang.BooleanUtils;
 import org.apache.commons.lang.StringUtils;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Strings;
 import com.google.common.io.Closeables;
 import com.zimbra.common.account.Key;
@@ -56,6 +57,7 @@ import com.zimbra.cs.httpclient.URLUtil;
 import com.zimbra.cs.index.ContactHit;
 import com.zimbra.cs.index.ResultsPager;
 import com.zimbra.cs.index.SearchParams;
+import com.zimbra.cs.index.SortBy;
 import com.zimbra.cs.index.ZimbraHit;
 import com.zimbra.cs.index.ZimbraQueryResults;
 import com.zimbra.cs.ldap.LdapUtil;
@@ -430,6 +432,8 @@ public class GalSearchControl {
                     throw new GalAccountNotConfiguredException();
             }
             generateSearchQuery(galAcct);
+            if (doMemoryIndexSearch(galAcct))
+                return;
             if (!doLocalGalAccountSearch(galAcct))
                 throw new GalAccountNotConfiguredException();
         } else {
@@ -463,6 +467,84 @@ public class GalSearchControl {
         }
     }
 
+    /**
+     * Answers autocomplete from the {@link GalMemoryIndex} of the GAL sync account.
+     *
+     * @return false if the index can't answer the request and a regular search should be done
+     */
+    private boolean doMemoryIndexSearch(Account galAcct) {
+        if (!GalMemoryIndex.isEnabled() || !isMemoryIndexSearch()) {
+            return false;
+        }
+        try {
+            Mailbox mbox = MailboxManager.getInstance().getMailboxByAccount(galAcct);
+            GalMemoryIndex.Result result = GalMemoryIndex.getInstance(galAcct).search(mbox, mParams.getQuery(),
+                    getGalFolderIds(galAcct), mParams.getType(), mParams.getLimit());
+            if (result == null) {
+                return false;
+            }
+            OperationContext octxt = new OperationContext(mbox);
+            GalSearchResultCallback callback = mParams.getResultCallback();
+            for (GalMemoryIndex.Entry entry : result.hits) {
+                Contact contact;
+                try {
+                    contact = mbox.getContactById(octxt, entry.id);
+                } catch (MailServiceException.NoSuchItemException e) {
+                    continue; // deleted since the index was refreshed
+                }
+                Element contactElem = callback.handleContact(contact);
+                if (contactElem != null)
+                    contactElem.addAttribute(MailConstants.A_SORT_FIELD, contact.getSortSender());
+            }
+            callback.setSortBy(SortBy.NAME_ASC.toString());
+            callback.setQueryOffset(0);
+            callback.setHasMoreResult(result.hasMore);
+        } catch (Exception e) {
+            ZimbraLog.gal.warn("memory index search on GalSync account failed for %s", galAcct.getId(), e);
+            mParams.getResultCallback().reset(mParams);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns whether the request can be answered from the {@link GalMemoryIndex}.
+     * Group searches are not: the index holds the groups' names and addresses
+     * but not their members, so they go through the regular search.
+     */
+    @VisibleForTesting
+    boolean isMemoryIndexSearch() {
+        if (mParams.getOp() != GalOp.autocomplete || Strings.isNullOrEmpty(mParams.getQuery()) ||
+                mParams.getSearchEntryByDn() != null || mParams.getExtraQueryCallback() != null ||
+                mParams.getType() == GalSearchType.group) {
+            return false;
+        }
+        // results come out of the index in name order
+        SearchParams searchParams = mParams.getSearchParams();
+        Element request = mParams.getRequest();
+        boolean sortSpecified = request != null && request.getAttribute(MailConstants.A_SORTBY, null) != null;
+        return searchParams.getOffset() == 0 && (!sortSpecified || searchParams.getSortBy() == SortBy.NAME_ASC);
+    }
+
+    /**
+     * Returns the GAL data source folders searched for the domain's GAL mode.
+     */
+    private Set<Integer> getGalFolderIds(Account galAcct) throws ServiceException {
+        GalMode galMode = mParams.getDomain().getGalMode();
+        Set<Integer> folderIds = new HashSet<Integer>();
+        for (DataSource ds : galAcct.getAllDataSources()) {
+            if (ds.getType() != DataSourceType.gal)
+                continue;
+            String galType = ds.getAttr(Provisioning.A_zimbraGalType);
+            if (galMode == GalMode.ldap && galType.compareTo("zimbra") == 0)
+                continue;
+            if (galMode == GalMode.zimbra && galType.compareTo("ldap") == 0)
+                continue;
+            folderIds.add(ds.getFolderId());
+        }
+        return folderIds;
+    }
+
     private boolean doLocalGalAccountSearch(Account galAcct) {
         ZimbraQueryResults zqr = null;
         try {
@@ -3771,7 +3771,7 @@ abstract class ImapHandler {
                     if (!fullMessage.isEmpty()) {
                         for (ImapPartSpecifier pspec : fullMessage) {
                             result.print(empty ? "" : " ");
-                            pspec.write(result, output, item);
+                            pspec.write(result, output, item, this);
                             empty = false;
                         }
                     }
@@ -30,6 +30,7 @@ import javax.mail.internet.MimeBodyPart;
 import javax.mail.internet.MimeMessage;
 import javax.mail.internet.MimePart;
 
+import com.google.common.io.Closeables;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.ByteUtil;
 import com.zimbra.common.util.Pair;
@@ -37,7 +38,10 @@ import com.zimbra.common.util.StartOutOfBoundsException;
 import com.zimbra.common.util.StringUtil;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.mailbox.Message;
 import com.zimbra.cs.mime.Mime;
+import com.zimbra.cs.stats.ZimbraPerf;
+import com.zimbra.cs.store.BlobRegion;
 
 class ImapPartSpecifier {
     static class BinaryDecodingException extends Exception {
@@ -135,6 +139,21 @@ class ImapPartSpecifier {
     }
 
     void write(PrintStream ps, OutputStream os, Object obj) throws IOException, BinaryDecodingException, ServiceException {
+        write(ps, os, obj, null);
+    }
+
+    /**
+     * @param handler if a NIO handler whose connection supports zero-copy,
+     *                uncompressed message blobs are sent through the handler
+     *                without copying them through the heap
+     */
+    void write(PrintStream ps, OutputStream os, Object obj, ImapHandler handler)
+    throws IOException, BinaryDecodingException, ServiceException {
+        if (handler instanceof NioImapHandler && os != null && obj instanceof Message && !command.startsWith("BINARY") &&
+                ((NioImapHandler) handler).isZeroCopySupported() &&
+                writeRegion(ps, os, (Message) obj, (NioImapHandler) handler)) {
+            return;
+        }
         InputStream is = null;
         try {
             Pair<Long, InputStream> contents = getContent(obj);
@@ -172,6 +191,9 @@ class ImapPartSpecifier {
                     os.write(ImapHandler.LINE_SEPARATOR_BYTES);
                     long written = ByteUtil.copy(is, false, os, false);
                     assert written == length;
+                    if (obj instanceof Message) {
+                        ZimbraPerf.COUNTER_BLOB_BUFFERED_BYTES.increment(written);
+                    }
                 }
             }
         } finally {
@@ -179,6 +201,43 @@ class ImapPartSpecifier {
         }
     }
 
+    /**
+     * Writes the message as a literal whose content goes straight from the
+     * blob file to the socket. Returns <tt>false</tt> without writing anything
+     * if the blob is not an uncompressed local file.
+     */
+    private boolean writeRegion(PrintStream ps, OutputStream os, Message msg, NioImapHandler handler)
+    throws IOException, ServiceException {
+        InputStream is = msg.getContentStream();
+        BlobRegion region = null;
+        try {
+            region = BlobRegion.open(is);
+            long size = msg.getSize();
+            if (region == null || region.getCount() != size || octetStart > size) {
+                return false;
+            }
+            long start = 0, length = size;
+            if (octetStart >= 0) {
+                start = octetStart;
+                length = Math.max(0, Math.min(size, octetEnd) - octetStart);
+            }
+            ps.print(this);
+            ps.write(' ');
+            ps.print('{');
+            ps.print(length);
+            ps.write('}');
+            os.write(ImapHandler.LINE_SEPARATOR_BYTES);
+            BlobRegion section = region.subRegion(start, length);
+            region = null; // the handler owns the channel now
+            handler.sendRegion(section);
+            ZimbraPerf.COUNTER_BLOB_ZERO_COPY_BYTES.increment(length);
+            return true;
+        } finally {
+            Closeables.closeQuietly(region);
+            ByteUtil.closeStream(is);
+        }
+    }
+
     Pair<Long, InputStream> getContent(Object obj) throws IOException, BinaryDecodingException, ServiceException {
         Pair<Long, InputStream> contents;
         if (obj instanceof MimeMessage) {
@@ -483,6 +483,19 @@ public class ImapSession extends Session {
         }
     }
 
+    /**
+     * The folder's cached state can't be brought up to date without the lost
+     * changes, so the client is disconnected and resyncs when it comes back.
+     */
+    @Override
+    public void notifyDroppedChanges(int changeId) {
+        ZimbraLog.imap.info("notifications up to change %d were dropped, closing %s", changeId, this);
+        ImapHandler i4handler = handler;
+        if (i4handler != null) {
+            i4handler.close();
+        }
+    }
+
     void handleDelete(int changeId, int id, Change chg) {
         MailItem.Type type = (MailItem.Type) chg.what;
         if (id <= 0) {
@@ -28,6 +28,7 @@ import com.zimbra.cs.server.NioConnection;
 import com.zimbra.cs.server.NioHandler;
 import com.zimbra.cs.server.NioOutputStream;
 import com.zimbra.cs.stats.ZimbraPerf;
+import com.zimbra.cs.store.BlobRegion;
 
 final class NioImapHandler extends ImapHandler implements NioHandler {
     private final ImapConfig config;
@@ -46,6 +47,24 @@ final class NioImapHandler extends ImapHandler implements NioHandler {
         return connection.getRemoteAddress().getAddress().getHostAddress();
     }
 
+    /**
+     * Returns whether {@link #sendRegion} can hand blob files to the socket
+     * directly, i.e. whether the connection neither encrypts nor otherwise
+     * transforms its output.
+     */
+    boolean isZeroCopySupported() {
+        return output instanceof NioOutputStream && ((NioOutputStream) output).isZeroCopySupported();
+    }
+
+    /**
+     * Sends a blob region to the client after the buffered output. The handler
+     * takes ownership of the region and closes it once it has been sent or has
+     * failed to send. Must only be called if {@link #isZeroCopySupported()}.
+     */
+    void sendRegion(BlobRegion region) throws IOException {
+        ((NioOutputStream) output).write(region);
+    }
+
     @Override
     public void connectionOpened() throws IOException {
         sendGreeting();
@@ -0,0 +1,116 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.index;
+
+import java.io.IOException;
+import java.util.List;
+
+import com.google.common.io.Closeables;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.cs.mailbox.Mailbox;
+
+/**
+ * Replays hits remembered by {@link SearchResultCache}. Items are loaded lazily by the hits. If the caller reads past
+ * the remembered hits, the query is executed and the rest of the hits come from its results.
+ */
+final class CachedQueryResults extends ZimbraQueryResultsImpl {
+
+    private final ZimbraQuery query;
+    private final Mailbox mailbox;
+    private final SearchResultCache.Hits hits;
+    private ZimbraQueryResults executed;
+    private int executedNext = 0; // position of the executed results
+    private int next = 0;
+
+    CachedQueryResults(ZimbraQuery query, Mailbox mbox, SearchResultCache.Hits hits) {
+        super(hits.getTypes(), hits.getSortBy(), query.getParams().getFetchMode());
+        this.query = query;
+        this.mailbox = mbox;
+        this.hits = hits;
+    }
+
+    /**
+     * Returns the executed query's results, positioned at {@link #next}.
+     */
+    private ZimbraQueryResults executed() throws ServiceException {
+        if (executed == null) {
+            executed = query.execute();
+            executedNext = 0;
+        }
+        if (executedNext != next) {
+            if (next > 0) {
+                executed.skipToHit(next - 1);
+            } else {
+                executed.resetIterator();
+            }
+            executedNext = next;
+        }
+        return executed;
+    }
+
+    @Override
+    public void resetIterator() {
+        next = 0;
+    }
+
+    @Override
+    public ZimbraHit getNext() throws ServiceException {
+        if (next < hits.size()) {
+            return hits.getHit(this, mailbox, next++);
+        } else if (hits.complete) {
+            return null;
+        }
+        // past the remembered hits: fall back to the query itself
+        ZimbraHit hit = executed().getNext();
+        if (hit != null) {
+            next++;
+            executedNext++;
+        }
+        return hit;
+    }
+
+    @Override
+    public ZimbraHit peekNext() throws ServiceException {
+        if (next < hits.size()) {
+            return hits.getHit(this, mailbox, next);
+        } else if (hits.complete) {
+            return null;
+        }
+        return executed().peekNext();
+    }
+
+    @Override
+    public ZimbraHit skipToHit(int hitNo) throws ServiceException {
+        next = hitNo;
+        return getNext();
+    }
+
+    @Override
+    public List<QueryInfo> getResultInfo() {
+        return hits.info;
+    }
+
+    @Override
+    public long getCursorOffset() {
+        return hits.cursorOffset;
+    }
+
+    @Override
+    public void close() throws IOException {
+        Closeables.close(executed, false);
+    }
+}
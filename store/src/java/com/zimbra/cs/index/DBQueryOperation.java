@@ -33,6 +33,7 @@ import org.apache.lucene.index.Term;
 
 import com.google.common.collect.ImmutableSet;
 import com.google.common.io.Closeables;
+import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.db.Db;
@@ -103,6 +104,8 @@ public class DBQueryOperation extends QueryOperation {
 
     private DbSearch.FetchMode fetch = null;
     private QueryExecuteMode executeMode = null;
+    private QueryPlanInfo plan = null;
+    private int dbFirstChunkSize = MAX_HITS_PER_CHUNK;
 
     private static enum QueryExecuteMode {
         NO_RESULTS,
@@ -506,16 +509,7 @@ public class DBQueryOperation extends QueryOperation {
                     }
 
                     if (executeMode == null) {
-                        if (hasNoResults()) {
-                            executeMode = QueryExecuteMode.NO_RESULTS;
-                        } else if (luceneOp == null) {
-                            executeMode = QueryExecuteMode.NO_LUCENE;
-                        } else if (shouldExecuteDbFirst()) {
-                            luceneOp.clearFilterClause();
-                            executeMode = QueryExecuteMode.DB_FIRST;
-                        } else {
-                            executeMode = QueryExecuteMode.LUCENE_FIRST;
-                        }
+                        chooseExecuteMode();
                     }
 
                     getNextChunk();
@@ -662,7 +656,52 @@ public class DBQueryOperation extends QueryOperation {
         long start = System.currentTimeMillis();
         results.addAll(context.getMailbox().index.search(constraints, fetch, sort, offset, size,
                 context.getParams().inDumpster()));
-        ZimbraLog.search.debug("DBSearch elapsed=%d", System.currentTimeMillis() - start);
+        long elapsed = System.currentTimeMillis() - start;
+        ZimbraLog.search.debug("DBSearch elapsed=%d", elapsed);
+        if (plan != null) {
+            plan.addDbStage(elapsed);
+        }
+    }
+
+    private LuceneQueryOperation.LuceneResultsChunk luceneSearch(int max) {
+        long start = System.currentTimeMillis();
+        LuceneQueryOperation.LuceneResultsChunk chunk = luceneOp.getNextResultsChunk(max);
+        if (plan != null) {
+            plan.addLuceneStage(System.currentTimeMillis() - start);
+        }
+        return chunk;
+    }
+
+    private void chooseExecuteMode() throws ServiceException {
+        if (hasNoResults()) {
+            executeMode = QueryExecuteMode.NO_RESULTS;
+        } else if (luceneOp == null) {
+            executeMode = QueryExecuteMode.NO_LUCENE;
+        } else if (LC.search_cost_based_plan.booleanValue()) {
+            plan = QueryPlanner.plan(this, luceneOp, context.getMailbox(), context.getParams().inDumpster(),
+                    context.getChunkSize(), MAX_HITS_PER_CHUNK, Math.min(Db.getINClauseBatchSize(), MAX_HITS_PER_CHUNK));
+            if (plan.isDbFirst()) {
+                luceneOp.clearFilterClause();
+                executeMode = QueryExecuteMode.DB_FIRST;
+                dbFirstChunkSize = plan.getChunkSize();
+            } else {
+                executeMode = QueryExecuteMode.LUCENE_FIRST;
+                hitsPerChunk = plan.getChunkSize();
+            }
+        } else if (shouldExecuteDbFirst()) {
+            luceneOp.clearFilterClause();
+            executeMode = QueryExecuteMode.DB_FIRST;
+        } else {
+            executeMode = QueryExecuteMode.LUCENE_FIRST;
+        }
+
+        if (plan == null) {
+            plan = new QueryPlanInfo();
+            plan.setMode(executeMode.name(), "rule");
+        }
+        if (context.getParams().isExplain()) {
+            queryInfo.add(plan);
+        }
     }
 
     private boolean shouldExecuteDbFirst() throws ServiceException {
@@ -700,11 +739,14 @@ public class DBQueryOperation extends QueryOperation {
         do {
             // (1) Get the next chunk of results from the DB
             List<DbSearch.Result> dbResults = new ArrayList<DbSearch.Result>();
-            dbSearch(dbResults, sort, dbOffset, MAX_HITS_PER_CHUNK);
+            int chunkSize = dbFirstChunkSize;
+            dbSearch(dbResults, sort, dbOffset, chunkSize);
 
-            if (dbResults.size() < MAX_HITS_PER_CHUNK) {
+            if (dbResults.size() < chunkSize) {
                 endOfHits = true;
             }
+            // the planned chunk size is only an estimate, grow it in case we have to go back to the DB
+            dbFirstChunkSize = Math.min(dbFirstChunkSize * 2, MAX_HITS_PER_CHUNK);
 
             if (dbResults.size() > 0) {
                 dbOffset += dbResults.size();
@@ -734,7 +776,7 @@ public class DBQueryOperation extends QueryOperation {
                     // we have to get ALL of the lucene hits for these ids.  There can very likely be more
                     // hits from Lucene then there are DB id's, so we just ask for a large number.
                     while (hasMore) {
-                        luceneChunk = luceneOp.getNextResultsChunk(MAX_HITS_PER_CHUNK*3);
+                        luceneChunk = luceneSearch(MAX_HITS_PER_CHUNK*3);
                         Set<Integer> indexIds = luceneChunk.getIndexIds();
                         if (indexIds.size() < MAX_HITS_PER_CHUNK*3) {
                             hasMore = false;
@@ -768,7 +810,7 @@ public class DBQueryOperation extends QueryOperation {
             // sure that we'd "consumed" all the Lucene-ID's, and therefore we could miss hits!
 
             // limit in clause based on Db capabilities - bug 15511
-            luceneChunk = luceneOp.getNextResultsChunk(Math.min(Db.getINClauseBatchSize(), hitsPerChunk));
+            luceneChunk = luceneSearch(Math.min(Db.getINClauseBatchSize(), hitsPerChunk));
 
             DbSearchConstraints.Leaf sc = getTopLeafConstraint();
             sc.indexIds.clear();
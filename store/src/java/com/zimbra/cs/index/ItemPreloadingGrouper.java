@@ -82,6 +82,43 @@ final class ItemPreloadingGrouper extends BufferingResultsGrouper {
     }
 
     private void preload(Mailbox mbox, List<ZimbraHit> hits) throws ServiceException {
+        if (inDumpster) {
+            preloadFromDumpster(mbox, hits);
+            return;
+        }
+        // load the messages matched inside conversation hits along with the hits themselves, as they get rendered
+        // with them
+        List<ZimbraHit> toLoad = new ArrayList<ZimbraHit>();
+        for (ZimbraHit hit : hits) {
+            if (!hit.itemIsLoaded()) {
+                toLoad.add(hit);
+            }
+            if (hit instanceof ConversationHit) {
+                for (MessageHit msgHit : ((ConversationHit) hit).getMessageHits()) {
+                    if (!msgHit.itemIsLoaded()) {
+                        toLoad.add(msgHit);
+                    }
+                }
+            }
+        }
+        if (toLoad.isEmpty()) {
+            return;
+        }
+        Set<Integer> ids = new HashSet<Integer>();
+        for (ZimbraHit hit : toLoad) {
+            ids.add(hit.getItemId());
+        }
+        // items that are gone by now are left for the hits to fail on when they are rendered
+        Map<Integer, MailItem> items = mbox.getItemsById(opContext, ids, MailItem.Type.UNKNOWN);
+        for (ZimbraHit hit : toLoad) {
+            MailItem item = items.get(hit.getItemId());
+            if (item != null) {
+                hit.setItem(item);
+            }
+        }
+    }
+
+    private void preloadFromDumpster(Mailbox mbox, List<ZimbraHit> hits) throws ServiceException {
         int unloadedIds[] = new int[hits.size()];
         int numToLoad = 0;
         for (int i = 0; i < hits.size(); i++) {
@@ -95,7 +132,7 @@ final class ItemPreloadingGrouper extends BufferingResultsGrouper {
         }
 
         if (numToLoad > 0) {
-            MailItem[] items = mbox.getItemById(opContext, unloadedIds, MailItem.Type.UNKNOWN, inDumpster);
+            MailItem[] items = mbox.getItemById(opContext, unloadedIds, MailItem.Type.UNKNOWN, true);
             for (int i = 0; i < hits.size(); ++i) {
                 if (items[i] != null) {
                     hits.get(i).setItem(items[i]);
@@ -273,6 +273,36 @@ public final class LuceneQueryOperation extends QueryOperation {
         }
     }
 
+    /**
+     * Returns the number of documents in the index, or -1 if there is no index to search.
+     */
+    int getIndexDocCount() {
+        return searcher != null ? searcher.getIndexReader().numDocs() : -1;
+    }
+
+    /**
+     * Returns the number of documents the text part of this query matches. A single term is answered from the term
+     * dictionary without running the search. Anything else runs the search for the first {@code initialChunkSize}
+     * hits, which the first {@link #getNextResultsChunk(int)} then reuses.
+     *
+     * @return number of matching documents, or -1 if unknown
+     */
+    int estimateHitCount(int initialChunkSize) {
+        if (searcher == null || luceneQuery == null) {
+            return -1;
+        }
+        if (luceneQuery instanceof TermQuery) {
+            try {
+                return searcher.docFreq(((TermQuery) luceneQuery).getTerm());
+            } catch (IOException e) {
+                ZimbraLog.search.debug("Failed to read document frequency of %s", luceneQuery, e);
+                return -1;
+            }
+        }
+        fetchFirstResults(initialChunkSize);
+        return (int) Math.min(getTotalHitCount(), Integer.MAX_VALUE);
+    }
+
     private long getTotalItemCount(Set<Folder> folders) {
         long total = 0;
         for (Folder f : folders)
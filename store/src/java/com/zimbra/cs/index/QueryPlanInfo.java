@@ -0,0 +1,143 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.index;
+
+import com.google.common.base.Objects;
+import com.zimbra.common.soap.Element;
+
+/**
+ * The execution plan a {@link DBQueryOperation} chose, the statistics it was chosen from, and the time spent in each
+ * stage of running it. Returned in the search response when the request asks for {@code explain}.
+ */
+public final class QueryPlanInfo implements QueryInfo {
+
+    private String mode;
+    private String reason;
+    private long dbEstimate = -1;
+    private String dbEstimateSource;
+    private long luceneEstimate = -1;
+    private long indexDocs = -1;
+    private double dbFirstCost = -1;
+    private double luceneFirstCost = -1;
+    private int chunkSize = -1;
+    private long planTime;
+    private long dbTime;
+    private int dbQueries;
+    private long luceneTime;
+    private int luceneChunks;
+
+    QueryPlanInfo() {
+    }
+
+    boolean isDbFirst() {
+        return "DB_FIRST".equals(mode);
+    }
+
+    String getMode() {
+        return mode;
+    }
+
+    int getChunkSize() {
+        return chunkSize;
+    }
+
+    void setMode(String mode, String reason) {
+        this.mode = mode;
+        this.reason = reason;
+    }
+
+    void setEstimates(long db, String dbSource, long lucene, long docs) {
+        dbEstimate = db;
+        dbEstimateSource = dbSource;
+        luceneEstimate = lucene;
+        indexDocs = docs;
+    }
+
+    void setCosts(double dbFirst, double luceneFirst) {
+        dbFirstCost = dbFirst;
+        luceneFirstCost = luceneFirst;
+    }
+
+    void setChunkSize(int value) {
+        chunkSize = value;
+    }
+
+    void setPlanTime(long millis) {
+        planTime = millis;
+    }
+
+    void addDbStage(long millis) {
+        dbTime += millis;
+        dbQueries++;
+    }
+
+    void addLuceneStage(long millis) {
+        luceneTime += millis;
+        luceneChunks++;
+    }
+
+    @Override
+    public Element toXml(Element parent) {
+        Element qinfo = parent.addElement("plan");
+        qinfo.addAttribute("mode", mode);
+        qinfo.addAttribute("reason", reason);
+        if (dbEstimate >= 0) {
+            qinfo.addAttribute("dbEstimate", dbEstimate);
+            qinfo.addAttribute("dbEstimateSource", dbEstimateSource);
+        }
+        if (luceneEstimate >= 0) {
+            qinfo.addAttribute("luceneEstimate", luceneEstimate);
+        }
+        if (indexDocs >= 0) {
+            qinfo.addAttribute("indexDocs", indexDocs);
+        }
+        if (dbFirstCost >= 0) {
+            qinfo.addAttribute("dbFirstCost", Math.round(dbFirstCost));
+            qinfo.addAttribute("luceneFirstCost", Math.round(luceneFirstCost));
+        }
+        if (chunkSize > 0) {
+            qinfo.addAttribute("chunk", chunkSize);
+        }
+        qinfo.addAttribute("planMs", planTime);
+        Element db = qinfo.addElement("stage");
+        db.addAttribute("name", "db");
+        db.addAttribute("ms", dbTime);
+        db.addAttribute("count", dbQueries);
+        if (luceneChunks > 0) {
+            Element lucene = qinfo.addElement("stage");
+            lucene.addAttribute("name", "lucene");
+            lucene.addAttribute("ms", luceneTime);
+            lucene.addAttribute("count", luceneChunks);
+        }
+        return qinfo;
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this).omitNullValues()
+            .add("mode", mode)
+            .add("reason", reason)
+            .add("db", dbEstimate)
+            .add("dbSource", dbEstimateSource)
+            .add("lucene", luceneEstimate)
+            .add("docs", indexDocs)
+            .add("chunk", chunkSize)
+            .add("dbMs", dbTime)
+            .add("luceneMs", luceneTime)
+            .toString();
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.index;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.mailbox.Flag;
+import com.zimbra.cs.mailbox.Folder;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.Tag;
+
+/**
+ * Chooses between DB-first and Lucene-first execution of a {@link DBQueryOperation}, and the size of the first chunk
+ * read from the outer side, using per-mailbox cardinality statistics: folder and tag item counts from the mailbox
+ * cache, and document frequencies from the index.
+ * <p>
+ * The DB and text halves of the query are assumed to be independent, so an outer row survives the inner side with
+ * probability {@code inner / docs}. DB-first reads DB rows in sort order and filters each chunk through Lucene;
+ * Lucene-first collects the text hits and looks them up in the DB in IN-clause batches. Whichever is expected to read
+ * fewer rows before it has enough hits, weighted by the cost of a round trip, wins.
+ */
+final class QueryPlanner {
+
+    /** cost of a DB or Lucene round trip, in units of one DB row read */
+    private static final double ROUND_TRIP_COST = 50.0;
+    /** cost of one id term in the Lucene filter of a DB-first chunk */
+    private static final double FILTER_TERM_COST = 0.5;
+    /** cost of scoring and collecting one Lucene hit */
+    private static final double LUCENE_HIT_COST = 0.1;
+    /** hits fetched when the text query has to be run to count its hits; they are reused by the first chunk */
+    private static final int LUCENE_PROBE_HITS = 1000;
+
+    private QueryPlanner() {
+    }
+
+    /**
+     * @param wanted number of hits the caller needs
+     * @param maxDbChunk largest number of DB rows read per DB-first chunk
+     * @param maxLuceneChunk largest number of Lucene hits looked up per Lucene-first chunk
+     */
+    static QueryPlanInfo plan(DBQueryOperation dbOp, LuceneQueryOperation luceneOp, Mailbox mbox, boolean inDumpster,
+            int wanted, int maxDbChunk, int maxLuceneChunk) throws ServiceException {
+        long start = System.currentTimeMillis();
+        QueryPlanInfo plan = new QueryPlanInfo();
+        DbSearchConstraints.Leaf top = dbOp.getTopLeafConstraint();
+        long docs = luceneOp.getIndexDocCount();
+        if (top.convId > 0 || !top.itemIds.isEmpty()) {
+            plan.setMode("DB_FIRST", "ids");
+            plan.setChunkSize(maxDbChunk);
+        } else if (docs < 0) {
+            plan.setMode("DB_FIRST", "no index");
+            plan.setChunkSize(maxDbChunk);
+        } else {
+            long lucene = luceneOp.estimateHitCount(LUCENE_PROBE_HITS);
+            String source;
+            long db;
+            if (inDumpster) {
+                db = dbOp.getDbHitCount();
+                source = "count";
+            } else {
+                db = estimateDbHits(top, mbox);
+                source = db >= 0 ? "stats" : null;
+            }
+            if (db < 0) {
+                if (lucene < 0 || lucene > LUCENE_PROBE_HITS) {
+                    // no statistics narrow the DB side down and the text side is not small enough to settle it
+                    db = dbOp.getDbHitCount();
+                    source = "count";
+                } else {
+                    db = docs;
+                    source = "mailbox";
+                }
+            }
+            if (lucene < 0) {
+                lucene = docs;
+            }
+            docs = Math.max(docs, Math.max(db, lucene));
+
+            double dbFirst = dbFirstCost(db, lucene, docs, wanted, maxDbChunk);
+            double luceneFirst = luceneFirstCost(db, lucene, docs, wanted, maxLuceneChunk);
+            plan.setEstimates(db, source, lucene, docs);
+            plan.setCosts(dbFirst, luceneFirst);
+            if (dbFirst < luceneFirst) {
+                plan.setMode("DB_FIRST", "cost");
+                plan.setChunkSize(chunkSize(rowsToRead(db, lucene, docs, wanted), wanted, maxDbChunk));
+            } else {
+                plan.setMode("LUCENE_FIRST", "cost");
+                plan.setChunkSize(chunkSize(rowsToRead(lucene, db, docs, wanted), wanted, maxLuceneChunk));
+            }
+        }
+        plan.setPlanTime(System.currentTimeMillis() - start);
+        ZimbraLog.search.debug("QueryPlan %s", plan);
+        return plan;
+    }
+
+    /**
+     * Estimates the number of rows the top-level DB constraints match from cached folder and tag counts.
+     *
+     * @return upper bound of the number of matching rows, or -1 if no cached statistic applies
+     */
+    private static long estimateDbHits(DbSearchConstraints.Leaf top, Mailbox mbox) throws ServiceException {
+        long estimate = -1;
+        boolean unread = false;
+        for (Tag tag : top.tags) {
+            if (tag.getId() == Flag.ID_UNREAD) {
+                unread = true;
+            } else if (!(tag instanceof Flag)) { // system flags don't keep an item count
+                estimate = min(estimate, tag.getItemCount());
+            }
+        }
+        if (!top.folders.isEmpty()) {
+            long count = 0;
+            for (Folder folder : top.folders) {
+                count += unread ? folder.getUnreadCount() : folder.getItemCount();
+            }
+            estimate = min(estimate, count);
+        } else if (unread) {
+            long count = 0;
+            for (Folder folder : mbox.getFolderList(null, SortBy.NONE)) {
+                count += folder.getUnreadCount();
+            }
+            estimate = min(estimate, count);
+        }
+        return estimate;
+    }
+
+    private static long min(long estimate, long count) {
+        return estimate < 0 ? count : Math.min(estimate, count);
+    }
+
+    @VisibleForTesting
+    static double dbFirstCost(long db, long lucene, long docs, int wanted, int maxChunk) {
+        long rows = rowsToRead(db, lucene, docs, wanted);
+        // each DB chunk is followed by a Lucene search filtered by its ids
+        return rows * (1.0 + FILTER_TERM_COST) + roundTrips(rows, chunkSize(rows, wanted, maxChunk)) * 2 * ROUND_TRIP_COST;
+    }
+
+    @VisibleForTesting
+    static double luceneFirstCost(long db, long lucene, long docs, int wanted, int maxChunk) {
+        long rows = rowsToRead(lucene, db, docs, wanted);
+        // Lucene scores every hit up front, then each chunk of ids is one DB query
+        return lucene * LUCENE_HIT_COST + rows + roundTrips(rows, chunkSize(rows, wanted, maxChunk)) * ROUND_TRIP_COST;
+    }
+
+    /**
+     * Returns the number of rows the outer side reads before {@code wanted} of them survive the inner side.
+     */
+    @VisibleForTesting
+    static long rowsToRead(long outer, long inner, long docs, int wanted) {
+        if (inner <= 0 || docs <= 0) {
+            return outer; // nothing survives, the outer side is read to the end
+        }
+        return (long) Math.min(outer, Math.ceil((double) wanted * docs / inner));
+    }
+
+    private static int chunkSize(long rows, int min, int max) {
+        return (int) Math.min(Math.max(rows, min), max);
+    }
+
+    private static long roundTrips(long rows, int chunk) {
+        return Math.max(1, (rows + chunk - 1) / chunk);
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.index;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.ZimbraLog;
+
+/**
+ * Records the hits of executed results as the caller reads them, and hands them to {@link SearchResultCache} when
+ * the results are closed. Hits are recorded as long as they are read in order, without gaps.
+ */
+final class RecordingQueryResults implements ZimbraQueryResults {
+
+    private final ZimbraQueryResults results;
+    private final SearchResultCache cache;
+    private final String key;
+    private final int changeId;
+    private final SearchResultCache.Hits prefix; // hits already remembered for this query and change
+    private final List<ZimbraHit> recorded = new ArrayList<ZimbraHit>();
+    private final int maxHits;
+    private boolean recording = true;
+    private boolean complete = false;
+    private int position = 0;
+    private long elapsedNanos;
+
+    RecordingQueryResults(ZimbraQueryResults results, SearchResultCache cache, String key, int changeId,
+            SearchResultCache.Hits prefix, int maxHits, long elapsedNanos) {
+        this.results = results;
+        this.cache = cache;
+        this.key = key;
+        this.changeId = changeId;
+        this.prefix = prefix;
+        this.maxHits = maxHits;
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    private int recordedCount() {
+        return prefix.size() + recorded.size();
+    }
+
+    /**
+     * Records the hit at the current position, or the end of the results if the hit is {@code null}.
+     */
+    private void record(ZimbraHit hit) {
+        if (!recording || position != recordedCount()) {
+            return;
+        }
+        if (hit == null) {
+            complete = true;
+        } else if (recordedCount() >= maxHits || !SearchResultCache.Hits.isSupported(hit)) {
+            recording = false;
+        } else {
+            recorded.add(hit);
+        }
+    }
+
+    @Override
+    public void resetIterator() throws ServiceException {
+        long start = System.nanoTime();
+        results.resetIterator();
+        position = 0;
+        elapsedNanos += System.nanoTime() - start;
+    }
+
+    @Override
+    public ZimbraHit getNext() throws ServiceException {
+        long start = System.nanoTime();
+        ZimbraHit hit = results.getNext();
+        record(hit);
+        if (hit != null) {
+            position++;
+        }
+        elapsedNanos += System.nanoTime() - start;
+        return hit;
+    }
+
+    @Override
+    public ZimbraHit peekNext() throws ServiceException {
+        long start = System.nanoTime();
+        ZimbraHit hit = results.peekNext();
+        record(hit);
+        elapsedNanos += System.nanoTime() - start;
+        return hit;
+    }
+
+    @Override
+    public boolean hasNext() throws ServiceException {
+        return peekNext() != null;
+    }
+
+    @Override
+    public ZimbraHit skipToHit(int hitNo) throws ServiceException {
+        if (recording && hitNo > recordedCount() && hitNo < maxHits) {
+            // walk over the hits that haven't been recorded yet instead of skipping them
+            ZimbraHit hit = skipToHit(recordedCount());
+            while (hit != null && position <= hitNo) {
+                hit = getNext();
+            }
+            return hit;
+        }
+        long start = System.nanoTime();
+        ZimbraHit hit = results.skipToHit(hitNo);
+        position = hitNo;
+        record(hit);
+        if (hit != null) {
+            position++;
+        }
+        elapsedNanos += System.nanoTime() - start;
+        return hit;
+    }
+
+    @Override
+    public SortBy getSortBy() {
+        return results.getSortBy();
+    }
+
+    @Override
+    public List<QueryInfo> getResultInfo() {
+        return results.getResultInfo();
+    }
+
+    @Override
+    public long getCursorOffset() {
+        return results.getCursorOffset();
+    }
+
+    @Override
+    public boolean isPreSorted() {
+        return results.isPreSorted();
+    }
+
+    @Override
+    public void close() throws IOException {
+        List<QueryInfo> info = results.getResultInfo();
+        long cursorOffset = results.getCursorOffset();
+        results.close();
+        if (recorded.isEmpty() && (!complete || prefix.complete)) {
+            return;
+        }
+
+        try {
+            SearchResultCache.Hits hits = prefix.copy(prefix.size());
+            for (ZimbraHit hit : recorded) {
+                hits.add(hit);
+            }
+            hits.complete = complete;
+            hits.costNanos = elapsedNanos;
+            hits.cursorOffset = cursorOffset;
+            hits.info = info;
+            cache.put(key, changeId, hits);
+        } catch (ServiceException e) {
+            ZimbraLog.search.warn("unable to cache search results", e);
+        }
+    }
+}
@@ -114,6 +114,7 @@ public final class SearchParams implements Cloneable {
     private boolean prefetch = true;
     private Fetch fetch = Fetch.NORMAL;
     private boolean quick = false; // whether or not to skip the catch-up index prior to search
+    private boolean explain = false; // whether or not to return the execution plan along with the results
 
     public boolean isQuick() {
         return quick;
@@ -123,6 +124,14 @@ public final class SearchParams implements Cloneable {
         quick = value;
     }
 
+    public boolean isExplain() {
+        return explain;
+    }
+
+    public void setExplain(boolean value) {
+        explain = value;
+    }
+
     public ZimbraSoapContext getRequestContext() {
         return requestContext;
     }
@@ -494,6 +503,9 @@ public final class SearchParams implements Cloneable {
         if (quick) {
             el.addAttribute(MailConstants.A_QUICK, quick);
         }
+        if (explain) {
+            el.addAttribute(MailConstants.A_EXPLAIN, explain);
+        }
 
         if (getWantContent() != null) {
             el.addAttribute(MailConstants.A_WANT_CONTENT, getWantContent().toString());
@@ -629,6 +641,7 @@ public final class SearchParams implements Cloneable {
         params.setQueryString(query);
         params.setInDumpster(request.getAttributeBool(MailConstants.A_IN_DUMPSTER, false));
         params.setQuick(request.getAttributeBool(MailConstants.A_QUICK, false));
+        params.setExplain(request.getAttributeBool(MailConstants.A_EXPLAIN, false));
         String types = request.getAttribute(MailConstants.A_SEARCH_TYPES, request.getAttribute(MailConstants.A_GROUPBY, null));
         if (Strings.isNullOrEmpty(types)) {
             params.setTypes(EnumSet.of(params.isQuick() ? MailItem.Type.MESSAGE : MailItem.Type.CONVERSATION));
@@ -843,6 +856,7 @@ public final class SearchParams implements Cloneable {
         result.sortBy = sortBy;
         result.types = types;
         result.prefetch = prefetch;
+        result.explain = explain;
         result.fetch = fetch;
         if (allowableTaskStatuses != null) {
             result.allowableTaskStatuses = new HashSet<TaskHit.Status>(allowableTaskStatuses);
@@ -0,0 +1,458 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.index;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.session.PendingModifications;
+import com.zimbra.cs.session.PendingModifications.Change;
+import com.zimbra.cs.session.PendingModifications.ModificationKey;
+import com.zimbra.cs.stats.ZimbraPerf;
+
+/**
+ * Per-mailbox cache of search results.
+ * <p>
+ * Web clients re-issue the same folder and saved-search queries on every refresh and pagination step. Results of
+ * database-only queries against this mailbox are remembered as compact id and sort key vectors, keyed by the
+ * normalized parse tree, the other parameters that shape the result set, and the mailbox change id they were computed
+ * at. Each committed change either carries the entries forward to the new change id, drops deleted items from them,
+ * or invalidates them when it may have changed their result set.
+ * <p>
+ * Entries are filled in as the caller iterates the results, so an entry only holds the hits that somebody has read;
+ * a request for hits past the end of an entry executes the query again and extends the entry.
+ */
+public final class SearchResultCache {
+
+    /** item types whose changes can affect any query, because queries refer to them by name or id */
+    private static final Set<MailItem.Type> STRUCTURAL_TYPES = Collections.unmodifiableSet(EnumSet.of(
+            MailItem.Type.FOLDER, MailItem.Type.SEARCHFOLDER, MailItem.Type.MOUNTPOINT,
+            MailItem.Type.TAG, MailItem.Type.FLAG));
+
+    /** item types that make up conversations; changing any of them may change a conversation hit */
+    private static final Set<MailItem.Type> CONVERSATION_TYPES = Collections.unmodifiableSet(EnumSet.of(
+            MailItem.Type.CONVERSATION, MailItem.Type.VIRTUAL_CONVERSATION, MailItem.Type.MESSAGE,
+            MailItem.Type.CHAT));
+
+    private final Mailbox mailbox;
+    private final int maxHits;
+    private final Map<String, Hits> entries; // guarded by this
+
+    public SearchResultCache(Mailbox mbox) {
+        this(mbox, LC.search_result_cache_size.intValue(), LC.search_result_cache_max_hits.intValue());
+    }
+
+    @VisibleForTesting
+    SearchResultCache(Mailbox mbox, int size, int maxHits) {
+        this.mailbox = mbox;
+        this.maxHits = maxHits;
+        this.entries = size > 0 ? new ZimbraQueryResultsImpl.LRUHashMap<String, Hits>(size) : null;
+    }
+
+    /**
+     * Runs the query, or replays its results from the cache if they are known for the current state of the mailbox.
+     *
+     * WARNING: You **MUST** call {@link ZimbraQueryResults#close()} when you are done with them!
+     */
+    public ZimbraQueryResults search(ZimbraQuery zq) throws ServiceException {
+        if (!isCacheable(zq)) {
+            return zq.execute();
+        }
+
+        SearchParams params = zq.getParams();
+        String key = zq.toCacheKey();
+        int changeId = mailbox.getLastChangeID();
+        Hits cached = get(key, changeId);
+        if (cached != null && cached.covers((long) params.getOffset() + Math.max(params.getLimit(), 1) + 1)) {
+            ZimbraPerf.COUNTER_SEARCH_RESULT_CACHE.increment(100);
+            ZimbraPerf.COUNTER_SEARCH_RESULT_CACHE_SAVED_MS.increment(TimeUnit.NANOSECONDS.toMillis(cached.costNanos));
+            ZimbraLog.search.debug("serving %d cached hits for change %d", cached.size(), changeId);
+            ZimbraQueryResults results = new CachedQueryResults(zq, mailbox, cached);
+            if (params.getPrefetch() && params.getFetchMode() != SearchParams.Fetch.IDS) {
+                int chunkSize = Math.max(Math.min(params.getOffset() + params.getLimit(), 1000), 1);
+                results = new ItemPreloadingGrouper(results, chunkSize, mailbox, params.inDumpster());
+            }
+            return results;
+        }
+
+        ZimbraPerf.COUNTER_SEARCH_RESULT_CACHE.increment(0);
+        long start = System.nanoTime();
+        ZimbraQueryResults results = zq.execute();
+        if (!zq.isLocalOnly()) {
+            return results;
+        }
+        Hits prefix = cached != null ? cached : new Hits(params.getTypes(), params.getSortBy());
+        return new RecordingQueryResults(results, this, key, changeId, prefix, maxHits, System.nanoTime() - start);
+    }
+
+    private boolean isCacheable(ZimbraQuery zq) {
+        if (entries == null || maxHits <= 0) {
+            return false;
+        }
+        SearchParams params = zq.getParams();
+        if (params.isExplain()) {
+            return false; // the plan and stage timings describe a real execution
+        }
+        switch (params.getFetchMode()) {
+            case NORMAL:
+            case IDS:
+                break;
+            default:
+                // IMAP, MODSEQ and PARENT hits carry data from the search that replayed hits would have to reload
+                return false;
+        }
+        // text results depend on the index, which lags behind the mailbox change id
+        return params.getCursor() == null && !zq.hasTextOperation();
+    }
+
+    private synchronized Hits get(String key, int changeId) {
+        Hits hits = entries.get(key);
+        return hits != null && hits.changeId == changeId ? hits : null;
+    }
+
+    /**
+     * Remembers hits recorded from a query executed at the given change id, unless the mailbox has moved on since.
+     */
+    synchronized void put(String key, int changeId, Hits hits) {
+        if (mailbox.getLastChangeID() != changeId) {
+            return;
+        }
+        hits.changeId = changeId;
+        entries.put(key, hits);
+    }
+
+    /**
+     * Carries the cached results forward to a newly committed change.
+     *
+     * @param previousChangeId the mailbox change id before the change
+     * @param changeId the mailbox change id after the change
+     * @param mods the items the change created, modified and deleted, or {@code null} if unknown
+     */
+    public void changeCommitted(int previousChangeId, int changeId, PendingModifications mods) {
+        if (entries == null) {
+            return;
+        }
+        synchronized (this) {
+            for (Iterator<Map.Entry<String, Hits>> i = entries.entrySet().iterator(); i.hasNext();) {
+                Map.Entry<String, Hits> entry = i.next();
+                Hits hits = entry.getValue();
+                Hits patched = hits.changeId == previousChangeId && mods != null ? hits.patch(mods) : null;
+                if (patched == null) {
+                    i.remove();
+                } else {
+                    patched.changeId = changeId;
+                    entry.setValue(patched);
+                }
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        if (entries != null) {
+            entries.clear();
+        }
+    }
+
+    @VisibleForTesting
+    synchronized int size() {
+        return entries == null ? 0 : entries.size();
+    }
+
+    /**
+     * The hits of one query, in result order. Not modified once it is in the cache.
+     */
+    static final class Hits {
+        private final Set<MailItem.Type> types;
+        private final SortBy sort;
+        private final boolean numericSort;
+        private int size;
+        private byte[] hitTypes;
+        private int[] ids;
+        private long[] numericSortValues;
+        private String[] sortValues;
+        private int[][] messageIds;
+
+        boolean complete;
+        long costNanos;
+        long cursorOffset = -1;
+        List<QueryInfo> info = Collections.emptyList();
+        int changeId; // guarded by the cache
+
+        Hits(Set<MailItem.Type> types, SortBy sort) {
+            this(types, sort, 16);
+        }
+
+        private Hits(Set<MailItem.Type> types, SortBy sort, int capacity) {
+            this.types = types;
+            this.sort = sort;
+            switch (sort.getKey()) {
+                case ID:
+                case DATE:
+                case SIZE:
+                    numericSort = true;
+                    break;
+                default:
+                    numericSort = false;
+                    break;
+            }
+            hitTypes = new byte[capacity];
+            ids = new int[capacity];
+            if (numericSort) {
+                numericSortValues = new long[capacity];
+            } else {
+                sortValues = new String[capacity];
+            }
+        }
+
+        int size() {
+            return size;
+        }
+
+        Set<MailItem.Type> getTypes() {
+            return types;
+        }
+
+        SortBy getSortBy() {
+            return sort;
+        }
+
+        boolean covers(long count) {
+            return complete || size >= count;
+        }
+
+        static boolean isSupported(ZimbraHit hit) {
+            return hit instanceof MessageHit || hit instanceof ConversationHit || hit instanceof ContactHit ||
+                    hit instanceof NoteHit || hit instanceof CalendarItemHit || hit instanceof DocumentHit;
+        }
+
+        void add(ZimbraHit hit) throws ServiceException {
+            MailItem.Type type;
+            int[] msgIds = null;
+            if (hit instanceof MessageHit) {
+                type = MailItem.Type.MESSAGE;
+            } else if (hit instanceof ConversationHit) {
+                type = MailItem.Type.CONVERSATION;
+                Collection<MessageHit> msgHits = ((ConversationHit) hit).getMessageHits();
+                msgIds = new int[msgHits.size()];
+                int i = 0;
+                for (MessageHit msgHit : msgHits) {
+                    msgIds[i++] = msgHit.getItemId();
+                }
+            } else if (hit instanceof ContactHit) {
+                type = MailItem.Type.CONTACT;
+            } else if (hit instanceof NoteHit) {
+                type = MailItem.Type.NOTE;
+            } else if (hit instanceof TaskHit) {
+                type = MailItem.Type.TASK;
+            } else if (hit instanceof CalendarItemHit) {
+                type = MailItem.Type.APPOINTMENT;
+            } else if (hit instanceof DocumentHit) {
+                type = MailItem.Type.DOCUMENT;
+            } else {
+                throw new IllegalArgumentException(hit.getClass().getName());
+            }
+
+            if (size == ids.length) {
+                grow(size * 2);
+            }
+            hitTypes[size] = type.toByte();
+            ids[size] = hit.getItemId();
+            if (numericSort) {
+                numericSortValues[size] = ((Number) hit.sortValue).longValue();
+            } else {
+                sortValues[size] = (String) hit.sortValue;
+            }
+            if (msgIds != null) {
+                if (messageIds == null) {
+                    messageIds = new int[ids.length][];
+                }
+                messageIds[size] = msgIds;
+            }
+            size++;
+        }
+
+        private void grow(int capacity) {
+            hitTypes = Arrays.copyOf(hitTypes, capacity);
+            ids = Arrays.copyOf(ids, capacity);
+            if (numericSort) {
+                numericSortValues = Arrays.copyOf(numericSortValues, capacity);
+            } else {
+                sortValues = Arrays.copyOf(sortValues, capacity);
+            }
+            if (messageIds != null) {
+                messageIds = Arrays.copyOf(messageIds, capacity);
+            }
+        }
+
+        /**
+         * Returns a copy holding the first {@code count} hits and none of the other state.
+         */
+        Hits copy(int count) {
+            Hits copy = new Hits(types, sort, Math.max(count, 16));
+            copy.copyFrom(this, 0, count);
+            return copy;
+        }
+
+        private void copyFrom(Hits other, int from, int to) {
+            if (size + to - from > ids.length) {
+                grow(Math.max(size + to - from, ids.length * 2));
+            }
+            System.arraycopy(other.hitTypes, from, hitTypes, size, to - from);
+            System.arraycopy(other.ids, from, ids, size, to - from);
+            if (numericSort) {
+                System.arraycopy(other.numericSortValues, from, numericSortValues, size, to - from);
+            } else {
+                System.arraycopy(other.sortValues, from, sortValues, size, to - from);
+            }
+            if (other.messageIds != null) {
+                if (messageIds == null) {
+                    messageIds = new int[ids.length][];
+                }
+                System.arraycopy(other.messageIds, from, messageIds, size, to - from);
+            }
+            size += to - from;
+        }
+
+        /**
+         * Builds the hit at the given position for replayed results.
+         */
+        ZimbraHit getHit(CachedQueryResults results, Mailbox mbox, int index) {
+            int id = ids[index];
+            Object sortValue;
+            if (!numericSort) {
+                sortValue = sortValues[index];
+            } else if (sort.getKey() == SortBy.Key.ID) {
+                sortValue = Integer.valueOf((int) numericSortValues[index]);
+            } else {
+                sortValue = Long.valueOf(numericSortValues[index]);
+            }
+
+            switch (MailItem.Type.of(hitTypes[index])) {
+                case MESSAGE:
+                    return results.getMessageHit(mbox, id, null, null, sortValue);
+                case CONVERSATION:
+                    ConversationHit convHit = results.getConversationHit(mbox, id, sortValue);
+                    if (convHit.getNumMessageHits() == 0) {
+                        for (int msgId : messageIds[index]) {
+                            convHit.addMessageHit(results.getMessageHit(mbox, msgId, null, null, sortValue));
+                        }
+                    }
+                    return convHit;
+                case CONTACT:
+                    return results.getContactHit(mbox, id, null, sortValue);
+                case NOTE:
+                    return results.getNoteHit(mbox, id, null, sortValue);
+                case TASK:
+                    return results.getTaskHit(mbox, id, null, sortValue);
+                case APPOINTMENT:
+                    return results.getAppointmentHit(mbox, id, null, sortValue);
+                case DOCUMENT:
+                    return results.getDocumentHit(mbox, id, null, null, sortValue);
+                default:
+                    throw new IllegalStateException(MailItem.Type.of(hitTypes[index]).name());
+            }
+        }
+
+        /**
+         * Applies a committed change to these hits.
+         *
+         * @return these hits, a copy without the deleted items, or {@code null} if the change may have altered the
+         *         result set in other ways
+         */
+        Hits patch(PendingModifications mods) {
+            Set<MailItem.Type> relevant = relevantTypes();
+            if (mods.created != null) {
+                for (MailItem item : mods.created.values()) {
+                    if (relevant.contains(item.getType()) || STRUCTURAL_TYPES.contains(item.getType())) {
+                        return null;
+                    }
+                }
+            }
+            if (mods.modified != null) {
+                for (Change change : mods.modified.values()) {
+                    if (change.what instanceof MailItem) {
+                        MailItem.Type type = ((MailItem) change.what).getType();
+                        if (relevant.contains(type) || STRUCTURAL_TYPES.contains(type)) {
+                            return null;
+                        }
+                    }
+                }
+            }
+            Set<Integer> deleted = null;
+            if (mods.deleted != null) {
+                for (Map.Entry<ModificationKey, Change> entry : mods.deleted.entrySet()) {
+                    MailItem.Type type = (MailItem.Type) entry.getValue().what;
+                    if (STRUCTURAL_TYPES.contains(type) || type == MailItem.Type.UNKNOWN) {
+                        return null;
+                    } else if (relevant.contains(type)) {
+                        if (messageIds != null || types.contains(MailItem.Type.CONVERSATION)) {
+                            // removing a message changes the conversation's sort value and message hits
+                            return null;
+                        }
+                        if (deleted == null) {
+                            deleted = new HashSet<Integer>();
+                        }
+                        deleted.add(entry.getKey().getItemId());
+                    }
+                }
+            }
+            if (deleted == null) {
+                return this;
+            }
+
+            Hits patched = new Hits(types, sort, Math.max(size, 16));
+            int start = 0;
+            for (int i = 0; i < size; i++) {
+                if (deleted.contains(ids[i])) {
+                    patched.copyFrom(this, start, i);
+                    start = i + 1;
+                }
+            }
+            patched.copyFrom(this, start, size);
+            patched.complete = complete;
+            patched.costNanos = costNanos;
+            patched.cursorOffset = cursorOffset;
+            patched.info = info;
+            return patched;
+        }
+
+        private Set<MailItem.Type> relevantTypes() {
+            if (types.isEmpty()) {
+                return EnumSet.allOf(MailItem.Type.class);
+            }
+            Set<MailItem.Type> relevant = EnumSet.copyOf(types);
+            if (!Collections.disjoint(types, CONVERSATION_TYPES)) {
+                relevant.addAll(CONVERSATION_TYPES);
+            }
+            return relevant;
+        }
+    }
+}
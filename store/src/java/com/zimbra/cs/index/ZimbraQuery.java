@@ -746,6 +746,32 @@ public final class ZimbraQuery {
         return params;
     }
 
+    /**
+     * Returns a key identifying this query and everything that shapes its result set other than the state of the
+     * mailbox, for {@link SearchResultCache}.
+     */
+    String toCacheKey() {
+        StringBuilder key = new StringBuilder(parseTree == null ? "" : parseTree.toString());
+        key.append('|').append(params.getSortBy().name());
+        key.append('|').append(params.getTypes());
+        key.append('|').append(params.getFetchMode());
+        key.append('|').append(params.inDumpster());
+        key.append('|').append(params.getIncludeTagDeleted()).append(',').append(params.getIncludeTagMuted());
+        key.append('|').append(params.getAllowableTaskStatuses());
+        key.append('|').append(params.getCalItemExpandStart()).append(',').append(params.getCalItemExpandEnd());
+        Account authAccount = octxt == null ? null : octxt.getAuthenticatedUser();
+        key.append('|').append(authAccount == null ? "" : authAccount.getId());
+        key.append(',').append(octxt != null && octxt.isUsingAdminPrivileges());
+        return key.toString();
+    }
+
+    /**
+     * Returns true if the query was executed against this mailbox only, without any mountpoint or remote target.
+     */
+    boolean isLocalOnly() {
+        return operation != null && !QueryTarget.hasExternalTarget(operation.getQueryTargets());
+    }
+
     /**
      * Runs the search and gets an open result set.
      *
@@ -21,7 +21,9 @@ import static java.util.concurrent.Executors.newCachedThreadPool;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
 
 import com.zimbra.common.service.ServiceException;
@@ -33,6 +35,8 @@ public class MailboxNotification extends Message {
 
     public static final String AppId = "mbn";
 
+    private static final int MAX_MERGED_BYTES = 1024 * 1024;
+
     private static final ExecutorService executor = newCachedThreadPool(newDaemonThreadFactory("MailboxNotification"));
 
     public static MailboxNotification create(String accountId, int changeId, byte[] data) throws MessageChannelException {
@@ -42,7 +46,14 @@ public class MailboxNotification extends Message {
     @Override
     protected int size() {
         // 4 byte int padding for length of each strings.
-        return accountId.length() + 4 + payload.length + 8;
+        int size = accountId.length() + 4 + payload.length + 8;
+        if (merged != null) {
+            size += 4;
+            for (MailboxNotification m : merged) {
+                size += m.payload.length + 8;
+            }
+        }
+        return size;
     }
 
 
@@ -53,6 +64,59 @@ public class MailboxNotification extends Message {
         writeBytes(buffer, payload);
         //String base64Str = Base64.encodeBase64String(payload);
         //writeString(buffer, base64Str);
+        // the notifications merged into this one follow the first, where older servers don't look for them
+        if (merged != null) {
+            buffer.putInt(merged.size());
+            for (MailboxNotification m : merged) {
+                buffer.putInt(m.changeId);
+                writeBytes(buffer, m.payload);
+            }
+        }
+    }
+
+    @Override
+    protected String getCoalescingKey() {
+        return AppId + ":" + accountId;
+    }
+
+    /**
+     * Notifications for the same account are sent together in one message, in
+     * the order they were created.
+     */
+    @Override
+    protected Message merge(Message next) {
+        MailboxNotification other = (MailboxNotification) next;
+        if (size() + other.size() > MAX_MERGED_BYTES) {
+            return null;
+        }
+        MailboxNotification m = new MailboxNotification(accountId, changeId, payload);
+        m.merged = new ArrayList<MailboxNotification>();
+        if (merged != null) {
+            m.merged.addAll(merged);
+        }
+        m.merged.add(other);
+        if (other.merged != null) {
+            m.merged.addAll(other.merged);
+        }
+        return m;
+    }
+
+    /**
+     * Notifications that can't be sent are replaced by one without changes,
+     * which makes the account's sessions on the peer resync.
+     */
+    @Override
+    protected Message getResyncMessage() {
+        int lastChangeId = merged == null ? changeId : merged.get(merged.size() - 1).changeId;
+        return new MailboxNotification(accountId, lastChangeId, new byte[0]);
+    }
+
+    /**
+     * Returns whether this notification only says that the notifications of
+     * changes up to its change id were dropped.
+     */
+    public boolean isResync() {
+        return payload.length == 0;
     }
 
     @Override
@@ -78,6 +142,18 @@ public class MailboxNotification extends Message {
         return changeId;
     }
 
+    /**
+     * Returns this notification followed by the ones that were merged into it.
+     */
+    public List<MailboxNotification> getNotifications() {
+        List<MailboxNotification> all = new ArrayList<MailboxNotification>(merged == null ? 1 : merged.size() + 1);
+        all.add(this);
+        if (merged != null) {
+            all.addAll(merged);
+        }
+        return all;
+    }
+
     MailboxNotification() {
     }
 
@@ -88,6 +164,14 @@ public class MailboxNotification extends Message {
         payload = readBytes(buffer);
         //String payloadStr = readString(buffer);
         //payload = Base64.decodeBase64(payloadStr);
+        if (buffer.remaining() >= 4) {
+            int count = buffer.getInt();
+            merged = new ArrayList<MailboxNotification>(count);
+            for (int i = 0; i < count; i++) {
+                int cid = buffer.getInt();
+                merged.add(new MailboxNotification(accountId, cid, readBytes(buffer)));
+            }
+        }
     }
 
     protected void writeBytes(ByteBuffer buffer, byte[] data) throws IOException {
@@ -122,24 +206,34 @@ public class MailboxNotification extends Message {
                     return;
                 }
 
-                PendingModifications pms = null;
-                for (Session session : sessions) {
-                    log.debug("notifying session %s", session.toString());
-                    if (pms == null) {
-                        try {
-                            pms = PendingModifications.deserialize(session.getMailbox(), message.getPayload());
-                        } catch (IOException e) {
-                            log.warn("could not deserialize notification", e);
-                            return;
-                        } catch (ClassNotFoundException e) {
-                            log.warn("could not deserialize notification", e);
-                            return;
-                        } catch (ServiceException e) {
-                            log.warn("could not deserialize notification", e);
-                            return;
+                for (MailboxNotification ntfn : message.getNotifications()) {
+                    if (ntfn.isResync()) {
+                        log.info("notifications for account %s were dropped, resyncing its sessions",
+                                message.getRecipientAccountId());
+                        for (Session session : sessions) {
+                            session.notifyDroppedChanges(ntfn.getChangeId());
+                        }
+                        continue;
+                    }
+                    PendingModifications pms = null;
+                    for (Session session : sessions) {
+                        log.debug("notifying session %s", session.toString());
+                        if (pms == null) {
+                            try {
+                                pms = PendingModifications.deserialize(session.getMailbox(), ntfn.getPayload());
+                            } catch (IOException e) {
+                                log.warn("could not deserialize notification", e);
+                                return;
+                            } catch (ClassNotFoundException e) {
+                                log.warn("could not deserialize notification", e);
+                                return;
+                            } catch (ServiceException e) {
+                                log.warn("could not deserialize notification", e);
+                                return;
+                            }
                         }
+                        session.notifyPendingChanges(pms, ntfn.getChangeId(), null);
                     }
-                    session.notifyPendingChanges(pms, message.getChangeId(), null);
                 }
             }
         });
@@ -171,4 +265,5 @@ public class MailboxNotification extends Message {
     private String accountId;
     private int changeId;
     private byte[] payload;
+    private List<MailboxNotification> merged;
 }
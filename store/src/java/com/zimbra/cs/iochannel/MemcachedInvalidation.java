@@ -0,0 +1,212 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.iochannel;
+
+import static com.zimbra.common.util.TaskUtil.newDaemonThreadFactory;
+import static java.util.concurrent.Executors.newSingleThreadExecutor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.memcached.MemcachedNearCache;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.account.Server;
+import com.zimbra.cs.memcached.MemcachedConnector;
+
+/**
+ * Tells the other mailbox servers to drop memcached keys from their {@link MemcachedNearCache} after this server
+ * changed or removed them. Keys are queued and sent in batches from a background thread, so that writers don't wait
+ * for the peers.
+ */
+public class MemcachedInvalidation extends Message {
+
+    public static final String AppId = "mci";
+
+    private static final int MAX_KEYS_PER_MESSAGE = 1000;
+    private static final long PEER_REFRESH_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private static final ExecutorService executor = newSingleThreadExecutor(newDaemonThreadFactory("MemcachedInvalidation"));
+    private static final Queue<String> pending = new ConcurrentLinkedQueue<String>();
+    private static final AtomicBoolean scheduled = new AtomicBoolean();
+    private static List<Server> peers;
+    private static long peersLoaded;
+
+    /**
+     * Queues the keys to be sent to every other mailbox server.
+     */
+    public static void broadcast(Collection<String> keys) {
+        if (keys.isEmpty() || !MessageChannel.getInstance().isRunning()) {
+            return;
+        }
+        pending.addAll(keys);
+        if (scheduled.compareAndSet(false, true)) {
+            executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    flush();
+                }
+            });
+        }
+    }
+
+    private static void flush() {
+        scheduled.set(false); // keys queued from now on schedule another flush
+        List<String> keys = new ArrayList<String>();
+        for (String key = pending.poll(); key != null; key = pending.poll()) {
+            keys.add(key);
+        }
+        if (keys.isEmpty()) {
+            return;
+        }
+        List<Server> servers;
+        try {
+            servers = getPeers();
+        } catch (ServiceException e) {
+            log.warn("unable to get servers to invalidate %d memcached keys on", keys.size(), e);
+            return;
+        }
+        MessageChannel channel = MessageChannel.getInstance();
+        for (int i = 0; i < keys.size(); i += MAX_KEYS_PER_MESSAGE) {
+            MemcachedInvalidation message = new MemcachedInvalidation(
+                    keys.subList(i, Math.min(i + MAX_KEYS_PER_MESSAGE, keys.size())));
+            for (Server server : servers) {
+                channel.sendMessage(server, message);
+            }
+        }
+    }
+
+    private static List<Server> getPeers() throws ServiceException {
+        long now = System.currentTimeMillis();
+        if (peers == null || now - peersLoaded > PEER_REFRESH_MILLIS) {
+            List<Server> servers = new ArrayList<Server>();
+            for (Server server : Provisioning.getInstance().getAllMailClientServers()) {
+                if (!server.isLocalServer()) {
+                    servers.add(server);
+                }
+            }
+            peers = servers;
+            peersLoaded = now;
+        }
+        return peers;
+    }
+
+    @Override
+    protected int size() {
+        // 4 byte int padding for the count and for the length of each string.
+        int size = 4;
+        for (String key : keys) {
+            size += 2 * key.length() + 4;
+        }
+        return size;
+    }
+
+    @Override
+    protected void serialize(ByteBuffer buffer) throws IOException {
+        buffer.putInt(keys.size());
+        for (String key : keys) {
+            writeString(buffer, key);
+        }
+    }
+
+    @Override
+    protected String getCoalescingKey() {
+        return AppId;
+    }
+
+    @Override
+    protected Message merge(Message next) {
+        Set<String> merged = new LinkedHashSet<String>(keys);
+        merged.addAll(((MemcachedInvalidation) next).getKeys());
+        if (merged.size() > MAX_KEYS_PER_MESSAGE) {
+            return null;
+        }
+        return new MemcachedInvalidation(new ArrayList<String>(merged));
+    }
+
+    @Override
+    protected Message construct(ByteBuffer buffer) throws IOException {
+        return new MemcachedInvalidation(buffer);
+    }
+
+    @Override
+    public String getAppId() {
+        return AppId;
+    }
+
+    @Override
+    public String getRecipientAccountId() {
+        return null; // addressed to servers, not to an account
+    }
+
+    public List<String> getKeys() {
+        return keys;
+    }
+
+    MemcachedInvalidation() {
+        keys = null;
+    }
+
+    public MemcachedInvalidation(ByteBuffer buffer) throws IOException {
+        super();
+        int count = buffer.getInt();
+        keys = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            keys.add(readString(buffer));
+        }
+    }
+
+    private MemcachedInvalidation(List<String> keys) {
+        super();
+        this.keys = keys;
+    }
+
+    @Override
+    public MessageHandler getHandler() {
+        return new MessageHandler() {
+            @Override
+            public void handle(Message m, String clientId) {
+                if (!(m instanceof MemcachedInvalidation)) {
+                    return;
+                }
+                MemcachedNearCache nearCache = MemcachedConnector.getClient().getNearCache();
+                if (nearCache != null) {
+                    log.debug("invalidating %d memcached keys from %s", ((MemcachedInvalidation) m).getKeys().size(),
+                            clientId);
+                    nearCache.invalidateLocal(((MemcachedInvalidation) m).getKeys());
+                }
+            }
+        };
+    }
+
+    @Override
+    public String toString() {
+        return AppId + ":" + keys;
+    }
+
+    private final List<String> keys;
+}
@@ -62,6 +62,32 @@ public abstract class Message {
      */
     protected abstract Message construct(ByteBuffer in) throws IOException;
 
+    /**
+     * Returns a key shared by the messages that can be merged with this one
+     * while they wait to be sent in a batch, or null if this message is always
+     * sent on its own.
+     */
+    protected String getCoalescingKey() {
+        return null;
+    }
+
+    /**
+     * Returns a message that carries this message followed by next, which has
+     * the same coalescing key, or null if the two can't be merged.
+     */
+    protected Message merge(Message next) {
+        return null;
+    }
+
+    /**
+     * Returns a message to send in place of this one when it has to be
+     * dropped, which tells the recipient that it missed something and must
+     * resync, or null if nothing is sent instead.
+     */
+    protected Message getResyncMessage() {
+        return null;
+    }
+
     /**
      * Returns MessageHandler instance.
      * @return
@@ -83,6 +109,7 @@ public abstract class Message {
     static {
         registerMessage(new CrossServerNotification());
         registerMessage(new MailboxNotification());
+        registerMessage(new MemcachedInvalidation());
     }
 
     public static void registerMessage(Message m) {
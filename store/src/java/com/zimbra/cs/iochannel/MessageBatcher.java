@@ -0,0 +1,245 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.iochannel;
+
+import static com.zimbra.common.util.TaskUtil.newDaemonThreadFactory;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.zimbra.common.iochannel.Client.PeerServer;
+import com.zimbra.common.util.Log;
+import com.zimbra.common.util.LogFactory;
+import com.zimbra.cs.stats.ZimbraPerf;
+
+/**
+ * Holds the messages to each peer server for a short window before they are sent, so that the messages that share a
+ * coalescing key can be merged into one and the rest are written to the socket back to back. While the peer's
+ * backlog is over the limit the batch is held back and keeps merging, and once too many messages are waiting for a
+ * peer the oldest are dropped. A dropped message is replaced by its resync message, if it has one, which is sent
+ * ahead of the next batch so that the recipient knows it missed something.
+ *
+ * @see Message#getCoalescingKey()
+ */
+final class MessageBatcher {
+
+    private static final long REPORT_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private static final class Entry {
+        private final String key;
+        private final long queued;
+        private Message message;
+
+        Entry(Message message, String key, long queued) {
+            this.message = message;
+            this.key = key;
+            this.queued = queued;
+        }
+    }
+
+    private static final class PeerQueue {
+        private final PeerServer peer;
+        private final ArrayDeque<Entry> entries = new ArrayDeque<Entry>();
+        /** the last entry queued for each coalescing key, which later messages with the key are merged into */
+        private final Map<String, Entry> open = new HashMap<String, Entry>();
+        /** the resync message for the last message dropped with each coalescing key */
+        private final Map<String, Entry> resync = new LinkedHashMap<String, Entry>();
+        private boolean flushQueued;
+        private long merged;
+        private long dropped;
+        private long waited;
+        private long sent;
+        private long lastMessages;
+        private long lastBytes;
+
+        PeerQueue(PeerServer peer) {
+            this.peer = peer;
+        }
+    }
+
+    private final long window;
+    private final int maxBatch;
+    private final int maxBacklog;
+    private final int maxPending;
+    private final ConcurrentMap<PeerServer, PeerQueue> queues = new ConcurrentHashMap<PeerServer, PeerQueue>();
+    private final ScheduledExecutorService executor;
+    private long lastReport = System.currentTimeMillis();
+
+    MessageBatcher(long window, int maxBatch, int maxBacklog, int maxPending) {
+        this.window = window;
+        this.maxBatch = maxBatch;
+        this.maxBacklog = maxBacklog;
+        this.maxPending = maxPending;
+        executor = Executors.newSingleThreadScheduledExecutor(newDaemonThreadFactory("MessageBatcher"));
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    flushAll();
+                    report();
+                } catch (Throwable t) {
+                    log.warn("error sending batched messages", t);
+                }
+            }
+        }, window, window, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Queues the message for the peer, merging it into a waiting message with the same coalescing key if it can.
+     */
+    void add(PeerServer peer, Message message) {
+        PeerQueue q = queues.get(peer);
+        if (q == null) {
+            PeerQueue existing = queues.putIfAbsent(peer, q = new PeerQueue(peer));
+            if (existing != null) {
+                q = existing;
+            }
+        }
+        boolean flush = false;
+        synchronized (q) {
+            String key = message.getCoalescingKey();
+            Entry last = key == null ? null : q.open.get(key);
+            Message merged = last == null ? null : last.message.merge(message);
+            if (merged != null) {
+                last.message = merged;
+                q.merged++;
+            } else {
+                Entry entry = new Entry(message, key, System.currentTimeMillis());
+                q.entries.add(entry);
+                if (key != null) {
+                    q.open.put(key, entry);
+                }
+                if (q.entries.size() > maxPending) {
+                    Entry oldest = q.entries.poll();
+                    if (oldest.key != null && q.open.get(oldest.key) == oldest) {
+                        q.open.remove(oldest.key);
+                    }
+                    Message resync = oldest.message.getResyncMessage();
+                    if (resync != null && oldest.key != null) {
+                        // a later resync message for the key covers the earlier ones
+                        q.resync.put(oldest.key, new Entry(resync, oldest.key, System.currentTimeMillis()));
+                    }
+                    ZimbraPerf.COUNTER_IOCHANNEL_DROPPED.increment();
+                    if (q.dropped++ == 0) {
+                        log.warn("more than %d messages waiting for %s, dropping the oldest", maxPending, peer);
+                    }
+                }
+            }
+            if (q.entries.size() >= maxBatch && !q.flushQueued) {
+                q.flushQueued = true;
+                flush = true;
+            }
+        }
+        if (flush) {
+            final PeerQueue full = q;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    flush(full);
+                }
+            });
+        }
+    }
+
+    @VisibleForTesting
+    void flushAll() {
+        for (PeerQueue q : queues.values()) {
+            flush(q);
+        }
+    }
+
+    private void flush(PeerQueue q) {
+        List<Entry> batch;
+        synchronized (q) {
+            q.flushQueued = false;
+            if ((q.entries.isEmpty() && q.resync.isEmpty()) || q.peer.getBacklog() >= maxBacklog) {
+                return;
+            }
+            batch = new ArrayList<Entry>(q.resync.size() + q.entries.size());
+            batch.addAll(q.resync.values());
+            batch.addAll(q.entries);
+            q.resync.clear();
+            q.entries.clear();
+            q.open.clear();
+        }
+        long now = System.currentTimeMillis();
+        for (Entry entry : batch) {
+            try {
+                q.peer.sendMessage(entry.message.serialize());
+            } catch (IOException e) {
+                log.error("can't send notification", e);
+                continue;
+            }
+            ZimbraPerf.STOPWATCH_IOCHANNEL_BATCH.stop(entry.queued);
+            synchronized (q) {
+                q.waited += now - entry.queued;
+                q.sent++;
+            }
+        }
+    }
+
+    /*
+     * Logs the rate of messages and bytes written to each peer, and how long messages waited to be batched.
+     */
+    private void report() {
+        long now = System.currentTimeMillis();
+        if (now - lastReport < REPORT_INTERVAL_MILLIS) {
+            return;
+        }
+        double seconds = (now - lastReport) / 1000.0;
+        lastReport = now;
+        for (PeerQueue q : queues.values()) {
+            long messages = q.peer.getMessagesSent();
+            long bytes = q.peer.getBytesSent();
+            synchronized (q) {
+                if (messages != q.lastMessages || q.dropped > 0) {
+                    log.info("%s: %.1f msgs/s, %.1f bytes/s, %d merged, %d dropped, %d ms average wait, backlog %d",
+                            q.peer, (messages - q.lastMessages) / seconds, (bytes - q.lastBytes) / seconds, q.merged,
+                            q.dropped, q.sent == 0 ? 0 : q.waited / q.sent, q.peer.getBacklog());
+                }
+                q.lastMessages = messages;
+                q.lastBytes = bytes;
+                q.merged = q.dropped = q.waited = q.sent = 0;
+            }
+        }
+    }
+
+    /**
+     * Sends whatever is waiting and stops the batching thread.
+     */
+    void shutdown() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(window * 2, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+        }
+        flushAll();
+    }
+
+    private static final Log log = LogFactory.getLog("iochannel");
+}
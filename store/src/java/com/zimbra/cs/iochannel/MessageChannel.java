@@ -23,6 +23,7 @@ import com.zimbra.common.iochannel.Client;
 import com.zimbra.common.iochannel.Client.PeerServer;
 import com.zimbra.common.iochannel.IOChannelException;
 import com.zimbra.common.iochannel.Server;
+import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.Log;
 import com.zimbra.common.util.LogFactory;
@@ -57,11 +58,20 @@ public class MessageChannel {
             server = Server.start(config);
             client = Client.start(config);
             server.registerCallback(new MessageChannelCallback());
+            long window = LC.iochannel_batch_window_ms.longValue();
+            if (window > 0) {
+                batcher = new MessageBatcher(window, LC.iochannel_batch_max_messages.intValue(),
+                        LC.iochannel_max_backlog.intValue(), LC.iochannel_max_pending.intValue());
+            }
             running = true;
         }
     }
 
     public synchronized void shutdown() {
+        if (batcher != null) {
+            batcher.shutdown();
+            batcher = null;
+        }
         server.shutdown();
         client.shutdown();
         running = false;
@@ -101,7 +111,11 @@ public class MessageChannel {
                 log.error("no client available for server %s", server.getServiceHostname());
                 return;
             }
-            peer.sendMessage(message.serialize());
+            if (batcher != null) {
+                batcher.add(peer, message);
+            } else {
+                peer.sendMessage(message.serialize());
+            }
         } catch (IOChannelException e) {
             log.warn("MessageChannel: " + e.getMessage());
         } catch (IOException e) {
@@ -124,6 +138,7 @@ public class MessageChannel {
 
     private Server server;
     private Client client;
+    private MessageBatcher batcher;
     private boolean running;
 
     private static Log log = LogFactory.getLog("iochannel");
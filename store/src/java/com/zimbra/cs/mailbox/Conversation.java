@@ -205,8 +205,8 @@ public class Conversation extends MailItem {
     List<Message> getMessages(SortBy sort, int limit) throws ServiceException {
         List<Message> msgs = new ArrayList<Message>(getMessageCount());
         List<UnderlyingData> listData = DbMailItem.getByParent(this, sort, limit, false);
-        for (UnderlyingData data : listData) {
-            msgs.add(mMailbox.getMessage(data));
+        for (MailItem item : mMailbox.getItems(listData, true)) {
+            msgs.add((Message) item);
         }
         return msgs;
     }
@@ -308,10 +308,12 @@ public class Conversation extends MailItem {
 
     void open(String hash) throws ServiceException {
         DbMailItem.openConversation(hash, this);
+        mMailbox.getConversationHashes().put(hash, mId);
     }
 
     void close(String hash) throws ServiceException {
         DbMailItem.closeConversation(hash, this);
+        mMailbox.getConversationHashes().remove(hash, mId);
     }
 
     @Override
@@ -744,7 +746,7 @@ public class Conversation extends MailItem {
             MetadataCallback.duringConversationAdd(mExtendedData, msg);
         }
         DbMailItem.reparentChildren(other, this);
-        DbMailItem.changeOpenTargets(other, getId());
+        mMailbox.changeOpenTargets(other, getId());
 
         recalculateMetadata();
 
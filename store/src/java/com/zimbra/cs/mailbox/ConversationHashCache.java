@@ -0,0 +1,106 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox;
+
+import java.util.Map;
+
+import com.googlecode.concurrentlinkedhashmap.ConcurrentLinkedHashMap;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.cs.mailbox.MailServiceException.NoSuchItemException;
+import com.zimbra.cs.stats.ZimbraPerf;
+
+/**
+ * Remembers which item the {@code OPEN_CONVERSATION} table associates with
+ * recently used threading hashes, and which hashes it has no entry for, so
+ * that threading a delivered message into a recent thread does not have to
+ * query the table. The cache is kept coherent by the code that opens, closes
+ * and retargets conversations; entries added during a transaction are
+ * dropped again if the transaction is rolled back.
+ */
+final class ConversationHashCache {
+
+    /** target recorded for a hash that the table has no entry for */
+    static final int NONE = 0;
+
+    private final Mailbox mbox;
+    private final Map<String, Integer> targets;
+
+    ConversationHashCache(Mailbox mbox, int size) {
+        this.mbox = mbox;
+        this.targets = new ConcurrentLinkedHashMap.Builder<String, Integer>().maximumWeightedCapacity(size).build();
+    }
+
+    /**
+     * @return id of the item the hash refers to, {@link #NONE} if the hash is
+     *         known not to be in the table, or <tt>null</tt> if it is not cached
+     */
+    Integer get(String hash) {
+        Integer target = targets.get(hash);
+        ZimbraPerf.COUNTER_MBOX_CONV_HASH_CACHE.increment(target == null ? 0 : 100);
+        return target;
+    }
+
+    /**
+     * Records the item a hash refers to, or {@link #NONE}, as written to or
+     * read from the table by the current transaction.
+     */
+    void put(String hash, int targetId) {
+        mbox.markOtherItemDirty(hash);
+        targets.put(hash, targetId);
+    }
+
+    void remove(String hash) {
+        targets.remove(hash);
+    }
+
+    void remove(String hash, int targetId) {
+        targets.remove(hash, targetId);
+    }
+
+    /** Forgets the hashes referring to an item whose entries have been moved to another item. */
+    void retarget(int oldTargetId) {
+        for (Map.Entry<String, Integer> entry : targets.entrySet()) {
+            if (entry.getValue() == oldTargetId) {
+                targets.remove(entry.getKey(), oldTargetId);
+            }
+        }
+    }
+
+    void clear() {
+        targets.clear();
+    }
+
+    /**
+     * Returns the conversation for an item the table refers to: the item
+     * itself, or the conversation of a message that is not in one yet.
+     *
+     * @return the conversation, or <tt>null</tt> if the item no longer exists
+     */
+    Conversation resolve(int targetId) throws ServiceException {
+        try {
+            MailItem item = mbox.getItemById(targetId, MailItem.Type.UNKNOWN);
+            if (item instanceof Conversation) {
+                return (Conversation) item;
+            } else if (item instanceof Message) {
+                return (Conversation) item.getParent();
+            }
+            return null;
+        } catch (NoSuchItemException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,388 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox;
+
+import java.util.Arrays;
+
+/**
+ * Compressed set of non-negative item ids. Ids are grouped by their upper 16 bits, and each group is kept either as a
+ * sorted array of the lower 16 bits while it is sparse, or as a 65536-bit bitmap once it holds more than
+ * {@value #ARRAY_MAX} ids, which bounds a group at 8KB however dense it is.
+ * <p>
+ * Not thread safe.
+ */
+public final class IdBitmap {
+
+    static final int ARRAY_MAX = 4096;
+    private static final int BITMAP_WORDS = 1 << 10;
+
+    /** upper 16 bits of the ids in each group, ascending */
+    private int[] keys;
+    private Object[] groups; // char[] for sparse groups, long[] for dense ones
+    private int[] cardinalities;
+    private int size;
+
+    public IdBitmap() {
+        this(4);
+    }
+
+    private IdBitmap(int capacity) {
+        keys = new int[capacity];
+        groups = new Object[capacity];
+        cardinalities = new int[capacity];
+    }
+
+    /**
+     * Adds the id, returning false if it was already there.
+     */
+    public boolean add(int id) {
+        checkId(id);
+        int key = id >>> 16;
+        char low = (char) id;
+        int i = Arrays.binarySearch(keys, 0, size, key);
+        if (i < 0) {
+            i = -i - 1;
+            insertGroup(i, key, new char[] { low }, 1);
+            return true;
+        }
+        Object group = groups[i];
+        int card = cardinalities[i];
+        if (group instanceof long[]) {
+            long[] bits = (long[]) group;
+            long mask = 1L << low;
+            if ((bits[low >>> 6] & mask) != 0) {
+                return false;
+            }
+            bits[low >>> 6] |= mask;
+        } else {
+            char[] values = (char[]) group;
+            int pos = Arrays.binarySearch(values, 0, card, low);
+            if (pos >= 0) {
+                return false;
+            }
+            pos = -pos - 1;
+            if (card == ARRAY_MAX) {
+                long[] bits = toBits(values, card);
+                bits[low >>> 6] |= 1L << low;
+                groups[i] = bits;
+            } else {
+                if (card == values.length) {
+                    values = Arrays.copyOf(values, Math.min(ARRAY_MAX, card * 2));
+                    groups[i] = values;
+                }
+                System.arraycopy(values, pos, values, pos + 1, card - pos);
+                values[pos] = low;
+            }
+        }
+        cardinalities[i] = card + 1;
+        return true;
+    }
+
+    /**
+     * Removes the id, returning false if it wasn't there.
+     */
+    public boolean remove(int id) {
+        if (id < 0) {
+            return false;
+        }
+        int i = Arrays.binarySearch(keys, 0, size, id >>> 16);
+        if (i < 0) {
+            return false;
+        }
+        char low = (char) id;
+        Object group = groups[i];
+        int card = cardinalities[i];
+        if (group instanceof long[]) {
+            long[] bits = (long[]) group;
+            long mask = 1L << low;
+            if ((bits[low >>> 6] & mask) == 0) {
+                return false;
+            }
+            bits[low >>> 6] &= ~mask;
+            if (card - 1 <= ARRAY_MAX) {
+                groups[i] = toValues(bits, card - 1);
+            }
+        } else {
+            char[] values = (char[]) group;
+            int pos = Arrays.binarySearch(values, 0, card, low);
+            if (pos < 0) {
+                return false;
+            }
+            System.arraycopy(values, pos + 1, values, pos, card - pos - 1);
+        }
+        if (card == 1) {
+            removeGroup(i);
+        } else {
+            cardinalities[i] = card - 1;
+        }
+        return true;
+    }
+
+    public boolean contains(int id) {
+        if (id < 0) {
+            return false;
+        }
+        int i = Arrays.binarySearch(keys, 0, size, id >>> 16);
+        if (i < 0) {
+            return false;
+        }
+        char low = (char) id;
+        Object group = groups[i];
+        if (group instanceof long[]) {
+            return (((long[]) group)[low >>> 6] & (1L << low)) != 0;
+        } else {
+            return Arrays.binarySearch((char[]) group, 0, cardinalities[i], low) >= 0;
+        }
+    }
+
+    /**
+     * Returns the smallest id that is at least {@code from}, or -1 if there is none, so that the ids can be walked
+     * without copying them out.
+     */
+    public int next(int from) {
+        if (from < 0) {
+            return -1;
+        }
+        int key = from >>> 16;
+        int i = Arrays.binarySearch(keys, 0, size, key);
+        if (i < 0) {
+            i = -i - 1;
+        }
+        for (; i < size; i++) {
+            int base = keys[i] << 16;
+            int start = keys[i] == key ? (char) from : 0;
+            Object group = groups[i];
+            if (group instanceof long[]) {
+                long[] bits = (long[]) group;
+                int w = start >>> 6;
+                long word = bits[w] & (-1L << start);
+                while (true) {
+                    if (word != 0) {
+                        return base | (w << 6) | Long.numberOfTrailingZeros(word);
+                    }
+                    if (++w == BITMAP_WORDS) {
+                        break;
+                    }
+                    word = bits[w];
+                }
+            } else {
+                int card = cardinalities[i];
+                int pos = Arrays.binarySearch((char[]) group, 0, card, (char) start);
+                if (pos < 0) {
+                    pos = -pos - 1;
+                }
+                if (pos < card) {
+                    return base | ((char[]) group)[pos];
+                }
+            }
+        }
+        return -1;
+    }
+
+    public int getCardinality() {
+        int total = 0;
+        for (int i = 0; i < size; i++) {
+            total += cardinalities[i];
+        }
+        return total;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Returns the ids in both bitmaps.
+     */
+    public IdBitmap and(IdBitmap other) {
+        IdBitmap result = new IdBitmap(Math.max(1, Math.min(size, other.size)));
+        int i = 0;
+        int j = 0;
+        while (i < size && j < other.size) {
+            if (keys[i] < other.keys[j]) {
+                i++;
+            } else if (keys[i] > other.keys[j]) {
+                j++;
+            } else {
+                long[] bits = andBits(toBits(groups[i], cardinalities[i]), other.groups[j], other.cardinalities[j]);
+                result.appendGroup(keys[i], bits);
+                i++;
+                j++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the ids in this bitmap that aren't in the other one.
+     */
+    public IdBitmap andNot(IdBitmap other) {
+        IdBitmap result = new IdBitmap(Math.max(1, size));
+        int j = 0;
+        for (int i = 0; i < size; i++) {
+            while (j < other.size && other.keys[j] < keys[i]) {
+                j++;
+            }
+            if (j < other.size && other.keys[j] == keys[i]) {
+                long[] bits = toBits(groups[i], cardinalities[i]);
+                long[] exclude = toBits(other.groups[j], other.cardinalities[j]);
+                for (int w = 0; w < BITMAP_WORDS; w++) {
+                    bits[w] &= ~exclude[w];
+                }
+                result.appendGroup(keys[i], bits);
+            } else {
+                result.appendGroup(keys[i], toBits(groups[i], cardinalities[i]));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the ids in ascending order.
+     */
+    public int[] toArray() {
+        int[] result = new int[getCardinality()];
+        int n = 0;
+        for (int i = 0; i < size; i++) {
+            int base = keys[i] << 16;
+            Object group = groups[i];
+            if (group instanceof long[]) {
+                long[] bits = (long[]) group;
+                for (int w = 0; w < BITMAP_WORDS; w++) {
+                    long word = bits[w];
+                    while (word != 0) {
+                        result[n++] = base | (w << 6) | Long.numberOfTrailingZeros(word);
+                        word &= word - 1;
+                    }
+                }
+            } else {
+                char[] values = (char[]) group;
+                for (int k = 0; k < cardinalities[i]; k++) {
+                    result[n++] = base | values[k];
+                }
+            }
+        }
+        return result;
+    }
+
+    public IdBitmap copy() {
+        IdBitmap result = new IdBitmap(Math.max(1, size));
+        for (int i = 0; i < size; i++) {
+            Object group = groups[i];
+            result.keys[i] = keys[i];
+            result.groups[i] = group instanceof long[] ? ((long[]) group).clone() :
+                    Arrays.copyOf((char[]) group, cardinalities[i]);
+            result.cardinalities[i] = cardinalities[i];
+        }
+        result.size = size;
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "IdBitmap[" + getCardinality() + " ids in " + size + " groups]";
+    }
+
+    private static void checkId(int id) {
+        if (id < 0) {
+            throw new IllegalArgumentException("negative id " + id);
+        }
+    }
+
+    private void insertGroup(int i, int key, Object group, int card) {
+        if (size == keys.length) {
+            int capacity = size * 2;
+            keys = Arrays.copyOf(keys, capacity);
+            groups = Arrays.copyOf(groups, capacity);
+            cardinalities = Arrays.copyOf(cardinalities, capacity);
+        }
+        System.arraycopy(keys, i, keys, i + 1, size - i);
+        System.arraycopy(groups, i, groups, i + 1, size - i);
+        System.arraycopy(cardinalities, i, cardinalities, i + 1, size - i);
+        keys[i] = key;
+        groups[i] = group;
+        cardinalities[i] = card;
+        size++;
+    }
+
+    private void removeGroup(int i) {
+        System.arraycopy(keys, i + 1, keys, i, size - i - 1);
+        System.arraycopy(groups, i + 1, groups, i, size - i - 1);
+        System.arraycopy(cardinalities, i + 1, cardinalities, i, size - i - 1);
+        size--;
+        groups[size] = null;
+    }
+
+    /**
+     * Appends a group with a key greater than any already here, in whichever form suits its cardinality.
+     */
+    private void appendGroup(int key, long[] bits) {
+        int card = 0;
+        for (long word : bits) {
+            card += Long.bitCount(word);
+        }
+        if (card > 0) {
+            insertGroup(size, key, card > ARRAY_MAX ? bits : toValues(bits, card), card);
+        }
+    }
+
+    /**
+     * Returns a fresh bitmap of the group's ids.
+     */
+    private static long[] toBits(Object group, int card) {
+        if (group instanceof long[]) {
+            return ((long[]) group).clone();
+        }
+        long[] bits = new long[BITMAP_WORDS];
+        char[] values = (char[]) group;
+        for (int k = 0; k < card; k++) {
+            bits[values[k] >>> 6] |= 1L << values[k];
+        }
+        return bits;
+    }
+
+    private static char[] toValues(long[] bits, int card) {
+        char[] values = new char[Math.max(card, 1)];
+        int n = 0;
+        for (int w = 0; w < BITMAP_WORDS; w++) {
+            long word = bits[w];
+            while (word != 0) {
+                values[n++] = (char) ((w << 6) | Long.numberOfTrailingZeros(word));
+                word &= word - 1;
+            }
+        }
+        return values;
+    }
+
+    private static long[] andBits(long[] bits, Object group, int card) {
+        if (group instanceof long[]) {
+            long[] other = (long[]) group;
+            for (int w = 0; w < BITMAP_WORDS; w++) {
+                bits[w] &= other[w];
+            }
+            return bits;
+        }
+        long[] result = new long[BITMAP_WORDS];
+        char[] values = (char[]) group;
+        for (int k = 0; k < card; k++) {
+            char v = values[k];
+            long mask = 1L << v;
+            result[v >>> 6] |= bits[v >>> 6] & mask;
+        }
+        return result;
+    }
+}
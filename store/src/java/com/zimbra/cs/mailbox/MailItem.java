@@ -1635,11 +1635,7 @@ public abstract class MailItem implements Comparable<MailItem>, ScheduledTaskRes
         if (ids == null || ids.isEmpty()) {
             return Collections.emptyList();
         }
-        List<MailItem> items = new ArrayList<MailItem>();
-        for (UnderlyingData ud : DbMailItem.getById(mbox, ids, type)) {
-            items.add(mbox.getItem(ud));
-        }
-        return items;
+        return mbox.getItems(DbMailItem.getById(mbox, ids, type), true);
     }
 
     static MailItem getByImapId(Mailbox mbox, int id, int folderId) throws ServiceException {
@@ -2694,6 +2690,10 @@ public abstract class MailItem implements Comparable<MailItem>, ScheduledTaskRes
         ZimbraLog.mailop.info("Performing IMAP copy of %s: copyId=%d, folderId=%d, folderName=%s, parentId=%d.",
             getMailopContext(this), copyId, target.getId(), target.getName(), data.parentId);
         DbMailItem.icopy(this, data, shareIndex);
+        if (this instanceof Message && getParentId() <= 0) {
+            // the copy took over the threading hashes that referred to this message
+            mMailbox.getConversationHashes().retarget(mId);
+        }
 
         MailItem copy = constructItem(mMailbox, data);
         copy.finishCreation(null);
@@ -40,6 +40,7 @@ import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.regex.Pattern;
 
@@ -81,6 +82,7 @@ import com.zimbra.common.util.ByteUtil;
 import com.zimbra.common.util.Constants;
 import com.zimbra.common.util.CopyInputStream;
 import com.zimbra.common.util.DateUtil;
+import com.zimbra.common.util.ListUtil;
 import com.zimbra.common.util.Pair;
 import com.zimbra.common.util.SetUtil;
 import com.zimbra.common.util.StringUtil;
@@ -96,6 +98,7 @@ import com.zimbra.cs.account.Provisioning;
 import com.zimbra.cs.account.Server;
 import com.zimbra.cs.account.ShareLocator;
 import com.zimbra.cs.datasource.DataSourceManager;
+import com.zimbra.cs.db.Db;
 import com.zimbra.cs.db.DbDataSource;
 import com.zimbra.cs.db.DbMailItem;
 import com.zimbra.cs.db.DbMailItem.QueryParams;
@@ -426,6 +429,9 @@ public class Mailbox {
             if (conn == null) {
                 conn = DbPool.getConnection(Mailbox.this);
                 ZimbraLog.mailbox.debug("  fetching new DB connection");
+                if (writeChange) {
+                    Db.registerWriteIntent(conn);
+                }
             }
             return conn;
         }
@@ -624,6 +630,40 @@ public class Mailbox {
             }
         }
 
+        public Map<Integer, MailItem> getAll(Collection<Integer> ids) {
+            if (isAlwaysOn) {
+                try {
+                    return MemcachedItemCache.getInstance().getMulti(mbox, ids);
+                } catch (ServiceException e) {
+                    ZimbraLog.mailbox.error("error while fetching items from cache", e);
+                    return Collections.emptyMap();
+                }
+            } else {
+                Map<Integer, MailItem> result = new HashMap<Integer, MailItem>(ids.size() * 2);
+                for (Integer id : ids) {
+                    MailItem item = mapById.get(id);
+                    if (item != null) {
+                        result.put(id, item);
+                    }
+                }
+                return result;
+            }
+        }
+
+        public void putAll(Collection<MailItem> items) {
+            if (isAlwaysOn) {
+                try {
+                    MemcachedItemCache.getInstance().putMulti(mbox, items);
+                } catch (ServiceException e) {
+                    ZimbraLog.mailbox.error("error while writing items to cache", e);
+                }
+            } else {
+                for (MailItem item : items) {
+                    put(item);
+                }
+            }
+        }
+
         public MailItem get(String uuid) {
             if (isAlwaysOn) {
                 MailItem item = null;
@@ -725,9 +765,10 @@ public class Mailbox {
 
     private FolderCache mFolderCache;
     private Map<Object, Tag> mTagCache;
+    private volatile TagBitmapIndex tagIndex;
     private SoftReference<ItemCache> mItemCache = new SoftReference<ItemCache>(null);
-    private final Map<String, Integer> mConvHashes = new ConcurrentLinkedHashMap.Builder<String, Integer>()
-                    .maximumWeightedCapacity(MAX_MSGID_CACHE).build();
+    private final ConversationHashCache mConvHashes =
+                    new ConversationHashCache(this, LC.conversation_hash_cache_size.intValue());
     private final Map<String, Integer> mSentMessageIDs = new ConcurrentLinkedHashMap.Builder<String, Integer>()
                     .maximumWeightedCapacity(MAX_MSGID_CACHE).build();
 
@@ -735,6 +776,8 @@ public class Mailbox {
     private volatile boolean open = false;
     private boolean galSyncMailbox = false;
     private volatile boolean requiresWriteLock = true;
+    /** number of top-level transactions started on this mailbox since it was loaded */
+    private final AtomicLong transactionCount = new AtomicLong();
 
     protected Mailbox(MailboxData data) {
         mId = data.id;
@@ -929,6 +972,12 @@ public class Mailbox {
         return mId;
     }
 
+    /** Returns the number of top-level read and write transactions started
+     *  on this mailbox since it was loaded, as a measure of how busy it is. */
+    public long getTransactionCount() {
+        return transactionCount.get();
+    }
+
     /** Returns which MBOXGROUP<N> database this mailbox is homed in. */
     public int getSchemaGroupId() {
         return mData.schemaGroupId;
@@ -1602,8 +1651,7 @@ public class Mailbox {
      *    <li>The {@link Blob} or {@link MailboxBlob} for a newly-created file.
      *    <li>The {@link PendingDelete} holding blobs and index
      *        entries to be cleaned up after a {@link MailItem#deletes}.
-     *    <li>The SHA1 hash of a conversation's subject stored in
-     *        {@link #mConvHashes}.</ul>
+     *    <li>A threading hash recorded in {@link #mConvHashes}.</ul>
      *
      * @param obj  The relevant object.
      * @see #commitCache(Mailbox.MailboxChange)
@@ -1631,6 +1679,9 @@ public class Mailbox {
         } else if (currentChange().conn != null) {
             throw ServiceException.FAILURE("cannot set Connection for in-progress transaction", new Exception());
         }
+        if (currentChange().writeChange) {
+            Db.registerWriteIntent(conn);
+        }
         currentChange().conn = conn;
     }
 
@@ -1732,6 +1783,9 @@ public class Mailbox {
 
         }
         currentChange().startChange(caller, octxt, recorder, write);
+        if (currentChange().depth == 1) {
+            transactionCount.incrementAndGet();
+        }
 
         // if a Connection object was provided, use it
         if (conn != null) {
@@ -1962,6 +2016,22 @@ public class Mailbox {
         ZimbraLog.cache.debug("cached %s %d in mailbox %d", item.getType(), item.getId(), getId());
     }
 
+    /** Caches a batch of newly instantiated items, writing them to the item cache in one go. */
+    private void cache(Collection<MailItem> items) throws ServiceException {
+        List<MailItem> batch = new ArrayList<MailItem>(items.size());
+        for (MailItem item : items) {
+            if (item instanceof Tag || item instanceof Folder) {
+                cache(item);
+            } else if (!item.isTagged(Flag.FlagInfo.UNCACHED)) {
+                batch.add(item);
+            }
+        }
+        if (!batch.isEmpty()) {
+            getItemCache().putAll(batch);
+            ZimbraLog.cache.debug("cached %d items in mailbox %d", batch.size(), getId());
+        }
+    }
+
     protected void uncache(MailItem item) throws ServiceException {
         if (item == null) {
             return;
@@ -2051,6 +2121,7 @@ public class Mailbox {
 
     private void clearTagCache() {
         mTagCache = null;
+        tagIndex = null;
         requiresWriteLock = true;
         // Remove from memcached cache
         try {
@@ -3005,6 +3076,52 @@ public class Mailbox {
         }
     }
 
+    /**
+     * Bulk-loads items, typically to prime the caches before rendering them.  Ids that are not in the Mailbox's
+     * caches are looked up in the item cache in one round trip and then in the database in one query, and the
+     * loaded items are back-filled into the caches.  Unlike {@link #getItemById(OperationContext, Collection,
+     * MailItem.Type)}, missing items are left out rather than failing the call, and virtual conversation ids are
+     * not resolved.
+     *
+     * @return the existing items of the requested type, by id
+     * @throws ServiceException if any existing item is not visible to the caller
+     */
+    public Map<Integer, MailItem> getItemsById(OperationContext octxt, Collection<Integer> ids, MailItem.Type type)
+            throws ServiceException {
+        boolean success = false;
+        try {
+            beginReadTransaction("getItemsById", octxt);
+            Map<Integer, MailItem> result = new HashMap<Integer, MailItem>(ids.size() * 2);
+            Set<Integer> uncached = new HashSet<Integer>();
+            Map<Integer, MailItem> cached = getCachedItems(ids);
+            for (Integer id : ids) {
+                MailItem item = cached.get(id);
+                logCacheActivity(id, type, item);
+                if (item != null) {
+                    if (MailItem.isAcceptableType(type, item.getType())) {
+                        result.put(id, item);
+                    }
+                } else if (id > 0 && !isCachedType(type)) {
+                    uncached.add(id);
+                }
+            }
+            if (!uncached.isEmpty()) {
+                for (MailItem item : getItems(DbMailItem.getById(this, uncached, MailItem.Type.UNKNOWN), false)) {
+                    if (MailItem.isAcceptableType(type, item.getType())) {
+                        result.put(item.getId(), item);
+                    }
+                }
+            }
+            for (MailItem item : result.values()) {
+                checkAccess(item);
+            }
+            success = true;
+            return result;
+        } finally {
+            endTransaction(success);
+        }
+    }
+
     MailItem[] getItemById(Collection<Integer> ids, MailItem.Type type) throws ServiceException {
         return getItemById(ArrayUtil.toIntArray(ids), type);
     }
@@ -3033,7 +3150,18 @@ public class Mailbox {
 
         Set<Integer> uncached = new HashSet<Integer>();
 
-        // try the cache first
+        // try the cache first, asking it for everything at once (including the messages behind virtual conversations)
+        Set<Integer> keys = new HashSet<Integer>();
+        for (int id : ids) {
+            if (id != ID_AUTO_INCREMENT) {
+                keys.add(id);
+                if (id <= -FIRST_USER_ID) {
+                    keys.add(-id);
+                }
+            }
+        }
+        Map<Integer, MailItem> cached = getCachedItems(keys);
+
         Integer miss = null;
         boolean relaxType = false;
         for (int i = 0; i < ids.length; i++) {
@@ -3042,14 +3170,19 @@ public class Mailbox {
                 items[i] = null;
             } else {
                 Integer key = ids[i];
-                MailItem item = getCachedItem(key, type);
+                MailItem item = cached.get(key);
+                if (item != null && !MailItem.isAcceptableType(type, item.getType())) {
+                    item = null;
+                }
+                logCacheActivity(key, type, item);
                 // special-case virtual conversations
                 if (item == null && ids[i] <= -FIRST_USER_ID) {
 
                     if (!MailItem.isAcceptableType(type, MailItem.Type.CONVERSATION)) {
                         throw MailItem.noSuchItem(ids[i], type);
                     }
-                    Message msg = getCachedMessage(-ids[i]);
+                    MailItem cachedMsg = cached.get(-ids[i]);
+                    Message msg = cachedMsg instanceof Message ? (Message) cachedMsg : null;
                     if (msg != null) {
                         if (msg.getConversationId() == ids[i]) {
                             item = new VirtualConversation(this, msg);
@@ -3078,7 +3211,8 @@ public class Mailbox {
         }
 
         // cache miss, so fetch from the database
-        List<MailItem> itemsFromDb = MailItem.getById(this, uncached, relaxType ? MailItem.Type.UNKNOWN : type);
+        List<MailItem> itemsFromDb = getItems(
+                DbMailItem.getById(this, uncached, relaxType ? MailItem.Type.UNKNOWN : type), false);
         HashMap<Integer, MailItem> tempCache = new HashMap<Integer, MailItem>();
         for (MailItem item : itemsFromDb) {
             tempCache.put(item.getId(), item);
@@ -3127,6 +3261,33 @@ public class Mailbox {
         return items;
     }
 
+    /**
+     * Looks the items up in the Mailbox's caches, going to the item cache once for all of them.  Returns the cached
+     * items by id, whatever their type.
+     */
+    private Map<Integer, MailItem> getCachedItems(Collection<Integer> keys) throws ServiceException {
+        Map<Integer, MailItem> result = new HashMap<Integer, MailItem>(keys.size() * 2);
+        List<Integer> uncached = new ArrayList<Integer>(keys.size());
+        for (Integer key : keys) {
+            MailItem item = key < 0 ? Flag.of(this, key) : null;
+            if (item == null && mTagCache != null) {
+                item = mTagCache.get(key);
+            }
+            if (item == null && mFolderCache != null) {
+                item = mFolderCache.get(key);
+            }
+            if (item != null) {
+                result.put(key, item);
+            } else {
+                uncached.add(key);
+            }
+        }
+        if (!uncached.isEmpty()) {
+            result.putAll(getItemCache().getAll(uncached));
+        }
+        return result;
+    }
+
     /** retrieve an item from the Mailbox's caches; return null if no item found */
     MailItem getCachedItem(Integer key) throws ServiceException {
         MailItem item = null;
@@ -3230,6 +3391,42 @@ public class Mailbox {
         return MailItem.constructItem(this, data);
     }
 
+    /** Bulk version of {@link #getItem(MailItem.UnderlyingData)}.  The caches are checked for all the items at
+     *  once, unless the caller already knows they are not there, and the items that have to be instantiated are
+     *  added to the caches in one batch. */
+    List<MailItem> getItems(List<MailItem.UnderlyingData> dataList, boolean checkCache) throws ServiceException {
+        if (dataList.isEmpty()) {
+            return Collections.emptyList();
+        }
+        Map<Integer, MailItem> cached = Collections.emptyMap();
+        if (checkCache) {
+            List<Integer> ids = new ArrayList<Integer>(dataList.size());
+            for (MailItem.UnderlyingData data : dataList) {
+                ids.add(data.id);
+            }
+            cached = getCachedItems(ids);
+        }
+        List<MailItem> result = new ArrayList<MailItem>(dataList.size());
+        List<MailItem> loaded = new ArrayList<MailItem>();
+        for (MailItem.UnderlyingData data : dataList) {
+            MailItem.Type type = MailItem.Type.of(data.type);
+            MailItem item = cached.get(data.id);
+            if (item != null && !MailItem.isAcceptableType(type, item.getType())) {
+                item = null;
+            }
+            if (checkCache) {
+                logCacheActivity(data.id, type, item);
+            }
+            if (item == null) {
+                item = MailItem.constructItem(this, data, true);
+                loaded.add(item);
+            }
+            result.add(item);
+        }
+        cache(loaded);
+        return result;
+    }
+
     public MailItem getItemRevision(OperationContext octxt, int id, MailItem.Type type, int version)
             throws ServiceException {
         return getItemRevision(octxt, id, type, version, false);
@@ -3995,6 +4192,28 @@ public class Mailbox {
         }
     }
 
+    /**
+     * Returns the in-memory index of tagged items, or null if it is disabled or not loaded yet. It is only loaded
+     * by a thread that holds the mailbox lock and has nothing uncommitted in the database, so no change can be
+     * committed between reading TAGGED_ITEM and publishing the index. Inside a write transaction this always
+     * returns null, as the index only reflects committed changes and the transaction may have tagged or untagged
+     * items that a search in it must see.
+     */
+    public TagBitmapIndex getTagBitmapIndex(DbConnection conn) throws ServiceException {
+        if (!TagBitmapIndex.isEnabled()) {
+            return null;
+        }
+        MailboxChange change = threadChange.get();
+        if (change != null && change.isActive() && change.writeChange) {
+            return null;
+        }
+        TagBitmapIndex result = tagIndex;
+        if (result == null && conn != null && !lock.isUnlocked()) {
+            tagIndex = result = TagBitmapIndex.load(this, conn);
+        }
+        return result;
+    }
+
     Tag getTagByName(String name) throws ServiceException {
         Tag tag = name.startsWith(Tag.FLAG_NAME_PREFIX) ? Flag.of(this, name) : mTagCache.get(name.toLowerCase());
         if (tag == null) {
@@ -4419,18 +4638,22 @@ public class Mailbox {
     }
 
     Conversation getConversationByHash(String hash) throws ServiceException {
-        Conversation conv = null;
-
-        Integer convId = mConvHashes.get(hash);
-        if (convId != null) {
-            conv = getCachedConversation(convId);
-        }
-        if (conv != null) {
-            return conv;
+        Integer target = mConvHashes.get(hash);
+        if (target != null) {
+            if (target == ConversationHashCache.NONE) {
+                return null;
+            }
+            Conversation conv = mConvHashes.resolve(target);
+            if (conv != null) {
+                return conv;
+            }
+            mConvHashes.retarget(target);
         }
 
-        // XXX: why not just do a "getConversationById()" if convId != null?
-        MailItem.UnderlyingData data = DbMailItem.getByHash(this, hash);
+        Map<String, Integer> targets = new HashMap<String, Integer>(2);
+        MailItem.UnderlyingData data = ListUtil.getFirstElement(DbMailItem.getByHashes(this, Arrays.asList(hash), targets));
+        target = targets.get(hash);
+        mConvHashes.put(hash, target == null ? ConversationHashCache.NONE : target);
         if (data == null || data.type == MailItem.Type.CONVERSATION.toByte()) {
             return getConversation(data);
         }
@@ -5802,22 +6025,7 @@ public class Mailbox {
             BufferStream bs = cs.getBufferStream();
             ParsedMessage pm = null;
 
-            Rfc822ValidationInputStream validator = null;
-            if (LC.zimbra_lmtp_validate_messages.booleanValue()) {
-                validator = new Rfc822ValidationInputStream(cs, LC.zimbra_lmtp_max_line_length.longValue());
-                in = validator;
-            }
-
-            blob = StoreManager.getInstance().storeIncoming(in);
-
-            if (id != null && id.ud != null && id.ud.getBlobDigest() != null && !id.ud.getBlobDigest().isEmpty()) {
-                blob.setDigest(id.ud.getBlobDigest());
-            }
-
-            if (validator != null && !validator.isValid()) {
-                StoreManager.getInstance().delete(blob);
-                throw ServiceException.INVALID_REQUEST("Message content is invalid.", null);
-            }
+            blob = storeIncomingMessage(in, id != null && id.ud != null ? id.ud.getBlobDigest() : null);
 
             pm = new ParsedMessage(new ParsedMessageOptions(blob, bs.isPartial() ? null : bs.getBuffer(), receivedDate, attachmentsIndexingEnabled()));
             cs.release();
@@ -5832,6 +6040,35 @@ public class Mailbox {
         }
     }
 
+    /**
+     * Stores the message read from <tt>in</tt> as an incoming blob.  When
+     * <tt>zimbra_lmtp_validate_messages</tt> is set, the message is checked
+     * for overlong lines as it is read, and the blob is deleted and
+     * <tt>INVALID_REQUEST</tt> thrown if it fails the check.
+     *
+     * @param digest  the digest to record for the blob, or <tt>null</tt> to
+     *                keep the one computed from the content
+     */
+    public static Blob storeIncomingMessage(InputStream in, String digest) throws IOException, ServiceException {
+        Rfc822ValidationInputStream validator = null;
+        if (LC.zimbra_lmtp_validate_messages.booleanValue()) {
+            validator = new Rfc822ValidationInputStream(in, LC.zimbra_lmtp_max_line_length.longValue());
+            in = validator;
+        }
+
+        Blob blob = StoreManager.getInstance().storeIncoming(in);
+
+        if (digest != null && !digest.isEmpty()) {
+            blob.setDigest(digest);
+        }
+
+        if (validator != null && !validator.isValid()) {
+            StoreManager.getInstance().delete(blob);
+            throw ServiceException.INVALID_REQUEST("Message content is invalid.", null);
+        }
+        return blob;
+    }
+
     public Message addMessage(OperationContext octxt, InputStream in, long sizeHint, Long receivedDate, DeliveryOptions dopt, DeliveryContext dctxt)
         throws IOException, ServiceException {
         return addMessage(octxt, in, sizeHint, receivedDate, dopt, dctxt, null);
@@ -6278,15 +6515,25 @@ public class Mailbox {
     void openConversation(Conversation conv, String subjectHash) throws ServiceException {
         String hash = subjectHash != null ? subjectHash : getHash(conv.getNormalizedSubject());
         conv.open(hash);
-        markOtherItemDirty(hash);
-        mConvHashes.put(hash, Integer.valueOf(conv.getId()));
     }
 
     // please keep this package-visible but not public
     void closeConversation(Conversation conv, String subjectHash) throws ServiceException {
         String hash = subjectHash != null ? subjectHash : getHash(conv.getNormalizedSubject());
         conv.close(hash);
-        mConvHashes.remove(hash);
+    }
+
+    // please keep this package-visible but not public
+    ConversationHashCache getConversationHashes() {
+        return mConvHashes;
+    }
+
+    /** Moves the threading hashes referring to one item to another. */
+    // please keep this package-visible but not public
+    void changeOpenTargets(MailItem oldTarget, int newTargetId) throws ServiceException {
+        DbMailItem.changeOpenTargets(oldTarget, newTargetId);
+        mConvHashes.retarget(oldTarget instanceof VirtualConversation ?
+                ((VirtualConversation) oldTarget).getMessageId() : oldTarget.getId());
     }
 
     // please keep this package-visible but not public
@@ -8709,6 +8956,7 @@ public class Mailbox {
             if (Threader.isHashPurgeAllowed(acct)) {
                 int convTimeoutSecs = (int) (LC.conversation_max_age_ms.longValue() / Constants.MILLIS_PER_SECOND);
                 DbMailItem.closeOldConversations(this, getOperationTimestamp() - convTimeoutSecs);
+                mConvHashes.clear();
             }
 
             if (isTrackingSync()) {
@@ -9548,6 +9796,7 @@ public class Mailbox {
 
         Session source = change.octxt == null ? null : change.octxt.getSession();
         assert (!change.hasChanges() || lock.isWriteLockedByCurrentThread());
+        int previousChangeId = mData.lastChangeId;
 
         try {
             // the mailbox data has changed, so commit the changes
@@ -9596,6 +9845,10 @@ public class Mailbox {
                 }
             }
 
+            if (dirty != null && tagIndex != null) {
+                tagIndex.changeCommitted(dirty);
+            }
+
             // committed changes, so notify any listeners
             if (dirty != null && dirty.hasNotifications()) {
                 try {
@@ -9611,8 +9864,13 @@ public class Mailbox {
                     ZimbraLog.mailbox.warn("error getting account for the mailbox", e);
                 }
             }
+            if (mData.lastChangeId != previousChangeId) {
+                index.changeCommitted(previousChangeId, mData.lastChangeId, dirty);
+            }
         } catch (RuntimeException e) {
             ZimbraLog.mailbox.error("ignoring error during cache commit", e);
+            // the tag bitmaps may have missed part of the change
+            tagIndex = null;
         } finally {
             // keep our MailItem cache at a reasonable size
             trimItemCache();
@@ -9635,12 +9893,16 @@ public class Mailbox {
                 if (Zimbra.isAlwaysOn()) {
                     conn = DbPool.getConnection();
                     List<String> serverids = DbSession.get(conn, getId());
+                    byte[] data = null;
                     for (String serverid : serverids) {
                         Server server = Provisioning.getInstance().getServerById(serverid);
                         if (server.isLocalServer()) {
                             continue;
                         }
-                        MailboxNotification ntfn = MailboxNotification.create(getAccountId(), mData.lastChangeId, dirty.getSerializedBytes());
+                        if (data == null) {
+                            data = dirty.getSerializedBytes();
+                        }
+                        MailboxNotification ntfn = MailboxNotification.create(getAccountId(), mData.lastChangeId, data);
                         MessageChannel.getInstance().sendMessage(server, ntfn);
                     }
                 }
@@ -9691,7 +9953,7 @@ public class Mailbox {
                 if (obj instanceof MailboxBlob || obj instanceof Blob) {
                     deletes.add(obj);
                 } else if (obj instanceof String) {
-                    mConvHashes.remove(obj);
+                    mConvHashes.remove((String) obj);
                 }
             }
             return deletes;
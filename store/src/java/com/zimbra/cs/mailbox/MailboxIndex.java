@@ -65,6 +65,7 @@ import com.zimbra.cs.index.Indexer;
 import com.zimbra.cs.index.LuceneFields;
 import com.zimbra.cs.index.LuceneIndex;
 import com.zimbra.cs.index.ReSortingQueryResults;
+import com.zimbra.cs.index.SearchResultCache;
 import com.zimbra.cs.index.SearchParams;
 import com.zimbra.cs.index.SortBy;
 import com.zimbra.cs.index.ZimbraAnalyzer;
@@ -75,6 +76,7 @@ import com.zimbra.cs.index.ZimbraQueryResults;
 import com.zimbra.cs.mailbox.MailItem.Type;
 import com.zimbra.cs.mailbox.MailItem.UnderlyingData;
 import com.zimbra.cs.mailbox.Mailbox.IndexItemEntry;
+import com.zimbra.cs.session.PendingModifications;
 import com.zimbra.cs.util.Zimbra;
 
 /**
@@ -102,6 +104,7 @@ public final class MailboxIndex {
     private final Semaphore indexLock = new Semaphore(1);
     private final Mailbox mailbox;
     private final Analyzer analyzer;
+    private final SearchResultCache resultCache;
     private IndexStore indexStore;
     // current re-indexing operation for this mailbox, or NULL if a re-index is not in progress.
     private volatile ReIndexTask reIndex;
@@ -120,6 +123,7 @@ public final class MailboxIndex {
             analyzerName = null;
         }
         analyzer = ZimbraAnalyzer.getAnalyzer(analyzerName);
+        resultCache = new SearchResultCache(mbox);
     }
 
     /**
@@ -133,6 +137,13 @@ public final class MailboxIndex {
         IndexStore.getFactory().destroy();
     }
 
+    /**
+     * Returns the number of index tasks currently running on the index threads.
+     */
+    public static int getActiveIndexTaskCount() {
+        return INDEX_EXECUTOR.getActiveCount();
+    }
+
     public Analyzer getAnalyzer() {
         return analyzer;
     }
@@ -244,7 +255,7 @@ public final class MailboxIndex {
                 break;
         }
 
-        ZimbraQueryResults results = zq.execute();
+        ZimbraQueryResults results = resultCache.search(zq);
         if (isTaskSort) {
             results = new ReSortingQueryResults(results, originalSort, null);
         }
@@ -314,6 +325,13 @@ public final class MailboxIndex {
         indexStore.evict();
     }
 
+    /**
+     * Brings the cached search results up to date with a committed change.
+     */
+    void changeCommitted(int previousChangeId, int changeId, PendingModifications mods) {
+        resultCache.changeCommitted(previousChangeId, changeId, mods);
+    }
+
     public void deleteIndex() throws IOException {
         if (isReIndexInProgress()) {
             cancelReIndex();
@@ -1191,6 +1209,14 @@ public final class MailboxIndex {
         return result;
     }
 
+    /**
+     * Returns the number of items waiting to be indexed, or 0 if they haven't been loaded from the database yet.
+     */
+    public int getLoadedDeferredCount() {
+        SetMultimap<MailItem.Type, Integer> ids = deferredIds;
+        return ids == null ? 0 : ids.size();
+    }
+
     /**
      * Returns the index deferred item count for the types.
      *
@@ -729,6 +729,19 @@ public class MailboxManager {
 
     }
 
+    /**
+     * Returns the last purge time and approximate size of every mailbox, keyed by mailbox ID.
+     */
+    public Map<Integer, DbMailbox.PurgeInfo> getPurgeInfo() throws ServiceException {
+        DbConnection conn = null;
+        try {
+            conn = DbPool.getConnection();
+            return DbMailbox.listPurgeInfo(conn);
+        } finally {
+            DbPool.quietClose(conn);
+        }
+    }
+
     /** Returns an array of the account IDs of all the mailboxes on this host.
      *  Note that <code>Mailbox</code>es are lazily created, so this is not
      *  the same as the set of accounts whose <code>zimbraMailHost</code> LDAP
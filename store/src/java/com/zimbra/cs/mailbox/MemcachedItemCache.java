@@ -16,6 +16,12 @@ package com.zimbra.cs.mailbox;
  * ***** END LICENSE BLOCK *****
  */
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.memcached.MemcachedKey;
 import com.zimbra.common.util.memcached.MemcachedMap;
@@ -126,6 +132,29 @@ public class MemcachedItemCache {
         }
     }
     
+    /**
+     * Retrieves the items from memcached cache in one round trip
+     * @param mbox
+     * @param itemIds
+     * @return the items that were present, by id
+     * @throws ServiceException
+     */
+    public Map<Integer, MailItem> getMulti(Mailbox mbox, Collection<Integer> itemIds) throws ServiceException {
+        List<ItemCacheKey> keys = new ArrayList<ItemCacheKey>(itemIds.size());
+        for (int itemId : itemIds) {
+            keys.add(new ItemCacheKey(mbox, itemId));
+        }
+        Map<Integer, MailItem> result = new HashMap<Integer, MailItem>(itemIds.size() * 2);
+        for (Metadata meta : memcachedLookup.getMulti(keys).values()) {
+            if (meta != null) {
+                MailItem.UnderlyingData ud = new MailItem.UnderlyingData();
+                ud.deserialize(meta);
+                result.put(ud.id, MailItem.constructItem(mbox, ud, true));
+            }
+        }
+        return result;
+    }
+
     public MailItem get(Mailbox mbox, String uuid) throws ServiceException {
         ItemCacheUuidKey key = new ItemCacheUuidKey(mbox, uuid);
         Integer itemId = memcachedUuidLookup.get(key);
@@ -143,6 +172,17 @@ public class MemcachedItemCache {
         memcachedUuidLookup.put(uuidKey, item.getId());
     }
     
+    public void putMulti(Mailbox mbox, Collection<MailItem> items) throws ServiceException {
+        Map<ItemCacheKey, Metadata> values = new HashMap<ItemCacheKey, Metadata>(items.size() * 2);
+        Map<ItemCacheUuidKey, Integer> uuids = new HashMap<ItemCacheUuidKey, Integer>(items.size() * 2);
+        for (MailItem item : items) {
+            values.put(new ItemCacheKey(mbox, item.getId()), item.serializeUnderlyingData());
+            uuids.put(new ItemCacheUuidKey(mbox, item.getUuid()), item.getId());
+        }
+        memcachedLookup.putMulti(values);
+        memcachedUuidLookup.putMulti(uuids);
+    }
+
     public MailItem remove(Mailbox mbox, int itemId) throws ServiceException {
         MailItem item = get(mbox, itemId);
         if (item != null) {
@@ -1341,7 +1341,7 @@ public class Message extends MailItem {
                 parent.getId() == (newParent == null ? -1 : newParent.mId) &&
                 !isDraft() && inSpam() == folder.inSpam()) {
             Conversation conv = mMailbox.createConversation(Mailbox.ID_AUTO_INCREMENT, this, copy);
-            DbMailItem.changeOpenTargets(this, conv.getId());
+            mMailbox.changeOpenTargets(this, conv.getId());
             parent.removeChild(this);
         }
         return copy;
@@ -26,6 +26,7 @@ import java.util.Map;
 import javax.mail.MessagingException;
 import javax.mail.internet.MimeMessage;
 
+import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.mime.MimeConstants;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.ByteUtil;
@@ -156,6 +157,8 @@ public class MessageCache {
         InputStream in = null;
         int mboxId = item.getMailboxId();
         boolean isEncrypted = false;
+        // expanded message that is not cached because a conversion is still running
+        MimeMessage incomplete = null;
 
         synchronized (sCache) {
             cnode = sCache.get(digest);
@@ -209,7 +212,7 @@ public class MessageCache {
                     //expand if the message has not yet been expanded or if the message is decrypted successfully
                     if (cnode.expanded == null || (decryptedMimeMessage != null && cnode.expanded != decryptedMimeMessage)) {
                         cacheHit = false;
-                        expandMessage(item, cnode, decryptedMimeMessage);
+                        incomplete = expandMessage(item, cnode, decryptedMimeMessage);
                     }
                 } catch (Exception e) {
                     // if the conversion bombs for any reason, revert to the original
@@ -242,7 +245,7 @@ public class MessageCache {
                 || cnode.smimeAccessInfo.get(mboxId) != null)) {
                 return cnode.message;
             }
-            return cnode.expanded;
+            return incomplete != null ? incomplete : cnode.expanded;
         } else {
             return cnode.message;
         }
@@ -266,7 +269,14 @@ public class MessageCache {
         return false;
     }
 
-    private static void expandMessage(MailItem item, CacheNode cnode, MimeMessage decryptedMimeMessage)
+    /**
+     * Expands the message and caches the result in the node.  If a converter
+     * did not finish in time, the partially expanded message is returned
+     * instead of being cached, so that it is expanded again next time.
+     *
+     * @return the expanded message if it was not cached, otherwise <tt>null</tt>
+     */
+    private static MimeMessage expandMessage(MailItem item, CacheNode cnode, MimeMessage decryptedMimeMessage)
         throws MessagingException, ServiceException {
         MimeMessage mimeToExpand = cnode.message;
         if (decryptedMimeMessage != null) {
@@ -283,12 +293,18 @@ public class MessageCache {
         }
         ExpandMimeMessage expander = new ExpandMimeMessage(
             decodedMimeMessage != null ? decodedMimeMessage : mimeToExpand);
+        expander.setConversionTimeout(LC.zimbra_converter_tnef_view_timeout.longValue());
         expander.expand();
+        if (!expander.isComplete()) {
+            sLog.debug("Conversion of item %d is still running; not caching the expanded message.", item.getId());
+            return expander.getExpanded();
+        }
         cnode.expanded = expander.getExpanded();
         if (cnode.expanded != cnode.message) {
             sDataSize += cnode.size;
             cnode.size *= 2;
         }
+        return null;
     }
 
     private static MimeMessage doDecryption(MailItem item, CacheNode cnode, int mboxId) {
@@ -16,25 +16,43 @@
  */
 package com.zimbra.cs.mailbox;
 
+import static com.zimbra.common.util.TaskUtil.newDaemonThreadFactory;
+
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.stats.LatencyHistogram;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.account.Account;
 import com.zimbra.cs.account.Provisioning;
 import com.zimbra.cs.account.Server;
+import com.zimbra.cs.db.DbMailbox;
 import com.zimbra.cs.util.Config;
 import com.zimbra.cs.util.Zimbra;
 
 /**
- * Iterates all the mailboxes in the system, purges them one at a time
- * and sleeps between purges for a time interval specified by
- * {@link Provisioning#A_zimbraMailPurgeSleepInterval}.
+ * Iterates all the mailboxes in the system, purging up to {@code purge_threads}
+ * of them concurrently.  Each worker sleeps between purges for a time interval
+ * specified by {@link Provisioning#A_zimbraMailPurgeSleepInterval}, extended if
+ * needed to stay within {@code purge_duty_cycle_percent}.
  *
  * @author bburtin
  */
@@ -43,7 +61,7 @@ extends Thread {
 
     private static volatile PurgeThread sPurgeThread = null;
     private static Object THREAD_CONTROL_LOCK = new Object();
-    private boolean mShutdownRequested = false;
+    private volatile boolean mShutdownRequested = false;
 
     private PurgeThread() {
         setName("MailboxPurge");
@@ -111,8 +129,8 @@ extends Thread {
     }
 
     /**
-     * Iterates all mailboxes, purging one at a time and sleeping
-     * between purges.
+     * Iterates all mailboxes in priority order, purging up to {@code purge_threads}
+     * of them at a time.
      */
     @Override public void run() {
         // Sleep before doing work, to give the server time to warm up.  Also limits the amount
@@ -128,79 +146,223 @@ extends Thread {
             return;
         }
 
-        Set<Integer> purgePendingMailboxes = new HashSet<Integer>();
-        while (true) {
-            List<Integer> mailboxIds = getMailboxIds();
-            boolean slept = false;
-
-            for (int i = 0; i < mailboxIds.size(); i++) {
-                int mailboxId = mailboxIds.get(i);
+        int numThreads = Math.max(LC.purge_threads.intValue(), 1);
+        ExecutorService workers = Executors.newFixedThreadPool(numThreads, newDaemonThreadFactory("MailboxPurgeWorker"));
+        try {
+            Set<Integer> purgePendingMailboxes = new HashSet<Integer>();
+            while (!mShutdownRequested) {
+                PurgePass pass = new PurgePass(purgePendingMailboxes);
+                List<Future<?>> futures = new ArrayList<Future<?>>(numThreads);
+                for (int i = 0; i < numThreads; i++) {
+                    futures.add(workers.submit(pass));
+                }
+                for (Future<?> future : futures) {
+                    try {
+                        future.get();
+                    } catch (InterruptedException e) {
+                        ZimbraLog.purge.debug("Purge thread was interrupted.");
+                        mShutdownRequested = true;
+                        break;
+                    } catch (ExecutionException e) {
+                        ZimbraLog.purge.warn("Purge worker failed", e.getCause());
+                    }
+                }
                 if (mShutdownRequested) {
-                    ZimbraLog.purge.info("Shutting down purge thread.");
-                    sPurgeThread = null;
-                    return;
+                    break;
+                }
+                pass.report();
+
+                // If nothing's getting purged, sleep to avoid a tight loop
+                if (pass.attempted.get() == 0) {
+                    sleep();
                 }
-                ZimbraLog.addMboxToContext(mailboxId);
 
-                // Purge the next mailbox
-                boolean attemptedPurge = false;
                 try {
-                    MailboxManager mm = MailboxManager.getInstance();
-                    if (mm.isMailboxLoadedAndAvailable(mailboxId) || purgePendingMailboxes.contains(mailboxId)) {
-                        attemptedPurge = true;
-                        Mailbox mbox = mm.getMailboxById(mailboxId);
-                        Account account = mbox.getAccount();
-                        Provisioning prov = Provisioning.getInstance();
-                        if (!Provisioning.ACCOUNT_STATUS_MAINTENANCE.equals(account.getAccountStatus(prov)) &&
-                                !account.isIsExternalVirtualAccount()) {
-                            ZimbraLog.addAccountNameToContext(account.getName());
-                            boolean purgedAll = mbox.purgeMessages(null);
-                            if (!purgedAll) {
-                                ZimbraLog.purge.info("Not all messages were purged.  Scheduling mailbox to be purged again.");
-                                mailboxIds.add(mailboxId);
-                            }
-                            Config.setInt(Config.KEY_PURGE_LAST_MAILBOX_ID, mbox.getId());
-                        } else {
-                            ZimbraLog.purge.debug("Skipping mailbox %d because the account is in maintenance status or is an external virtual account.", mailboxId);
+                    long lastPurgeMaxDuration = Provisioning.getInstance().getLocalServer().getLastPurgeMaxDuration();
+                    purgePendingMailboxes = MailboxManager.getInstance().getPurgePendingMailboxes(System.currentTimeMillis() - lastPurgeMaxDuration);
+                } catch (ServiceException e) {
+                    ZimbraLog.purge.warn("Unable to get purge pending mailboxes ", e);
+                }
+            }
+        } finally {
+            workers.shutdownNow();
+        }
+        ZimbraLog.purge.info("Shutting down purge thread.");
+        sPurgeThread = null;
+    }
+
+    /**
+     * One pass over all mailboxes.  Each worker thread takes the next mailbox
+     * from a shared queue, purges it and then pauses, so that the number of
+     * workers and {@code purge_duty_cycle_percent} bound the database and disk
+     * load that purging puts on the server.
+     */
+    private class PurgePass implements Runnable {
+        private final Set<Integer> purgePendingMailboxes;
+        private final BlockingQueue<Integer> queue;
+        private final long startTime = System.currentTimeMillis();
+        private final long maxLag;
+        private final long medianLag;
+        final AtomicInteger attempted = new AtomicInteger();
+        private final AtomicInteger purged = new AtomicInteger();
+        private final AtomicInteger failed = new AtomicInteger();
+        private final LatencyHistogram durations = new LatencyHistogram();
+
+        PurgePass(Set<Integer> purgePendingMailboxes) {
+            this.purgePendingMailboxes = purgePendingMailboxes;
+            Map<Integer, DbMailbox.PurgeInfo> info = Collections.emptyMap();
+            try {
+                info = MailboxManager.getInstance().getPurgeInfo();
+            } catch (ServiceException e) {
+                ZimbraLog.purge.warn("Unable to get mailbox purge info; purging in mailbox id order", e);
+            }
+            List<Integer> mailboxIds = prioritize(getMailboxIds(), info, startTime);
+            queue = new LinkedBlockingQueue<Integer>(mailboxIds);
+
+            long[] lags = new long[mailboxIds.size()];
+            for (int i = 0; i < lags.length; i++) {
+                DbMailbox.PurgeInfo mboxInfo = info.get(mailboxIds.get(i));
+                lags[i] = mboxInfo == null || mboxInfo.lastPurgeAt <= 0 ? 0 : Math.max(startTime - mboxInfo.lastPurgeAt, 0);
+            }
+            Arrays.sort(lags);
+            maxLag = lags.length == 0 ? 0 : lags[lags.length - 1];
+            medianLag = lags.length == 0 ? 0 : lags[lags.length / 2];
+        }
+
+        @Override
+        public void run() {
+            Integer mailboxId;
+            while (!mShutdownRequested && (mailboxId = queue.poll()) != null) {
+                long start = System.nanoTime();
+                if (purge(mailboxId)) {
+                    long elapsed = System.nanoTime() - start;
+                    durations.record(elapsed);
+                    // Pause after every purge attempt.
+                    pause(TimeUnit.NANOSECONDS.toMillis(elapsed));
+                }
+            }
+        }
+
+        /**
+         * Purges a single mailbox.
+         *
+         * @return <tt>true</tt> if a purge was attempted
+         */
+        private boolean purge(int mailboxId) {
+            ZimbraLog.addMboxToContext(mailboxId);
+            boolean attemptedPurge = false;
+            try {
+                MailboxManager mm = MailboxManager.getInstance();
+                if (mm.isMailboxLoadedAndAvailable(mailboxId) || purgePendingMailboxes.contains(mailboxId)) {
+                    attemptedPurge = true;
+                    attempted.incrementAndGet();
+                    Mailbox mbox = mm.getMailboxById(mailboxId);
+                    Account account = mbox.getAccount();
+                    Provisioning prov = Provisioning.getInstance();
+                    if (!Provisioning.ACCOUNT_STATUS_MAINTENANCE.equals(account.getAccountStatus(prov)) &&
+                            !account.isIsExternalVirtualAccount()) {
+                        ZimbraLog.addAccountNameToContext(account.getName());
+                        boolean purgedAll = mbox.purgeMessages(null);
+                        if (!purgedAll) {
+                            ZimbraLog.purge.info("Not all messages were purged.  Scheduling mailbox to be purged again.");
+                            queue.add(mailboxId);
                         }
+                        purged.incrementAndGet();
+                        Config.setInt(Config.KEY_PURGE_LAST_MAILBOX_ID, mbox.getId());
                     } else {
-                        ZimbraLog.purge.debug("Skipping mailbox %d because it is not loaded into memory.", mailboxId);
+                        ZimbraLog.purge.debug("Skipping mailbox %d because the account is in maintenance status or is an external virtual account.", mailboxId);
                     }
-                } catch (ServiceException se) {
-                    if (ServiceException.WRONG_HOST.equals(se.getCode())) {
-                        if (ZimbraLog.purge.isDebugEnabled()) {
-                            ZimbraLog.purge.debug("not purging mailbox moved to other host ", se);
-                        } else {
-                            ZimbraLog.purge.info("not purging mailbox %d; account moved to another host", mailboxId);
-                        }
+                } else {
+                    ZimbraLog.purge.debug("Skipping mailbox %d because it is not loaded into memory.", mailboxId);
+                }
+            } catch (ServiceException se) {
+                if (ServiceException.WRONG_HOST.equals(se.getCode())) {
+                    if (ZimbraLog.purge.isDebugEnabled()) {
+                        ZimbraLog.purge.debug("not purging mailbox moved to other host ", se);
                     } else {
-                        ZimbraLog.purge.warn("Unable to purge mailbox %d", mailboxId, se);
+                        ZimbraLog.purge.info("not purging mailbox %d; account moved to another host", mailboxId);
                     }
-                } catch (OutOfMemoryError oome) {
-                    Zimbra.halt("Ran out of memory while purging mailboxes", oome);
-                } catch (Throwable t) {
-                    ZimbraLog.purge.warn("Unable to purge mailbox %d", mailboxId, t);
+                } else {
+                    failed.incrementAndGet();
+                    ZimbraLog.purge.warn("Unable to purge mailbox %d", mailboxId, se);
                 }
-
+            } catch (OutOfMemoryError oome) {
+                Zimbra.halt("Ran out of memory while purging mailboxes", oome);
+            } catch (Throwable t) {
+                failed.incrementAndGet();
+                ZimbraLog.purge.warn("Unable to purge mailbox %d", mailboxId, t);
+            } finally {
                 ZimbraLog.clearContext();
-                if (attemptedPurge) {
-                    // Sleep after every purge attempt.
-                    sleep();
-                    slept = true;
-                }
-           }
+            }
+            return attemptedPurge;
+        }
 
-            // If nothing's getting purged, sleep to avoid a tight loop
-            if (!slept) {
-                sleep();
+        void report() {
+            if (attempted.get() == 0) {
+                return;
             }
+            long elapsed = Math.max(System.currentTimeMillis() - startTime, 1);
+            ZimbraLog.purge.info("Purge pass completed in %ds: attempted=%d purged=%d failed=%d throughput=%.1f/min " +
+                "lag max=%ds median=%ds; durations: %s", elapsed / 1000, attempted.get(), purged.get(), failed.get(),
+                purged.get() * 60000.0 / elapsed, maxLag / 1000, medianLag / 1000, durations.snapshot(false));
+        }
+    }
 
-            try {
-                long lastPurgeMaxDuration = Provisioning.getInstance().getLocalServer().getLastPurgeMaxDuration();
-                purgePendingMailboxes = MailboxManager.getInstance().getPurgePendingMailboxes(System.currentTimeMillis() - lastPurgeMaxDuration);
-            } catch (ServiceException e) {
-                ZimbraLog.purge.warn("Unable to get purge pending mailboxes ", e);
+    /**
+     * Orders mailboxes so that those likely to have the most expired data are
+     * purged first.  The estimate uses only the last purge time and size
+     * checkpoint of each mailbox: the longer since the last purge and the larger
+     * the mailbox, the more data is likely to have expired.  Mailboxes with the
+     * same estimate keep their relative order.
+     */
+    @VisibleForTesting
+    static List<Integer> prioritize(List<Integer> mailboxIds, final Map<Integer, DbMailbox.PurgeInfo> info, final long now) {
+        if (info.isEmpty()) {
+            return mailboxIds;
+        }
+        final Map<Integer, Double> scores = new HashMap<Integer, Double>(mailboxIds.size() * 2);
+        for (int id : mailboxIds) {
+            DbMailbox.PurgeInfo mboxInfo = info.get(id);
+            double score = 0;
+            if (mboxInfo != null) {
+                double lag = Math.max(now - mboxInfo.lastPurgeAt, 0) / 1000.0;
+                score = lag * (1 + Math.log1p(mboxInfo.size / (1024.0 * 1024.0)));
+            }
+            scores.put(id, score);
+        }
+        List<Integer> result = new ArrayList<Integer>(mailboxIds);
+        Collections.sort(result, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer id1, Integer id2) {
+                return Double.compare(scores.get(id2), scores.get(id1));
             }
+        });
+        return result;
+    }
+
+    /**
+     * Pauses a purge worker for the time interval specified by
+     * {@link Provisioning#A_zimbraMailPurgeSleepInterval}, or longer if needed
+     * to keep the worker's share of time spent purging under
+     * {@code purge_duty_cycle_percent}.  If the pause is interrupted or the
+     * interval is <tt>0</tt>, sets {@link #mShutdownRequested} to <tt>true</tt>.
+     *
+     * @param purgeTime milliseconds spent on the last purge
+     */
+    private void pause(long purgeTime) {
+        long interval = getSleepInterval();
+        if (interval <= 0) {
+            mShutdownRequested = true;
+            return;
+        }
+        int dutyCycle = Math.min(Math.max(LC.purge_duty_cycle_percent.intValue(), 1), 100);
+        interval = Math.max(interval, purgeTime * (100 - dutyCycle) / dutyCycle);
+        ZimbraLog.purge.debug("Sleeping for %d milliseconds.", interval);
+        try {
+            Thread.sleep(interval);
+        } catch (InterruptedException e) {
+            ZimbraLog.purge.debug("Purge worker was interrupted.");
+            mShutdownRequested = true;
         }
     }
 
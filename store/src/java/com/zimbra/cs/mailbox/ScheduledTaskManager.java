@@ -16,6 +16,7 @@
  */
 package com.zimbra.cs.mailbox;
 
+import java.util.List;
 import java.util.Random;
 import java.util.concurrent.Callable;
 
@@ -27,6 +28,8 @@ import com.zimbra.common.util.TaskScheduler;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.account.Config;
 import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.datasource.DataSourcePollScheduler;
+import com.zimbra.cs.datasource.DataSourceTask;
 import com.zimbra.cs.db.DbPool;
 import com.zimbra.cs.db.DbPool.DbConnection;
 import com.zimbra.cs.db.DbScheduledTask;
@@ -59,14 +62,20 @@ public class ScheduledTaskManager {
         sScheduler.addCallback(new CalItemReminderTaskCallback());
         sScheduler.addCallback(new ExpireGrantsTaskCallback());
 
-        for (ScheduledTask task : DbScheduledTask.getTasks(null, 0)) {
+        // Data source tasks are loaded in the background by DataSourcePollScheduler
+        boolean pollScheduler = DataSourcePollScheduler.isEnabled();
+        List<ScheduledTask> tasks = pollScheduler ?
+            DbScheduledTask.getTasksExcept(DataSourceTask.class.getName()) : DbScheduledTask.getTasks(null, 0);
+        for (ScheduledTask task : tasks) {
             try {
                 schedule(null, task);
             } catch (ServiceException e) {
                 ZimbraLog.scheduler.warn("Unable to schedule %s.", task, e);
             }
         }
-
+        if (pollScheduler) {
+            DataSourcePollScheduler.getInstance().startup();
+        }
     }
 
     /**
@@ -0,0 +1,223 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.db.DbPool.DbConnection;
+import com.zimbra.cs.db.DbTag;
+import com.zimbra.cs.session.PendingModifications;
+import com.zimbra.cs.session.PendingModifications.Change;
+import com.zimbra.cs.session.PendingModifications.ModificationKey;
+import com.zimbra.cs.util.Zimbra;
+
+/**
+ * In-memory copy of a mailbox's TAGGED_ITEM table: for each tag and reified flag, a bitmap of the leaf items that
+ * carry it. Tag and flag search constraints are resolved against it instead of being answered by correlated
+ * subqueries on TAGGED_ITEM.
+ * <p>
+ * The index is loaded from the database the first time a search needs it and is then kept up to date from the
+ * changes committed by the mailbox. It is only used where this server is the sole writer of the mailbox.
+ */
+public final class TagBitmapIndex {
+
+    private final Mailbox mailbox;
+    private final Map<Integer, IdBitmap> bitmaps;
+
+    private TagBitmapIndex(Mailbox mailbox, Map<Integer, IdBitmap> bitmaps) {
+        this.mailbox = mailbox;
+        this.bitmaps = bitmaps;
+    }
+
+    static boolean isEnabled() {
+        return LC.search_tag_bitmap_index.booleanValue() && !Zimbra.isAlwaysOn();
+    }
+
+    static TagBitmapIndex load(Mailbox mbox, DbConnection conn) throws ServiceException {
+        long start = System.currentTimeMillis();
+        TagBitmapIndex index = new TagBitmapIndex(mbox, DbTag.getTaggedItems(conn, mbox));
+        ZimbraLog.search.debug("loaded tag bitmaps for %d tags in %dms", index.bitmaps.size(),
+                System.currentTimeMillis() - start);
+        return index;
+    }
+
+    /**
+     * Returns the items carrying all of {@code tags} and none of {@code excludeTags} in ascending order, or null if
+     * more than {@code maxIds} of them do. The smallest of the tag bitmaps is walked and the others are only probed,
+     * so the walk stops as soon as the limit is passed. {@code tags} must not be empty, as the complement of the
+     * excluded items can't be enumerated here.
+     */
+    public synchronized int[] match(Collection<Tag> tags, Collection<Tag> excludeTags, int maxIds) {
+        List<IdBitmap> include = getBitmaps(tags, true);
+        if (include == null) {
+            return new int[0];
+        }
+        IdBitmap smallest = include.get(0);
+        for (IdBitmap ids : include) {
+            if (ids.getCardinality() < smallest.getCardinality()) {
+                smallest = ids;
+            }
+        }
+        List<IdBitmap> exclude = getBitmaps(excludeTags, false);
+        maxIds = Math.max(maxIds, 0);
+        int[] result = new int[Math.min(maxIds, smallest.getCardinality())];
+        int n = 0;
+        for (int id = smallest.next(0); id >= 0; id = smallest.next(id + 1)) {
+            if (matches(id, include, exclude)) {
+                if (n == maxIds) {
+                    return null;
+                }
+                result[n++] = id;
+            }
+        }
+        return n == result.length ? result : Arrays.copyOf(result, n);
+    }
+
+    /**
+     * Removes the items that don't carry all of {@code tags} or that carry any of {@code excludeTags}.
+     */
+    public synchronized void retainMatching(Collection<Integer> itemIds, Collection<Tag> tags,
+            Collection<Tag> excludeTags) {
+        List<IdBitmap> include = getBitmaps(tags, true);
+        if (include == null) {
+            itemIds.clear();
+            return;
+        }
+        List<IdBitmap> exclude = getBitmaps(excludeTags, false);
+        for (Iterator<Integer> i = itemIds.iterator(); i.hasNext();) {
+            if (!matches(i.next(), include, exclude)) {
+                i.remove();
+            }
+        }
+    }
+
+    /**
+     * Returns the bitmaps of the tags, skipping the tags that are on no item unless {@code all} is set, in which case
+     * null is returned for them.
+     */
+    private List<IdBitmap> getBitmaps(Collection<Tag> tags, boolean all) {
+        List<IdBitmap> result = new ArrayList<IdBitmap>(tags.size());
+        for (Tag tag : tags) {
+            IdBitmap ids = bitmaps.get(tag.getId());
+            if (ids != null) {
+                result.add(ids);
+            } else if (all) {
+                return null;
+            }
+        }
+        return result;
+    }
+
+    private static boolean matches(int id, List<IdBitmap> include, List<IdBitmap> exclude) {
+        for (IdBitmap ids : include) {
+            if (!ids.contains(id)) {
+                return false;
+            }
+        }
+        for (IdBitmap ids : exclude) {
+            if (ids.contains(id)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns how many items carry the tag.
+     */
+    public synchronized int getCount(Tag tag) {
+        IdBitmap ids = bitmaps.get(tag.getId());
+        return ids == null ? 0 : ids.getCardinality();
+    }
+
+    /**
+     * Applies a committed change set. Every created or modified leaf item is re-tagged from its current flags and
+     * tags, which is how {@link DbTag} rewrites its TAGGED_ITEM rows.
+     */
+    synchronized void changeCommitted(PendingModifications dirty) {
+        if (dirty.deleted != null) {
+            for (Map.Entry<ModificationKey, Change> entry : dirty.deleted.entrySet()) {
+                Object what = entry.getValue().what;
+                int id = entry.getKey().getItemId();
+                if (what == MailItem.Type.TAG || what instanceof Tag) {
+                    bitmaps.remove(id);
+                } else {
+                    clear(id);
+                }
+            }
+        }
+        if (dirty.created != null) {
+            for (MailItem item : dirty.created.values()) {
+                update(item);
+            }
+        }
+        if (dirty.modified != null) {
+            for (Change change : dirty.modified.values()) {
+                if (change.what instanceof MailItem &&
+                        (change.why & (Change.FLAGS | Change.TAGS | Change.UNREAD)) != 0) {
+                    update((MailItem) change.what);
+                }
+            }
+        }
+    }
+
+    private void update(MailItem item) {
+        if (!item.getType().isLeafNode()) {
+            return;
+        }
+        int id = item.getId();
+        clear(id);
+        int flags = item.getInternalFlagBitmask();
+        if (item.isUnread()) {
+            flags |= Flag.BITMASK_UNREAD;
+        }
+        for (int tagId : Mailbox.REIFIED_FLAGS) {
+            if ((flags & 1 << (-tagId - 1)) != 0) {
+                add(tagId, id);
+            }
+        }
+        for (String name : item.getTags()) {
+            try {
+                add(mailbox.getTagByName(name).getId(), id);
+            } catch (ServiceException e) {
+                // no such tag, so no TAGGED_ITEM row either
+            }
+        }
+    }
+
+    private void add(int tagId, int itemId) {
+        IdBitmap ids = bitmaps.get(tagId);
+        if (ids == null) {
+            bitmaps.put(tagId, ids = new IdBitmap());
+        }
+        ids.add(itemId);
+    }
+
+    private void clear(int itemId) {
+        for (IdBitmap ids : bitmaps.values()) {
+            ids.remove(itemId);
+        }
+    }
+}
@@ -21,7 +21,10 @@ import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 
 import javax.mail.internet.MimeMessage;
@@ -36,6 +39,7 @@ import com.zimbra.common.mime.MimeHeader;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.ByteUtil;
 import com.zimbra.common.util.Constants;
+import com.zimbra.common.util.ListUtil;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.account.Account;
 import com.zimbra.cs.account.DataSource;
@@ -345,20 +349,49 @@ public final class Threader {
             return Collections.emptyList();
         }
         ZimbraLog.mailbox.debug("  lookup by references (%s): %s", mode, refHashes);
-        List<MailItem.UnderlyingData> dlist = DbMailItem.getByHashes(mbox, refHashes);
-        if (dlist == null || dlist.isEmpty()) {
-            ZimbraLog.mailbox.debug("  no reference matches found");
-            return Collections.emptyList();
+
+        // consult the mailbox's hash cache first; only the hashes it knows nothing about go to the database
+        ConversationHashCache cache = mbox.getConversationHashes();
+        Map<Integer, Conversation> found = new LinkedHashMap<Integer, Conversation>();
+        List<String> uncached = new ArrayList<String>(refHashes.size());
+        for (String hash : refHashes) {
+            Integer target = cache.get(hash);
+            if (target == null) {
+                uncached.add(hash);
+            } else if (target != ConversationHashCache.NONE) {
+                Conversation conv = cache.resolve(target);
+                if (conv != null) {
+                    found.put(conv.getId(), conv);
+                } else {
+                    cache.retarget(target);
+                    uncached.add(hash);
+                }
+            }
         }
 
-        List<Conversation> matches = new ArrayList<Conversation>(dlist.size());
-        for (MailItem.UnderlyingData data : dlist) {
-            if (data.type == MailItem.Type.CONVERSATION.toByte()) {
-                matches.add(mbox.getConversation(data));
-            } else {
-                matches.add((Conversation) mbox.getMessage(data).getParent());
+        if (!uncached.isEmpty()) {
+            Map<String, Integer> targets = new HashMap<String, Integer>(uncached.size() * 2);
+            List<MailItem.UnderlyingData> dlist = DbMailItem.getByHashes(mbox, uncached, targets);
+            for (MailItem.UnderlyingData data : ListUtil.nullToEmpty(dlist)) {
+                Conversation conv;
+                if (data.type == MailItem.Type.CONVERSATION.toByte()) {
+                    conv = mbox.getConversation(data);
+                } else {
+                    conv = (Conversation) mbox.getMessage(data).getParent();
+                }
+                found.put(conv.getId(), conv);
+            }
+            for (String hash : uncached) {
+                Integer target = targets.get(hash);
+                cache.put(hash, target == null ? ConversationHashCache.NONE : target);
             }
         }
+
+        if (found.isEmpty()) {
+            ZimbraLog.mailbox.debug("  no reference matches found");
+            return Collections.emptyList();
+        }
+        List<Conversation> matches = new ArrayList<Conversation>(found.values());
         ZimbraLog.mailbox.debug("  found %d reference match(es)", matches.size());
 
         if (mode.isSubjrefs()) {
@@ -486,7 +519,7 @@ public final class Threader {
      *  refer to the given {@code Conversation}. */
     void changeThreadingTargets(Message msg, Conversation conv) throws ServiceException {
         if (conv != null && msg != null && isEnabled() && !mode.isSubject()) {
-            DbMailItem.changeOpenTargets(msg, conv.getId());
+            mbox.changeOpenTargets(msg, conv.getId());
             ZimbraLog.mailbox.debug("  transferred hashes from message %d to conv %d", msg.getId(), conv.getId());
         }
     }
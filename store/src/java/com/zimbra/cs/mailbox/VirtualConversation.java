@@ -101,11 +101,13 @@ public class VirtualConversation extends Conversation {
     @Override
     void open(String hash) throws ServiceException {
         DbMailItem.openConversation(hash, getMessage());
+        mMailbox.getConversationHashes().put(hash, getMessageId());
     }
 
     @Override
     void close(String hash) throws ServiceException {
         DbMailItem.closeConversation(hash, getMessage());
+        mMailbox.getConversationHashes().remove(hash, getMessageId());
     }
 
     @Override
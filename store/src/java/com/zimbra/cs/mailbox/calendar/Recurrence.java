@@ -23,14 +23,13 @@ import java.util.Calendar;
 import java.util.Collections;
 import java.util.Date;
 import java.util.GregorianCalendar;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.zimbra.common.calendar.ICalTimeZone;
 import com.zimbra.common.calendar.ParsedDateTime;
 import com.zimbra.common.calendar.ParsedDuration;
@@ -38,6 +37,7 @@ import com.zimbra.common.calendar.TimeZoneMap;
 import com.zimbra.common.calendar.ZCalendar.ICalTok;
 import com.zimbra.common.calendar.ZWeekDay;
 import com.zimbra.common.localconfig.DebugConfig;
+import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.soap.Element;
 import com.zimbra.common.soap.MailConstants;
@@ -554,7 +554,6 @@ public class Recurrence
      *
      */
     public static class SimpleRepeatingRule implements IInstanceGeneratingRule {
-        Map<String, List<Instance>> expandMap = new HashMap<String, List<Instance>>();
         public SimpleRepeatingRule(ParsedDateTime dtstart, ParsedDuration duration,
                 ZRecur recur, InviteInfo invId)
         {
@@ -728,11 +727,7 @@ public class Recurrence
                 ZimbraLog.calendar.warn("Unable to expand a recurrence with no DTSTART");
                 return new ArrayList<Instance>();
             }
-            String KEY = String.valueOf(calItemId) + '-' + start + '-' + end;
-            List<Instance> toRet = expandMap.get(KEY);
-            if (toRet != null) {
-                return toRet;
-            }
+            List<Instance> toRet;
             ICalTimeZone tz = mDtStart.getTimeZone();
             if (tz == null)
                 tz = ICalTimeZone.getUTC();
@@ -742,21 +737,32 @@ public class Recurrence
                     ParsedDateTime et = mDtStart.add(mDuration);
                     duration = et.getUtcTime() - mDtStart.getUtcTime();
                 }
-                List <java.util.Date> dateList = mRecur.expandRecurrenceOverRange(mDtStart, start - duration, end);
+                long rangeStart = start - duration;
+                long lastStart = RecurrenceExpansion.lastDate(mRecur, mDtStart, rangeStart, end);
+                RecurrenceExpansion expansion;
+                int cacheSize = LC.calendar_recurrence_expansion_cache_size.intValue();
+                if (cacheSize > 0) {
+                    // the rule, DTSTART and duration can be changed in place, so they are part of the key
+                    String key = mRecur.toString() + '|' + mDtStart.getUtcTime() + '|' + tz.getID() + '|' + mDuration;
+                    expansion = RecurrenceExpansion.expand(mExpansion, key, mRecur, mDtStart, mDuration, tz,
+                            rangeStart, lastStart);
+                    if (expansion.size() <= cacheSize) {
+                        // a wider one is used for this request only, and the one cached before is kept
+                        mExpansion = expansion;
+                    }
+                } else {
+                    expansion = RecurrenceExpansion.expand(null, "", mRecur, mDtStart, mDuration, tz,
+                            rangeStart, lastStart);
+                }
+                int first = expansion.indexOf(rangeStart);
+                int last = expansion.indexOf(lastStart + 1);
 
-                toRet = new ArrayList<Instance>(dateList.size());
+                toRet = new ArrayList<Instance>(Math.max(last - first, 0));
 
                 int num = 0;
-                for (Iterator iter = dateList.iterator(); iter.hasNext();) {
-                    Date cur = (Date)iter.next();
-                    long instStart = cur.getTime();
-                    long instEnd;
-                    if (mDuration != null) {
-                        ParsedDateTime startDt = ParsedDateTime.fromUTCTime(instStart, tz);
-                        instEnd = startDt.add(mDuration).getUtcTime();
-                    } else {
-                        instEnd = instStart;
-                    }
+                for (int i = first; i < last; i++) {
+                    long instStart = expansion.getStart(i);
+                    long instEnd = expansion.getEnd(i);
                     if (instStart < end && instEnd > start) {
                         int startTzo = tz.getOffset(instStart);
                         int endTzo = tz.getOffset(instEnd);
@@ -774,8 +780,6 @@ public class Recurrence
             	ZimbraLog.calendar.warn("Invalid recurrence rule: " + mRecur.toString(), iae);
                 toRet = new ArrayList<Instance>();
             }
-            // cache and return;
-            expandMap.put(KEY, toRet);
             return toRet;
         }
 
@@ -869,6 +873,13 @@ public class Recurrence
         private final ZRecur mRecur;
         private ParsedDuration mDuration;
         private InviteInfo mInvId;
+        // instances from earlier expansions; rules are copied for each calendar item, so this is per item
+        private volatile RecurrenceExpansion mExpansion;
+
+        @VisibleForTesting
+        RecurrenceExpansion getCachedExpansion() {
+            return mExpansion;
+        }
     }
 
     /**
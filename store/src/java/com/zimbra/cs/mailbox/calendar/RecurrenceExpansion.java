@@ -0,0 +1,172 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox.calendar;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import com.zimbra.common.calendar.ICalTimeZone;
+import com.zimbra.common.calendar.ParsedDateTime;
+import com.zimbra.common.calendar.ParsedDuration;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.service.ServiceException;
+
+/**
+ * Instances of a repeating rule over a span of time, kept in sorted arrays so
+ * that calendar views, free/busy lookups and alarm computations over the same
+ * period do not expand the RRULE again. Later requests for a wider span only
+ * expand the part that is not covered yet.
+ * <p>
+ * An expansion is immutable and is tied to the rule, DTSTART, time zone and
+ * duration it was computed for; a rule that has changed gets a new one.
+ */
+final class RecurrenceExpansion {
+
+    private static final long[] NONE = new long[0];
+
+    private final String key;
+    /** first and last date covered, inclusive; nothing is covered if <tt>last < first</tt> */
+    private final long first;
+    private final long last;
+    private final long[] starts;
+    private final long[] ends;
+
+    private RecurrenceExpansion(String key, long first, long last, long[] starts, long[] ends) {
+        this.key = key;
+        this.first = first;
+        this.last = last;
+        this.starts = starts;
+        this.ends = ends;
+    }
+
+    /**
+     * Returns the last instance start time that
+     * {@link ZRecur#expandRecurrenceOverRange(ParsedDateTime, long, long)}
+     * returns for the range. The expansion treats the end of the range as
+     * inclusive once a second is taken off, and stops at the hard limits of
+     * the frequency counted from the start of the range.
+     */
+    static long lastDate(ZRecur recur, ParsedDateTime dtStart, long rangeStart, long rangeEnd)
+    throws ServiceException {
+        long earliest = Math.max(rangeStart, dtStart.getUtcTime());
+        Date hardEnd = recur.getEstimatedEndTime(ParsedDateTime.fromUTCTime(earliest));
+        return Math.min(rangeEnd - 1000, hardEnd.getTime());
+    }
+
+    /**
+     * Returns an expansion that covers the instance start times from
+     * <tt>from</tt> to <tt>last</tt>, both inclusive. The cached expansion is
+     * returned as is if it already covers them, and is widened if the requested
+     * span overlaps or follows it. Otherwise the span is expanded on its own.
+     * The result may hold more than <tt>calendar_recurrence_expansion_cache_size</tt>
+     * instances; the caller must not keep it then.
+     */
+    static RecurrenceExpansion expand(RecurrenceExpansion cached, String key, ZRecur recur,
+            ParsedDateTime dtStart, ParsedDuration duration, ICalTimeZone tz, long from, long last)
+    throws ServiceException {
+        boolean valid = cached != null && cached.key.equals(key);
+        if (last < from) {
+            return valid ? cached : new RecurrenceExpansion(key, from, last, NONE, NONE);
+        }
+        if (!valid || cached.last < cached.first) {
+            return compute(key, recur, dtStart, duration, tz, from, last);
+        }
+        if (from >= cached.first && last <= cached.last) {
+            return cached;
+        }
+        if (from > cached.last + 1 || last < cached.first - 1) {
+            // widening across the gap would count the hard limits from the wrong start
+            return compute(key, recur, dtStart, duration, tz, from, last);
+        }
+
+        RecurrenceExpansion result = cached;
+        if (from < cached.first) {
+            RecurrenceExpansion before = compute(key, recur, dtStart, duration, tz, from, cached.first - 1);
+            if (before.last < cached.first - 1) {
+                // the hard limit stopped the expansion short of the cached span, so it covers
+                // the whole of the requested span on its own
+                return before;
+            }
+            result = join(before, result);
+        }
+        if (last > cached.last) {
+            RecurrenceExpansion after = compute(key, recur, dtStart, duration, tz, cached.last + 1, last);
+            result = join(result, after);
+        }
+        if (result.starts.length > LC.calendar_recurrence_expansion_cache_size.intValue()) {
+            return compute(key, recur, dtStart, duration, tz, from, last);
+        }
+        return result;
+    }
+
+    private static RecurrenceExpansion compute(String key, ZRecur recur, ParsedDateTime dtStart,
+            ParsedDuration duration, ICalTimeZone tz, long from, long last) throws ServiceException {
+        List<Date> dates = recur.expandRecurrenceOverRange(dtStart, from, last + 1000);
+        long[] starts = new long[dates.size()];
+        int i = 0;
+        for (Date date : dates) {
+            starts[i++] = date.getTime();
+        }
+        Arrays.sort(starts);
+        long[] ends = new long[starts.length];
+        for (i = 0; i < starts.length; i++) {
+            ends[i] = duration != null ? ParsedDateTime.fromUTCTime(starts[i], tz).add(duration).getUtcTime() : starts[i];
+        }
+        return new RecurrenceExpansion(key, from, Math.min(last, lastDate(recur, dtStart, from, Long.MAX_VALUE)),
+                starts, ends);
+    }
+
+    /** Joins two expansions of adjacent spans, the earlier one first. */
+    private static RecurrenceExpansion join(RecurrenceExpansion a, RecurrenceExpansion b) {
+        int n = a.starts.length + b.starts.length;
+        long[] starts = Arrays.copyOf(a.starts, n);
+        long[] ends = Arrays.copyOf(a.ends, n);
+        System.arraycopy(b.starts, 0, starts, a.starts.length, b.starts.length);
+        System.arraycopy(b.ends, 0, ends, a.ends.length, b.ends.length);
+        return new RecurrenceExpansion(a.key, a.first, b.last, starts, ends);
+    }
+
+    /**
+     * @return number of instances in the expansion
+     */
+    int size() {
+        return starts.length;
+    }
+
+    /**
+     * @return index of the first instance that starts at or after <tt>time</tt>
+     */
+    int indexOf(long time) {
+        int i = Arrays.binarySearch(starts, time);
+        if (i < 0) {
+            return -i - 1;
+        }
+        while (i > 0 && starts[i - 1] == time) {
+            i--;
+        }
+        return i;
+    }
+
+    long getStart(int i) {
+        return starts[i];
+    }
+
+    long getEnd(int i) {
+        return ends[i];
+    }
+}
@@ -17,10 +17,16 @@
 
 package com.zimbra.cs.memcached;
 
+import java.util.Collection;
+
+import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.memcached.MemcachedNearCache;
 import com.zimbra.common.util.memcached.ZimbraMemcachedClient;
 import com.zimbra.cs.account.Provisioning;
 import com.zimbra.cs.account.Server;
+import com.zimbra.cs.iochannel.MemcachedInvalidation;
+import com.zimbra.cs.stats.ZimbraPerf;
 
 import net.spy.memcached.DefaultHashAlgorithm;
 
@@ -65,6 +71,21 @@ public class MemcachedConnector {
         int expirySeconds = (int) server.getLongAttr(Provisioning.A_zimbraMemcachedClientExpirySeconds, 86400);
         long timeoutMillis = server.getLongAttr(Provisioning.A_zimbraMemcachedClientTimeoutMillis, 10000);
         sTheClient.connect(serverList, useBinaryProtocol, hashAlgorithm, expirySeconds, timeoutMillis);
+
+        // values cached from the old servers are not necessarily what the new ones have
+        long nearCacheBytes = LC.memcached_near_cache_max_bytes.longValue();
+        MemcachedNearCache nearCache = null;
+        if (nearCacheBytes > 0 && serverList.length > 0) {
+            nearCache = new MemcachedNearCache(nearCacheBytes, LC.memcached_near_cache_ttl_ms.longValue(),
+                    ZimbraPerf.COUNTER_MEMCACHED_NEAR_CACHE, ZimbraPerf.COUNTER_MEMCACHED_GET);
+            nearCache.setInvalidator(new MemcachedNearCache.Invalidator() {
+                @Override
+                public void invalidate(Collection<String> keys) {
+                    MemcachedInvalidation.broadcast(keys);
+                }
+            });
+        }
+        sTheClient.setNearCache(nearCache);
     }
 
     /**
@@ -72,6 +93,7 @@ public class MemcachedConnector {
      * @throws ServiceException
      */
     public static void shutdown() throws ServiceException {
+        sTheClient.setNearCache(null);
         sTheClient.disconnect(30000);
     }
 }
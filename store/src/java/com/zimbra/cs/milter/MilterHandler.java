@@ -24,6 +24,7 @@ import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
 
 import org.apache.mina.core.buffer.IoBuffer;
 
@@ -41,6 +42,8 @@ import com.zimbra.cs.account.AccessManager;
 import com.zimbra.cs.account.Group;
 import com.zimbra.cs.account.Provisioning;
 import com.zimbra.cs.account.accesscontrol.Rights.User;
+import com.zimbra.cs.milter.MilterVerdictCache.Result;
+import com.zimbra.cs.milter.MilterVerdictCache.Verdict;
 import com.zimbra.cs.server.NioConnection;
 import com.zimbra.cs.server.NioHandler;
 
@@ -148,11 +151,14 @@ public final class MilterHandler implements NioHandler {
     @Override
     public void messageReceived(Object msg) throws IOException {
         MilterPacket command = (MilterPacket) msg;
+        long start = System.nanoTime();
         try {
             processCommand(command);
         } catch (ServiceException e) {
             ZimbraLog.milter.error("Dropping connection due to Server error: %s", e.getMessage(), e);
             dropConnection(); // aborting the session
+        } finally {
+            MilterStats.COMMANDS.record(System.nanoTime() - start);
         }
     }
 
@@ -354,25 +360,60 @@ public final class MilterHandler implements NioHandler {
             connection.send(new MilterPacket(SMFIR_TEMPFAIL));
             return;
         }
-        if (prov.isDistributionList(rcpt)) {
-            Group group = prov.getGroupBasic(Key.DistributionListBy.name, rcpt);
-            if (group != null) {
-                if (!accessMgr.canDo(sender, group, User.R_sendToDistList, false)) {
-                    ZimbraLog.milter.debug("Sender is not allowed to email this distribution list: %s", rcpt);
-                    SMFIR_ReplyCode("571", "571 Sender is not allowed to email this distribution list: " + rcpt);
-                    return;
-                }
-                lists.add(group);
-                ZimbraLog.milter.debug("group %s has been added into the list.", group);
-            } else {
+        long start = System.nanoTime();
+        Verdict verdict;
+        try {
+            verdict = MilterVerdictCache.get(sender, rcpt, new Evaluator(sender, rcpt));
+        } finally {
+            MilterStats.RCPT.record(System.nanoTime() - start);
+        }
+        switch (verdict.result) {
+            case DENIED:
+                ZimbraLog.milter.debug("Sender is not allowed to email this distribution list: %s", rcpt);
+                SMFIR_ReplyCode("571", "571 Sender is not allowed to email this distribution list: " + rcpt);
+                return;
+            case ALLOWED:
+                lists.add(verdict.group);
+                ZimbraLog.milter.debug("group %s has been added into the list.", verdict.group);
+                break;
+            case NO_GROUP:
                 ZimbraLog.milter.debug("rcpt %s is a list but not a group?", rcpt);
-            }
-        } else {
-            ZimbraLog.milter.debug("%s is not a distribution list.", rcpt);
+                break;
+            default:
+                ZimbraLog.milter.debug("%s is not a distribution list.", rcpt);
+                break;
         }
         connection.send(new MilterPacket(SMFIR_CONTINUE));
     }
 
+    /**
+     * Checks whether the sender may send to the recipient, if the recipient is a distribution list.
+     */
+    private final class Evaluator implements Callable<Verdict> {
+        private final String sender;
+        private final String rcpt;
+
+        Evaluator(String sender, String rcpt) {
+            this.sender = sender;
+            this.rcpt = rcpt;
+        }
+
+        @Override
+        public Verdict call() throws ServiceException {
+            if (!prov.isDistributionList(rcpt)) {
+                return new Verdict(Result.NOT_A_LIST);
+            }
+            Group group = prov.getGroupBasic(Key.DistributionListBy.name, rcpt);
+            if (group == null) {
+                return new Verdict(Result.NO_GROUP);
+            }
+            if (!accessMgr.canDo(sender, group, User.R_sendToDistList, false)) {
+                return new Verdict(Result.DENIED, group);
+            }
+            return new Verdict(Result.ALLOWED, group);
+        }
+    }
+
     private void SMFIC_Abort() {
         ZimbraLog.milter.info("SMFIC_Abort session reset");
         clear();
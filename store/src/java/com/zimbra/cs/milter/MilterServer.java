@@ -70,6 +70,18 @@ public final class MilterServer extends NioServer implements Server {
         };
     }
 
+    @Override
+    public void start() {
+        super.start();
+        MilterStats.startup();
+    }
+
+    @Override
+    public void stop(int timeout) {
+        MilterStats.shutdown();
+        super.stop(timeout);
+    }
+
     @Override
     public MilterConfig getConfig() {
         return (MilterConfig) super.getConfig();
@@ -132,6 +144,7 @@ public final class MilterServer extends NioServer implements Server {
             ZimbraLog.milter.info("Received Signal: %s", signal.getName());
             ZimbraLog.milter.info("Begin ACL cache invalidation");
             PermissionCache.invalidateAllCache();
+            MilterVerdictCache.invalidateAll();
             ZimbraLog.milter.info("ACL cache successfully cleared");
         }
 
@@ -0,0 +1,84 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.milter;
+
+import static com.zimbra.common.util.TaskUtil.newDaemonThreadFactory;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.cache.CacheStats;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.stats.LatencyHistogram;
+import com.zimbra.common.util.ZimbraLog;
+
+/**
+ * Milter latency statistics, logged every {@code milter_stats_interval}
+ * seconds so that the time milter adds to the MTA pipeline can be monitored.
+ */
+final class MilterStats {
+
+    /** time to process each milter command */
+    static final LatencyHistogram COMMANDS = new LatencyHistogram();
+    /** time to evaluate each recipient */
+    static final LatencyHistogram RCPT = new LatencyHistogram();
+
+    private static ScheduledExecutorService reporter;
+    private static CacheStats lastCacheStats;
+
+    private MilterStats() {
+    }
+
+    static synchronized void startup() {
+        int interval = LC.milter_stats_interval.intValue();
+        if (interval <= 0 || reporter != null) {
+            return;
+        }
+        reporter = Executors.newSingleThreadScheduledExecutor(newDaemonThreadFactory("MilterStats"));
+        reporter.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                report();
+            }
+        }, interval, interval, TimeUnit.SECONDS);
+    }
+
+    static synchronized void shutdown() {
+        if (reporter != null) {
+            reporter.shutdownNow();
+            reporter = null;
+        }
+    }
+
+    private static synchronized void report() {
+        LatencyHistogram.Snapshot commands = COMMANDS.snapshot(true);
+        if (commands.getCount() == 0) {
+            return;
+        }
+        LatencyHistogram.Snapshot rcpt = RCPT.snapshot(true);
+        ZimbraLog.milter.info("Milter latency commands: %s; recipients: %s", commands, rcpt);
+
+        CacheStats cacheStats = MilterVerdictCache.getStats();
+        if (cacheStats != null) {
+            CacheStats delta = lastCacheStats != null ? cacheStats.minus(lastCacheStats) : cacheStats;
+            lastCacheStats = cacheStats;
+            ZimbraLog.milter.info("Milter verdict cache hits=%d misses=%d hitRate=%.2f",
+                    delta.hitCount(), delta.missCount(), delta.hitRate());
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.milter;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Objects;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.account.Group;
+
+/**
+ * Caches the outcome of checking whether a sender may send to a recipient, so
+ * that mailings to large distribution lists do not repeat the same group and
+ * ACL lookups for every message. Entries expire after
+ * {@code milter_verdict_cache_maxage} seconds, and the whole cache is cleared
+ * along with the ACL cache when milter receives SIGCONT.
+ */
+final class MilterVerdictCache {
+
+    enum Result {
+        /** the recipient is not a distribution list */
+        NOT_A_LIST,
+        /** the recipient is a distribution list, but the group could not be found */
+        NO_GROUP,
+        ALLOWED,
+        DENIED
+    }
+
+    static final class Verdict {
+        final Result result;
+        final Group group;
+
+        Verdict(Result result, Group group) {
+            this.result = result;
+            this.group = group;
+        }
+
+        Verdict(Result result) {
+            this(result, null);
+        }
+    }
+
+    private static final Cache<Key, Verdict> CACHE;
+
+    static {
+        long size = LC.milter_verdict_cache_maxsize.longValue();
+        long maxAge = LC.milter_verdict_cache_maxage.longValue();
+        if (size > 0 && maxAge > 0) {
+            CACHE = CacheBuilder.newBuilder()
+                    .maximumSize(size)
+                    .expireAfterWrite(maxAge, TimeUnit.SECONDS)
+                    .recordStats()
+                    .build();
+        } else {
+            CACHE = null;
+        }
+    }
+
+    private MilterVerdictCache() {
+    }
+
+    /**
+     * Returns the cached verdict for the sender and recipient, or evaluates
+     * and caches it. Concurrent lookups of the same pair wait for a single
+     * evaluation.
+     */
+    static Verdict get(String sender, String rcpt, Callable<Verdict> evaluator) throws ServiceException {
+        if (CACHE == null) {
+            try {
+                return evaluator.call();
+            } catch (ServiceException e) {
+                throw e;
+            } catch (Exception e) {
+                throw ServiceException.FAILURE("unable to evaluate " + rcpt, e);
+            }
+        }
+        try {
+            return CACHE.get(new Key(sender, rcpt), evaluator);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof ServiceException) {
+                throw (ServiceException) e.getCause();
+            }
+            throw ServiceException.FAILURE("unable to evaluate " + rcpt, e.getCause());
+        } catch (UncheckedExecutionException e) {
+            throw ServiceException.FAILURE("unable to evaluate " + rcpt, e.getCause());
+        }
+    }
+
+    static void invalidateAll() {
+        if (CACHE != null) {
+            ZimbraLog.milter.debug("Clearing verdict cache of %d items.", CACHE.size());
+            CACHE.invalidateAll();
+        }
+    }
+
+    /**
+     * @return cache statistics, or <tt>null</tt> if the cache is disabled
+     */
+    static CacheStats getStats() {
+        return CACHE != null ? CACHE.stats() : null;
+    }
+
+    private static final class Key {
+        private final String sender;
+        private final String rcpt;
+
+        Key(String sender, String rcpt) {
+            this.sender = sender;
+            this.rcpt = rcpt;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj instanceof Key) {
+                Key other = (Key) obj;
+                return sender.equals(other.sender) && rcpt.equals(other.rcpt);
+            }
+            return false;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(sender, rcpt);
+        }
+    }
+}
@@ -29,6 +29,8 @@ public class ExpandMimeMessage {
     
     private MimeMessage mMimeMessage;
     private MimeMessage mExpandedMessage;
+    private long mConversionTimeout = -1;
+    private boolean mComplete = true;
     
     public ExpandMimeMessage(MimeMessage original) {
         mMimeMessage = original;
@@ -68,6 +70,27 @@ public class ExpandMimeMessage {
         return mExpandedMessage != mMimeMessage;
     }
 
+    /**
+     * Sets how long each converter may wait for a conversion that runs in
+     * the background.  By default, converters wait until the conversion
+     * finishes.
+     *
+     * @see MimeVisitor#setConversionTimeout(long)
+     */
+    public ExpandMimeMessage setConversionTimeout(long millis) {
+        mConversionTimeout = millis;
+        return this;
+    }
+
+    /**
+     * Returns <tt>false</tt> if a part was left unconverted because its
+     * conversion did not finish in time.  The expanded message should not
+     * be cached in that case.
+     */
+    public boolean isComplete() {
+        return mComplete;
+    }
+
     /** 
      * Applies all registered on-the-fly MIME converters to a the
      * encapsulated message.  The original message is not modified.
@@ -87,8 +110,12 @@ public class ExpandMimeMessage {
                 if (mExpandedMessage == mMimeMessage)
                     vclass.newInstance().setCallback(forkCallback).accept(mMimeMessage);
                 // if there are attachments to be expanded, expand them in the MimeMessage *copy*
-                if (mExpandedMessage != mMimeMessage)
-                    vclass.newInstance().accept(mExpandedMessage);
+                if (mExpandedMessage != mMimeMessage) {
+                    MimeVisitor converter = vclass.newInstance().setConversionTimeout(mConversionTimeout);
+                    converter.accept(mExpandedMessage);
+                    if (converter.isIncomplete())
+                        mComplete = false;
+                }
             }
         } catch (IllegalAccessException e) {
             mExpandedMessage = mMimeMessage;
@@ -147,6 +147,22 @@ public abstract class MimeVisitor {
      *  MimeVisitor, or <code>null</code> if there is no such callback. */
     public ModificationCallback getCallback()  { return mCallback; }
 
+    protected long mConversionTimeout = -1;
+    protected boolean mIncomplete;
+
+    /** Sets how long the MimeVisitor may wait for a conversion that runs
+     *  in the background.  A negative value, the default, waits until the
+     *  conversion finishes.
+     * @return the <code>MimeVisitor</code> itself */
+    public MimeVisitor setConversionTimeout(long millis) {
+        mConversionTimeout = millis;
+        return this;
+    }
+
+    /** Returns whether a part was left unconverted because its conversion
+     *  did not finish within the conversion timeout. */
+    public boolean isIncomplete()  { return mIncomplete; }
+
 
     /** The flags passed to the <code>visitXXX</code> methods before and
      *  after a node's children are visited, respectively. */
@@ -708,13 +708,38 @@ public final class ParsedContact {
         }
     }
 
-    private static void appendContactField(StringBuilder sb, ParsedContact contact, String fieldName) {
-        String value = contact.getFields().get(fieldName);
+    private static void appendContactField(StringBuilder sb, Map<String, String> fields, String fieldName) {
+        String value = fields.get(fieldName);
         if (!Strings.isNullOrEmpty(value)) {
             sb.append(NormalizeTokenFilter.normalize(value)).append(' ');
         }
     }
 
+    /**
+     * Returns the text that is indexed as contact data, which {@code contact:} searches match against.
+     */
+    public static String getContactSearchText(String[] emailFields, Map<String, String> fields) {
+        StringBuilder emails  = new StringBuilder();
+        for (String email : Contact.getEmailAddresses(emailFields, fields, DerefGroupMembersOption.NONE)) {
+            emails.append(email).append(',');
+        }
+        RFC822AddressTokenStream to = new RFC822AddressTokenStream(emails.toString());
+        return getContactSearchText(StringUtil.join(" ", to.getAllTokens()), fields);
+    }
+
+    private static String getContactSearchText(String emailStrTokens, Map<String, String> fields) {
+        StringBuilder searchText = new StringBuilder(emailStrTokens).append(' ');
+        appendContactField(searchText, fields, ContactConstants.A_company);
+        appendContactField(searchText, fields, ContactConstants.A_phoneticCompany);
+        appendContactField(searchText, fields, ContactConstants.A_firstName);
+        appendContactField(searchText, fields, ContactConstants.A_phoneticFirstName);
+        appendContactField(searchText, fields, ContactConstants.A_lastName);
+        appendContactField(searchText, fields, ContactConstants.A_phoneticLastName);
+        appendContactField(searchText, fields, ContactConstants.A_nickname);
+        appendContactField(searchText, fields, ContactConstants.A_fullName);
+        return searchText.toString();
+    }
+
     private IndexDocument getPrimaryDocument(Account acct, String contentStrIn) throws ServiceException {
 
         StringBuilder contentText = new StringBuilder();
@@ -749,15 +774,7 @@ public final class ParsedContact {
         RFC822AddressTokenStream to = new RFC822AddressTokenStream(emails.toString());
         String emailStrTokens = StringUtil.join(" ", to.getAllTokens());
 
-        StringBuilder searchText = new StringBuilder(emailStrTokens).append(' ');
-        appendContactField(searchText, this, ContactConstants.A_company);
-        appendContactField(searchText, this, ContactConstants.A_phoneticCompany);
-        appendContactField(searchText, this, ContactConstants.A_firstName);
-        appendContactField(searchText, this, ContactConstants.A_phoneticFirstName);
-        appendContactField(searchText, this, ContactConstants.A_lastName);
-        appendContactField(searchText, this, ContactConstants.A_phoneticLastName);
-        appendContactField(searchText, this, ContactConstants.A_nickname);
-        appendContactField(searchText, this, ContactConstants.A_fullName);
+        String searchText = getContactSearchText(emailStrTokens, getFields());
 
         // rebuild contentText here with the emailStr FIRST, then the other text.
         // The email addresses should be first so that they have a higher search score than the other
@@ -772,7 +789,7 @@ public final class ParsedContact {
         /* put the name in the "From" field since the MailItem table uses 'Sender'*/
         doc.addFrom(new RFC822AddressTokenStream(Contact.getFileAsString(contactFields)));
         /* bug 11831 - put contact searchable data in its own field so wildcard search works better  */
-        doc.addContactData(searchText.toString());
+        doc.addContactData(searchText);
         doc.addContent(contentText.toString());
         doc.addPartName(LuceneFields.L_PARTNAME_CONTACT);
 
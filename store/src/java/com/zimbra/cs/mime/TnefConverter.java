@@ -17,12 +17,27 @@
 
 package com.zimbra.cs.mime;
 
+import static com.zimbra.common.util.TaskUtil.newDaemonThreadFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.StringWriter;
 import java.io.Writer;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import javax.mail.BodyPart;
 import javax.mail.MessagingException;
@@ -30,21 +45,25 @@ import javax.mail.Part;
 import javax.mail.internet.MimeBodyPart;
 import javax.mail.internet.MimeMessage;
 import javax.mail.internet.MimeMultipart;
+import javax.mail.util.SharedByteArrayInputStream;
 
 import net.freeutils.tnef.TNEFInputStream;
 import net.freeutils.tnef.TNEFUtils;
 import net.freeutils.tnef.mime.TNEFMime;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.zimbra.common.calendar.ZCalendar;
 import com.zimbra.common.calendar.ZCalendar.ICalTok;
 import com.zimbra.common.calendar.ZCalendar.ZVCalendar;
 import com.zimbra.common.localconfig.DebugConfig;
+import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.mime.ContentType;
 import com.zimbra.common.mime.MimeConstants;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.ByteUtil;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.common.zmime.ZMimeBodyPart;
+import com.zimbra.common.zmime.ZMimeMessage;
 import com.zimbra.common.zmime.ZMimeMultipart;
 import com.zimbra.cs.util.JMSession;
 import com.zimbra.cs.util.tnef.DefaultTnefToICalendar;
@@ -77,11 +96,31 @@ import com.zimbra.cs.util.tnef.TnefToICalendar;
  *     </ul>
  *   </ul>
  * </ul>
+ *
+ * When the {@link TnefFileCache} is running, converted TNEF parts are cached
+ * by the digest of the TNEF content, and conversions run on a bounded thread
+ * pool.  A caller that sets a conversion timeout gets the original TNEF part
+ * if the conversion does not finish in time; the conversion still completes
+ * in the background and is used the next time the message is expanded.  It
+ * also gets the original part if the pool is too busy to take the conversion.
+ *
  * @author bburtin
  */
 public class TnefConverter extends MimeVisitor {
     private MimeMessage mMimeMessage;
 
+    @VisibleForTesting
+    static final ThreadPoolExecutor CONVERTER;
+    static {
+        int threads = Math.max(LC.zimbra_converter_tnef_threads.intValue(), 1);
+        CONVERTER = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(threads * 25), newDaemonThreadFactory("TnefConverter"));
+        CONVERTER.allowCoreThreadTimeOut(true);
+    }
+
+    /** Conversions that are running or queued, keyed by TNEF digest. */
+    private static final ConcurrentMap<String, Future<byte[]>> sPending = new ConcurrentHashMap<String, Future<byte[]>>();
+
     @Override
     protected boolean visitBodyPart(MimeBodyPart bp)  { return false; }
 
@@ -220,37 +259,20 @@ public class TnefConverter extends MimeVisitor {
         if (!TNEFUtils.isTNEFMimeType(bp.getContentType()))
             return null;
 
-        MimeMessage converted = null;
-
-        // convert TNEF to a MimeMessage and remove it from the parent
-        InputStream is = null;
-        try {
-            TNEFInputStream tnefis = new TNEFInputStream(is = bp.getInputStream());
-            converted = TNEFMime.convert(JMSession.getSession(), tnefis);
-        // XXX bburtin: nasty hack.  Don't handle OOME since JTNEF can allocate a huge byte
-        // array when the TNEF file is malformed.  See bug 42649.
-        // } catch (OutOfMemoryError e) {
-        //    Zimbra.halt("Ran out of memory while expanding TNEF attachment", e);
-        } catch (Throwable t) {
-            ZimbraLog.extensions.warn("Conversion failed.  TNEF attachment will not be expanded.", t);
-            return null;
-        } finally {
-            ByteUtil.closeStream(is);
+        MimeMultipart convertedMulti;
+        TnefFileCache cache = TnefFileCache.getInstance();
+        if (cache != null) {
+            convertedMulti = getCachedConversion(cache, bp);
+        } else {
+            InputStream is = null;
+            try {
+                convertedMulti = convertTNEF(is = bp.getInputStream());
+            } finally {
+                ByteUtil.closeStream(is);
+            }
         }
-
-        Object convertedContent = converted.getContent();
-        if(!(convertedContent instanceof MimeMultipart)){
-            ZimbraLog.extensions.debug("TNEF attachment doesn't contain valid MimeMultiPart");
+        if (convertedMulti == null)
             return null;
-        }
-
-        MimeMultipart convertedMulti = (MimeMultipart) convertedContent;
-        // make sure that all the attachments are marked as attachments
-        for (int i = 0; i < convertedMulti.getCount(); i++) {
-            BodyPart subpart = convertedMulti.getBodyPart(i);
-            if (subpart.getHeader("Content-Disposition") == null)
-                subpart.setHeader("Content-Disposition", Part.ATTACHMENT);
-        }
 
         // Create a MimeBodyPart for the converted data.  Currently we're throwing
         // away the top-level message because its content shows up as blank after
@@ -302,4 +324,139 @@ public class TnefConverter extends MimeVisitor {
 
         return altMulti;
     }
+
+    /**
+     * Converts TNEF content to a multipart that contains its attachments.
+     *
+     * @return the multipart, or <tt>null</tt> if the content could not be converted
+     */
+    private static MimeMultipart convertTNEF(InputStream is) throws MessagingException, IOException {
+        MimeMessage converted = null;
+
+        // convert TNEF to a MimeMessage and remove it from the parent
+        try {
+            TNEFInputStream tnefis = new TNEFInputStream(is);
+            converted = TNEFMime.convert(JMSession.getSession(), tnefis);
+        // XXX bburtin: nasty hack.  Don't handle OOME since JTNEF can allocate a huge byte
+        // array when the TNEF file is malformed.  See bug 42649.
+        // } catch (OutOfMemoryError e) {
+        //    Zimbra.halt("Ran out of memory while expanding TNEF attachment", e);
+        } catch (Throwable t) {
+            ZimbraLog.extensions.warn("Conversion failed.  TNEF attachment will not be expanded.", t);
+            return null;
+        }
+
+        Object convertedContent = converted.getContent();
+        if(!(convertedContent instanceof MimeMultipart)){
+            ZimbraLog.extensions.debug("TNEF attachment doesn't contain valid MimeMultiPart");
+            return null;
+        }
+
+        MimeMultipart convertedMulti = (MimeMultipart) convertedContent;
+        // make sure that all the attachments are marked as attachments
+        for (int i = 0; i < convertedMulti.getCount(); i++) {
+            BodyPart subpart = convertedMulti.getBodyPart(i);
+            if (subpart.getHeader("Content-Disposition") == null)
+                subpart.setHeader("Content-Disposition", Part.ATTACHMENT);
+        }
+        return convertedMulti;
+    }
+
+    /**
+     * Returns the converted TNEF part from the cache, converting it first if
+     * necessary.  Returns <tt>null</tt> if the TNEF content could not be
+     * converted, or if the conversion timeout expired or could not be honored.
+     */
+    private MimeMultipart getCachedConversion(TnefFileCache cache, MimeBodyPart bp)
+    throws MessagingException, IOException {
+        byte[] tnef = ByteUtil.getContent(bp.getInputStream(), bp.getSize());
+        String digest = ByteUtil.getSHA1Digest(tnef, false);
+        byte[] data = cache.get(digest);
+        if (data == null) {
+            // with a timeout, converting in this thread would not honor it
+            Future<byte[]> future = submitConversion(cache, digest, tnef, mConversionTimeout < 0);
+            if (future == null) {
+                ZimbraLog.extensions.debug("TNEF converter is busy.  Leaving %s unexpanded.", digest);
+                mIncomplete = true;
+                return null;
+            }
+            try {
+                if (mConversionTimeout < 0) {
+                    data = future.get();
+                } else {
+                    data = future.get(mConversionTimeout, TimeUnit.MILLISECONDS);
+                }
+            } catch (TimeoutException e) {
+                ZimbraLog.extensions.debug("TNEF conversion of %s did not finish within %dms.  Leaving it unexpanded.",
+                        digest, mConversionTimeout);
+                mIncomplete = true;
+                return null;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                mIncomplete = true;
+                return null;
+            } catch (ExecutionException e) {
+                ZimbraLog.extensions.warn("Conversion failed.  TNEF attachment will not be expanded.", e.getCause());
+                return null;
+            }
+        }
+        if (data.length == 0) {
+            // the TNEF content could not be converted
+            return null;
+        }
+        MimeMessage cached = new Mime.FixedMimeMessage(JMSession.getSession(), new SharedByteArrayInputStream(data));
+        Object content = cached.getContent();
+        return content instanceof MimeMultipart ? (MimeMultipart) content : null;
+    }
+
+    /**
+     * Queues conversion of the TNEF content, unless it is already being converted.
+     * The result is added to the cache.  Content that cannot be converted is cached
+     * as an empty entry, so that it is not decoded again.<p>
+     *
+     * If the converter threads and queue are all busy, the conversion is run in
+     * the calling thread when <tt>runIfBusy</tt> is set, and <tt>null</tt> is
+     * returned otherwise.
+     */
+    private static Future<byte[]> submitConversion(final TnefFileCache cache, final String digest, final byte[] tnef,
+            boolean runIfBusy) {
+        FutureTask<byte[]> task = new FutureTask<byte[]>(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws Exception {
+                try {
+                    byte[] data = serialize(convertTNEF(new ByteArrayInputStream(tnef)));
+                    cache.put(digest, data);
+                    return data;
+                } finally {
+                    sPending.remove(digest);
+                }
+            }
+        });
+        Future<byte[]> pending = sPending.putIfAbsent(digest, task);
+        if (pending != null) {
+            return pending;
+        }
+        try {
+            CONVERTER.execute(task);
+        } catch (RejectedExecutionException e) {
+            if (!runIfBusy) {
+                sPending.remove(digest, task);
+                return null;
+            }
+            task.run();
+        }
+        return task;
+    }
+
+    private static byte[] serialize(MimeMultipart multi) throws MessagingException, IOException {
+        if (multi == null) {
+            return new byte[0];
+        }
+        MimeMessage mm = new ZMimeMessage(JMSession.getSession());
+        mm.setContent(multi);
+        mm.saveChanges();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        mm.writeTo(out);
+        return out.toByteArray();
+    }
 }
@@ -14,136 +14,190 @@
  * If not, see <https://www.gnu.org/licenses/>.
  * ***** END LICENSE BLOCK *****
  */
-
 package com.zimbra.cs.mime;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.Collection;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.Set;
-
-import javax.mail.MessagingException;
-import javax.mail.internet.MimeBodyPart;
-import javax.mail.internet.MimeMessage;
 
-import com.google.common.collect.HashMultimap;
-import com.google.common.collect.Multimap;
 import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.util.ByteUtil;
 import com.zimbra.common.util.FileUtil;
 import com.zimbra.common.util.Log;
 import com.zimbra.common.util.LogFactory;
 
+/**
+ * Persistent cache of converted TNEF attachments, keyed by the digest of the
+ * TNEF content, so that the same <tt>winmail.dat</tt> is not decoded again
+ * each time a message is viewed or indexed.  Each entry is stored as a file
+ * in {@code zimbra_converter_tnef_cache_directory}.  The total size of the
+ * cache is bounded by {@code zimbra_converter_tnef_cache_max_bytes}; the least
+ * recently used entries are evicted first.  Access order survives restarts
+ * through the file modification times.
+ */
 public class TnefFileCache {
 
     private static TnefFileCache sInstance;
     private static final Log sLog = LogFactory.getLog(TnefFileCache.class);
 
-    private File mCacheDir;
-    
-    /**
-     * Maps the hashcode of the <tt>MimeMessage</tt> object to one or more digests
-     * of TNEF parts.
-     */
-    private Multimap<Integer, String> mMessageToPartDigests = HashMultimap.create(); 
-    
+    private final File mCacheDir;
+    private final long mMaxBytes;
+
     /**
-     * Maps the TNEF part digest to the file on disk.
+     * Maps the TNEF part digest to the size of the cached file, in access order.
      */
-    private Map<String, File> mDigestToFile = new HashMap<String, File>();
-    
-    private TnefFileCache(File cacheDir) {
+    private final LinkedHashMap<String, Long> mDigestToSize = new LinkedHashMap<String, Long>(16, 0.75f, true);
+    private long mTotalBytes = 0;
+
+    private TnefFileCache(File cacheDir, long maxBytes) {
         mCacheDir = cacheDir;
+        mMaxBytes = maxBytes;
     }
-    
+
+    /**
+     * Returns the cache, or <tt>null</tt> if it has not been started or is disabled.
+     */
     public static TnefFileCache getInstance() {
-        if (sInstance == null) {
-            throw new IllegalStateException(TnefFileCache.class.getSimpleName() + " has not been started");
-        }
         return sInstance;
     }
-    
+
     public synchronized static void startup()
     throws IOException {
-        if (sInstance == null) {
-            File cacheDir = new File(LC.zimbra_tmp_directory.value() + File.separator + "tnef");
+        long maxBytes = LC.zimbra_converter_tnef_cache_max_bytes.longValue();
+        if (sInstance == null && maxBytes > 0) {
+            File cacheDir = new File(LC.zimbra_converter_tnef_cache_directory.value());
             sLog.debug("Initializing TNEF cache in %s", cacheDir);
-            FileUtil.deleteDir(cacheDir);
             FileUtil.ensureDirExists(cacheDir);
-            sInstance = new TnefFileCache(cacheDir);
+            TnefFileCache cache = new TnefFileCache(cacheDir, maxBytes);
+            cache.load();
+            sInstance = cache;
         }
     }
-    
+
     public synchronized static void shutdown() {
-        if (sInstance != null) {
-            try {
-                FileUtil.deleteDir(sInstance.mCacheDir);
-            } catch (IOException e) {
-                sLog.warn("Unable to delete TNEF cache directory %s.", sInstance.mCacheDir, e);
+        sInstance = null;
+    }
+
+    /**
+     * Indexes the files left in the cache directory by a previous run, oldest first.
+     */
+    private synchronized void load() {
+        File[] files = mCacheDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File f1, File f2) {
+                long m1 = f1.lastModified();
+                long m2 = f2.lastModified();
+                return m1 < m2 ? -1 : (m1 == m2 ? 0 : 1);
+            }
+        });
+        for (File file : files) {
+            if (!file.isFile()) {
+                continue;
+            }
+            if (file.getName().endsWith(".tmp")) {
+                delete(file);
+                continue;
             }
+            mDigestToSize.put(file.getName(), file.length());
+            mTotalBytes += file.length();
         }
+        evict();
+        sLog.info("Loaded %d TNEF cache entries, %d bytes.", mDigestToSize.size(), mTotalBytes);
     }
-    
-    public File getFile(MimeMessage msg, MimeBodyPart part)
-    throws IOException, MessagingException {
-        int msgHashcode = msg.hashCode();
-        String digest = ByteUtil.getSHA1Digest(part.getInputStream(), true);
-        sLog.debug("Getting file for MimeMessage %d, part digest %s.", msgHashcode, digest);
-        
+
+    /**
+     * Returns the cached content for the given TNEF digest, or <tt>null</tt>
+     * if it is not cached.
+     */
+    public byte[] get(String digest) {
+        File file;
         synchronized (this) {
-            // Map the message hashcode to the digest of the TNEF part.
-            mMessageToPartDigests.put(msgHashcode, digest);
-
-            // Save the TNEF part to disk and put it into the digest map
-            // to indicate that the file is there.
-            File file = mDigestToFile.get(digest);
-            if (file == null) {
-                file = new File(mCacheDir, digest);
-                sLog.debug("Saving TNEF content to %s.", file);
-                part.saveFile(file);
-                mDigestToFile.put(digest, file);
+            if (mDigestToSize.get(digest) == null) {
+                return null;
             }
-            return file;
+            file = getFile(digest);
+        }
+        try {
+            byte[] content = ByteUtil.getContent(file);
+            file.setLastModified(System.currentTimeMillis());
+            return content;
+        } catch (IOException e) {
+            sLog.debug("Unable to read %s; removing it from the cache.", file, e);
+            remove(digest);
+            return null;
         }
     }
-    
-    public synchronized void purge(MimeMessage msg) {
-        if (msg == null) {
+
+    /**
+     * Caches the converted content for the given TNEF digest.
+     */
+    public void put(String digest, byte[] content) {
+        if (content.length > mMaxBytes) {
+            return;
+        }
+        File file = getFile(digest);
+        File tmp = new File(mCacheDir, digest + "." + Thread.currentThread().getId() + ".tmp");
+        try {
+            ByteUtil.putContent(tmp.getPath(), content);
+        } catch (IOException e) {
+            sLog.warn("Unable to write %s.", tmp, e);
+            delete(tmp);
             return;
         }
-        int hashCode = msg.hashCode();
-        sLog.debug("Purging message with hashcode %d.", hashCode);
-        
-        Collection<String> digests = mMessageToPartDigests.removeAll(hashCode);
-        if (digests != null && !digests.isEmpty()) {
-            // Delete the file only if there isn't another message that
-            // is referencing it.
-            Set<String> allDigests = getAllMessagePartDigests();
-            for (String digest : digests) {
-                if (!allDigests.contains(digest)) {
-                    File file = mDigestToFile.remove(digest);
-                    sLog.debug("Deleting %s.", file);
-                    if (!file.delete()) {
-                        sLog.warn("Unable to delete %s.", file);
-                    }
-                } else {
-                    sLog.debug("Not deleting file on disk because it is referenced by another message.");
-                }
+        synchronized (this) {
+            if (!tmp.renameTo(file)) {
+                sLog.warn("Unable to rename %s to %s.", tmp, file);
+                delete(tmp);
+                return;
             }
+            Long oldSize = mDigestToSize.put(digest, (long) content.length);
+            mTotalBytes += content.length - (oldSize != null ? oldSize : 0);
+            evict();
         }
     }
-    
-    /**
-     * Returns all part digests from the <tt>mMessageToPart</tt> map.
-     */
-    private synchronized Set<String> getAllMessagePartDigests() {
-        Set<String> allDigests = new HashSet<String>();
-        for (int hashCode : mMessageToPartDigests.keySet()) {
-            allDigests.addAll(mMessageToPartDigests.get(hashCode));
+
+    public synchronized void remove(String digest) {
+        Long size = mDigestToSize.remove(digest);
+        if (size != null) {
+            mTotalBytes -= size;
+            delete(getFile(digest));
+        }
+    }
+
+    public synchronized int getSize() {
+        return mDigestToSize.size();
+    }
+
+    public synchronized long getTotalBytes() {
+        return mTotalBytes;
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, Long>> it = mDigestToSize.entrySet().iterator();
+        while (mTotalBytes > mMaxBytes && it.hasNext()) {
+            Map.Entry<String, Long> entry = it.next();
+            sLog.debug("Evicting TNEF digest %s from the cache.", entry.getKey());
+            it.remove();
+            mTotalBytes -= entry.getValue();
+            delete(getFile(entry.getKey()));
+        }
+    }
+
+    private File getFile(String digest) {
+        return new File(mCacheDir, digest);
+    }
+
+    private static void delete(File file) {
+        if (file.exists() && !file.delete()) {
+            sLog.warn("Unable to delete %s.", file);
         }
-        return allDigests;
     }
 }
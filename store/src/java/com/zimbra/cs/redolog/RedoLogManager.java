@@ -26,16 +26,21 @@ import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock.ReadLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock.WriteLock;
 
+import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.util.FileUtil;
+import com.zimbra.common.util.TaskUtil;
 import com.zimbra.common.util.Pair;
 import com.zimbra.common.util.ZimbraLog;
 
 import com.zimbra.cs.db.Db;
 import com.zimbra.cs.mailbox.MailServiceException;
+import com.zimbra.cs.redolog.logger.CompressedLogFile;
 import com.zimbra.cs.redolog.logger.FileLogReader;
 import com.zimbra.cs.redolog.logger.FileLogWriter;
 import com.zimbra.cs.redolog.logger.LogWriter;
@@ -52,6 +57,9 @@ import com.zimbra.znative.IO;
  */
 public class RedoLogManager {
 
+    private static final ExecutorService sArchiveCompressor =
+        Executors.newSingleThreadExecutor(TaskUtil.newDaemonThreadFactory("RedoLogCompressor"));
+
     private static class TxnIdGenerator {
         private int mTime;
         private int mCounter;
@@ -616,6 +624,9 @@ public class RedoLogManager {
             writeLock.unlock();
         }
 
+        if (rolledOverFile != null)
+            compressArchiveLog(rolledOverFile);
+
         /* TODO: Finish implementing Rollover as a replicated op.
          * Checking in this partial code to work on something else.
         if (rolledOverFile != null) {
@@ -631,6 +642,25 @@ public class RedoLogManager {
         return rolledOverFile;
     }
 
+    /**
+     * Compresses an archived log in the background, if enabled.
+     * @see CompressedLogFile
+     */
+    private void compressArchiveLog(final File file) {
+        if (!LC.redolog_archive_compress.booleanValue() || !file.exists())
+            return;
+        sArchiveCompressor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    CompressedLogFile.compress(file);
+                } catch (IOException e) {
+                    ZimbraLog.redolog.warn("Unable to compress archived redolog " + file.getAbsolutePath(), e);
+                }
+            }
+        });
+    }
+
     public File forceRollover() {
         return forceRollover(false);
     }
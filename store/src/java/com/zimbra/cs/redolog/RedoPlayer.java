@@ -26,10 +26,10 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 
+import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.redolog.logger.FileLogReader;
@@ -117,6 +117,12 @@ public class RedoPlayer {
         FileLogReader logReader = new FileLogReader(logfile, mWritable);
         logReader.open();
         long lastPosition = 0;
+        // Let a compressed log skip blocks that have nothing to replay.  A
+        // commit record whose change record was in a skipped block is expected then.
+        mBlockFiltered = redoCommitted && logReader.isCompressed();
+        if (mBlockFiltered)
+            logReader.setBlockFilter(startTime == -1 ? Long.MIN_VALUE : startTime, endTime,
+                    mboxIDsMap != null ? mboxIDsMap.keySet() : null);
 
         // Read all ops in redo log, discarding those with commit/abort entries.
         try {
@@ -168,6 +174,7 @@ public class RedoPlayer {
     // used to detect/track if a commit/abort record is played back
     // before its change record
     private boolean mHasOrphanOps = false;
+    private boolean mBlockFiltered = false;
     private Map<TransactionId, RedoableOp> mOrphanOps =
         new HashMap<TransactionId, RedoableOp>();
 
@@ -253,7 +260,10 @@ public class RedoPlayer {
                     RedoableOp prepareOp;
                     synchronized (mOpsMapGuard) {
                         prepareOp = (RedoableOp) mOpsMap.remove(op.getTransactionId());
-                        if (prepareOp == null) {
+                        if (prepareOp == null && mBlockFiltered) {
+                            if (ZimbraLog.redolog.isDebugEnabled())
+                                ZimbraLog.redolog.debug("Change record for " + op + " was in a skipped block");
+                        } else if (prepareOp == null) {
                             mHasOrphanOps = true;
                             ZimbraLog.redolog.error("Commit/abort record encountered before corresponding change record (" + op + ")");
                             TransactionId tid = op.getTransactionId();
@@ -419,40 +429,29 @@ public class RedoPlayer {
         }
 
         synchronized (mOpsMapGuard) {
-            Set entrySet = mOpsMap.entrySet();
             ZimbraLog.redolog.info("Redoing " + numOps + " uncommitted transactions");
-            for (Iterator it = entrySet.iterator(); it.hasNext(); ) {
-                Map.Entry entry = (Entry) it.next();
-                RedoableOp op = (RedoableOp) entry.getValue();
-                if (op == null)
-                    continue;
-
-                if (op.deferCrashRecovery()) {
-                    ZimbraLog.redolog.info("Deferring crash recovery to after startup: " + op);
-                    postStartupRecoveryOps.add(op);
-                    continue;
-                }
-
-                if (ZimbraLog.redolog.isInfoEnabled())
-                    ZimbraLog.redolog.info("REDOING: " + op);
-
-                boolean success = false;
-                try {
-                    op.redo();
-                    success = true;
-                } catch (Exception e) {
-                    ZimbraLog.redolog.error("Redo failed for [" + op + "]." +
-                            "  Backend state of affected item is indeterminate." +
-                            "  Marking operation as aborted and moving on.", e);
-                } finally {
-                    if (success) {
-                        CommitTxn commit = new CommitTxn(op);
-                        redoLogMgr.logOnly(commit, true);
-                    } else {
-                        AbortTxn abort = new AbortTxn(op);
-                        redoLogMgr.logOnly(abort, true);
+            // Ops of different mailboxes are independent and are redone in parallel.
+            ReplayExecutor executor = new ReplayExecutor(ReplayExecutor.getDefaultThreads(),
+                    LC.redolog_replay_queue_capacity.intValue(), true, new CrashRecoveryReplayer(redoLogMgr));
+            try {
+                for (RedoableOp op : mOpsMap.values()) {
+                    if (op == null)
+                        continue;
+
+                    if (op.deferCrashRecovery()) {
+                        ZimbraLog.redolog.info("Deferring crash recovery to after startup: " + op);
+                        postStartupRecoveryOps.add(op);
+                        continue;
                     }
+
+                    if (ZimbraLog.redolog.isInfoEnabled())
+                        ZimbraLog.redolog.info("REDOING: " + op);
+
+                    executor.submit(op);
                 }
+                executor.finish();
+            } finally {
+                executor.shutdown();
             }
             mOpsMap.clear();
         }
@@ -460,6 +459,39 @@ public class RedoPlayer {
         return numOps;
     }
 
+    /**
+     * Redoes an uncommitted op during crash recovery, then logs a commit or
+     * abort record for it depending on the outcome.
+     */
+    private static class CrashRecoveryReplayer implements ReplayExecutor.Replayer {
+        private final RedoLogManager mRedoLogMgr;
+
+        CrashRecoveryReplayer(RedoLogManager redoLogMgr) {
+            mRedoLogMgr = redoLogMgr;
+        }
+
+        @Override
+        public void replay(RedoableOp op) {
+            boolean success = false;
+            try {
+                op.redo();
+                success = true;
+            } catch (Exception e) {
+                ZimbraLog.redolog.error("Redo failed for [" + op + "]." +
+                        "  Backend state of affected item is indeterminate." +
+                        "  Marking operation as aborted and moving on.", e);
+            } finally {
+                if (success) {
+                    CommitTxn commit = new CommitTxn(op);
+                    mRedoLogMgr.logOnly(commit, true);
+                } else {
+                    AbortTxn abort = new AbortTxn(op);
+                    mRedoLogMgr.logOnly(abort, true);
+                }
+            }
+        }
+    }
+
     /**
      * Returns a copy of the pending ops map.
      * @return
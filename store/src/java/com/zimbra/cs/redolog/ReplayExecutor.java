@@ -0,0 +1,284 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.redolog;
+
+import static com.zimbra.common.util.TaskUtil.newDaemonThreadFactory;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.Constants;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.redolog.op.RedoableOp;
+import com.zimbra.cs.util.Zimbra;
+
+/**
+ * Replays redo ops on a pool of threads, partitioned by mailbox.
+ * <p>
+ * Ops of the same mailbox are replayed one at a time in the order they were
+ * submitted, while ops of different mailboxes run concurrently. A mailbox is
+ * not bound to a thread: whichever thread is free picks up the next mailbox
+ * with pending ops, and a thread moves on to another mailbox after a batch of
+ * ops so that one busy mailbox does not hold up the rest. Ops that are not
+ * specific to one mailbox are run by the submitting thread, and ops for which
+ * {@link RedoableOp#isCrossMailboxOp()} is true wait for all earlier ops to
+ * finish first.
+ */
+public final class ReplayExecutor {
+
+    /**
+     * Executes a single op.
+     */
+    public interface Replayer {
+        void replay(RedoableOp op) throws Exception;
+    }
+
+    // Number of ops a thread replays for one mailbox before moving on to another
+    private static final int OPS_PER_TURN = 100;
+
+    private static final long PROGRESS_INTERVAL = 30 * Constants.MILLIS_PER_SECOND;
+
+    private final Replayer replayer;
+    private final boolean ignoreErrors;
+    private final ExecutorService pool;
+    private final Semaphore capacity;
+
+    // mailbox id -> ops waiting to be replayed; guarded by this
+    private final Map<Integer, Lane> lanes = new HashMap<Integer, Lane>();
+    private final Set<Integer> mailboxes = new HashSet<Integer>();
+    private int pending;
+
+    private volatile Throwable error;
+    private final AtomicLong replayed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final long startTime = System.currentTimeMillis();
+    private long lastProgress = startTime;
+
+    /**
+     * @param threads number of replay threads
+     * @param capacity maximum number of ops submitted but not yet replayed;
+     *  {@link #submit} blocks while the limit is reached
+     * @param ignoreErrors whether to keep going when an op fails
+     */
+    public ReplayExecutor(int threads, int capacity, boolean ignoreErrors, Replayer replayer) {
+        this.replayer = replayer;
+        this.ignoreErrors = ignoreErrors;
+        this.capacity = new Semaphore(Math.max(capacity, 1));
+        pool = Executors.newFixedThreadPool(Math.max(threads, 1), newDaemonThreadFactory("RedoPlayer"));
+    }
+
+    /**
+     * Returns the configured number of replay threads.
+     */
+    public static int getDefaultThreads() {
+        int threads = LC.redolog_replay_threads.intValue();
+        return threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Queues an op for replay.
+     *
+     * @throws ServiceException if an earlier op failed and errors are not ignored
+     */
+    public void submit(RedoableOp op) throws ServiceException {
+        checkError();
+        int mboxId = op.getMailboxId();
+        if (op.isCrossMailboxOp()) {
+            awaitIdle();
+            checkError();
+            execute(op);
+            checkError();
+        } else if (mboxId == RedoableOp.MAILBOX_ID_ALL || mboxId == RedoableOp.UNKNOWN_ID) {
+            execute(op);
+            checkError();
+        } else {
+            try {
+                capacity.acquire();
+            } catch (InterruptedException e) {
+                throw ServiceException.INTERRUPTED("interrupted while queueing redo op");
+            }
+            synchronized (this) {
+                Lane lane = lanes.get(mboxId);
+                if (lane == null) {
+                    lane = new Lane(mboxId);
+                    lanes.put(mboxId, lane);
+                    mailboxes.add(mboxId);
+                }
+                lane.ops.add(op);
+                pending++;
+                if (!lane.scheduled) {
+                    lane.scheduled = true;
+                    pool.execute(lane);
+                }
+            }
+        }
+        logProgress();
+    }
+
+    /**
+     * Waits until all submitted ops have been replayed.
+     */
+    public synchronized void awaitIdle() throws ServiceException {
+        while (pending > 0) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                throw ServiceException.INTERRUPTED("interrupted while waiting for redo replay");
+            }
+        }
+    }
+
+    /**
+     * Waits for all submitted ops, logs replay throughput and stops the
+     * replay threads.
+     *
+     * @throws ServiceException if an op failed and errors are not ignored
+     */
+    public void finish() throws ServiceException {
+        try {
+            awaitIdle();
+            logStats();
+            checkError();
+        } finally {
+            shutdown();
+        }
+    }
+
+    /**
+     * Stops the replay threads without waiting for queued ops.
+     */
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+
+    public long getReplayedCount() {
+        return replayed.get();
+    }
+
+    private void checkError() throws ServiceException {
+        Throwable t = error;
+        if (t != null) {
+            throw ServiceException.FAILURE("Redo playback stopped due to an earlier error: " + t.getMessage(), t);
+        }
+    }
+
+    private void execute(RedoableOp op) {
+        if (error != null) {
+            return; // drain without replaying
+        }
+        try {
+            if (ZimbraLog.redolog.isDebugEnabled()) {
+                ZimbraLog.redolog.debug("Executing: " + op);
+            }
+            replayer.replay(op);
+        } catch (OutOfMemoryError oome) {
+            Zimbra.halt("Out of memory while executing redo op", oome);
+        } catch (Throwable t) {
+            failed.incrementAndGet();
+            if (ignoreErrors) {
+                ZimbraLog.redolog.warn("Ignoring error during redo log replay: " + op, t);
+            } else {
+                ZimbraLog.redolog.error("Unable to execute redo op: " + op, t);
+                error = t;
+            }
+        } finally {
+            replayed.incrementAndGet();
+        }
+    }
+
+    private void logProgress() {
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            if (now - lastProgress < PROGRESS_INTERVAL) {
+                return;
+            }
+            lastProgress = now;
+        }
+        logStats();
+    }
+
+    private void logStats() {
+        long elapsed = Math.max(System.currentTimeMillis() - startTime, 1);
+        int numMailboxes;
+        synchronized (this) {
+            numMailboxes = mailboxes.size();
+        }
+        long count = replayed.get();
+        ZimbraLog.redolog.info("Replayed %d ops (%d failed) for %d mailboxes in %dms, %d ops/sec",
+                count, failed.get(), numMailboxes, elapsed, count * Constants.MILLIS_PER_SECOND / elapsed);
+    }
+
+    private final class Lane implements Runnable {
+        final int mailboxId;
+        final Queue<RedoableOp> ops = new ArrayDeque<RedoableOp>();
+        // whether the lane is queued on or running in the pool; guarded by ReplayExecutor.this
+        boolean scheduled;
+
+        Lane(int mailboxId) {
+            this.mailboxId = mailboxId;
+        }
+
+        @Override
+        public void run() {
+            for (int i = 0; i < OPS_PER_TURN; i++) {
+                RedoableOp op;
+                synchronized (ReplayExecutor.this) {
+                    op = ops.poll();
+                    if (op == null) {
+                        scheduled = false;
+                        lanes.remove(mailboxId);
+                        return;
+                    }
+                }
+                try {
+                    execute(op);
+                } finally {
+                    capacity.release();
+                    synchronized (ReplayExecutor.this) {
+                        if (--pending == 0) {
+                            ReplayExecutor.this.notifyAll();
+                        }
+                    }
+                }
+            }
+            // give other mailboxes a turn
+            synchronized (ReplayExecutor.this) {
+                if (ops.isEmpty()) {
+                    scheduled = false;
+                    lanes.remove(mailboxId);
+                    return;
+                }
+            }
+            try {
+                pool.execute(this);
+            } catch (RejectedExecutionException e) {
+                // shut down
+            }
+        }
+    }
+}
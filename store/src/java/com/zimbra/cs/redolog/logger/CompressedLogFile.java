@@ -0,0 +1,402 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.redolog.logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import com.google.common.io.LimitInputStream;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.redolog.op.RedoableOp;
+
+/**
+ * Block-compressed format for archived redo logs.
+ * <p>
+ * A compressed log starts with the same {@link FileHeader} as a regular log,
+ * with the compressed flag set. The ops follow in blocks of roughly
+ * {@link #BLOCK_SIZE} bytes, each compressed separately. Blocks always end on
+ * an op boundary, and an op keeps the exact bytes it had in the original log.
+ * The file ends with a sparse index that records, for each block, where it
+ * is, the range of op timestamps and the mailboxes with ops in it, followed
+ * by a fixed-length trailer that points to the index:
+ * <pre>
+ *   header    512 bytes
+ *   blocks    for each block: compressed data
+ *   index     block count (4 bytes), then for each block:
+ *               file offset (8), compressed length (4),
+ *               uncompressed offset (8), uncompressed length (4),
+ *               min timestamp (8), max timestamp (8),
+ *               mailbox count (4), mailbox ids (4 each, ascending)
+ *   trailer   index offset (8), MAGIC (8)
+ * </pre>
+ * Uncompressed offsets are the offsets the ops had in the original log, so
+ * positions reported by {@link FileLogReader} do not change when a log is
+ * compressed. The index lets a reader skip blocks that cannot contain the
+ * ops it is looking for without decompressing them.
+ * <p>
+ * Ops are streamed through the compressor and back out of it, so neither
+ * compressing nor reading a log holds a whole op or block in memory. A log is
+ * not replaced by its compressed copy while a {@link FileLogReader} has it
+ * open, because ops read from a plain log refer to their blob data by offset
+ * in the file.
+ */
+public final class CompressedLogFile {
+
+    static final int BLOCK_SIZE = 64 * 1024;
+
+    private static final byte[] MAGIC = "ZMRIDX01".getBytes();
+    private static final int TRAILER_LEN = 8 + MAGIC.length;
+
+    // number of open readers of each log, by absolute path
+    private static final Map<File, Integer> sReaders = new HashMap<File, Integer>();
+
+    private CompressedLogFile() {
+    }
+
+    /**
+     * Index entry of one compressed block.
+     */
+    static final class Block {
+        final long fileOffset;
+        final int compressedLength;
+        final long offset;
+        final int length;
+        final long minTime;
+        final long maxTime;
+        final int[] mailboxIds;
+
+        Block(long fileOffset, int compressedLength, long offset, int length,
+                long minTime, long maxTime, int[] mailboxIds) {
+            this.fileOffset = fileOffset;
+            this.compressedLength = compressedLength;
+            this.offset = offset;
+            this.length = length;
+            this.minTime = minTime;
+            this.maxTime = maxTime;
+            this.mailboxIds = mailboxIds;
+        }
+
+        /**
+         * Returns whether the block may contain ops with a timestamp in
+         * [startTime, endTime) or ops for one of the mailboxes.  Ops that are
+         * not specific to one mailbox match any mailbox.
+         *
+         * @param mailboxIds <tt>null</tt> to match any mailbox
+         */
+        boolean matches(long startTime, long endTime, Collection<Integer> mailboxIds) {
+            if (maxTime < startTime || minTime >= endTime) {
+                return false;
+            }
+            if (mailboxIds == null || this.mailboxIds.length == 0 ||
+                    contains(RedoableOp.MAILBOX_ID_ALL) || contains(RedoableOp.UNKNOWN_ID)) {
+                return true;
+            }
+            for (Integer id : mailboxIds) {
+                if (id != null && contains(id)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean contains(int mailboxId) {
+            return Arrays.binarySearch(mailboxIds, mailboxId) >= 0;
+        }
+    }
+
+    /**
+     * Compresses a closed redo log in place.  The compressed file is written
+     * next to the original and renamed over it once no reader has the original
+     * open, so readers see either the complete original or the complete
+     * compressed file.
+     *
+     * @return <tt>false</tt> if the log is already compressed or still open
+     */
+    public static boolean compress(File file) throws IOException {
+        return compress(file, BLOCK_SIZE);
+    }
+
+    static boolean compress(File file, int blockSize) throws IOException {
+        long start = System.currentTimeMillis();
+        FileLogReader reader = new FileLogReader(file);
+        FileHeader header = reader.getHeader();
+        if (header.isCompressed() || header.getOpen()) {
+            return false;
+        }
+
+        File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        RandomAccessFile src = new RandomAccessFile(file, "r");
+        RandomAccessFile dest = new RandomAccessFile(tmp, "rw");
+        List<Block> blocks = new ArrayList<Block>();
+        boolean success = false;
+        try {
+            dest.setLength(0);
+            header.setCompressed(true);
+            header.write(dest);
+            dest.seek(FileHeader.HEADER_LEN);
+
+            BlockWriter writer = new BlockWriter(dest, blocks);
+            reader.open();
+            try {
+                RedoableOp op;
+                while ((op = reader.getNextOp()) != null) {
+                    long opStart = reader.getLastOpStartOffset();
+                    writer.add(op, src, opStart, reader.position() - opStart);
+                    if (writer.size() >= blockSize) {
+                        writer.flush();
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+            writer.flush();
+            writer.end();
+
+            long indexOffset = dest.getFilePointer();
+            writeIndex(dest, blocks);
+            dest.writeLong(indexOffset);
+            dest.write(MAGIC);
+            dest.getFD().sync();
+            success = true;
+        } finally {
+            src.close();
+            dest.close();
+            if (!success) {
+                tmp.delete();
+            }
+        }
+
+        long before = file.length();
+        long after = tmp.length();
+        File key = file.getAbsoluteFile();
+        synchronized (sReaders) {
+            try {
+                while (sReaders.containsKey(key)) {
+                    sReaders.wait();
+                }
+            } catch (InterruptedException e) {
+                tmp.delete();
+                throw new InterruptedIOException("Interrupted while waiting for readers of " + file.getAbsolutePath());
+            }
+            if (!tmp.renameTo(file)) {
+                tmp.delete();
+                throw new IOException("Unable to rename " + tmp.getAbsolutePath() + " to " + file.getAbsolutePath());
+            }
+        }
+        ZimbraLog.redolog.info("Compressed %s from %d to %d bytes (%d%%) in %d blocks in %dms", file.getName(),
+                before, after, before > 0 ? after * 100 / before : 100, blocks.size(),
+                System.currentTimeMillis() - start);
+        return true;
+    }
+
+    private static void writeIndex(RandomAccessFile raf, List<Block> blocks) throws IOException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(buf);
+        out.writeInt(blocks.size());
+        for (Block block : blocks) {
+            out.writeLong(block.fileOffset);
+            out.writeInt(block.compressedLength);
+            out.writeLong(block.offset);
+            out.writeInt(block.length);
+            out.writeLong(block.minTime);
+            out.writeLong(block.maxTime);
+            out.writeInt(block.mailboxIds.length);
+            for (int id : block.mailboxIds) {
+                out.writeInt(id);
+            }
+        }
+        out.flush();
+        raf.write(buf.toByteArray());
+    }
+
+    /**
+     * Reads the block index of a compressed log.
+     */
+    static List<Block> readIndex(RandomAccessFile raf, String path) throws IOException {
+        long length = raf.length();
+        if (length < FileHeader.HEADER_LEN + TRAILER_LEN) {
+            throw new IOException("Compressed redolog " + path + " is truncated");
+        }
+        raf.seek(length - TRAILER_LEN);
+        long indexOffset = raf.readLong();
+        byte[] magic = new byte[MAGIC.length];
+        raf.readFully(magic);
+        if (!Arrays.equals(magic, MAGIC) || indexOffset < FileHeader.HEADER_LEN || indexOffset > length - TRAILER_LEN) {
+            throw new IOException("Missing block index in compressed redolog " + path);
+        }
+        raf.seek(indexOffset);
+        int count = raf.readInt();
+        List<Block> blocks = new ArrayList<Block>(count);
+        for (int i = 0; i < count; i++) {
+            long fileOffset = raf.readLong();
+            int compressedLength = raf.readInt();
+            long offset = raf.readLong();
+            int blockLength = raf.readInt();
+            long minTime = raf.readLong();
+            long maxTime = raf.readLong();
+            int[] mailboxIds = new int[raf.readInt()];
+            for (int j = 0; j < mailboxIds.length; j++) {
+                mailboxIds[j] = raf.readInt();
+            }
+            blocks.add(new Block(fileOffset, compressedLength, offset, blockLength, minTime, maxTime, mailboxIds));
+        }
+        return Collections.unmodifiableList(blocks);
+    }
+
+    /**
+     * Returns a stream of the decompressed content of a block.  The stream
+     * reads from the file as it is read, so it must be read to the end of the
+     * block before the file is read from elsewhere.  It must not be closed,
+     * which would close the file; the caller ends the inflater instead.
+     */
+    static InputStream openBlock(RandomAccessFile raf, Block block, Inflater inflater) throws IOException {
+        raf.seek(block.fileOffset);
+        inflater.reset();
+        InputStream compressed = new LimitInputStream(Channels.newInputStream(raf.getChannel()), block.compressedLength);
+        return new InflaterInputStream(compressed, inflater, 8192);
+    }
+
+    /**
+     * Records that a reader has opened the log, so that it isn't replaced
+     * until the reader is closed.
+     */
+    static void readerOpened(File file) {
+        File key = file.getAbsoluteFile();
+        synchronized (sReaders) {
+            Integer count = sReaders.get(key);
+            sReaders.put(key, count == null ? 1 : count + 1);
+        }
+    }
+
+    static void readerClosed(File file) {
+        File key = file.getAbsoluteFile();
+        synchronized (sReaders) {
+            Integer count = sReaders.get(key);
+            if (count == null || count <= 1) {
+                sReaders.remove(key);
+                sReaders.notifyAll();
+            } else {
+                sReaders.put(key, count - 1);
+            }
+        }
+    }
+
+    /**
+     * Compresses ops into blocks as they are added and writes the blocks out.
+     */
+    private static final class BlockWriter {
+        private final RandomAccessFile raf;
+        private final List<Block> blocks;
+        private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        private final TreeSet<Integer> mailboxIds = new TreeSet<Integer>();
+        private final byte[] in = new byte[BLOCK_SIZE];
+        private final byte[] out = new byte[BLOCK_SIZE];
+        private long fileOffset = -1;
+        private long offset = -1;
+        private long size = 0;
+        private long minTime = Long.MAX_VALUE;
+        private long maxTime = Long.MIN_VALUE;
+
+        BlockWriter(RandomAccessFile raf, List<Block> blocks) {
+            this.raf = raf;
+            this.blocks = blocks;
+        }
+
+        /**
+         * Returns the uncompressed size of the current block.
+         */
+        long size() {
+            return size;
+        }
+
+        /**
+         * Adds an op to the current block, reading its bytes from the original log.
+         */
+        void add(RedoableOp op, RandomAccessFile src, long opOffset, long length) throws IOException {
+            if (offset < 0) {
+                fileOffset = raf.getFilePointer();
+                offset = opOffset;
+            }
+            src.seek(opOffset);
+            for (long remaining = length; remaining > 0; ) {
+                int n = src.read(in, 0, (int) Math.min(in.length, remaining));
+                if (n < 0) {
+                    throw new IOException("Redolog ends inside op at offset " + opOffset);
+                }
+                deflater.setInput(in, 0, n);
+                while (!deflater.needsInput()) {
+                    write(deflater.deflate(out));
+                }
+                remaining -= n;
+            }
+            size += length;
+            minTime = Math.min(minTime, op.getTimestamp());
+            maxTime = Math.max(maxTime, op.getTimestamp());
+            mailboxIds.add(op.getMailboxId());
+        }
+
+        private void write(int n) throws IOException {
+            raf.write(out, 0, n);
+        }
+
+        void flush() throws IOException {
+            if (size == 0) {
+                return;
+            }
+            deflater.finish();
+            while (!deflater.finished()) {
+                write(deflater.deflate(out));
+            }
+            int[] ids = new int[mailboxIds.size()];
+            int i = 0;
+            for (int id : mailboxIds) {
+                ids[i++] = id;
+            }
+            int compressedLength = (int) (raf.getFilePointer() - fileOffset);
+            blocks.add(new Block(fileOffset, compressedLength, offset, (int) size, minTime, maxTime, ids));
+
+            deflater.reset();
+            mailboxIds.clear();
+            fileOffset = -1;
+            offset = -1;
+            size = 0;
+            minTime = Long.MAX_VALUE;
+            maxTime = Long.MIN_VALUE;
+        }
+
+        void end() {
+            deflater.end();
+        }
+    }
+}
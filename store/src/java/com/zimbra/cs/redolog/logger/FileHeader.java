@@ -61,6 +61,9 @@ import com.zimbra.cs.redolog.Version;
  *   version        4 bytes; serialization version number
  *                  (2-byte major, 2-byte minor)
  *   createTime     4 bytes; time this log file was created
+ *   compressed     1 byte (1 or 0)
+ *                  1 means the ops following the header are stored in
+ *                  compressed blocks; see CompressedLogFile
  *   padding        0-value bytes to bring total header size to 512
  */
 public class FileHeader {
@@ -77,6 +80,7 @@ public class FileHeader {
     private long mFirstOpTstamp;        // time of first op in log file
     private long mLastOpTstamp;         // time of last op in log file
     private long mCreateTime;           // create time of log file
+    private byte mCompressed;           // ops are stored in compressed blocks
 
     private Version mVersion;			// redo log version
 
@@ -92,6 +96,7 @@ public class FileHeader {
         mFirstOpTstamp = 0;
         mLastOpTstamp = 0;
         mCreateTime = 0;
+        mCompressed = 0;
         mVersion = Version.latest();
     }
 
@@ -142,6 +147,10 @@ public class FileHeader {
         mCreateTime = t;
     }
 
+    void setCompressed(boolean b) {
+        mCompressed = b ? (byte) 1 : (byte) 0;
+    }
+
     public boolean getOpen() {
     	return mOpen != 0;
     }
@@ -170,6 +179,10 @@ public class FileHeader {
         return mCreateTime;
     }
 
+    public boolean isCompressed() {
+        return mCompressed != 0;
+    }
+
     /**
      * Get byte buffer of a String that fits within given maximum length.
      * String is trimmed at the end one character at a time until the
@@ -229,6 +242,7 @@ public class FileHeader {
         out.writeLong(mLastOpTstamp);
         mVersion.serialize(out);
         out.writeLong(mCreateTime);
+        out.writeByte(mCompressed);
 
         int currentLen = baos.size();
         if (currentLen < HEADER_LEN) {
@@ -283,6 +297,8 @@ public class FileHeader {
             	mVersion = new Version(1, 0);
 
             mCreateTime = in.readLong();
+            // Older files have 0 padding here.
+            mCompressed = in.readByte();
         } finally {
             bais.close();
         }
@@ -313,6 +329,8 @@ public class FileHeader {
         }
         sb.append("\n");
         sb.append("version:  ").append(mVersion).append("\n");
+        if (mCompressed != 0)
+            sb.append("compressed: true\n");
     	return sb.toString();
     }
 }
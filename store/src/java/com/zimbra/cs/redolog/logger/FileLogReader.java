@@ -27,7 +27,11 @@ import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.util.Collection;
+import java.util.List;
+import java.util.zip.Inflater;
 
+import com.google.common.io.CountingInputStream;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.redolog.RedoLogInput;
 import com.zimbra.cs.redolog.op.RedoableOp;
@@ -50,6 +54,20 @@ public class FileLogReader {
     private long mFileSizeAtOpen;
     private long mLastOpStartOffset;
 
+    // Set when reading a compressed log; see CompressedLogFile
+    private List<CompressedLogFile.Block> mBlocks;
+    private int mNextBlock;
+    private CompressedLogFile.Block mBlock;
+    private CountingInputStream mBlockData;
+    private Inflater mInflater;
+    private int mBlocksRead;
+    private boolean mOpen;
+
+    // Blocks of a compressed log that can't contain ops matching these are skipped
+    private long mFilterStartTime = Long.MIN_VALUE;
+    private long mFilterEndTime = Long.MAX_VALUE;
+    private Collection<Integer> mFilterMailboxIds;
+
 
     public FileLogReader(File logfile) {
         this(logfile, false);
@@ -63,22 +81,50 @@ public class FileLogReader {
     }
 
     public synchronized void open() throws IOException {
+        // keep the log from being replaced by a compressed copy while it is read
+        if (!mOpen) {
+            CompressedLogFile.readerOpened(mFile);
+            mOpen = true;
+        }
         try {
             mRAF = new RandomAccessFile(mFile, mReadOnly ? "r" : "rw");
             mIN = new RedoLogInput(mRAF, mFile.getPath());
             mHeader.read(mRAF);
             mHeaderRead = true;
             mFileSizeAtOpen = mRAF.length();
+            if (mHeader.isCompressed()) {
+                if (!mReadOnly)
+                    throw new IOException("Compressed redolog can't be opened for writing");
+                mBlocks = CompressedLogFile.readIndex(mRAF, mFile.getPath());
+                mNextBlock = 0;
+                mBlock = null;
+                mBlockData = null;
+                mInflater = new Inflater();
+                mBlocksRead = 0;
+            }
         } catch (IOException e) {
+            close();
             throw new IOException("Error opening " + mFile.getAbsolutePath(), e);
         }
     }
 
     public synchronized void close() throws IOException {
+        if (!mOpen)
+            return;
+        mOpen = false;
+        if (mBlocks != null && ZimbraLog.redolog.isDebugEnabled())
+            ZimbraLog.redolog.debug("Read %d of %d blocks of %s", mBlocksRead, mBlocks.size(), mFile.getName());
+        if (mInflater != null) {
+            mInflater.end();
+            mInflater = null;
+        }
         try {
-            mRAF.close();
+            if (mRAF != null)
+                mRAF.close();
         } catch (IOException e) {
             throw new IOException("Error closing " + mFile.getAbsolutePath(), e);
+        } finally {
+            CompressedLogFile.readerClosed(mFile);
         }
     }
 
@@ -91,7 +137,29 @@ public class FileLogReader {
         return mHeader;
     }
 
+    /**
+     * Lets a reader of a compressed log skip blocks that can't contain ops
+     * with a timestamp in [startTime, endTime) or ops of the given mailboxes.
+     * Ops in skipped blocks are not returned, including commit and abort
+     * records whose change record was returned earlier, and vice versa.
+     * Has no effect on uncompressed logs, which have no block index.
+     *
+     * @param mailboxIds <tt>null</tt> for all mailboxes
+     */
+    public synchronized void setBlockFilter(long startTime, long endTime, Collection<Integer> mailboxIds) {
+        mFilterStartTime = startTime;
+        mFilterEndTime = endTime;
+        mFilterMailboxIds = mailboxIds;
+    }
+
+    public synchronized boolean isCompressed() throws IOException {
+        return getHeader().isCompressed();
+    }
+
     public synchronized RedoableOp getNextOp() throws IOException {
+        if (mBlocks != null)
+            return getNextCompressedOp();
+
         long pos = mRAF.getFilePointer();
         if (pos == mFileSizeAtOpen) {
             // EOF reached.
@@ -135,11 +203,45 @@ public class FileLogReader {
         }
     }
 
+    private RedoableOp getNextCompressedOp() throws IOException {
+        while (mBlockData == null || mBlockData.getCount() >= mBlock.length) {
+            mBlock = null;
+            mBlockData = null;
+            if (mNextBlock >= mBlocks.size())
+                return null;
+            CompressedLogFile.Block block = mBlocks.get(mNextBlock++);
+            if (block.matches(mFilterStartTime, mFilterEndTime, mFilterMailboxIds)) {
+                mBlockData = new CountingInputStream(CompressedLogFile.openBlock(mRAF, block, mInflater));
+                mBlock = block;
+                mBlocksRead++;
+            }
+        }
+        // Ops are stored whole within a block, so a parse error means the
+        // block is corrupt; unlike in a plain log there is no resyncing.
+        mLastOpStartOffset = position();
+        return RedoableOp.deserializeOp(new RedoLogInput(mBlockData));
+    }
+
+    /**
+     * Returns the size of the log.  For a compressed log, this is the size of
+     * the log before it was compressed.
+     */
     public synchronized long getSize() throws IOException {
+        if (mBlocks != null)
+            return mHeader.getFileSize();
         return mRAF.length();
     }
 
+    /**
+     * Returns the offset of the next op.  For a compressed log, this is the
+     * offset the op had in the log before it was compressed.
+     */
     public synchronized long position() throws IOException {
+        if (mBlocks != null) {
+            if (mBlock == null)
+                return mNextBlock < mBlocks.size() ? mBlocks.get(mNextBlock).offset : getSize();
+            return mBlock.offset + mBlockData.getCount();
+        }
         return mRAF.getFilePointer();
     }
 
@@ -154,6 +256,8 @@ public class FileLogReader {
      * @throws IOException
      */
     public synchronized void truncate(long size) throws IOException {
+        if (mBlocks != null)
+            throw new IOException("Compressed redolog can't be truncated");
         if (size < mRAF.length()) {
             mRAF.setLength(size);
             FileHeader hdr = getHeader();
@@ -84,4 +84,9 @@ public class CreateMailbox extends RedoableOp {
             throw new MailboxIdConflictException(mAccountId, opMboxId, mboxId, this);
         }
     }
+
+    @Override public boolean isCrossMailboxOp() {
+        // may claim or free a mailbox id used by ops of another account
+        return true;
+    }
 }
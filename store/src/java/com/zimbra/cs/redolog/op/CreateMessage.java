@@ -448,16 +448,7 @@ implements CreateCalendarItemPlayer, CreateCalendarItemRecorder {
                 in.readFully(data, 0, dataLength);
                 mData = new RedoableOpData(data);
             } else {
-                long pos = in.getFilePointer();
-                mData = new RedoableOpData(new File(in.getPath()), pos, dataLength);
-
-                // Now that we have a stream to the data, skip to the next op.
-                int numSkipped = in.skipBytes(dataLength);
-                if (numSkipped != dataLength) {
-                    String msg = String.format("Attempted to skip %d bytes at position %d in %s, but actually skipped %d.",
-                            dataLength, pos, in.getPath(), numSkipped);
-                    throw new IOException(msg);
-                }
+                mData = RedoableOpData.read(in, dataLength);
             }
 
             // Blob data must be the last thing deserialized.  See comments in
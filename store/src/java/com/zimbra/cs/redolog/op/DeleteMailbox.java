@@ -66,4 +66,9 @@ public class DeleteMailbox extends RedoableOp {
     @Override public boolean isDeleteOp() {
         return true;
     }
+
+    @Override public boolean isCrossMailboxOp() {
+        // may claim or free a mailbox id used by ops of another account
+        return true;
+    }
 }
@@ -20,7 +20,6 @@
  */
 package com.zimbra.cs.redolog.op;
 
-import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.HashMap;
@@ -124,16 +123,7 @@ public class ModifyContact extends RedoableOp {
             in.readShort();
             int length = in.readInt();
             if (length > 0) {
-                mRedoLogContent = new RedoableOpData(new File(in.getPath()), in.getFilePointer(), length);
-
-                // Now that we have a stream to the data, skip to the next op.
-                long pos = in.getFilePointer();
-                int numSkipped = in.skipBytes(length);
-                if (numSkipped != length) {
-                    String msg = String.format("Attempted to skip %d bytes at position %d in %s, but actually skipped %d.",
-                            length, pos, in.getPath(), numSkipped);
-                    throw new IOException(msg);
-                }
+                mRedoLogContent = RedoableOpData.read(in, length);
             }
         }
     }
@@ -210,6 +210,17 @@ public abstract class RedoableOp {
         return false;
     }
 
+    /**
+     * Parallel replay runs the ops of different mailboxes concurrently.  An
+     * op that affects more than one mailbox, or server-wide state such as
+     * volumes, returns true so that all previously read ops finish before it
+     * runs and no later op starts until it is done.
+     * @return
+     */
+    public boolean isCrossMailboxOp() {
+        return mMailboxId == UNKNOWN_ID || mMailboxId == MAILBOX_ID_ALL;
+    }
+
     public long getTimestamp() {
         return mTimestamp;
     }
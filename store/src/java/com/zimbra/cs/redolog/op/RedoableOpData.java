@@ -27,6 +27,7 @@ import javax.mail.util.ByteArrayDataSource;
 import com.zimbra.common.util.ByteUtil;
 import com.zimbra.common.util.FileSegmentDataSource;
 import com.zimbra.common.mime.MimeConstants;
+import com.zimbra.cs.redolog.RedoLogInput;
 
 class RedoableOpData {
     private int mLength;
@@ -52,6 +53,31 @@ class RedoableOpData {
         mLength = length;
     }
     
+    /**
+     * Reads the next <tt>length</tt> bytes of op data.  When reading a log
+     * file, the data is not read now but from the file when it is needed.
+     * Otherwise, as when reading a block of a compressed log, the data is
+     * read into memory.
+     */
+    static RedoableOpData read(RedoLogInput in, int length) throws IOException {
+        if (in.getPath() == null) {
+            byte[] data = new byte[length];
+            in.readFully(data, 0, length);
+            return new RedoableOpData(data);
+        }
+        long pos = in.getFilePointer();
+        RedoableOpData data = new RedoableOpData(new File(in.getPath()), pos, length);
+
+        // Now that we have a stream to the data, skip to the next op.
+        int numSkipped = in.skipBytes(length);
+        if (numSkipped != length) {
+            String msg = String.format("Attempted to skip %d bytes at position %d in %s, but actually skipped %d.",
+                    length, pos, in.getPath(), numSkipped);
+            throw new IOException(msg);
+        }
+        return data;
+    }
+
     int getLength() {
         return mLength;
     }
@@ -70,6 +70,14 @@ public class StoreIncomingBlob extends RedoableOp {
         mMailboxIdList = list;
     }
 
+    /**
+     * The blob is only referenced by ops logged after this one, so ops that
+     * are already being replayed need not finish first.
+     */
+    @Override public boolean isCrossMailboxOp() {
+        return false;
+    }
+
     public void setBlobBodyInfo(File file) {
         mData = new RedoableOpData(file);
         mPath = file.getPath();
@@ -150,16 +158,7 @@ public class StoreIncomingBlob extends RedoableOp {
 
         // mData must be the last thing deserialized.  See comments in
         // serializeData().
-        long pos = in.getFilePointer();
-        mData = new RedoableOpData(new File(in.getPath()), pos, dataLen);
-
-        // Now that we have a stream to the data, skip to the next op.
-        int numSkipped = in.skipBytes(dataLen);
-        if (numSkipped != dataLen) {
-            String msg = String.format("Attempted to skip %d bytes at position %d in %s, but actually skipped %d.",
-                    dataLen, pos, in.getPath(), numSkipped);
-            throw new IOException(msg);
-        }
+        mData = RedoableOpData.read(in, dataLen);
     }
 
     @Override public void redo() throws Exception {
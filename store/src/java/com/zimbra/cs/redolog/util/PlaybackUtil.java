@@ -84,28 +84,24 @@ import com.zimbra.cs.util.Zimbra;
  * error.  By default errors are logged and ignored.
  *
  * Specify --threads <number of threads> to set the degree of parallelism.
- * By default 50 threads are used.  Operations for a given mailbox is always
- * executed by the same thread to guarantee execution order within a mailbox.
- * Thread assignment is done by taking the module of mailbox id divided by
- * number of threads.  Thus in the default setting mailboxes 1 and 51 are
- * handled by the same thread.  This means replay is not fully parallelized.
- * This is a consequence of the need to guarantee order of execution for each
- * mailbox.
+ * By default 50 threads are used.  Operations for a given mailbox are always
+ * executed one at a time in log order, but any free thread can pick up the
+ * next mailbox that has pending operations, so mailboxes are spread evenly
+ * over the threads.
  *
  * When only 1 thread is used or --mailboxId option is used all replay is done
  * by the main thread.  Even when multiple replay threads are used operations
  * that span multiple mailboxes (StoreIncomingBlob of a multi-recipient email
  * delivery) or system operations (volume ops) are executed by the main thread.
- * This is necessary to guarantee that latermailbox-specific operations that
+ * This is necessary to guarantee that later mailbox-specific operations that
  * depend on the non-mailbox-specific operation (e.g. CreateMessage that links
- * to blob stored by StoreIncomingBlob) are not started out of order.
+ * to blob stored by StoreIncomingBlob) are not started out of order.  Volume
+ * ops and mailbox creation and deletion also wait for all earlier operations
+ * to finish before they run.
  *
- * Specify --queueCapacity <number of ops> to set the capacity of the operation
- * queue used by each replay thread.  Default capacity is 100.  This parameter
- * is related to the degree of parallelism.  When a replay thread's queue is full
- * and the main thread must submit another operation to the thread, it will block
- * and will be prevented from submitting operations that might have been run in
- * parallel by other replay threads that have available room in the queue.
+ * Specify --queueCapacity <number of ops> to set the number of operations
+ * that may be queued per replay thread.  Default capacity is 100.  When the
+ * queue is full the main thread blocks until an operation completes.
  */
 public class PlaybackUtil {
 
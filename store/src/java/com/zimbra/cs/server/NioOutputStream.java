@@ -21,11 +21,18 @@ import java.io.IOException;
 import java.io.OutputStream;
 
 import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.file.DefaultFileRegion;
+import org.apache.mina.core.filterchain.IoFilterChain;
+import org.apache.mina.core.future.IoFutureListener;
 import org.apache.mina.core.future.WriteFuture;
 import org.apache.mina.core.session.IoSession;
+import org.apache.mina.filter.codec.ProtocolCodecFilter;
+import org.apache.mina.filter.executor.ExecutorFilter;
 
 import com.google.common.base.Charsets;
+import com.google.common.io.Closeables;
 import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.store.BlobRegion;
 
 public final class NioOutputStream extends OutputStream {
     private final IoSession session;
@@ -79,6 +86,46 @@ public final class NioOutputStream extends OutputStream {
         buf.put((byte) b);
     }
 
+    /**
+     * Returns whether file regions can be written to the session, i.e. whether
+     * nothing in its filter chain encrypts or otherwise transforms the output.
+     */
+    public boolean isZeroCopySupported() {
+        for (IoFilterChain.Entry entry : session.getFilterChain().getAll()) {
+            if (!(entry.getFilter() instanceof ExecutorFilter || entry.getFilter() instanceof NioLoggingFilter ||
+                    entry.getFilter() instanceof ProtocolCodecFilter)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes the region after any buffered output. The I/O processor sends it
+     * with {@link java.nio.channels.FileChannel#transferTo}, and the region is
+     * closed once it has been written, or right away if it can't be queued.
+     * Must only be called if {@link #isZeroCopySupported()}.
+     */
+    public synchronized void write(final BlobRegion region) throws IOException {
+        WriteFuture future = null;
+        try {
+            flush();
+            long writeBytes = session.getScheduledWriteBytes();
+            future = session.write(new DefaultFileRegion(region.getChannel(), region.getPosition(), region.getCount()));
+            future.addListener(new IoFutureListener<WriteFuture>() {
+                @Override
+                public void operationComplete(WriteFuture future) {
+                    Closeables.closeQuietly(region);
+                }
+            });
+            awaitScheduledWrites(future, writeBytes);
+        } finally {
+            if (future == null) {
+                Closeables.closeQuietly(region);
+            }
+        }
+    }
+
     @Override
     public synchronized void flush() throws IOException {
         if (buf.position() > 0) {
@@ -91,6 +138,14 @@ public final class NioOutputStream extends OutputStream {
     private synchronized void writeToSession(Object output) throws IOException {
         long writeBytes = session.getScheduledWriteBytes();
         WriteFuture future = session.write(output);
+        awaitScheduledWrites(future, writeBytes);
+    }
+
+    /**
+     * Waits for the write to complete if more than the maximum number of bytes
+     * were scheduled before it.
+     */
+    private void awaitScheduledWrites(WriteFuture future, long writeBytes) throws IOException {
         if (writeBytes > maxScheduledBytes) {
             ZimbraLog.nio.debug("IOSession has %d scheduled write bytes; waiting for buffer to catch up", writeBytes);
             long start = System.currentTimeMillis();
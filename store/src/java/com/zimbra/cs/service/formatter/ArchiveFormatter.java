@@ -81,6 +81,7 @@ import com.zimbra.cs.mailbox.CalendarItem.Instance;
 import com.zimbra.cs.mailbox.Chat;
 import com.zimbra.cs.mailbox.Contact;
 import com.zimbra.cs.mailbox.Conversation;
+import com.zimbra.cs.mailbox.DeliveryContext;
 import com.zimbra.cs.mailbox.DeliveryOptions;
 import com.zimbra.cs.mailbox.Document;
 import com.zimbra.cs.mailbox.Flag;
@@ -193,6 +194,31 @@ public abstract class ArchiveFormatter extends Formatter {
     protected abstract ArchiveOutputStream getOutputStream(UserServletContext context, String charset)
     throws IOException;
 
+    /** statistics of the export or import running on this thread, for the streams built by subclasses */
+    private static final ThreadLocal<ArchiveStats> STATS = new ThreadLocal<ArchiveStats>();
+
+    /**
+     * Moves the compression and network write of an export onto a separate
+     * thread, so that they overlap with reading the mailbox.
+     *
+     * @param phase name of the stage in the throughput log
+     */
+    protected static OutputStream pipelineOutput(OutputStream os, String phase) {
+        ArchiveStats stats = STATS.get();
+        return ArchivePipeline.output(os, stats == null ? null : stats.phase(phase));
+    }
+
+    /**
+     * Moves the network read and decompression of an import onto a separate
+     * thread, so that they overlap with the Mailbox operations.
+     *
+     * @param phase name of the stage in the throughput log
+     */
+    protected static InputStream pipelineInput(InputStream is, String phase) {
+        ArchiveStats stats = STATS.get();
+        return ArchivePipeline.input(is, stats == null ? null : stats.phase(phase));
+    }
+
     @Override
     public void formatCallback(UserServletContext context)
     throws IOException, ServiceException, UserServletException {
@@ -216,6 +242,11 @@ public abstract class ArchiveFormatter extends Formatter {
         ArchiveOutputStream aos = null;
         String types = context.getTypesString();
         MailboxMaintenance maintenance = null;
+        ArchiveStats stats = new ArchiveStats("Archive export");
+        ArchiveStats.Phase fetched = stats.phase("fetch");
+        ArchiveStats.Phase written = stats.phase("write");
+        ArchivePipeline.BlobReadAhead readAhead = null;
+        STATS.set(stats);
         try {
             if (filename == null || filename.equals("")) {
                 Date date = new Date();
@@ -269,16 +300,21 @@ public abstract class ArchiveFormatter extends Formatter {
 
             Charset charset = context.getCharset();
             CharsetEncoder encoder = charset.newEncoder();
+            if (ArchivePipeline.isEnabled() && context.shouldReturnBody() && !context.hasPart()) {
+                String metaParam = context.params.get(UserServlet.QP_META);
+                boolean meta = metaParam == null ? getDefaultMeta() : !metaParam.equals("0");
+                readAhead = new ArchivePipeline.BlobReadAhead(meta, stats.phase("read"));
+            }
             if (context.requestedItems != null) {
                 try {
                     for (UserServletContext.Item item : context.requestedItems)
-                        aos = saveItem(context, item.mailItem, fldrs, cnts, item.versioned, aos, encoder, names);
+                        aos = saveItem(context, item.mailItem, fldrs, cnts, item.versioned, aos, encoder, names, null, written);
                 } catch (Exception e) {
                     warn(e);
                 }
             } else if (context.target != null && !(context.target instanceof Folder)) {
                 try {
-                    aos = saveItem(context, context.target, fldrs, cnts, false, aos, encoder, names);
+                    aos = saveItem(context, context.target, fldrs, cnts, false, aos, encoder, names, null, written);
                 } catch (Exception e) {
                     warn(e);
                 }
@@ -328,7 +364,7 @@ public abstract class ArchiveFormatter extends Formatter {
 
                         Collections.sort(items, sp);
                         for (MailItem item : items) {
-                            aos = saveItem(context, item, fldrs, cnts, false, aos, encoder, names);
+                            aos = saveItem(context, item, fldrs, cnts, false, aos, encoder, names, null, written);
                         }
                     }
                     query = "is:local";
@@ -357,9 +393,23 @@ public abstract class ArchiveFormatter extends Formatter {
                         while (results.hasNext()) {
                             if (saveTargetFolder) {
                                 saveTargetFolder = false;
-                                aos = saveItem(context, context.target, fldrs, cnts, false, aos, encoder, names);
+                                aos = saveItem(context, context.target, fldrs, cnts, false, aos, encoder, names, null, written);
+                            }
+                            long start = System.nanoTime();
+                            MailItem item = results.getNext().getMailItem();
+                            fetched.recordItem(0, System.nanoTime() - start);
+                            if (readAhead == null) {
+                                aos = saveItem(context, item, fldrs, cnts, false, aos, encoder, names, null, written);
+                                continue;
+                            }
+                            // read blobs ahead while the writer works through the window in search order
+                            readAhead.add(item);
+                            while (readAhead.isFull()) {
+                                aos = saveItem(context, readAhead.next(), fldrs, cnts, false, aos, encoder, names, readAhead, written);
                             }
-                            aos = saveItem(context, results.getNext().getMailItem(), fldrs, cnts, false, aos, encoder, names);
+                        }
+                        while (readAhead != null && !readAhead.isEmpty()) {
+                            aos = saveItem(context, readAhead.next(), fldrs, cnts, false, aos, encoder, names, readAhead, written);
                         }
                         Closeables.closeQuietly(results);
                         results = null;
@@ -367,6 +417,9 @@ public abstract class ArchiveFormatter extends Formatter {
                         warn(e);
                     } finally {
                         Closeables.closeQuietly(results);
+                        if (readAhead != null) {
+                            readAhead.clear();
+                        }
                     }
                 }
             }
@@ -388,6 +441,8 @@ public abstract class ArchiveFormatter extends Formatter {
                 } catch (Exception e) {
                 }
             }
+            STATS.remove();
+            stats.log(context.targetMailbox.getAccountId(), written);
         }
     }
 
@@ -415,10 +470,15 @@ public abstract class ArchiveFormatter extends Formatter {
         }
     }
 
+    /**
+     * @param readAhead supplies the content of items it returned, or <tt>null</tt>
+     * @param written records the archive entries written for the item
+     */
     private ArchiveOutputStream saveItem(UserServletContext context, MailItem mi,
         Map<Integer, String> fldrs, Map<Integer, Integer> cnts,
         boolean version, ArchiveOutputStream aos,
-        CharsetEncoder charsetEncoder, Set<String> names) throws ServiceException {
+        CharsetEncoder charsetEncoder, Set<String> names,
+        ArchivePipeline.BlobReadAhead readAhead, ArchiveStats.Phase written) throws ServiceException {
 
         String ext = null, name = null;
         String extra = null;
@@ -431,7 +491,7 @@ public abstract class ArchiveFormatter extends Formatter {
         if (!version && mi.isTagged(Flag.FlagInfo.VERSIONED)) {
             for (MailItem rev : context.targetMailbox.getAllRevisions(context.opContext, mi.getId(), mi.getType())) {
                 if (mi.getVersion() != rev.getVersion())
-                    aos = saveItem(context, rev, fldrs, cnts, true, aos, charsetEncoder, names);
+                    aos = saveItem(context, rev, fldrs, cnts, true, aos, charsetEncoder, names, null, written);
             }
         }
         switch (mi.getType()) {
@@ -572,7 +632,7 @@ public abstract class ArchiveFormatter extends Formatter {
                 return aos;
             }
             try {
-                is = mi.getContentStream();
+                is = readAhead != null ? readAhead.getContentStream(mi) : mi.getContentStream();
             } catch (Exception e) {
                 ZimbraLog.misc.error("missing blob for item %d: expected %d", mi.getId(), miSize);
                 return aos;
@@ -588,6 +648,7 @@ public abstract class ArchiveFormatter extends Formatter {
                 }
             }
 
+            long start = System.nanoTime();
             aoe = aos.newOutputEntry(path + ".meta", mi.getType().toString(), mi.getType().toByte(), mi.getDate());
             if (mi instanceof Message && (mi.getFlagBitmask() & Flag.ID_UNREAD) != 0) {
                 aoe.setUnread();
@@ -667,12 +728,15 @@ public abstract class ArchiveFormatter extends Formatter {
                         bs.copyTo(aos.getOutputStream());
                         bs.close();
                         aos.closeEntry();
+                        written.recordItem(sz, System.nanoTime() - start);
                     }
                     return aos;
                 }
             }
             aoe = aos.newOutputEntry(path, mi.getType().toString(), mi.getType().toByte(), mi.getDate());
+            long size = 0;
             if (data != null) {
+                size = data.length;
                 aoe.setSize(data.length);
                 aos.putNextEntry(aoe);
                 aos.write(data);
@@ -683,6 +747,7 @@ public abstract class ArchiveFormatter extends Formatter {
                     int in;
                     long remain = miSize;
 
+                    size = miSize;
                     aoe.setSize(miSize);
                     aos.putNextEntry(aoe);
                     while (remain > 0 && (in = is.read(buf)) >= 0) {
@@ -707,12 +772,14 @@ public abstract class ArchiveFormatter extends Formatter {
                     // Read headers into memory to compute size
                     byte headerData[] = HeadersOnlyInputStream.getHeaders(is);
 
+                    size = headerData.length;
                     aoe.setSize(headerData.length);
                     aos.putNextEntry(aoe);
                     aos.write(headerData);
                 }
                 aos.closeEntry();
             }
+            written.recordItem(size, System.nanoTime() - start);
         } catch (Exception e) {
             throw ServiceException.FAILURE("archive error", e);
         } finally {
@@ -852,6 +919,10 @@ public abstract class ArchiveFormatter extends Formatter {
         String subfolder = context.params.get("subfolder");
         String timestamp = context.params.get("timestamp");
         String timeout = context.params.get("timeout");
+        ArchiveStats stats = new ArchiveStats("Archive import");
+        ArchiveStats.Phase applied = stats.phase("apply");
+        ArchivePipeline.MessageStager stager = null;
+        STATS.set(stats);
 
         try {
             ArchiveInputStream ais;
@@ -937,6 +1008,10 @@ public abstract class ArchiveFormatter extends Formatter {
                 fmap.put(f.getId(), f);
                 fmap.put(f.getPath(), f);
             }
+            if (ArchivePipeline.isEnabled()) {
+                stager = new ArchivePipeline.MessageStager(context.targetMailbox.attachmentsIndexingEnabled(),
+                        stats.phase("stage"));
+            }
             try {
                 ArchiveInputEntry aie;
                 Boolean meta = false;
@@ -953,7 +1028,8 @@ public abstract class ArchiveFormatter extends Formatter {
                     } else if (aie.getName().endsWith(".meta")) {
                         meta = true;
                         if (id != null) {
-                            addItem(context, fldr, fmap, digestInfo, idMap, ids, searchTypes, r, id, ais, null, errs);
+                            applyStaged(context, fldr, fmap, digestInfo, idMap, ids, searchTypes, r, stager, applied, errs);
+                            addItem(context, fldr, fmap, digestInfo, idMap, ids, searchTypes, r, id, ais, null, null, applied, errs);
                         }
                         try {
                             id = new ItemData(readArchiveEntry(ais, aie));
@@ -967,18 +1043,29 @@ public abstract class ArchiveFormatter extends Formatter {
                         if (meta) {
                             addError(errs, FormatterServiceException.MISSING_META(aie.getName()));
                         } else {
+                            applyStaged(context, fldr, fmap, digestInfo, idMap, ids, searchTypes, r, stager, applied, errs);
                             addData(context, fldr, fmap, searchTypes, r, timestamp == null || !timestamp.equals("0"),
-                                    ais, aie, errs);
+                                    ais, aie, applied, errs);
                         }
                     } else if ((aie.getType() != 0 && id.ud.type != aie.getType()) || (id.ud.getBlobDigest() != null && aie.getSize() != -1 && id.ud.size != aie.getSize())) {
                         addError(errs, FormatterServiceException.MISMATCHED_META(aie.getName()));
+                    } else if (stager != null && stager.accepts(id, aie) &&
+                            (ids == null || Arrays.binarySearch(ids, id.ud.id) >= 0) &&
+                            (searchTypes == null || searchTypes.contains(MailItem.Type.MESSAGE))) {
+                        // store and parse the blob on a worker; the message is added once the window fills
+                        stager.stage(id, aie, readArchiveEntry(ais, aie));
+                        if (stager.isFull()) {
+                            applyStaged(context, fldr, fmap, digestInfo, idMap, ids, searchTypes, r, stager, applied, errs);
+                        }
                     } else {
-                        addItem(context, fldr, fmap, digestInfo, idMap, ids, searchTypes, r, id, ais, aie, errs);
+                        applyStaged(context, fldr, fmap, digestInfo, idMap, ids, searchTypes, r, stager, applied, errs);
+                        addItem(context, fldr, fmap, digestInfo, idMap, ids, searchTypes, r, id, ais, aie, null, applied, errs);
                     }
                     id = null;
                 }
+                applyStaged(context, fldr, fmap, digestInfo, idMap, ids, searchTypes, r, stager, applied, errs);
                 if (id != null) {
-                    addItem(context, fldr, fmap, digestInfo, idMap, ids, searchTypes, r, id, ais, null, errs);
+                    addItem(context, fldr, fmap, digestInfo, idMap, ids, searchTypes, r, id, ais, null, null, applied, errs);
                 }
             } catch (Exception e) {
                 if (id == null) {
@@ -987,7 +1074,18 @@ public abstract class ArchiveFormatter extends Formatter {
                     addError(errs, FormatterServiceException.UNKNOWN_ERROR(id.path, e));
                 }
                 id = null;
+                if (!(e instanceof MailServiceException)) {
+                    // messages staged before the archive became unreadable are still added
+                    try {
+                        applyStaged(context, fldr, fmap, digestInfo, idMap, ids, searchTypes, r, stager, applied, errs);
+                    } catch (ServiceException se) {
+                        addError(errs, se);
+                    }
+                }
             } finally {
+                if (stager != null) {
+                    stager.clear();
+                }
                 if (ais != null) {
                     ais.close();
                 }
@@ -995,6 +1093,9 @@ public abstract class ArchiveFormatter extends Formatter {
             }
         } catch (Exception e) {
             ex = e;
+        } finally {
+            STATS.remove();
+            stats.log(context.targetMailbox.getAccountId(), applied);
         }
         try {
             updateClient(context, ex, errs);
@@ -1082,6 +1183,25 @@ public abstract class ArchiveFormatter extends Formatter {
 
     private String string(String s) { return s == null ? new String() : s; }
 
+    /**
+     * Adds the messages whose blobs have been staged, in archive order. Called
+     * before any other item is added so that the import order is preserved.
+     */
+    private void applyStaged(UserServletContext context, Folder fldr, Map<Object, Folder> fmap,
+            FolderDigestInfo digestInfo, Map<Integer, Integer> idMap, int[] ids, Set<MailItem.Type> types, Resolve r,
+            ArchivePipeline.MessageStager stager, ArchiveStats.Phase applied, List<ServiceException> errs)
+    throws ServiceException {
+        while (stager != null && !stager.isEmpty()) {
+            ArchivePipeline.StagedMessage staged = stager.next();
+            try {
+                addItem(context, fldr, fmap, digestInfo, idMap, ids, types, r, staged.data, null, staged.entry, staged,
+                        applied, errs);
+            } finally {
+                staged.discard();
+            }
+        }
+    }
+
     private void warn(Exception e) {
         if (e.getCause() == null) {
             ZimbraLog.misc.warn("Archive Formatter warning: %s", e, e);
@@ -1093,8 +1213,10 @@ public abstract class ArchiveFormatter extends Formatter {
     private void addItem(UserServletContext context, Folder fldr, Map<Object, Folder> fmap,
             FolderDigestInfo digestInfo,
             Map<Integer, Integer> idMap, int[] ids, Set<MailItem.Type> types, Resolve r, ItemData id,
-            ArchiveInputStream ais, ArchiveInputEntry aie, List<ServiceException> errs)
+            ArchiveInputStream ais, ArchiveInputEntry aie, ArchivePipeline.StagedMessage staged,
+            ArchiveStats.Phase applied, List<ServiceException> errs)
     throws ServiceException {
+        long start = System.nanoTime();
         try {
             Mailbox mbox = fldr.getMailbox();
             MailItem mi = MailItem.constructItem(mbox, id.ud);
@@ -1394,8 +1516,13 @@ public abstract class ArchiveFormatter extends Formatter {
                         setFolderId(fldr.getId()).setNoICal(true).
                         setFlags(msg.getFlagBitmask()).
                         setTags(msg.getTags());
-                        newItem = mbox.addMessage(octxt, ais.getInputStream(), (int) aie.getSize(),
-                                msg.getDate(), opt, null, id);
+                        if (staged != null) {
+                            newItem = mbox.addMessage(octxt, staged.getParsedMessage(), opt,
+                                    new DeliveryContext().setIncomingBlob(staged.getBlob()));
+                        } else {
+                            newItem = mbox.addMessage(octxt, ais.getInputStream(), (int) aie.getSize(),
+                                    msg.getDate(), opt, null, id);
+                        }
                     }
                     break;
 
@@ -1519,6 +1646,7 @@ public abstract class ArchiveFormatter extends Formatter {
                             getTagNames(id), null);
                 }
             }
+            applied.recordItem(aie == null ? 0 : Math.max(aie.getSize(), 0), System.nanoTime() - start);
         } catch (MailServiceException e) {
             if (e.getCode() == MailServiceException.QUOTA_EXCEEDED) {
                 throw e;
@@ -1569,8 +1697,10 @@ public abstract class ArchiveFormatter extends Formatter {
     }
 
     private void addData(UserServletContext context, Folder fldr, Map<Object, Folder> fmap, Set<MailItem.Type> types, Resolve r,
-            boolean timestamp, ArchiveInputStream ais, ArchiveInputEntry aie, List<ServiceException> errs)
+            boolean timestamp, ArchiveInputStream ais, ArchiveInputEntry aie, ArchiveStats.Phase applied,
+            List<ServiceException> errs)
     throws ServiceException {
+        long start = System.nanoTime();
         try {
             int defaultFldr;
             Mailbox mbox = fldr.getMailbox();
@@ -1728,6 +1858,7 @@ public abstract class ArchiveFormatter extends Formatter {
                     timestamp ? aie.getModTime() : ParsedMessage.DATE_HEADER, opt, null);
                 break;
             }
+            applied.recordItem(Math.max(aie.getSize(), 0), System.nanoTime() - start);
         } catch (Exception e) {
             if (e instanceof MailServiceException &&
                 ((MailServiceException)e).getCode() == MailServiceException.QUOTA_EXCEEDED)
@@ -0,0 +1,570 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.service.formatter;
+
+import static com.zimbra.common.util.TaskUtil.newDaemonThreadFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.ByteUtil;
+import com.zimbra.cs.mailbox.CalendarItem;
+import com.zimbra.cs.mailbox.Contact;
+import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mime.ParsedMessage;
+import com.zimbra.cs.mime.ParsedMessageOptions;
+import com.zimbra.cs.service.formatter.ArchiveFormatter.ArchiveInputEntry;
+import com.zimbra.cs.service.util.ItemData;
+import com.zimbra.cs.store.Blob;
+import com.zimbra.cs.store.StoreManager;
+
+/**
+ * Stages that let {@link ArchiveFormatter} overlap the work of an export or
+ * import instead of doing everything on the request thread.
+ * <p>
+ * On export, blobs are read ahead of the archive writer by a pool of
+ * {@code zimbra_archive_formatter_threads} workers, and compression and the
+ * network write run on their own thread behind a bounded buffer. On import,
+ * decompression and the network read run ahead of the archive reader, and
+ * message blobs are stored and parsed by the workers so that the request
+ * thread only applies the Mailbox operations, in archive order.
+ */
+final class ArchivePipeline {
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final byte[] EOF = new byte[0];
+
+    /** long-lived compression and I/O stages, one thread per active stage */
+    private static final ExecutorService STAGES = Executors.newCachedThreadPool(newDaemonThreadFactory("ArchiveStage"));
+    /** short blob read and staging tasks */
+    private static final ExecutorService WORKERS;
+
+    static {
+        int threads = LC.zimbra_archive_formatter_threads.intValue();
+        WORKERS = threads > 0 ? Executors.newFixedThreadPool(threads, newDaemonThreadFactory("ArchiveWorker")) : null;
+    }
+
+    private ArchivePipeline() {
+    }
+
+    static boolean isEnabled() {
+        return WORKERS != null;
+    }
+
+    /**
+     * Returns a stream that hands whatever is written to it to a separate
+     * thread, which writes it to {@code os}. Closing the returned stream waits
+     * for the buffered data to be written and then closes {@code os}.
+     */
+    static OutputStream output(OutputStream os, ArchiveStats.Phase phase) {
+        return isEnabled() ? new OutputStage(os, phase) : os;
+    }
+
+    /**
+     * Returns a stream that reads {@code is} ahead of the caller on a separate thread.
+     */
+    static InputStream input(InputStream is, ArchiveStats.Phase phase) {
+        return isEnabled() ? new InputStage(is, phase) : is;
+    }
+
+    private static ServiceException unwrap(String message, Throwable t) {
+        if (t instanceof ExecutionException) {
+            t = t.getCause();
+        }
+        if (t instanceof ServiceException) {
+            return (ServiceException) t;
+        }
+        return ServiceException.FAILURE(message, t);
+    }
+
+    static final class OutputStage extends OutputStream {
+        private final OutputStream out;
+        private final ArchiveStats.Phase phase;
+        private final BlockingQueue<byte[]> queue;
+        private final Future<?> writer;
+        private byte[] buf = new byte[CHUNK_SIZE];
+        private int count;
+        private boolean closed;
+
+        OutputStage(OutputStream out, ArchiveStats.Phase phase) {
+            this.out = out;
+            this.phase = phase;
+            queue = new ArrayBlockingQueue<byte[]>(Math.max(LC.zimbra_archive_formatter_pipe_chunks.intValue(), 1));
+            writer = STAGES.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    drain();
+                    return null;
+                }
+            });
+        }
+
+        private void drain() throws IOException, InterruptedException {
+            for (byte[] chunk = queue.take(); chunk != EOF; chunk = queue.take()) {
+                long start = System.nanoTime();
+                out.write(chunk);
+                if (phase != null) {
+                    phase.recordBytes(chunk.length, System.nanoTime() - start);
+                }
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (count == buf.length) {
+                handOff();
+            }
+            buf[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (count == buf.length) {
+                    handOff();
+                }
+                int n = Math.min(len, buf.length - count);
+                System.arraycopy(b, off, buf, count, n);
+                count += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        /** Hands off buffered data; does not wait for it to be written. */
+        @Override
+        public void flush() throws IOException {
+            if (count > 0) {
+                handOff();
+            }
+        }
+
+        private void handOff() throws IOException {
+            if (count == buf.length) {
+                put(buf);
+                buf = new byte[CHUNK_SIZE];
+            } else {
+                put(Arrays.copyOf(buf, count));
+            }
+            count = 0;
+        }
+
+        private void put(byte[] chunk) throws IOException {
+            try {
+                // the writer only finishes early when it fails
+                while (!queue.offer(chunk, 1, TimeUnit.SECONDS)) {
+                    if (writer.isDone()) {
+                        waitForWriter();
+                    }
+                }
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+
+        private void waitForWriter() throws IOException, InterruptedException {
+            try {
+                writer.get();
+            } catch (ExecutionException e) {
+                throw new IOException("archive output stage failed", e.getCause());
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                flush();
+                put(EOF);
+                waitForWriter();
+            } catch (InterruptedException e) {
+                writer.cancel(true);
+                throw new InterruptedIOException();
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    static final class InputStage extends InputStream {
+        private final InputStream in;
+        private final ArchiveStats.Phase phase;
+        private final BlockingQueue<byte[]> queue;
+        private final Future<?> reader;
+        private volatile Throwable failure;
+        private byte[] chunk = EOF;
+        private int pos;
+        private boolean eof;
+        private volatile boolean closed;
+
+        InputStage(InputStream in, ArchiveStats.Phase phase) {
+            this.in = in;
+            this.phase = phase;
+            queue = new ArrayBlockingQueue<byte[]>(Math.max(LC.zimbra_archive_formatter_pipe_chunks.intValue(), 1));
+            reader = STAGES.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    fill();
+                    return null;
+                }
+            });
+        }
+
+        private void fill() {
+            try {
+                while (true) {
+                    byte[] buf = new byte[CHUNK_SIZE];
+                    int count = 0, n;
+                    long start = System.nanoTime();
+                    while (count < buf.length && (n = in.read(buf, count, buf.length - count)) >= 0) {
+                        count += n;
+                    }
+                    if (phase != null) {
+                        phase.recordBytes(count, System.nanoTime() - start);
+                    }
+                    if (count == buf.length) {
+                        queue.put(buf);
+                    } else {
+                        if (count > 0) {
+                            queue.put(Arrays.copyOf(buf, count));
+                        }
+                        break;
+                    }
+                }
+            } catch (Throwable t) {
+                failure = t;
+            } finally {
+                // the reader waits for EOF however this ends, unless it has been closed
+                boolean interrupted = false;
+                while (!closed) {
+                    try {
+                        if (queue.offer(EOF, 1, TimeUnit.SECONDS)) {
+                            break;
+                        }
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        private boolean next() throws IOException {
+            if (!eof) {
+                try {
+                    chunk = queue.take();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+                pos = 0;
+                eof = chunk == EOF;
+            }
+            if (eof && failure != null) {
+                Throwables.propagateIfPossible(failure);
+                throw new IOException("archive input stage failed", failure);
+            }
+            return !eof;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (pos == chunk.length && !next()) {
+                return -1;
+            }
+            return chunk[pos++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            } else if (pos == chunk.length && !next()) {
+                return -1;
+            }
+            int n = Math.min(len, chunk.length - pos);
+            System.arraycopy(chunk, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return chunk.length - pos;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            reader.cancel(true);
+            in.close();
+        }
+    }
+
+    /**
+     * Reads the blobs of items queued for export ahead of the archive writer.
+     * Items are returned by {@link #next()} in the order they were added, and
+     * at most {@code zimbra_archive_formatter_window} items and
+     * {@code zimbra_archive_formatter_window_bytes} bytes of content are held
+     * at a time. Blobs that do not fit are read by the writer as before.
+     */
+    static final class BlobReadAhead {
+        private static final class Entry {
+            final MailItem item;
+            final Future<byte[]> content;
+            final long size;
+
+            Entry(MailItem item, Future<byte[]> content, long size) {
+                this.item = item;
+                this.content = content;
+                this.size = size;
+            }
+        }
+
+        private final Deque<Entry> queue = new ArrayDeque<Entry>();
+        private final boolean meta;
+        private final ArchiveStats.Phase phase;
+        private final int window = Math.max(LC.zimbra_archive_formatter_window.intValue(), 1);
+        private final long maxBytes = LC.zimbra_archive_formatter_window_bytes.longValue();
+        private final long maxBlob = LC.zimbra_archive_formatter_max_buffered_blob.longValue();
+        private long buffered;
+        private Entry current;
+
+        /**
+         * @param meta whether the archive includes metadata; without it, the
+         *             content of calendar items and contacts is regenerated
+         *             rather than copied from the blob
+         */
+        BlobReadAhead(boolean meta, ArchiveStats.Phase phase) {
+            this.meta = meta;
+            this.phase = phase;
+        }
+
+        void add(final MailItem item) {
+            final long size = item.getSize();
+            Future<byte[]> content = null;
+            if (shouldRead(item, size)) {
+                content = WORKERS.submit(new Callable<byte[]>() {
+                    @Override
+                    public byte[] call() throws Exception {
+                        long start = System.nanoTime();
+                        InputStream is = item.getContentStream();
+                        try {
+                            byte[] data = ByteUtil.getContent(is, (int) size);
+                            if (phase != null) {
+                                phase.recordItem(data.length, System.nanoTime() - start);
+                            }
+                            return data;
+                        } finally {
+                            ByteUtil.closeStream(is);
+                        }
+                    }
+                });
+                buffered += size;
+            }
+            queue.add(new Entry(item, content, content == null ? 0 : size));
+        }
+
+        private boolean shouldRead(MailItem item, long size) {
+            if (item.getDigest() == null || size <= 0 || size > maxBlob || buffered + size > maxBytes) {
+                return false;
+            }
+            return meta || !(item instanceof CalendarItem || item instanceof Contact);
+        }
+
+        boolean isFull() {
+            return queue.size() >= window;
+        }
+
+        boolean isEmpty() {
+            return queue.isEmpty();
+        }
+
+        MailItem next() {
+            current = queue.remove();
+            buffered -= current.size;
+            return current.item;
+        }
+
+        /**
+         * Returns the content of the item most recently returned by
+         * {@link #next()} from the read-ahead buffer if it was read ahead, or
+         * from the store otherwise.
+         */
+        InputStream getContentStream(MailItem item) throws ServiceException {
+            if (current == null || current.item != item || current.content == null) {
+                return item.getContentStream();
+            }
+            try {
+                return new ByteArrayInputStream(current.content.get());
+            } catch (InterruptedException e) {
+                throw ServiceException.INTERRUPTED("reading blob for item " + item.getId());
+            } catch (ExecutionException e) {
+                throw unwrap("unable to read blob for item " + item.getId(), e);
+            } finally {
+                current = null;
+            }
+        }
+
+        void clear() {
+            for (Entry entry : queue) {
+                if (entry.content != null) {
+                    entry.content.cancel(true);
+                }
+            }
+            queue.clear();
+            buffered = 0;
+            current = null;
+        }
+    }
+
+    /**
+     * A message read from an import archive whose blob is being stored and
+     * parsed by a worker.
+     */
+    static final class StagedMessage {
+        final ItemData data;
+        final ArchiveInputEntry entry;
+        private final long size;
+        private Future<ParsedMessage> parsed;
+        private volatile Blob blob;
+
+        StagedMessage(ItemData data, ArchiveInputEntry entry, long size) {
+            this.data = data;
+            this.entry = entry;
+            this.size = size;
+        }
+
+        ParsedMessage getParsedMessage() throws ServiceException {
+            try {
+                return parsed.get();
+            } catch (InterruptedException e) {
+                throw ServiceException.INTERRUPTED("staging " + data.path);
+            } catch (ExecutionException e) {
+                throw unwrap("unable to stage " + data.path, e);
+            }
+        }
+
+        Blob getBlob() {
+            return blob;
+        }
+
+        /** Waits for staging to finish and deletes the incoming blob. */
+        void discard() {
+            try {
+                Uninterruptibles.getUninterruptibly(parsed);
+            } catch (ExecutionException e) {
+            }
+            StoreManager.getInstance().quietDelete(blob);
+            blob = null;
+        }
+    }
+
+    /**
+     * Stores and parses message blobs of an import on the workers, ahead of
+     * the Mailbox operations that add the messages.
+     */
+    static final class MessageStager {
+        private final Deque<StagedMessage> queue = new ArrayDeque<StagedMessage>();
+        private final boolean indexAttachments;
+        private final ArchiveStats.Phase phase;
+        private final int window = Math.max(LC.zimbra_archive_formatter_window.intValue(), 1);
+        private final long maxBytes = LC.zimbra_archive_formatter_window_bytes.longValue();
+        private final long maxBlob = LC.zimbra_archive_formatter_max_buffered_blob.longValue();
+        private long buffered;
+
+        MessageStager(boolean indexAttachments, ArchiveStats.Phase phase) {
+            this.indexAttachments = indexAttachments;
+            this.phase = phase;
+        }
+
+        boolean accepts(ItemData data, ArchiveInputEntry entry) {
+            long size = entry.getSize();
+            return data.ud.type == MailItem.Type.MESSAGE.toByte() && size > 0 && size <= maxBlob &&
+                    buffered + size <= maxBytes;
+        }
+
+        void stage(final ItemData data, ArchiveInputEntry entry, final byte[] content) {
+            final StagedMessage staged = new StagedMessage(data, entry, content.length);
+            staged.parsed = WORKERS.submit(new Callable<ParsedMessage>() {
+                @Override
+                public ParsedMessage call() throws Exception {
+                    long start = System.nanoTime();
+                    Blob blob = staged.blob = Mailbox.storeIncomingMessage(new ByteArrayInputStream(content),
+                            data.ud.getBlobDigest());
+                    ParsedMessage pm = new ParsedMessage(new ParsedMessageOptions(blob, content,
+                            data.ud.date * 1000L, indexAttachments));
+                    if (phase != null) {
+                        phase.recordItem(content.length, System.nanoTime() - start);
+                    }
+                    return pm;
+                }
+            });
+            queue.add(staged);
+            buffered += staged.size;
+        }
+
+        boolean isFull() {
+            return queue.size() >= window;
+        }
+
+        boolean isEmpty() {
+            return queue.isEmpty();
+        }
+
+        /** Returns the oldest staged message; the caller must {@link StagedMessage#discard()} it. */
+        StagedMessage next() {
+            StagedMessage staged = queue.remove();
+            buffered -= staged.size;
+            return staged;
+        }
+
+        void clear() {
+            for (StagedMessage staged : queue) {
+                staged.discard();
+            }
+            queue.clear();
+            buffered = 0;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.service.formatter;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Joiner;
+import com.zimbra.common.util.ZimbraLog;
+
+/**
+ * Throughput of each stage of an archive export or import. Every stage counts
+ * the items and bytes it handled and the time it spent handling them, so that
+ * the slowest stage of the pipeline shows up in the log.
+ */
+final class ArchiveStats {
+
+    static final class Phase {
+        private final String name;
+        private final AtomicLong items = new AtomicLong();
+        private final AtomicLong bytes = new AtomicLong();
+        private final AtomicLong nanos = new AtomicLong();
+
+        Phase(String name) {
+            this.name = name;
+        }
+
+        /** Records one item of the given size. */
+        void recordItem(long size, long elapsedNanos) {
+            items.incrementAndGet();
+            recordBytes(size, elapsedNanos);
+        }
+
+        /** Records bytes that do not correspond to a single item, e.g. a buffer of compressed data. */
+        void recordBytes(long size, long elapsedNanos) {
+            bytes.addAndGet(size);
+            nanos.addAndGet(elapsedNanos);
+        }
+
+        long getItems() {
+            return items.get();
+        }
+
+        long getBytes() {
+            return bytes.get();
+        }
+
+        @Override
+        public String toString() {
+            return ArchiveStats.toString(name, items.get(), bytes.get(), nanos.get());
+        }
+    }
+
+    private final String operation;
+    private final long start = System.nanoTime();
+    private final Map<String, Phase> phases = new LinkedHashMap<String, Phase>();
+
+    ArchiveStats(String operation) {
+        this.operation = operation;
+    }
+
+    /** Returns the named phase, creating it on first use. */
+    synchronized Phase phase(String name) {
+        Phase phase = phases.get(name);
+        if (phase == null) {
+            phase = new Phase(name);
+            phases.put(name, phase);
+        }
+        return phase;
+    }
+
+    /**
+     * Logs the overall throughput, taken from the given phase, followed by the
+     * busy-time throughput of every phase.
+     */
+    synchronized void log(String account, Phase total) {
+        if (!ZimbraLog.misc.isInfoEnabled() || total.getItems() == 0) {
+            return;
+        }
+        ZimbraLog.misc.info("%s for %s: %s; %s", operation, account,
+                toString("total", total.getItems(), total.getBytes(), System.nanoTime() - start),
+                Joiner.on("; ").join(phases.values()));
+    }
+
+    private static String toString(String name, long items, long bytes, long nanos) {
+        double secs = Math.max(nanos, 1) / (double) TimeUnit.SECONDS.toNanos(1);
+        double mb = bytes / (1024.0 * 1024.0);
+        return String.format("%s %d items %.1fMB in %.1fs (%.1f items/s, %.2fMB/s)",
+                name, items, mb, secs, items / secs, mb / secs);
+    }
+}
@@ -21,8 +21,11 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PushbackInputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.util.EnumSet;
 import java.util.List;
 import java.util.Set;
@@ -42,9 +45,12 @@ import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.eclipse.jetty.server.HttpOutput;
+
 import com.google.common.base.Charsets;
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.io.Closeables;
 import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.mime.MimeConstants;
 import com.zimbra.common.mime.MimeDetect;
@@ -81,7 +87,10 @@ import com.zimbra.cs.service.UserServletException;
 import com.zimbra.cs.service.formatter.FormatterFactory.FormatType;
 import com.zimbra.cs.service.mail.UploadScanner;
 import com.zimbra.cs.servlet.ETagHeaderFilter;
+import com.zimbra.cs.stats.ZimbraPerf;
 import com.zimbra.cs.store.Blob;
+import com.zimbra.cs.store.BlobInputStream;
+import com.zimbra.cs.store.BlobRegion;
 import com.zimbra.cs.store.StoreManager;
 
 public final class NativeFormatter extends Formatter {
@@ -165,8 +174,7 @@ public final class NativeFormatter extends Formatter {
             long size = msg.getSize();
             if (size > 0)
                 context.resp.setContentLength((int)size);
-            InputStream is = msg.getContentStream();
-            ByteUtil.copy(is, true, context.resp.getOutputStream(), false);
+            sendBlob(msg.getContentStream(), context.resp);
         }
     }
 
@@ -627,8 +635,68 @@ public final class NativeFormatter extends Formatter {
         }
         if (size > 0)
             resp.setContentLength((int)size);
-        ByteUtil.copy(pis, true, resp.getOutputStream(), false);
+        // nothing has been read ahead from a safe stream, so the blob can be sent from the file
+        sendBlob(isSafe ? in : pis, resp);
+    }
+
+    /**
+     * Sends the stream to the client and closes it. An uncompressed blob file
+     * is sent with {@link java.nio.channels.FileChannel#transferTo} into Jetty's
+     * output, which writes the channel's buffers as they are, so that its content
+     * does not pass through the heap; anything else is copied through a buffer.
+     */
+    private static void sendBlob(InputStream is, HttpServletResponse resp) throws IOException {
+        OutputStream out = resp.getOutputStream();
+        BlobRegion region = null;
+        try {
+            if (out instanceof HttpOutput) {
+                region = BlobRegion.open(is);
+            }
+            if (region != null) {
+                region.transferTo(new HttpOutputChannel((HttpOutput) out));
+                ZimbraPerf.COUNTER_BLOB_ZERO_COPY_BYTES.increment(region.getCount());
+            } else {
+                long written = ByteUtil.copy(is, false, out, false);
+                if (is instanceof BlobInputStream) {
+                    ZimbraPerf.COUNTER_BLOB_BUFFERED_BYTES.increment(written);
+                }
+            }
+        } finally {
+            Closeables.closeQuietly(region);
+            ByteUtil.closeStream(is);
+        }
     }
+
+    /**
+     * Channel over Jetty's output that writes byte buffers without copying them into an array first.
+     */
+    private static final class HttpOutputChannel implements WritableByteChannel {
+        private final HttpOutput out;
+        private boolean open = true;
+
+        HttpOutputChannel(HttpOutput out) {
+            this.out = out;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            int count = src.remaining();
+            out.write(src);
+            src.position(src.limit());
+            return count;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() {
+            open = false;
+        }
+    }
+
     /**
      * Determines whether or not the contentType passed might contain script or other unsavory tags.
      * @param contentType The content type to check
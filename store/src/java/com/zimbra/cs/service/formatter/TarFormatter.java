@@ -38,13 +38,13 @@ public class TarFormatter extends ArchiveFormatter {
     protected ArchiveInputStream getInputStream(UserServletContext context,
         String charset) throws IOException, ServiceException, UserServletException {
 
-        return new TarArchiveInputStream(context.getRequestInputStream(-1),
+        return new TarArchiveInputStream(pipelineInput(context.getRequestInputStream(-1), "receive"),
             charset);
     }
 
     @Override
     protected ArchiveOutputStream getOutputStream(UserServletContext context, String
         charset) throws IOException {
-        return new TarArchiveOutputStream(context.resp.getOutputStream(), charset);
+        return new TarArchiveOutputStream(pipelineOutput(context.resp.getOutputStream(), "send"), charset);
     }
 }
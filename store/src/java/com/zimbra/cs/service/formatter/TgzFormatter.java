@@ -37,13 +37,13 @@ public class TgzFormatter extends TarFormatter {
     
     protected ArchiveInputStream getInputStream(UserServletContext context,
         String charset) throws IOException, ServiceException, UserServletException {
-        return new TarArchiveInputStream(new GZIPInputStream(
-            context.getRequestInputStream(-1)), charset);
+        return new TarArchiveInputStream(pipelineInput(new GZIPInputStream(
+            context.getRequestInputStream(-1)), "inflate"), charset);
     }
 
     protected ArchiveOutputStream getOutputStream(UserServletContext context, String
         charset) throws IOException {
-        return new TarArchiveOutputStream(new GZIPOutputStream(
-            context.resp.getOutputStream()), charset);
+        return new TarArchiveOutputStream(pipelineOutput(new GZIPOutputStream(
+            context.resp.getOutputStream()), "compress"), charset);
     }
 }
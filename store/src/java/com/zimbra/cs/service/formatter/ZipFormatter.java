@@ -123,13 +123,13 @@ public class ZipFormatter extends ArchiveFormatter {
     
     protected ArchiveInputStream getInputStream(UserServletContext context,
         String charset) throws IOException, ServiceException, UserServletException {
-        return new ZipArchiveInputStream(context.getRequestInputStream(-1),
+        return new ZipArchiveInputStream(pipelineInput(context.getRequestInputStream(-1), "receive"),
             charset);
     }
 
     protected ArchiveOutputStream getOutputStream(UserServletContext context, String
         charset) throws IOException {
-        OutputStream os = context.resp.getOutputStream();
+        OutputStream os = pipelineOutput(context.resp.getOutputStream(), "send");
         String zlv = context.params.get(UserServlet.QP_ZLV);
         int lvl = -1;
         
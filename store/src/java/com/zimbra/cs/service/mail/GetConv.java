@@ -32,6 +32,7 @@ import com.zimbra.cs.mailbox.Message;
 import com.zimbra.cs.mailbox.OperationContext;
 import com.zimbra.cs.service.util.ItemId;
 import com.zimbra.cs.service.util.ItemIdFormatter;
+import com.zimbra.cs.store.StoreManager;
 import com.zimbra.soap.ZimbraSoapContext;
 
 /**
@@ -75,6 +76,9 @@ public class GetConv extends MailDocumentHandler  {
         if (msgs.isEmpty() && zsc.isDelegatedRequest()) {
             throw ServiceException.PERM_DENIED("you do not have sufficient permissions");
         }
+        if (params.getInlineRule() != ExpandResults.NONE) {
+            StoreManager.getInstance().prefetch(msgs);
+        }
         Element response = zsc.createElement(MailConstants.GET_CONV_RESPONSE);
         ToXML.encodeConversation(response, ifmt, octxt, conv, msgs, params);
         return response;
@@ -86,6 +86,7 @@ public class Search extends MailDocumentHandler  {
         }
 
         SearchParams params = SearchParams.parse(req, zsc, account.getPrefMailInitialSearch());
+        params.setExplain(Objects.firstNonNull(req.getExplain(), false));
         if (params.getLocale() == null) {
             params.setLocale(mbox.getAccount().getLocale());
         }
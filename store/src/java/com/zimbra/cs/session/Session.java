@@ -260,6 +260,15 @@ public abstract class Session {
      *                  <tt>null</tt> if none was specified. */
     public abstract void notifyPendingChanges(PendingModifications pns, int changeId, Session source);
 
+    /** Tells the session that notifications of changes up to and including
+     *  <tt>changeId</tt> were lost on their way to it, so that it resyncs
+     *  with its {@link Mailbox}.  Does nothing by default, for sessions that
+     *  don't keep state based on the notifications.
+     * @param changeId  The change ID of the last change that was lost. */
+    public void notifyDroppedChanges(int changeId) {
+        // do nothing by default.
+    }
+
     /** Notify this session that an external event has occured. */
     public void notifyExternalEvent(ExternalEventNotification extra) {
         // do nothing by default.
@@ -965,6 +965,20 @@ public class SoapSession extends Session {
         return (forceRefresh == currentSequence && !fromThisSession);
     }
 
+    /**
+     * The client has to refresh, since it can't be told what it missed.
+     */
+    @Override
+    public void notifyDroppedChanges(int changeId) {
+        synchronized (sentChanges) {
+            changes.clearMailboxChanges();
+            int force = getCurrentNotificationSequence();
+            ZimbraLog.session.debug("notifyDroppedChanges: changing mForceRefresh: %d -> %d", forceRefresh, force);
+            forceRefresh = force;
+        }
+        forcePush();
+    }
+
     public void forcePush() {
         try {
             notifyPushChannel(null, false);
@@ -99,4 +99,18 @@ public class WaitSetSession extends Session {
         }
         if (trace) ZimbraLog.session.trace("WaitSetSession.notifyPendingChanges done");
     }
+
+    /**
+     * The types of the lost changes aren't known, so the waitset is signaled
+     * regardless of its interest.
+     */
+    @Override
+    public void notifyDroppedChanges(int changeId) {
+        if (changeId > mHighestChangeId) {
+            mHighestChangeId = changeId;
+        }
+        if (mSyncToken == null || !mSyncToken.after(mHighestChangeId)) {
+            mWs.signalDataReady(this);
+        }
+    }
 }
@@ -176,6 +176,15 @@ public class ZimbraPerf {
     @Description("LDAP XMPP cache hit rate")
     public static final String RTS_XMPP_CACHE_HIT_RATE = "xmpp_cache_hit_rate";
 
+    @Description("Number of entries in the GAL memory indexes")
+    public static final String RTS_GAL_MEMORY_INDEX_SIZE = "gal_memory_index_size";
+
+    @Description("Approximate memory used by the GAL memory indexes, in bytes")
+    public static final String RTS_GAL_MEMORY_INDEX_BYTES = "gal_memory_index_bytes";
+
+    @Description("Milliseconds since the least recently refreshed GAL memory index was refreshed")
+    public static final String RTS_GAL_MEMORY_INDEX_STALENESS = "gal_memory_index_staleness";
+
     // Accumulators.  To add a new accumulator, create a static instance here and
     // add it to sAccumulators.
     public static final Counter COUNTER_LMTP_RCVD_MSGS = new Counter();
@@ -190,6 +199,15 @@ public class ZimbraPerf {
     public static final Counter COUNTER_MBOX_CACHE = new Counter();           // Mailbox cache hit rate
     public static final Counter COUNTER_MBOX_MSG_CACHE = new Counter();
     public static final Counter COUNTER_MBOX_ITEM_CACHE = new Counter();
+    public static final Counter COUNTER_MBOX_CONV_HASH_CACHE = new Counter();
+    public static final Counter COUNTER_SEARCH_RESULT_CACHE = new Counter();
+    public static final Counter COUNTER_SEARCH_RESULT_CACHE_SAVED_MS = new Counter();
+    public static final Counter COUNTER_MEMCACHED_NEAR_CACHE = new Counter();
+    public static final Counter COUNTER_MEMCACHED_GET = new Counter();
+    public static final StopWatch STOPWATCH_IOCHANNEL_BATCH = new StopWatch();
+    public static final Counter COUNTER_IOCHANNEL_DROPPED = new Counter();
+    public static final Counter COUNTER_SQL_PREPARE = new Counter();
+    public static final Counter COUNTER_SQL_EXECUTE = new Counter();
     public static final StopWatch STOPWATCH_SOAP = new StopWatch();
     public static final StopWatch STOPWATCH_IMAP = new StopWatch();
     public static final StopWatch STOPWATCH_POP = new StopWatch();
@@ -203,6 +221,8 @@ public class ZimbraPerf {
     public static final Counter COUNTER_IDX_BYTES_READ = new Counter();
     public static final Counter COUNTER_BLOB_INPUT_STREAM_READ = new Counter();
     public static final Counter COUNTER_BLOB_INPUT_STREAM_SEEK_RATE = new Counter();
+    public static final Counter COUNTER_BLOB_ZERO_COPY_BYTES = new Counter();
+    public static final Counter COUNTER_BLOB_BUFFERED_BYTES = new Counter();
     public static final StopWatch STOPWATCH_EWS = new StopWatch();
 
     public static final ActivityTracker SOAP_TRACKER = new ActivityTracker("soap.csv");
@@ -239,6 +259,7 @@ public class ZimbraPerf {
             RTS_ZIMLET_CACHE_SIZE, RTS_ZIMLET_CACHE_HIT_RATE,
             RTS_GROUP_CACHE_SIZE, RTS_GROUP_CACHE_HIT_RATE,
             RTS_XMPP_CACHE_SIZE, RTS_XMPP_CACHE_HIT_RATE,
+            RTS_GAL_MEMORY_INDEX_SIZE, RTS_GAL_MEMORY_INDEX_BYTES, RTS_GAL_MEMORY_INDEX_STALENESS,
             }
         );
 
@@ -290,6 +311,36 @@ public class ZimbraPerf {
     @Description("Item cache hit rate")
     private static final String DC_MBOX_ITEM_CACHE = "mbox_item_cache";
 
+    @Description("Hit rate of the threading hashes looked up in the conversation hash cache")
+    private static final String DC_MBOX_CONV_HASH_CACHE = "mbox_conv_hash_cache";
+
+    @Description("Hit rate of the per-mailbox search result cache")
+    private static final String DC_SEARCH_RESULT_CACHE = "search_result_cache";
+
+    @Description("Accumulated time (ms) that searches served from the search result cache took when they were executed")
+    private static final String DC_SEARCH_RESULT_CACHE_SAVED_MS = "search_result_cache_saved_ms";
+
+    @Description("Hit rate of the in-process cache in front of memcached")
+    private static final String DC_MEMCACHED_NEAR_CACHE = "memcached_near_cache";
+
+    @Description("Hit rate of memcached for lookups the in-process cache missed")
+    private static final String DC_MEMCACHED_GET = "memcached_get";
+
+    @Description("Number of SQL statements the database had to prepare")
+    private static final String DC_SQL_PREPARE_COUNT = "sql_prepare_count";
+
+    @Description("Number of SQL statements executed")
+    private static final String DC_SQL_EXECUTE_COUNT = "sql_execute_count";
+
+    @Description("Number of iochannel messages sent in batches")
+    private static final String DC_IOCHANNEL_BATCH_COUNT = "iochannel_batch_count";
+
+    @Description("Average time (ms) iochannel messages waited to be batched before they were sent")
+    private static final String DC_IOCHANNEL_BATCH_MS_AVG = "iochannel_batch_ms_avg";
+
+    @Description("Number of iochannel messages dropped because too many were waiting for a peer")
+    private static final String DC_IOCHANNEL_DROPPED = "iochannel_dropped";
+
     @Description("Number of SOAP requests received")
     private static final String DC_SOAP_COUNT = "soap_count";
 
@@ -314,6 +365,12 @@ public class ZimbraPerf {
     @Description("Percentage of file descriptor cache disk reads that required a seek")
     private static final String DC_BIS_SEEK_RATE = "bis_seek_rate";
 
+    @Description("Accumulated blob bytes sent to HTTP and IMAP clients straight from the file, without heap copies")
+    private static final String DC_BLOB_ZERO_COPY_BYTES = "blob_zero_copy_bytes";
+
+    @Description("Accumulated blob bytes sent to HTTP and IMAP clients through heap buffers")
+    private static final String DC_BLOB_BUFFERED_BYTES = "blob_buffered_bytes";
+
     @Description("Average number of concurrent index writers")
     private static final String DC_IDX_WRT_AVG = "idx_wrt_avg";
 
@@ -359,6 +416,15 @@ public class ZimbraPerf {
                         new DeltaCalculator(COUNTER_MBOX_CACHE).setAverageName(DC_MBOX_CACHE),
                         new DeltaCalculator(COUNTER_MBOX_MSG_CACHE).setAverageName(DC_MBOX_MSG_CACHE),
                         new DeltaCalculator(COUNTER_MBOX_ITEM_CACHE).setAverageName(DC_MBOX_ITEM_CACHE),
+                        new DeltaCalculator(COUNTER_MBOX_CONV_HASH_CACHE).setAverageName(DC_MBOX_CONV_HASH_CACHE),
+                        new DeltaCalculator(COUNTER_SEARCH_RESULT_CACHE).setAverageName(DC_SEARCH_RESULT_CACHE),
+                        new DeltaCalculator(COUNTER_SEARCH_RESULT_CACHE_SAVED_MS).setTotalName(DC_SEARCH_RESULT_CACHE_SAVED_MS),
+                        new DeltaCalculator(COUNTER_MEMCACHED_NEAR_CACHE).setAverageName(DC_MEMCACHED_NEAR_CACHE),
+                        new DeltaCalculator(COUNTER_MEMCACHED_GET).setAverageName(DC_MEMCACHED_GET),
+                        new DeltaCalculator(COUNTER_SQL_PREPARE).setTotalName(DC_SQL_PREPARE_COUNT),
+                        new DeltaCalculator(COUNTER_SQL_EXECUTE).setTotalName(DC_SQL_EXECUTE_COUNT),
+                        new DeltaCalculator(STOPWATCH_IOCHANNEL_BATCH).setCountName(DC_IOCHANNEL_BATCH_COUNT).setAverageName(DC_IOCHANNEL_BATCH_MS_AVG),
+                        new DeltaCalculator(COUNTER_IOCHANNEL_DROPPED).setTotalName(DC_IOCHANNEL_DROPPED),
                         new DeltaCalculator(STOPWATCH_SOAP).setCountName(DC_SOAP_COUNT).setAverageName(DC_SOAP_MS_AVG),
                         new DeltaCalculator(STOPWATCH_IMAP).setCountName(DC_IMAP_COUNT).setAverageName(DC_IMAP_MS_AVG),
                         new DeltaCalculator(STOPWATCH_POP).setCountName(DC_POP_COUNT).setAverageName(DC_POP_MS_AVG),
@@ -372,6 +438,8 @@ public class ZimbraPerf {
                         new DeltaCalculator(COUNTER_IDX_BYTES_READ).setTotalName(DC_IDX_BYTES_READ).setAverageName(DC_IDX_BYTES_READ_AVG),
                         new DeltaCalculator(COUNTER_BLOB_INPUT_STREAM_READ).setTotalName(DC_BIS_READ),
                         new DeltaCalculator(COUNTER_BLOB_INPUT_STREAM_SEEK_RATE).setAverageName(DC_BIS_SEEK_RATE),
+                        new DeltaCalculator(COUNTER_BLOB_ZERO_COPY_BYTES).setTotalName(DC_BLOB_ZERO_COPY_BYTES),
+                        new DeltaCalculator(COUNTER_BLOB_BUFFERED_BYTES).setTotalName(DC_BLOB_BUFFERED_BYTES),
                         realtimeStats
                     }
         );
@@ -415,6 +483,20 @@ public class ZimbraPerf {
         return stats;
     }
 
+    /**
+     * Returns the current values of the realtime stats only, e.g. connection
+     * and session counts.
+     */
+    public static Map<String, Object> getRealtimeStats() {
+        Map<String, Object> stats = new LinkedHashMap<String, Object>();
+        List<String> names = realtimeStats.getNames();
+        List<Object> data = realtimeStats.getData();
+        for (int i = 0; i < names.size(); i++) {
+            stats.put(names.get(i), data.get(i));
+        }
+        return stats;
+    }
+
 
     /**
      * This may only be called BEFORE ZimbraPerf.initialize is called, otherwise the column
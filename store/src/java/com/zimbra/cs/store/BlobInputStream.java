@@ -231,6 +231,20 @@ implements SharedInputStream, InputStreamSource {
         mRoot.mFile = newFile;
     }
 
+    /**
+     * Returns the unread section of this stream as a region of the blob file,
+     * or <tt>null</tt> if the file is compressed and can only be read through
+     * the stream. Reading the region does not advance this stream.
+     */
+    public BlobRegion getRemainingRegion() throws IOException {
+        File file = getRootFile();
+        if (file == null || !file.exists() || file.length() != mRawSize) {
+            // compressed files are inflated by the file descriptor cache
+            return null;
+        }
+        return BlobRegion.open(file, mPos, mEnd - mPos);
+    }
+
     ////////////// InputStream methods //////////////
 
     @Override
@@ -0,0 +1,104 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.store;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+import com.zimbra.common.localconfig.LC;
+
+/**
+ * A section of an uncompressed blob file, opened so that it can be handed to
+ * a socket or an output channel with {@link FileChannel#transferTo} instead
+ * of being copied through the heap. The region owns its channel and must be
+ * closed once it has been sent.
+ */
+public final class BlobRegion implements Closeable {
+
+    private final FileChannel channel;
+    private final long position;
+    private final long count;
+
+    private BlobRegion(FileChannel channel, long position, long count) {
+        this.channel = channel;
+        this.position = position;
+        this.count = count;
+    }
+
+    static BlobRegion open(File file, long position, long count) throws IOException {
+        return new BlobRegion(new FileInputStream(file).getChannel(), position, count);
+    }
+
+    /**
+     * Returns the unread section of the blob behind the stream, or <tt>null</tt>
+     * if the stream is not read from a local uncompressed file or zero-copy
+     * transfers are disabled by {@code zimbra_blob_zero_copy}.
+     */
+    public static BlobRegion open(InputStream in) throws IOException {
+        if (!(in instanceof BlobInputStream) || !LC.zimbra_blob_zero_copy.booleanValue()) {
+            return null;
+        }
+        return ((BlobInputStream) in).getRemainingRegion();
+    }
+
+    public FileChannel getChannel() {
+        return channel;
+    }
+
+    public long getPosition() {
+        return position;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Returns a section of this region. The two regions share a channel, so
+     * only one of them should be closed.
+     */
+    public BlobRegion subRegion(long offset, long length) {
+        if (offset < 0 || length < 0 || offset + length > count) {
+            throw new IllegalArgumentException("section " + offset + "+" + length + " is outside region of " + count);
+        }
+        return new BlobRegion(channel, position + offset, length);
+    }
+
+    /**
+     * Transfers the whole region to the target channel.
+     */
+    public void transferTo(WritableByteChannel target) throws IOException {
+        long done = 0;
+        while (done < count) {
+            long n = channel.transferTo(position + done, count - done, target);
+            if (n <= 0 && position + done >= channel.size()) {
+                throw new IOException("blob file truncated at " + (position + done) + " bytes");
+            }
+            done += n;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
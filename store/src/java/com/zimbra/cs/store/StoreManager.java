@@ -18,6 +18,7 @@ package com.zimbra.cs.store;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Collection;
 
 import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.service.ServiceException;
@@ -387,6 +388,15 @@ public abstract class StoreManager {
      */
     public abstract InputStream getContent(Blob blob) throws IOException;
 
+    /**
+     * Hint that the content of the given items is about to be read, e.g. when
+     * a conversation is expanded.  Stores which keep content remotely may start
+     * fetching it in the background.  The default implementation does nothing.
+     * @param items
+     */
+    public void prefetch(Collection<? extends MailItem> items) {
+    }
+
     /**
      * Deletes a user's entire store.  SHOULD BE CALLED CAREFULLY.  No going back.
      * @param mbox
@@ -0,0 +1,115 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.store.chunk;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+import com.zimbra.common.util.ByteUtil;
+
+/**
+ * Presents the chunks listed in a manifest as one stream, opening each chunk
+ * file in turn as the previous one is used up, the way
+ * {@link com.zimbra.cs.octosync.PatchInputStream} strings together the parts
+ * of a patched document.
+ */
+final class ChunkInputStream extends InputStream {
+
+    private final ChunkedStoreManager store;
+    private final List<ChunkManifest.Chunk> chunks;
+    private int next;
+    private InputStream current;
+    private long remaining;
+    private final long start = System.nanoTime();
+    private long bytesRead;
+    private boolean recorded;
+
+    ChunkInputStream(ChunkedStoreManager store, ChunkManifest manifest) {
+        this.store = store;
+        this.chunks = manifest.getChunks();
+    }
+
+    /**
+     * @return the stream of the chunk being read, or <tt>null</tt> at the end of the blob
+     */
+    private InputStream current() throws IOException {
+        while (current == null || remaining == 0) {
+            if (current != null) {
+                current.close();
+                current = null;
+            }
+            if (next >= chunks.size()) {
+                record();
+                return null;
+            }
+            ChunkManifest.Chunk chunk = chunks.get(next++);
+            current = new FileInputStream(store.getChunkFile(chunk.digest));
+            remaining = chunk.length;
+        }
+        return current;
+    }
+
+    @Override
+    public int read() throws IOException {
+        InputStream is = current();
+        if (is == null) {
+            return -1;
+        }
+        int b = is.read();
+        if (b < 0) {
+            throw new IOException("chunk " + chunks.get(next - 1).digest + " is truncated");
+        }
+        remaining--;
+        bytesRead++;
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        InputStream is = current();
+        if (is == null) {
+            return -1;
+        }
+        int n = is.read(b, off, (int) Math.min(len, remaining));
+        if (n < 0) {
+            throw new IOException("chunk " + chunks.get(next - 1).digest + " is truncated");
+        }
+        remaining -= n;
+        bytesRead += n;
+        return n;
+    }
+
+    @Override
+    public void close() {
+        ByteUtil.closeStream(current);
+        current = null;
+        next = chunks.size();
+        record();
+    }
+
+    private void record() {
+        if (!recorded) {
+            recorded = true;
+            store.recordRead(bytesRead, System.nanoTime() - start);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.store.chunk;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+
+/**
+ * The chunks a blob is made of, in order. Manifests are stored as small
+ * files next to the chunks; each is a version number and a chunk count,
+ * followed by the SHA-256 digest and length of every chunk.
+ */
+final class ChunkManifest {
+
+    private static final int VERSION = 1;
+    private static final int DIGEST_LENGTH = 32;
+
+    static final class Chunk {
+        /** hex encoded SHA-256 digest of the chunk */
+        final String digest;
+        final int length;
+
+        Chunk(String digest, int length) {
+            this.digest = digest;
+            this.length = length;
+        }
+    }
+
+    private final List<Chunk> chunks = new ArrayList<Chunk>();
+    private long size;
+
+    void add(String digest, int length) {
+        chunks.add(new Chunk(digest, length));
+        size += length;
+    }
+
+    List<Chunk> getChunks() {
+        return Collections.unmodifiableList(chunks);
+    }
+
+    long getSize() {
+        return size;
+    }
+
+    void encode(OutputStream os) throws IOException {
+        DataOutputStream out = new DataOutputStream(os);
+        out.writeInt(VERSION);
+        out.writeInt(chunks.size());
+        try {
+            for (Chunk chunk : chunks) {
+                out.write(Hex.decodeHex(chunk.digest.toCharArray()));
+                out.writeInt(chunk.length);
+            }
+        } catch (DecoderException e) {
+            throw new IOException("invalid chunk digest", e);
+        }
+        out.flush();
+    }
+
+    static ChunkManifest decode(InputStream is) throws IOException {
+        DataInputStream in = new DataInputStream(is);
+        int version = in.readInt();
+        if (version != VERSION) {
+            throw new IOException("unsupported chunk manifest version " + version);
+        }
+        int count = in.readInt();
+        ChunkManifest manifest = new ChunkManifest();
+        byte[] digest = new byte[DIGEST_LENGTH];
+        for (int i = 0; i < count; i++) {
+            in.readFully(digest);
+            manifest.add(new String(Hex.encodeHex(digest)), in.readInt());
+        }
+        return manifest;
+    }
+}
@@ -0,0 +1,391 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.store.chunk;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+
+import org.apache.commons.codec.binary.Hex;
+
+import com.google.common.collect.ConcurrentHashMultiset;
+import com.google.common.collect.Multiset;
+import com.google.common.util.concurrent.Striped;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.ByteUtil;
+import com.zimbra.common.util.FileUtil;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.db.DbBlobChunk;
+import com.zimbra.cs.db.DbPool;
+import com.zimbra.cs.db.DbPool.DbConnection;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.store.external.ExternalStoreManager;
+
+/**
+ * Store that splits blobs into content-defined chunks and keeps each distinct
+ * chunk only once. Successive revisions of a Briefcase document, documents
+ * assembled from Octopus patches and other blobs that share most of their
+ * content then share most of their chunks, and only the changed parts of a
+ * new revision take up space.
+ * <p>
+ * Chunks are kept under {@code chunk_store_directory} named by their SHA-256
+ * digest, with their reference counts in the <tt>blob_chunk</tt> table. Each
+ * blob is a manifest listing its chunks, and its locator is the path of the
+ * manifest. Reads reassemble the chunks through a {@link ChunkInputStream}
+ * into the local blob cache that {@link ExternalStoreManager} maintains.
+ * <p>
+ * A blob's references are added, and removed again, in a single transaction.
+ * Until a new blob's references are committed, the chunks it wrote are pinned
+ * in memory, and a chunk file is only deleted when it is neither pinned nor
+ * referenced.
+ */
+public class ChunkedStoreManager extends ExternalStoreManager {
+
+    private File chunkDir;
+    private File manifestDir;
+    /** serializes pinning a chunk and creating its file with deleting the file */
+    private final Striped<Lock> chunkLocks = Striped.lock(256);
+    /** chunks written by blobs whose references are not committed yet */
+    private final Multiset<String> pending = ConcurrentHashMultiset.create();
+
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final AtomicLong bytesStored = new AtomicLong();
+    private final AtomicLong writeNanos = new AtomicLong();
+    private final AtomicLong bytesRead = new AtomicLong();
+    private final AtomicLong readNanos = new AtomicLong();
+
+    @Override
+    public void startup() throws IOException, ServiceException {
+        super.startup();
+        File root = new File(LC.chunk_store_directory.value());
+        chunkDir = new File(root, "chunks");
+        manifestDir = new File(root, "manifests");
+        FileUtil.ensureDirExists(chunkDir);
+        FileUtil.ensureDirExists(manifestDir);
+        ZimbraLog.store.info("Using ChunkedStoreManager in %s", root);
+    }
+
+    @Override
+    public void shutdown() {
+        super.shutdown();
+        ZimbraLog.store.info("Chunk store wrote %d bytes, stored %d (dedup ratio %.2f, %.1f MB/s), read %d bytes (%.1f MB/s)",
+                bytesWritten.get(), bytesStored.get(), getDedupRatio(), getWriteThroughput(), bytesRead.get(),
+                getReadThroughput());
+    }
+
+    File getChunkFile(String digest) {
+        return new File(new File(chunkDir, digest.substring(0, 2)), digest);
+    }
+
+    private File getManifestFile(String locator) {
+        return new File(manifestDir, locator);
+    }
+
+    @Override
+    public String writeStreamToStore(InputStream in, long actualSize, Mailbox mbox) throws IOException, ServiceException {
+        long start = System.nanoTime();
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw ServiceException.FAILURE("SHA-256 digest not found", e);
+        }
+        ContentChunker chunker = new ContentChunker(in, LC.chunk_store_min_chunk_size.intValue(),
+                LC.chunk_store_avg_chunk_size.intValue(), LC.chunk_store_max_chunk_size.intValue());
+        ChunkManifest manifest = new ChunkManifest();
+        Set<String> pinned = new HashSet<String>();
+        File file = null;
+        long stored = 0;
+        boolean success = false;
+        DbConnection conn = DbPool.getConnection();
+        try {
+            for (int len = chunker.next(); len >= 0; len = chunker.next()) {
+                md.update(chunker.getBuffer(), chunker.getOffset(), len);
+                String digest = new String(Hex.encodeHex(md.digest()));
+                stored += writeChunk(digest, chunker.getBuffer(), chunker.getOffset(), len, pinned);
+                manifest.add(digest, len);
+            }
+
+            String locator = (mbox == null ? 0 : mbox.getId()) + "/" + UUID.randomUUID();
+            file = getManifestFile(locator);
+            FileUtil.ensureDirExists(file.getParentFile());
+            FileOutputStream fos = new FileOutputStream(file);
+            try {
+                manifest.encode(fos);
+            } finally {
+                fos.close();
+            }
+
+            // all of the blob's references are added in one transaction, in digest order so that
+            // concurrent writers lock the rows in the same order
+            for (Map.Entry<String, int[]> entry : countReferences(manifest.getChunks()).entrySet()) {
+                int[] sizeAndCount = entry.getValue();
+                DbBlobChunk.addReference(conn, entry.getKey(), sizeAndCount[0], sizeAndCount[1]);
+            }
+            conn.commit();
+            success = true;
+
+            long elapsed = System.nanoTime() - start;
+            bytesWritten.addAndGet(manifest.getSize());
+            bytesStored.addAndGet(stored);
+            writeNanos.addAndGet(elapsed);
+            ZimbraLog.store.debug("stored %s: %d bytes in %d chunks, %d bytes new, %dms", locator, manifest.getSize(),
+                    manifest.getChunks().size(), stored, TimeUnit.NANOSECONDS.toMillis(elapsed));
+            return locator;
+        } finally {
+            if (!success) {
+                DbPool.quietRollback(conn);
+                if (file != null) {
+                    file.delete();
+                }
+            }
+            for (String digest : pinned) {
+                unpin(conn, digest, !success);
+            }
+            DbPool.quietClose(conn);
+        }
+    }
+
+    /**
+     * Writes the chunk's file if there is none. The chunk is pinned until
+     * the blob's references to it are committed, so that a concurrent
+     * release of its last reference doesn't delete the file in the meantime.
+     *
+     * @param pinned chunks the blob has pinned so far
+     * @return the number of bytes written to disk
+     */
+    private int writeChunk(String digest, byte[] buf, int offset, int len, Set<String> pinned) throws IOException {
+        Lock lock = chunkLocks.get(digest);
+        lock.lock();
+        try {
+            if (pinned.add(digest)) {
+                pending.add(digest);
+            }
+            File file = getChunkFile(digest);
+            if (file.exists()) {
+                return 0;
+            }
+            FileUtil.ensureDirExists(file.getParentFile());
+            File tmp = new File(file.getParentFile(), digest + ".tmp");
+            FileOutputStream fos = new FileOutputStream(tmp);
+            try {
+                fos.write(buf, offset, len);
+            } finally {
+                fos.close();
+            }
+            if (!tmp.renameTo(file)) {
+                tmp.delete();
+                throw new IOException("unable to rename " + tmp + " to " + file);
+            }
+            return len;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Unpins a chunk pinned by {@link #writeChunk}, deleting its file if the
+     * blob failed and nothing else references it.
+     */
+    private void unpin(DbConnection conn, String digest, boolean deleteUnused) {
+        Lock lock = chunkLocks.get(digest);
+        lock.lock();
+        try {
+            pending.remove(digest);
+            if (deleteUnused) {
+                deleteIfUnused(conn, digest);
+            }
+        } catch (ServiceException e) {
+            ZimbraLog.store.warn("unable to check references to chunk %s", digest, e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Deletes the chunk's file unless it is referenced or pinned. Must be
+     * called with the chunk's lock held.
+     */
+    private void deleteIfUnused(DbConnection conn, String digest) throws ServiceException {
+        boolean referenced;
+        try {
+            referenced = pending.contains(digest) || DbBlobChunk.isReferenced(conn, digest);
+        } finally {
+            // end the transaction, so that the next check sees references committed since this one
+            DbPool.quietRollback(conn);
+        }
+        if (!referenced) {
+            File file = getChunkFile(digest);
+            if (!file.delete() && file.exists()) {
+                ZimbraLog.store.warn("unable to delete unreferenced chunk %s", file);
+            }
+        }
+    }
+
+    /**
+     * Returns the size and the number of references of each chunk, in digest order.
+     */
+    private static SortedMap<String, int[]> countReferences(List<ChunkManifest.Chunk> chunks) {
+        SortedMap<String, int[]> counts = new TreeMap<String, int[]>();
+        for (ChunkManifest.Chunk chunk : chunks) {
+            int[] sizeAndCount = counts.get(chunk.digest);
+            if (sizeAndCount == null) {
+                counts.put(chunk.digest, new int[] { chunk.length, 1 });
+            } else {
+                sizeAndCount[1]++;
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Removes the references to the chunks in one transaction, then deletes
+     * the files of chunks that are no longer referenced.
+     */
+    private void releaseChunks(DbConnection conn, List<ChunkManifest.Chunk> chunks) throws ServiceException {
+        List<String> unused = new ArrayList<String>();
+        boolean success = false;
+        try {
+            for (Map.Entry<String, int[]> entry : countReferences(chunks).entrySet()) {
+                if (DbBlobChunk.removeReference(conn, entry.getKey(), entry.getValue()[1])) {
+                    unused.add(entry.getKey());
+                }
+            }
+            conn.commit();
+            success = true;
+        } finally {
+            if (!success) {
+                DbPool.quietRollback(conn);
+            }
+        }
+        for (String digest : unused) {
+            Lock lock = chunkLocks.get(digest);
+            lock.lock();
+            try {
+                deleteIfUnused(conn, digest);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private ChunkManifest readManifest(String locator) throws IOException {
+        InputStream is = new FileInputStream(getManifestFile(locator));
+        try {
+            return ChunkManifest.decode(is);
+        } finally {
+            ByteUtil.closeStream(is);
+        }
+    }
+
+    @Override
+    public InputStream readStreamFromStore(String locator, Mailbox mbox) throws IOException {
+        return new ChunkInputStream(this, readManifest(locator));
+    }
+
+    void recordRead(long bytes, long nanos) {
+        bytesRead.addAndGet(bytes);
+        readNanos.addAndGet(nanos);
+    }
+
+    @Override
+    public boolean deleteFromStore(String locator, Mailbox mbox) throws IOException {
+        File file = getManifestFile(locator);
+        if (!file.exists()) {
+            return false;
+        }
+        ChunkManifest manifest = readManifest(locator);
+        // drop the manifest first: if the chunks cannot all be released, they leak rather than
+        // being released twice by a later attempt
+        if (!file.delete()) {
+            return false;
+        }
+        DbConnection conn = null;
+        try {
+            conn = DbPool.getConnection();
+            releaseChunks(conn, manifest.getChunks());
+            return true;
+        } catch (ServiceException e) {
+            throw new IOException("unable to release chunks of " + locator, e);
+        } finally {
+            DbPool.quietClose(conn);
+        }
+    }
+
+    @Override
+    public List<String> getAllBlobPaths(Mailbox mbox) throws IOException {
+        List<String> locators = new ArrayList<String>();
+        String[] names = new File(manifestDir, Integer.toString(mbox.getId())).list();
+        if (names != null) {
+            for (String name : names) {
+                locators.add(mbox.getId() + "/" + name);
+            }
+        }
+        return locators;
+    }
+
+    @Override
+    public boolean supports(StoreFeature feature) {
+        if (feature == StoreFeature.CENTRALIZED) {
+            return false;
+        } else {
+            return super.supports(feature);
+        }
+    }
+
+    /**
+     * @return bytes written to the store for each byte that had to be stored on disk
+     */
+    public double getDedupRatio() {
+        long stored = bytesStored.get();
+        return stored == 0 ? 0 : (double) bytesWritten.get() / stored;
+    }
+
+    /**
+     * @return megabytes per second written to the store
+     */
+    public double getWriteThroughput() {
+        return throughput(bytesWritten.get(), writeNanos.get());
+    }
+
+    /**
+     * @return megabytes per second read back from chunks
+     */
+    public double getReadThroughput() {
+        return throughput(bytesRead.get(), readNanos.get());
+    }
+
+    private static double throughput(long bytes, long nanos) {
+        return nanos == 0 ? 0 : bytes / (1024.0 * 1024.0) / (nanos / 1e9);
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.store.chunk;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+/**
+ * Splits a stream into content-defined chunks with a rolling gear hash. A
+ * boundary is placed where the hash of the preceding bytes matches a mask,
+ * so an insertion or deletion in one part of a file only changes the chunks
+ * around it, and the rest of the file splits into the same chunks as before.
+ * Chunks are never shorter than the minimum size, except at the end of the
+ * stream, and never longer than the maximum.
+ */
+public final class ContentChunker {
+
+    /** fixed seed, so that every server and every restart cuts the same boundaries */
+    private static final long[] GEAR = new long[256];
+    static {
+        Random random = new Random(0x5A1B2C3D4E5F6071L);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    private final InputStream in;
+    private final int minSize;
+    private final int maxSize;
+    private final long mask;
+    private final byte[] buf;
+    private int pos;
+    private int limit;
+    private boolean eof;
+    private int chunkOffset;
+    private int chunkLength;
+
+    /**
+     * @param avgSize the expected size of chunks past the minimum, rounded down to a power of two
+     */
+    public ContentChunker(InputStream in, int minSize, int avgSize, int maxSize) {
+        if (minSize <= 0 || avgSize <= 0 || maxSize < minSize) {
+            throw new IllegalArgumentException("invalid chunk sizes " + minSize + "/" + avgSize + "/" + maxSize);
+        }
+        this.in = in;
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        int bits = 31 - Integer.numberOfLeadingZeros(avgSize);
+        // the high bits of a gear hash depend on the most bytes, so match on those
+        this.mask = bits == 0 ? 0 : ((1L << bits) - 1) << (64 - bits);
+        this.buf = new byte[maxSize * 2];
+    }
+
+    /**
+     * Reads the next chunk, which is then available from {@link #getBuffer()}
+     * at {@link #getOffset()} until the next call.
+     *
+     * @return length of the chunk, or -1 at the end of the stream
+     */
+    public int next() throws IOException {
+        fill();
+        int available = limit - pos;
+        if (available == 0) {
+            return -1;
+        }
+        int length = Math.min(available, maxSize);
+        if (length > minSize) {
+            long hash = 0;
+            for (int i = minSize; i < length; i++) {
+                hash = (hash << 1) + GEAR[buf[pos + i] & 0xFF];
+                if ((hash & mask) == 0) {
+                    length = i + 1;
+                    break;
+                }
+            }
+        }
+        chunkOffset = pos;
+        chunkLength = length;
+        pos += length;
+        return length;
+    }
+
+    public byte[] getBuffer() {
+        return buf;
+    }
+
+    public int getOffset() {
+        return chunkOffset;
+    }
+
+    public int getLength() {
+        return chunkLength;
+    }
+
+    /** Makes sure that a whole chunk is buffered, unless the stream ends first. */
+    private void fill() throws IOException {
+        if (limit - pos >= maxSize || eof) {
+            return;
+        }
+        if (pos > 0) {
+            System.arraycopy(buf, pos, buf, 0, limit - pos);
+            limit -= pos;
+            pos = 0;
+        }
+        while (limit < buf.length) {
+            int n = in.read(buf, limit, buf.length - limit);
+            if (n < 0) {
+                eof = true;
+                break;
+            }
+            limit += n;
+        }
+    }
+}
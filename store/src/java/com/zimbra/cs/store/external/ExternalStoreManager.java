@@ -17,22 +17,44 @@
 
 package com.zimbra.cs.store.external;
 
+import static com.zimbra.common.util.TaskUtil.newDaemonThreadFactory;
+
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.security.DigestInputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
+import java.util.TimerTask;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.mail.util.SharedByteArrayInputStream;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.Weigher;
 import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.ByteUtil;
 import com.zimbra.common.util.FileCache;
 import com.zimbra.common.util.FileUtil;
 import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.mailbox.MailItem;
 import com.zimbra.cs.mailbox.Mailbox;
 import com.zimbra.cs.mailbox.MessageCache;
 import com.zimbra.cs.store.Blob;
@@ -43,15 +65,29 @@ import com.zimbra.cs.store.IncomingDirectory;
 import com.zimbra.cs.store.MailboxBlob;
 import com.zimbra.cs.store.StagedBlob;
 import com.zimbra.cs.store.StoreManager;
+import com.zimbra.cs.util.Zimbra;
 
 /**
  * Abstract base class for external store integration.
  * Uses local incoming directory during blob creation and maintains local file cache of retrieved blobs to minimize remote round-trips
+ * <p>
+ * Retrieved blobs are cached in two tiers: small blobs are also kept in a byte-weighted in-memory cache in front of
+ * the local file cache. Concurrent reads of the same uncached blob share a single remote fetch, and blobs can be
+ * fetched ahead of time on a small thread pool via {@link #prefetch(Collection)}.
  */
 public abstract class ExternalStoreManager extends StoreManager implements ExternalBlobIO {
 
     private final IncomingDirectory incoming = new IncomingDirectory(LC.zimbra_tmp_directory.value() + File.separator + "incoming");
     protected FileCache<String> localCache;
+    private Cache<String, byte[]> memoryCache;
+    private long memoryCacheMaxBlobSize;
+    private final ConcurrentMap<String, FutureTask<FileCache.Item>> pendingFetches =
+        new ConcurrentHashMap<String, FutureTask<FileCache.Item>>();
+    private ThreadPoolExecutor prefetcher;
+    private TimerTask statsReporter;
+    private final AtomicLong localHits = new AtomicLong();
+    private final AtomicLong localMisses = new AtomicLong();
+    private final AtomicLong prefetches = new AtomicLong();
 
     @Override
     public void startup() throws IOException, ServiceException {
@@ -80,6 +116,34 @@ public abstract class ExternalStoreManager extends StoreManager implements Exter
             .removeCallback(new MessageCacheChecker()).build();
         BlobInputStream.setFileDescriptorCache(new FileDescriptorCache(ufCache).loadSettings());
 
+        long memoryCacheMaxBytes = LC.external_store_memory_cache_max_bytes.longValue();
+        memoryCacheMaxBlobSize = Math.min(LC.external_store_memory_cache_max_blob_size.longValue(), Integer.MAX_VALUE);
+        if (memoryCacheMaxBytes > 0 && memoryCacheMaxBlobSize > 0) {
+            memoryCache = CacheBuilder.newBuilder()
+                .maximumWeight(memoryCacheMaxBytes)
+                .weigher(new Weigher<String, byte[]>() {
+                    @Override
+                    public int weigh(String locator, byte[] data) {
+                        return data.length;
+                    }
+                })
+                .recordStats()
+                .build();
+        }
+
+        int prefetchThreads = LC.external_store_prefetch_threads.intValue();
+        if (prefetchThreads > 0) {
+            prefetcher = new ThreadPoolExecutor(prefetchThreads, prefetchThreads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(Math.max(LC.external_store_prefetch_queue_size.intValue(), 1)),
+                newDaemonThreadFactory("ExternalStorePrefetch"));
+            prefetcher.allowCoreThreadTimeOut(true);
+        }
+
+        long statsInterval = LC.external_store_cache_stats_interval.longValue() * 1000;
+        if (statsInterval > 0) {
+            statsReporter = new CacheStatsReporter();
+            Zimbra.sTimer.schedule(statsReporter, statsInterval, statsInterval);
+        }
     }
 
     private class MessageCacheChecker implements FileCache.RemoveCallback {
@@ -92,18 +156,107 @@ public abstract class ExternalStoreManager extends StoreManager implements Exter
         }
     };
 
+    /**
+     * Hit and miss counts of one cache tier.
+     */
+    public static final class TierStats {
+        private final long hits;
+        private final long misses;
+
+        TierStats(long hits, long misses) {
+            this.hits = hits;
+            this.misses = misses;
+        }
+
+        public long getHitCount() {
+            return hits;
+        }
+
+        public long getMissCount() {
+            return misses;
+        }
+
+        /**
+         * @return the ratio of hits to lookups, or 1.0 if there were no lookups
+         */
+        public double getHitRatio() {
+            long total = hits + misses;
+            return total == 0 ? 1.0 : (double) hits / total;
+        }
+
+        TierStats minus(TierStats other) {
+            return new TierStats(hits - other.hits, misses - other.misses);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("hits=%d misses=%d hitRatio=%.2f", hits, misses, getHitRatio());
+        }
+    }
+
+    /**
+     * @return hit and miss counts of the in-memory tier, or <tt>null</tt> if it is disabled
+     */
+    public TierStats getMemoryCacheStats() {
+        if (memoryCache == null) {
+            return null;
+        }
+        CacheStats stats = memoryCache.stats();
+        return new TierStats(stats.hitCount(), stats.missCount());
+    }
+
+    /**
+     * @return hit and miss counts of the local file cache; a miss is a remote fetch
+     */
+    public TierStats getLocalCacheStats() {
+        return new TierStats(localHits.get(), localMisses.get());
+    }
+
+    private class CacheStatsReporter extends TimerTask {
+        private TierStats lastMemory = new TierStats(0, 0);
+        private TierStats lastLocal = new TierStats(0, 0);
+        private long lastPrefetches = 0;
+
+        CacheStatsReporter() { }
+
+        @Override
+        public void run() {
+            TierStats local = getLocalCacheStats();
+            TierStats memory = getMemoryCacheStats();
+            long prefetched = prefetches.get();
+            TierStats localDelta = local.minus(lastLocal);
+            TierStats memoryDelta = memory == null ? null : memory.minus(lastMemory);
+            if (localDelta.getHitCount() + localDelta.getMissCount() > 0 ||
+                    (memoryDelta != null && memoryDelta.getHitCount() + memoryDelta.getMissCount() > 0)) {
+                ZimbraLog.store.info("External store cache memory: %s; local: %s; prefetched=%d",
+                    memoryDelta == null ? "disabled" : memoryDelta, localDelta, prefetched - lastPrefetches);
+            }
+            lastLocal = local;
+            if (memory != null) {
+                lastMemory = memory;
+            }
+            lastPrefetches = prefetched;
+        }
+    }
+
     @Override
     public MailboxBlob copy(MailboxBlob src, Mailbox destMbox, int destItemId, int destRevision)
     throws IOException, ServiceException {
         //default implementation does not handle de-duping
         //stores which de-dupe need to override this method appropriately
-        InputStream is = getContent(src);
-        try {
-            StagedBlob staged = stage(is, src.getSize(), destMbox);
+        byte[] data = memoryCache == null ? null : memoryCache.getIfPresent(src.getLocator());
+        if (data != null) {
+            StagedBlob staged = stage(new SharedByteArrayInputStream(data), data.length, destMbox);
+            if (staged != null && staged.getLocator() != null) {
+                memoryCache.put(staged.getLocator(), data);
+            }
             return link(staged, destMbox, destItemId, destRevision);
-        } finally {
-            ByteUtil.closeStream(is);
         }
+        // stage from the local copy of the source; this also caches the copy under its new locator,
+        // so that the first read of the copy does not download it again
+        Blob blob = getLocalBlob(src.getMailbox(), src.getLocator());
+        StagedBlob staged = stage(blob, destMbox);
+        return link(staged, destMbox, destItemId, destRevision);
     }
 
     @Override
@@ -127,6 +280,9 @@ public abstract class ExternalStoreManager extends StoreManager implements Exter
             return true;
         }
         localCache.remove(mblob.getLocator());
+        if (memoryCache != null) {
+            memoryCache.invalidate(mblob.getLocator());
+        }
         return deleteFromStore(mblob.getLocator(), mblob.getMailbox());
     }
 
@@ -168,7 +324,19 @@ public abstract class ExternalStoreManager extends StoreManager implements Exter
         if (mblob == null) {
             return null;
         }
-        Blob blob = getLocalBlob(mblob.getMailbox(), mblob.getLocator(), true);
+        String locator = mblob.getLocator();
+        if (memoryCache != null) {
+            byte[] data = memoryCache.getIfPresent(locator);
+            if (data != null) {
+                return new SharedByteArrayInputStream(data);
+            }
+        }
+        Blob blob = getLocalBlob(mblob.getMailbox(), locator, true);
+        if (memoryCache != null && blob.getRawSize() <= memoryCacheMaxBlobSize) {
+            byte[] data = ByteUtil.getContent(blob.getInputStream(), (int) blob.getRawSize(), true);
+            memoryCache.put(locator, data);
+            return new SharedByteArrayInputStream(data);
+        }
         return blob.getInputStream();
     }
 
@@ -182,22 +350,96 @@ public abstract class ExternalStoreManager extends StoreManager implements Exter
         if (fromCache) {
             cached = localCache.get(locator);
             if (cached != null) {
-                ExternalBlob blob = new ExternalBlob(cached);
-                blob.setLocator(locator);
-                blob.setMbox(mbox);
-                return blob;
+                localHits.incrementAndGet();
+            } else {
+                localMisses.incrementAndGet();
             }
         }
+        if (cached == null) {
+            cached = fetch(mbox, locator);
+        }
+        ExternalBlob blob = new ExternalBlob(cached);
+        blob.setLocator(locator);
+        blob.setMbox(mbox);
+        return blob;
+    }
 
-        InputStream is = readStreamFromStore(locator, mbox);
-        if (is == null) {
-            throw new IOException("Store " + this.getClass().getName() +" returned null for locator " + locator);
+    /**
+     * Download a blob from the remote store into the local cache. If the same blob is already being downloaded,
+     * wait for that download instead of starting another one.
+     */
+    private FileCache.Item fetch(final Mailbox mbox, final String locator) throws IOException {
+        FutureTask<FileCache.Item> task = new FutureTask<FileCache.Item>(new Callable<FileCache.Item>() {
+            @Override
+            public FileCache.Item call() throws IOException {
+                InputStream is = readStreamFromStore(locator, mbox);
+                if (is == null) {
+                    throw new IOException("Store " + ExternalStoreManager.this.getClass().getName() +
+                        " returned null for locator " + locator);
+                }
+                return localCache.put(locator, is);
+            }
+        });
+        FutureTask<FileCache.Item> pending = pendingFetches.putIfAbsent(locator, task);
+        if (pending == null) {
+            try {
+                task.run();
+            } finally {
+                pendingFetches.remove(locator, task);
+            }
+            pending = task;
         } else {
-            cached = localCache.put(locator, is);
-            ExternalBlob blob = new ExternalBlob(cached);
-            blob.setLocator(locator);
-            blob.setMbox(mbox);
-            return blob;
+            ZimbraLog.store.debug("waiting for pending fetch of locator %s", locator);
+        }
+        try {
+            return pending.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while fetching locator " + locator);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("unable to fetch locator " + locator, e.getCause());
+        }
+    }
+
+    /**
+     * Queue background fetches of the items' blobs which are not cached locally. Read-ahead is best effort: once
+     * the prefetch queue is full, the remaining items are skipped and fetched when they are read.
+     */
+    @Override
+    public void prefetch(Collection<? extends MailItem> items) {
+        if (prefetcher == null || items == null) {
+            return;
+        }
+        for (MailItem item : items) {
+            final String locator = item.getLocator();
+            if (locator == null || item.getDigest() == null || localCache.contains(locator) ||
+                    pendingFetches.containsKey(locator) ||
+                    (memoryCache != null && memoryCache.asMap().containsKey(locator))) {
+                continue;
+            }
+            final Mailbox mbox = item.getMailbox();
+            try {
+                prefetcher.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (localCache.contains(locator)) {
+                            return;
+                        }
+                        try {
+                            fetch(mbox, locator);
+                            prefetches.incrementAndGet();
+                        } catch (IOException e) {
+                            ZimbraLog.store.debug("unable to prefetch locator %s", locator, e);
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                ZimbraLog.store.debug("prefetch queue is full; skipping read-ahead of remaining items");
+                break;
+            }
         }
     }
 
@@ -232,6 +474,14 @@ public abstract class ExternalStoreManager extends StoreManager implements Exter
     @Override
     public void shutdown() {
         IncomingDirectory.stopSweeper();
+        if (prefetcher != null) {
+            prefetcher.shutdownNow();
+            prefetcher = null;
+        }
+        if (statsReporter != null) {
+            statsReporter.cancel();
+            statsReporter = null;
+        }
     }
 
     @Override
@@ -325,5 +575,20 @@ public abstract class ExternalStoreManager extends StoreManager implements Exter
     @VisibleForTesting
     public void clearCache() {
         localCache.removeAll();
+        if (memoryCache != null) {
+            memoryCache.invalidateAll();
+        }
+    }
+
+    /**
+     * Wait for queued prefetches to complete.
+     */
+    @VisibleForTesting
+    void awaitPrefetches(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (prefetcher != null && prefetcher.getCompletedTaskCount() < prefetcher.getTaskCount() &&
+                System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
     }
 }
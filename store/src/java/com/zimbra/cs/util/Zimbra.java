@@ -56,6 +56,7 @@ import com.zimbra.cs.mailbox.MailboxManager;
 import com.zimbra.cs.mailbox.PurgeThread;
 import com.zimbra.cs.mailbox.ScheduledTaskManager;
 import com.zimbra.cs.mailbox.acl.AclPushTask;
+import com.zimbra.cs.mime.TnefFileCache;
 import com.zimbra.cs.memcached.MemcachedConnector;
 import com.zimbra.cs.redolog.RedoLogProvider;
 import com.zimbra.cs.server.ServerManager;
@@ -65,6 +66,7 @@ import com.zimbra.cs.session.WaitSetMgr;
 import com.zimbra.cs.stats.ZimbraPerf;
 import com.zimbra.cs.store.StoreManager;
 import com.zimbra.cs.zookeeper.CuratorManager;
+import com.zimbra.cs.zookeeper.LoadReporter;
 import com.zimbra.cs.zookeeper.Service;
 import com.zimbra.znative.Util;
 
@@ -272,6 +274,14 @@ public final class Zimbra {
             throw ServiceException.FAILURE("Unable to initialize StoreManager.", e);
         }
 
+        if (sIsMailboxd) {
+            try {
+                TnefFileCache.startup();
+            } catch (IOException e) {
+                ZimbraLog.misc.warn("Unable to initialize TNEF cache.", e);
+            }
+        }
+
         MailboxManager.getInstance();
 
         app.startup();
@@ -392,6 +402,7 @@ public final class Zimbra {
             } catch (Exception e) {
                 throw ServiceException.FAILURE("Unable to start Distributed Lock service.", e);
             }
+            LoadReporter.startup(CuratorManager.getInstance());
         }
         sInited = true;
     }
@@ -431,6 +442,7 @@ public final class Zimbra {
 
             SessionCache.shutdown();
 
+            LoadReporter.shutdown();
             CuratorManager curatorManager = CuratorManager.getInstance();
             if (curatorManager != null) {
                 curatorManager.stop();
@@ -458,6 +470,7 @@ public final class Zimbra {
 
         if (sIsMailboxd) {
             StoreManager.getInstance().shutdown();
+            TnefFileCache.shutdown();
         }
 
         ZimbraHttpConnectionManager.shutdownReaperThread();
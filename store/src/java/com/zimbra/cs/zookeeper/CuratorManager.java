@@ -17,15 +17,19 @@
 
 package com.zimbra.cs.zookeeper;
 
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.TreeSet;
 
 import org.apache.curator.RetryPolicy;
 import org.apache.curator.framework.CuratorFramework;
 import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.framework.recipes.leader.LeaderLatch;
 import org.apache.curator.framework.recipes.locks.InterProcessSemaphoreMutex;
 import org.apache.curator.retry.ExponentialBackoffRetry;
 import org.apache.curator.x.discovery.ServiceCache;
@@ -34,11 +38,14 @@ import org.apache.curator.x.discovery.ServiceDiscovery;
 import org.apache.curator.x.discovery.ServiceDiscoveryBuilder;
 import org.apache.curator.x.discovery.ServiceInstance;
 import org.apache.curator.x.discovery.details.JsonInstanceSerializer;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.io.Closeables;
 import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.account.Provisioning;
-import com.zimbra.cs.account.Server;
 
 public class CuratorManager {
 
@@ -47,19 +54,27 @@ public class CuratorManager {
     private final ServiceDiscovery<Service> serviceDiscovery;
     private final ServiceCache<Service> serviceCache;
     private final ServiceInstance<Service> thisInstance;
+    private final String serverId;
     private static boolean initialized = false;
 
     private static final String LOCKS = "/locks/";
     private static final String DATA = "/data/";
     private static final String SERVICE = "/service";
+    private static final String LOAD = "/load";
+    private static final String LEADER = "/leader/";
 
     private CuratorManager(String zkAddress) throws Exception {
+        this(zkAddress, Provisioning.getInstance().getLocalServer().getId());
+    }
+
+    @VisibleForTesting
+    CuratorManager(String zkAddress, String serverId) throws Exception {
         RetryPolicy retryPolicy = new ExponentialBackoffRetry(1000, 3);
         client = CuratorFrameworkFactory.newClient(zkAddress, retryPolicy);
-        Server server = Provisioning.getInstance().getLocalServer();
+        this.serverId = serverId;
         thisInstance = ServiceInstance.<Service> builder()
                 .name(Provisioning.SERVICE_MAILBOX)
-                .payload(new Service(server.getId()))
+                .payload(new Service(serverId))
                 .build();
 
         JsonInstanceSerializer<Service> serializer = new JsonInstanceSerializer<Service>(
@@ -136,6 +151,55 @@ public class CuratorManager {
         }
     }
 
+    /**
+     * Publishes the load of this server. The node goes away with the ZooKeeper session, so servers that are down
+     * drop out of {@link #getServerLoads()}.
+     */
+    public void publishLoad(ServerLoad load) throws Exception {
+        String path = LOAD + "/" + serverId;
+        byte[] data = load.encode();
+        try {
+            client.setData().forPath(path, data);
+        } catch (KeeperException.NoNodeException e) {
+            // first report, or the session expired and took the node with it
+            client.create().creatingParentsIfNeeded().withMode(CreateMode.EPHEMERAL).forPath(path, data);
+        }
+    }
+
+    /**
+     * Returns the last load published by each live server.
+     */
+    public List<ServerLoad> getServerLoads() throws Exception {
+        List<String> children;
+        try {
+            children = client.getChildren().forPath(LOAD);
+        } catch (KeeperException.NoNodeException e) {
+            return new ArrayList<ServerLoad>(0);
+        }
+        List<ServerLoad> loads = new ArrayList<ServerLoad>(children.size());
+        for (String child : children) {
+            try {
+                loads.add(ServerLoad.decode(client.getData().forPath(LOAD + "/" + child)));
+            } catch (KeeperException.NoNodeException e) {
+                // went away since the list was read
+            } catch (IOException e) {
+                ZimbraLog.misc.warn("ignoring unreadable load of server %s", child, e);
+            }
+        }
+        return loads;
+    }
+
+    /**
+     * Returns a leader latch shared by all the servers under the given name. The caller starts and closes it.
+     */
+    public LeaderLatch createLeaderLatch(String name) {
+        return new LeaderLatch(client, LEADER + name, serverId);
+    }
+
+    public String getServerId() {
+        return serverId;
+    }
+
     public Set<String> getActiveServers() throws Exception {
         Set<String> activeServers = new HashSet<String>();
         Collection<ServiceInstance<Service>> instances = serviceCache.getInstances();
@@ -0,0 +1,197 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.cs.zookeeper;
+
+import static com.zimbra.common.util.TaskUtil.newDaemonThreadFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.curator.framework.recipes.leader.LeaderLatch;
+
+import com.google.common.io.Closeables;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxIndex;
+import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.stats.ZimbraPerf;
+import com.zimbra.cs.zookeeper.PlacementAdvisor.Move;
+import com.zimbra.cs.zookeeper.ServerLoad.MailboxLoad;
+
+/**
+ * Publishes the load of this server to ZooKeeper at a fixed interval. The server that holds the placement leader
+ * latch also runs the {@link PlacementAdvisor} over the loads of all the servers, logs the suggested moves and
+ * stores them under the {@code placement} data key for the admin tools.
+ */
+public final class LoadReporter {
+
+    private static final String PLACEMENT_KEY = "placement";
+
+    private static LoadReporter instance;
+
+    private final CuratorManager curator;
+    private final long interval;
+    private final int hotMailboxes;
+    private final PlacementAdvisor advisor;
+    private final LeaderLatch latch;
+    private ScheduledExecutorService executor;
+    private long lastSample = System.currentTimeMillis();
+    private long lastLmtp = ZimbraPerf.COUNTER_LMTP_RCVD_MSGS.getCount();
+    private Map<Integer, Long> lastTransactions = new HashMap<Integer, Long>();
+
+    private LoadReporter(CuratorManager curator, long interval, int hotMailboxes, PlacementAdvisor advisor) {
+        this.curator = curator;
+        this.interval = interval;
+        this.hotMailboxes = hotMailboxes;
+        this.advisor = advisor;
+        this.latch = curator.createLeaderLatch(PLACEMENT_KEY);
+    }
+
+    public static synchronized void startup(CuratorManager curator) throws ServiceException {
+        long interval = LC.zookeeper_load_report_interval_ms.longValue();
+        if (instance != null || interval <= 0) {
+            return;
+        }
+        LoadReporter reporter = new LoadReporter(curator, interval, LC.zookeeper_load_hot_mailboxes.intValue(),
+                new PlacementAdvisor(LC.zookeeper_placement_imbalance_percent.intValue(),
+                        LC.zookeeper_placement_max_moves.intValue()));
+        try {
+            reporter.start();
+        } catch (Exception e) {
+            throw ServiceException.FAILURE("Unable to start load reporting", e);
+        }
+        instance = reporter;
+    }
+
+    public static synchronized void shutdown() {
+        if (instance != null) {
+            instance.stop();
+            instance = null;
+        }
+    }
+
+    private void start() throws Exception {
+        latch.start();
+        executor = Executors.newSingleThreadScheduledExecutor(newDaemonThreadFactory("LoadReporter"));
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    curator.publishLoad(sample());
+                    if (latch.hasLeadership()) {
+                        advise();
+                    }
+                } catch (Throwable t) {
+                    ZimbraLog.misc.warn("unable to report server load", t);
+                }
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    private void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+        Closeables.closeQuietly(latch);
+    }
+
+    /**
+     * Collects the load of this server since the last sample.
+     */
+    private ServerLoad sample() throws ServiceException {
+        ServerLoad load = new ServerLoad(curator.getServerId());
+        double seconds = Math.max(load.getTimestamp() - lastSample, 1) / 1000.0;
+        lastSample = load.getTimestamp();
+
+        Map<String, Object> stats = ZimbraPerf.getRealtimeStats();
+        load.setSessions(intValue(stats.get(ZimbraPerf.RTS_SOAP_SESSIONS)));
+        load.setImapConnections(intValue(stats.get(ZimbraPerf.RTS_IMAP_CONN)) +
+                intValue(stats.get(ZimbraPerf.RTS_IMAP_SSL_CONN)));
+        long lmtp = ZimbraPerf.COUNTER_LMTP_RCVD_MSGS.getCount();
+        load.setLmtpRate((lmtp - lastLmtp) / seconds);
+        lastLmtp = lmtp;
+
+        int indexBacklog = MailboxIndex.getActiveIndexTaskCount();
+        long transactions = 0;
+        final Map<Mailbox, Long> deltas = new HashMap<Mailbox, Long>();
+        Map<Integer, Long> counts = new HashMap<Integer, Long>();
+        for (Mailbox mbox : MailboxManager.getInstance().getAllLoadedMailboxes()) {
+            indexBacklog += mbox.index.getLoadedDeferredCount();
+            long count = mbox.getTransactionCount();
+            Long last = lastTransactions.get(mbox.getId());
+            // a mailbox loaded since the last sample counts from when it was loaded
+            long delta = last == null || last > count ? count : count - last;
+            counts.put(mbox.getId(), count);
+            if (delta > 0) {
+                deltas.put(mbox, delta);
+                transactions += delta;
+            }
+        }
+        lastTransactions = counts;
+        load.setIndexBacklog(indexBacklog);
+        load.setTransactionRate(transactions / seconds);
+
+        List<Mailbox> busiest = new ArrayList<Mailbox>(deltas.keySet());
+        Collections.sort(busiest, new Comparator<Mailbox>() {
+            @Override
+            public int compare(Mailbox m1, Mailbox m2) {
+                return deltas.get(m2).compareTo(deltas.get(m1));
+            }
+        });
+        for (Mailbox mbox : busiest.subList(0, Math.min(hotMailboxes, busiest.size()))) {
+            load.getMailboxes().add(new MailboxLoad(mbox.getAccountId(), deltas.get(mbox) / seconds,
+                    mbox.getListeners(null).size()));
+        }
+        return load;
+    }
+
+    private static int intValue(Object value) {
+        return value instanceof Number ? ((Number) value).intValue() : 0;
+    }
+
+    /**
+     * Runs the placement advisor over the fresh loads of all servers and publishes its suggestions.
+     */
+    private void advise() throws Exception {
+        List<ServerLoad> loads = curator.getServerLoads();
+        long cutoff = System.currentTimeMillis() - interval * 3;
+        for (Iterator<ServerLoad> i = loads.iterator(); i.hasNext();) {
+            if (i.next().getTimestamp() < cutoff) {
+                i.remove();
+            }
+        }
+        List<Move> moves = advisor.advise(loads);
+        StringBuilder text = new StringBuilder();
+        for (Move move : moves) {
+            ZimbraLog.misc.info("placement: suggest moving mailbox %s from server %s to %s",
+                    move.getAccountId(), move.getFromServerId(), move.getToServerId());
+            text.append(move).append('\n');
+        }
+        curator.setData(PLACEMENT_KEY, text.toString());
+    }
+}
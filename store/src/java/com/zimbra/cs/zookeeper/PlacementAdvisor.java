@@ -0,0 +1,166 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.cs.zookeeper;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.List;
+
+import com.zimbra.cs.zookeeper.ServerLoad.MailboxLoad;
+
+/**
+ * Suggests mailbox moves that even out the load across the mailbox servers.
+ * <p>
+ * Each server gets a score: the sum of its metrics, each divided by the cluster average for that metric, so an
+ * average server scores the number of metrics in use. While the busiest server is more than the allowed imbalance
+ * over the average, one of its hot mailboxes is moved to the least busy server. A mailbox is taken to carry the
+ * share of its server's score that its transactions are of the server's transactions. The busiest mailbox that
+ * fits in half the gap between the two servers is picked, so a move never just moves the hot spot elsewhere.
+ */
+public class PlacementAdvisor {
+
+    public static final class Move {
+        private final String accountId;
+        private final String fromServerId;
+        private final String toServerId;
+
+        Move(String accountId, String fromServerId, String toServerId) {
+            this.accountId = accountId;
+            this.fromServerId = fromServerId;
+            this.toServerId = toServerId;
+        }
+
+        public String getAccountId() {
+            return accountId;
+        }
+
+        public String getFromServerId() {
+            return fromServerId;
+        }
+
+        public String getToServerId() {
+            return toServerId;
+        }
+
+        @Override
+        public String toString() {
+            return accountId + " " + fromServerId + " " + toServerId;
+        }
+    }
+
+    private final double imbalance;
+    private final int maxMoves;
+
+    /**
+     * @param imbalancePercent how far over the average score the busiest server may be
+     * @param maxMoves the most moves suggested at once
+     */
+    public PlacementAdvisor(int imbalancePercent, int maxMoves) {
+        this.imbalance = imbalancePercent / 100.0;
+        this.maxMoves = maxMoves;
+    }
+
+    public List<Move> advise(Collection<ServerLoad> loads) {
+        List<Move> moves = new ArrayList<Move>();
+        int n = loads.size();
+        if (n < 2) {
+            return moves;
+        }
+        ServerLoad[] servers = loads.toArray(new ServerLoad[n]);
+        double[][] metrics = new double[n][];
+        for (int i = 0; i < n; i++) {
+            metrics[i] = servers[i].metrics();
+        }
+        int dims = metrics[0].length;
+        double[] means = new double[dims];
+        double target = 0;
+        for (int d = 0; d < dims; d++) {
+            for (int i = 0; i < n; i++) {
+                means[d] += metrics[i][d];
+            }
+            means[d] /= n;
+            if (means[d] > 0) {
+                target++;
+            }
+        }
+        if (target == 0) {
+            return moves;
+        }
+        double[] scores = new double[n];
+        List<LinkedList<MailboxLoad>> candidates = new ArrayList<LinkedList<MailboxLoad>>(n);
+        for (int i = 0; i < n; i++) {
+            for (int d = 0; d < dims; d++) {
+                if (means[d] > 0) {
+                    scores[i] += metrics[i][d] / means[d];
+                }
+            }
+            candidates.add(new LinkedList<MailboxLoad>(servers[i].getMailboxes()));
+        }
+        // what each server's own score was, for sizing its mailboxes after scores start to shift
+        double[] initial = scores.clone();
+
+        while (moves.size() < maxMoves) {
+            int hot = 0;
+            int cold = 0;
+            for (int i = 1; i < n; i++) {
+                if (scores[i] > scores[hot]) {
+                    hot = i;
+                }
+                if (scores[i] < scores[cold]) {
+                    cold = i;
+                }
+            }
+            if (scores[hot] <= target * (1 + imbalance)) {
+                break;
+            }
+            double gap = (scores[hot] - scores[cold]) / 2;
+            MailboxLoad pick = null;
+            double pickScore = 0;
+            for (MailboxLoad mbox : candidates.get(hot)) {
+                double score = share(mbox, servers[hot]) * initial[hot];
+                if (score > 0 && score <= gap && score > pickScore) {
+                    pick = mbox;
+                    pickScore = score;
+                }
+            }
+            if (pick == null) {
+                break;
+            }
+            candidates.get(hot).remove(pick);
+            scores[hot] -= pickScore;
+            scores[cold] += pickScore;
+            moves.add(new Move(pick.getAccountId(), servers[hot].getServerId(), servers[cold].getServerId()));
+        }
+        return moves;
+    }
+
+    /**
+     * Returns the part of the server's load that the mailbox accounts for, by transactions or, on a server that had
+     * none, by sessions.
+     */
+    private static double share(MailboxLoad mbox, ServerLoad server) {
+        if (server.getTransactionRate() > 0) {
+            return Math.min(1, mbox.getTransactionRate() / server.getTransactionRate());
+        } else if (server.getSessions() > 0) {
+            return Math.min(1, (double) mbox.getSessions() / server.getSessions());
+        } else {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.cs.zookeeper;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.codehaus.jackson.map.ObjectMapper;
+
+/**
+ * Load of one mailbox server as published in ZooKeeper by {@link LoadReporter}, along with its busiest mailboxes.
+ */
+public class ServerLoad {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    public static class MailboxLoad {
+        private String accountId;
+        private double transactionRate;
+        private int sessions;
+
+        public MailboxLoad() {
+        }
+
+        public MailboxLoad(String accountId, double transactionRate, int sessions) {
+            this.accountId = accountId;
+            this.transactionRate = transactionRate;
+            this.sessions = sessions;
+        }
+
+        public String getAccountId() {
+            return accountId;
+        }
+
+        public void setAccountId(String accountId) {
+            this.accountId = accountId;
+        }
+
+        /** mailbox transactions per second over the last report interval */
+        public double getTransactionRate() {
+            return transactionRate;
+        }
+
+        public void setTransactionRate(double transactionRate) {
+            this.transactionRate = transactionRate;
+        }
+
+        /** sessions listening on the mailbox */
+        public int getSessions() {
+            return sessions;
+        }
+
+        public void setSessions(int sessions) {
+            this.sessions = sessions;
+        }
+
+        @Override
+        public String toString() {
+            return accountId + "(" + transactionRate + " tx/s, " + sessions + " sessions)";
+        }
+    }
+
+    private String serverId;
+    private long timestamp;
+    private int sessions;
+    private int imapConnections;
+    private double lmtpRate;
+    private int indexBacklog;
+    private double transactionRate;
+    private List<MailboxLoad> mailboxes = new ArrayList<MailboxLoad>();
+
+    public ServerLoad() {
+    }
+
+    public ServerLoad(String serverId) {
+        this.serverId = serverId;
+        this.timestamp = System.currentTimeMillis();
+    }
+
+    public String getServerId() {
+        return serverId;
+    }
+
+    public void setServerId(String serverId) {
+        this.serverId = serverId;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public void setTimestamp(long timestamp) {
+        this.timestamp = timestamp;
+    }
+
+    /** active SOAP sessions */
+    public int getSessions() {
+        return sessions;
+    }
+
+    public void setSessions(int sessions) {
+        this.sessions = sessions;
+    }
+
+    /** open IMAP connections, plain and SSL */
+    public int getImapConnections() {
+        return imapConnections;
+    }
+
+    public void setImapConnections(int imapConnections) {
+        this.imapConnections = imapConnections;
+    }
+
+    /** messages received over LMTP per second */
+    public double getLmtpRate() {
+        return lmtpRate;
+    }
+
+    public void setLmtpRate(double lmtpRate) {
+        this.lmtpRate = lmtpRate;
+    }
+
+    /** running index tasks plus items waiting to be indexed in the loaded mailboxes */
+    public int getIndexBacklog() {
+        return indexBacklog;
+    }
+
+    public void setIndexBacklog(int indexBacklog) {
+        this.indexBacklog = indexBacklog;
+    }
+
+    /** mailbox transactions per second across all loaded mailboxes */
+    public double getTransactionRate() {
+        return transactionRate;
+    }
+
+    public void setTransactionRate(double transactionRate) {
+        this.transactionRate = transactionRate;
+    }
+
+    /** the busiest mailboxes, busiest first */
+    public List<MailboxLoad> getMailboxes() {
+        return mailboxes;
+    }
+
+    public void setMailboxes(List<MailboxLoad> mailboxes) {
+        this.mailboxes = mailboxes;
+    }
+
+    /**
+     * Returns the values the servers are compared by, in a fixed order.
+     */
+    double[] metrics() {
+        return new double[] { sessions, imapConnections, lmtpRate, indexBacklog, transactionRate };
+    }
+
+    byte[] encode() throws IOException {
+        return MAPPER.writeValueAsBytes(this);
+    }
+
+    static ServerLoad decode(byte[] data) throws IOException {
+        return MAPPER.readValue(data, ServerLoad.class);
+    }
+
+    @Override
+    public String toString() {
+        return serverId + "[sessions=" + sessions + ", imap=" + imapConnections + ", lmtp/s=" + lmtpRate +
+                ", index=" + indexBacklog + ", tx/s=" + transactionRate + "]";
+    }
+}